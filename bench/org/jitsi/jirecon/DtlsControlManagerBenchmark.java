@@ -0,0 +1,59 @@
+/*
+/*
+ * Jirecon, the JItsi REcording COntainer.
+ *
+ *
+ * Copyright @ 2015 Atlassian Pty Ltd
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.jitsi.jirecon;
+
+import java.util.*;
+import java.util.concurrent.*;
+
+import org.jitsi.service.libjitsi.*;
+import org.jitsi.service.neomedia.*;
+import org.openjdk.jmh.annotations.*;
+
+/**
+ * Benchmark of the creation of the DTLS controls of a task, which generates
+ * their certificates. It's slow and happens once per task, so it's measured
+ * one call at a time.
+ */
+@BenchmarkMode(Mode.SingleShotTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, batchSize = 1)
+@Measurement(iterations = 20, batchSize = 1)
+@Fork(1)
+@State(Scope.Benchmark)
+public class DtlsControlManagerBenchmark
+{
+    @Setup
+    public void setUp()
+    {
+        LibJitsi.start();
+    }
+
+    @TearDown
+    public void tearDown()
+    {
+        LibJitsi.stop();
+    }
+
+    @Benchmark
+    public Map<MediaType, DtlsControl> createDtlsControls()
+    {
+        return new DtlsControlManager().getAllDtlsControl();
+    }
+}
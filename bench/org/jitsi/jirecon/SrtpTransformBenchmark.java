@@ -0,0 +1,129 @@
+/*
+/*
+ * Jirecon, the JItsi REcording COntainer.
+ *
+ *
+ * Copyright @ 2015 Atlassian Pty Ltd
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.jitsi.jirecon;
+
+import java.util.concurrent.*;
+
+import org.jitsi.impl.neomedia.*;
+import org.jitsi.impl.neomedia.transform.srtp.*;
+import org.jitsi.service.libjitsi.*;
+import org.openjdk.jmh.annotations.*;
+
+/**
+ * Benchmarks of the SRTP transform which every received media packet goes
+ * through, with the policy which DTLS-SRTP negotiates with the videobridge
+ * (AES_CM_128_HMAC_SHA1_80).
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class SrtpTransformBenchmark
+{
+    private static final long SSRC = 2447521424L;
+
+    /**
+     * The size of the RTP payloads: an audio frame or a full video packet.
+     */
+    @Param({ "160", "1200" })
+    public int payloadSize;
+
+    private SRTPTransformer sender;
+
+    private SRTPTransformer receiver;
+
+    private int seq = 0;
+
+    @Setup
+    public void setUp()
+    {
+        LibJitsi.start();
+
+        byte[] masterKey = new byte[16];
+        byte[] masterSalt = new byte[14];
+        for (int i = 0; i < masterKey.length; i++)
+            masterKey[i] = (byte) i;
+        for (int i = 0; i < masterSalt.length; i++)
+            masterSalt[i] = (byte) (0x80 + i);
+
+        SRTPPolicy policy =
+            new SRTPPolicy(SRTPPolicy.AESCM_ENCRYPTION, 16,
+                SRTPPolicy.HMACSHA1_AUTHENTICATION, 20, 10, 14);
+
+        sender =
+            new SRTPTransformer(new SRTPContextFactory(true, masterKey,
+                masterSalt, policy, policy));
+        receiver =
+            new SRTPTransformer(new SRTPContextFactory(false, masterKey,
+                masterSalt, policy, policy));
+    }
+
+    @TearDown
+    public void tearDown()
+    {
+        sender.close();
+        receiver.close();
+        LibJitsi.stop();
+    }
+
+    @Benchmark
+    public RawPacket protect()
+    {
+        return sender.transform(nextPacket());
+    }
+
+    @Benchmark
+    public RawPacket protectAndUnprotect()
+    {
+        return receiver.reverseTransform(sender.transform(nextPacket()));
+    }
+
+    /**
+     * Create the next RTP packet of the stream, with room for the
+     * authentication tag.
+     * 
+     * @return
+     */
+    private RawPacket nextPacket()
+    {
+        byte[] buffer =
+            new byte[RawPacket.FIXED_HEADER_SIZE + payloadSize + 10];
+        int seq = this.seq++ & 0xFFFF;
+        long timestamp = 3000L * this.seq;
+
+        buffer[0] = (byte) 0x80;
+        buffer[1] = (byte) 100;
+        buffer[2] = (byte) (seq >> 8);
+        buffer[3] = (byte) seq;
+        buffer[4] = (byte) (timestamp >> 24);
+        buffer[5] = (byte) (timestamp >> 16);
+        buffer[6] = (byte) (timestamp >> 8);
+        buffer[7] = (byte) timestamp;
+        buffer[8] = (byte) (SSRC >> 24);
+        buffer[9] = (byte) (SSRC >> 16);
+        buffer[10] = (byte) (SSRC >> 8);
+        buffer[11] = (byte) SSRC;
+
+        return new RawPacket(buffer, 0, RawPacket.FIXED_HEADER_SIZE
+            + payloadSize);
+    }
+}
@@ -0,0 +1,116 @@
+/*
+/*
+ * Jirecon, the JItsi REcording COntainer.
+ *
+ *
+ * Copyright @ 2015 Atlassian Pty Ltd
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.jitsi.jirecon;
+
+import java.util.*;
+import java.util.concurrent.*;
+
+import org.jitsi.service.neomedia.*;
+import org.jitsi.service.neomedia.recording.*;
+import org.openjdk.jmh.annotations.*;
+
+/**
+ * Benchmarks of the endpoint lookups which <tt>StreamRecorderManager</tt>
+ * does for every recorder event, before the event is written to the
+ * metadata. The events are handed over to a handler which drops them, so
+ * that only the lookups are measured.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Benchmark)
+public class StreamRecorderManagerBenchmark
+{
+    /**
+     * The number of endpoints in the meeting.
+     */
+    @Param({ "4", "32", "128" })
+    public int endpointCount;
+
+    private StreamRecorderManager recorderMgr;
+
+    private RecorderEventHandler eventHandler;
+
+    /**
+     * The audio SSRC of the endpoint which is found last.
+     */
+    private long lastAudioSsrc;
+
+    /**
+     * The video SSRC of the endpoint which is found last.
+     */
+    private long lastVideoSsrc;
+
+    @Setup
+    public void setUp()
+    {
+        List<EndpointInfo> endpoints = new ArrayList<EndpointInfo>();
+        for (int i = 0; i < endpointCount; i++)
+        {
+            EndpointInfo endpoint = new EndpointInfo();
+            endpoint.setId("conference@example.com/" + Integer.toHexString(
+                0x10000000 + i));
+            endpoint.setSsrc(MediaType.AUDIO, 1000000L + i);
+            endpoint.setSsrc(MediaType.VIDEO, 2000000L + i);
+            endpoints.add(endpoint);
+        }
+        lastAudioSsrc = 1000000L + endpointCount - 1;
+        lastVideoSsrc = 2000000L + endpointCount - 1;
+
+        recorderMgr = new StreamRecorderManager();
+        recorderMgr.setEndpoints(endpoints);
+        eventHandler =
+            recorderMgr.new RecorderEventHandlerImpl(new RecorderEventHandler()
+            {
+                @Override
+                public boolean handleEvent(RecorderEvent event)
+                {
+                    return true;
+                }
+
+                @Override
+                public void close()
+                {
+                }
+            });
+    }
+
+    @Benchmark
+    public boolean speakerChanged()
+    {
+        RecorderEvent event = new RecorderEvent();
+        event.setType(RecorderEvent.Type.SPEAKER_CHANGED);
+        event.setMediaType(MediaType.VIDEO);
+        event.setAudioSsrc(lastAudioSsrc);
+        return eventHandler.handleEvent(event);
+    }
+
+    @Benchmark
+    public boolean recordingStarted()
+    {
+        RecorderEvent event = new RecorderEvent();
+        event.setType(RecorderEvent.Type.RECORDING_STARTED);
+        event.setMediaType(MediaType.VIDEO);
+        event.setSsrc(lastVideoSsrc);
+        return eventHandler.handleEvent(event);
+    }
+}
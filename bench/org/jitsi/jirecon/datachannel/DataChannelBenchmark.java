@@ -0,0 +1,141 @@
+/*
+/*
+ * Jirecon, the JItsi REcording COntainer.
+ *
+ *
+ * Copyright @ 2015 Atlassian Pty Ltd
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.jitsi.jirecon.datachannel;
+
+import java.io.*;
+import java.nio.*;
+import java.util.*;
+import java.util.concurrent.*;
+
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.infra.*;
+
+/**
+ * Benchmarks of the decoding of the packets which the videobridge sends on
+ * the data channel: the <tt>DATA_CHANNEL_OPEN</tt> control packet, and the
+ * colibri messages which follow it.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class DataChannelBenchmark
+{
+    private static final byte[] DOMINANT_SPEAKER = toUtf8(
+        "{\"colibriClass\":\"DominantSpeakerEndpointChangeEvent\","
+            + "\"dominantSpeakerEndpoint\":\"5b7f3a1c\"}");
+
+    private static final byte[] LAST_N = toUtf8(
+        "{\"colibriClass\":\"LastNEndpointsChangeEvent\","
+            + "\"lastNEndpoints\":[\"5b7f3a1c\",\"60ae643e\",\"8d2e41f7\"],"
+            + "\"endpointsEnteringLastN\":[\"8d2e41f7\"]}");
+
+    /**
+     * A <tt>DATA_CHANNEL_OPEN</tt> of a reliable channel, as the videobridge
+     * sends it.
+     */
+    private final byte[] openChannel = createOpenChannel("default",
+        "http://jitsi.org/protocols/colibri");
+
+    private ColibriMessageDecoder decoder;
+
+    @Setup
+    public void setUp(final Blackhole blackhole)
+    {
+        decoder = new ColibriMessageDecoder(new ColibriEventListener()
+        {
+            @Override
+            public void dominantSpeakerChanged(String endpointId)
+            {
+                blackhole.consume(endpointId);
+            }
+
+            @Override
+            public void lastNEndpointsChanged(List<String> lastNEndpoints,
+                List<String> endpointsEnteringLastN)
+            {
+                blackhole.consume(lastNEndpoints);
+                blackhole.consume(endpointsEnteringLastN);
+            }
+
+            @Override
+            public void endpointConnectivityChanged(String endpointId,
+                boolean active)
+            {
+                blackhole.consume(endpointId);
+            }
+        });
+    }
+
+    @Benchmark
+    public WebRtcDataStreamManager.OpenChannelMessage decodeOpenChannel()
+        throws IOException
+    {
+        ByteBuffer buffer = ByteBuffer.wrap(openChannel);
+        // Skip the message type, like onCtrlPacket does.
+        buffer.get();
+        return WebRtcDataStreamManager.OpenChannelMessage.decode(buffer);
+    }
+
+    @Benchmark
+    public boolean decodeDominantSpeaker()
+    {
+        return decoder.decode(DOMINANT_SPEAKER, 0, DOMINANT_SPEAKER.length);
+    }
+
+    @Benchmark
+    public boolean decodeLastN()
+    {
+        return decoder.decode(LAST_N, 0, LAST_N.length);
+    }
+
+    private static byte[] createOpenChannel(String label, String protocol)
+    {
+        byte[] labelBytes = toUtf8(label);
+        byte[] protocolBytes = toUtf8(protocol);
+        ByteBuffer buffer =
+            ByteBuffer.allocate(12 + labelBytes.length
+                + protocolBytes.length);
+
+        buffer.put((byte) 0x03); // DATA_CHANNEL_OPEN
+        buffer.put((byte) 0x00); // DATA_CHANNEL_RELIABLE
+        buffer.putShort((short) 0); // priority
+        buffer.putInt(0); // reliability
+        buffer.putShort((short) labelBytes.length);
+        buffer.putShort((short) protocolBytes.length);
+        buffer.put(labelBytes);
+        buffer.put(protocolBytes);
+        return buffer.array();
+    }
+
+    private static byte[] toUtf8(String s)
+    {
+        try
+        {
+            return s.getBytes("UTF-8");
+        }
+        catch (UnsupportedEncodingException e)
+        {
+            throw new IllegalStateException(e);
+        }
+    }
+}
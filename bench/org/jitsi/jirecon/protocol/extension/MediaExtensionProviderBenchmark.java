@@ -0,0 +1,64 @@
+/*
+/*
+ * Jirecon, the JItsi REcording COntainer.
+ *
+ *
+ * Copyright @ 2015 Atlassian Pty Ltd
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.jitsi.jirecon.protocol.extension;
+
+import java.io.*;
+import java.util.concurrent.*;
+
+import org.jivesoftware.smack.packet.*;
+import org.openjdk.jmh.annotations.*;
+import org.xmlpull.mxp1.*;
+import org.xmlpull.v1.*;
+
+/**
+ * Benchmark of the parsing of the "media" extension, which is in every
+ * presence of the MUC that a task has joined.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class MediaExtensionProviderBenchmark
+{
+    private static final String MEDIA =
+        "<media xmlns='http://estos.de/ns/mjs'>"
+            + "<source type='audio' ssrc='351458388' direction='sendrecv'/>"
+            + "<source type='video' ssrc='2447521424' direction='sendrecv'/>"
+            + "<source type='video' ssrc='2447521425' direction='sendrecv'/>"
+            + "<source type='video' ssrc='2447521426' direction='sendrecv'/>"
+            + "</media>";
+
+    private final MediaExtensionProvider provider =
+        new MediaExtensionProvider();
+
+    @Benchmark
+    public PacketExtension parseMedia()
+        throws Exception
+    {
+        XmlPullParser parser = new MXParser();
+        parser.setFeature(XmlPullParser.FEATURE_PROCESS_NAMESPACES, true);
+        parser.setInput(new StringReader(MEDIA));
+        // The provider is called on the start tag of the extension.
+        parser.next();
+        return provider.parseExtension(parser);
+    }
+}
@@ -0,0 +1,201 @@
+/*
+/*
+ * Jirecon, the JItsi REcording COntainer.
+ *
+ *
+ * Copyright @ 2015 Atlassian Pty Ltd
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.jitsi.jirecon.utils;
+
+import java.io.*;
+import java.util.*;
+import java.util.concurrent.*;
+
+import net.java.sip.communicator.impl.protocol.jabber.extensions.jingle.*;
+
+import org.jitsi.service.libjitsi.*;
+import org.jitsi.service.neomedia.*;
+import org.jitsi.service.neomedia.format.*;
+import org.openjdk.jmh.annotations.*;
+import org.xmlpull.mxp1.*;
+import org.xmlpull.v1.*;
+
+/**
+ * Benchmarks of the parsing of the session-initiate which a focus sends to
+ * every task, and of the <tt>JinglePacketParser</tt> lookups which the task
+ * does on it.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Benchmark)
+public class JinglePacketParserBenchmark
+{
+    /**
+     * The transport of every content, with a DTLS fingerprint.
+     */
+    private static final String ICE_UDP_TRANSPORT =
+        "<transport xmlns='urn:xmpp:jingle:transports:ice-udp:1'"
+            + " ufrag='8cq4e1bd6ku9e' pwd='2c7h81uvd3lhmgsnkc3do6e1g7'>"
+            + "<fingerprint xmlns='urn:xmpp:jingle:apps:dtls:0'"
+            + " hash='sha-1' setup='actpass'>"
+            + "4F:2A:90:6B:43:CE:5A:1B:76:3F:8C:0D:72:11:B9:E4:3C:55:A8:F0"
+            + "</fingerprint>"
+            + "<candidate component='1' foundation='1' generation='0'"
+            + " id='5f9e0d8f10' network='0' priority='2130706431'"
+            + " protocol='udp' type='host' ip='10.0.0.12' port='10000'/>"
+            + "<candidate component='1' foundation='2' generation='0'"
+            + " id='5f9e0d8f11' network='0' priority='1694498815'"
+            + " protocol='udp' type='srflx' ip='203.0.113.7' port='10000'"
+            + " rel-addr='10.0.0.12' rel-port='10000'/>"
+            + "</transport>";
+
+    /**
+     * A session-initiate of a Jitsi Meet focus, with audio, video (simulcast
+     * and RTX) and data, and two participants.
+     */
+    private static final String SESSION_INITIATE =
+        "<jingle xmlns='urn:xmpp:jingle:1' action='session-initiate'"
+            + " initiator='focus@auth.example.com/focus'"
+            + " sid='8nbs6fvqrfvnr'>"
+            + "<content creator='initiator' name='audio' senders='both'>"
+            + "<description xmlns='urn:xmpp:jingle:apps:rtp:1' media='audio'>"
+            + "<payload-type id='111' name='opus' clockrate='48000'"
+            + " channels='2'><parameter name='minptime' value='10'/>"
+            + "<parameter name='useinbandfec' value='1'/></payload-type>"
+            + "<payload-type id='103' name='ISAC' clockrate='16000'/>"
+            + "<payload-type id='104' name='ISAC' clockrate='32000'/>"
+            + "<payload-type id='126' name='telephone-event'"
+            + " clockrate='8000'/>"
+            + "<rtp-hdrext xmlns='urn:xmpp:jingle:apps:rtp:rtp-hdrext:0'"
+            + " id='1' uri='urn:ietf:params:rtp-hdrext:ssrc-audio-level'/>"
+            + "<source xmlns='urn:xmpp:jingle:apps:rtp:ssma:0'"
+            + " ssrc='3230188012'><parameter name='msid'"
+            + " value='mixedmslabel mixedlabelaudio0'/></source>"
+            + "<source xmlns='urn:xmpp:jingle:apps:rtp:ssma:0'"
+            + " ssrc='351458388'><parameter name='msid'"
+            + " value='60ae643e-audio-1 aa1'/></source>"
+            + "</description>"
+            + ICE_UDP_TRANSPORT
+            + "</content>"
+            + "<content creator='initiator' name='video' senders='both'>"
+            + "<description xmlns='urn:xmpp:jingle:apps:rtp:1' media='video'>"
+            + "<payload-type id='100' name='VP8' clockrate='90000'>"
+            + "<rtcp-fb xmlns='urn:xmpp:jingle:apps:rtp:rtcp-fb:0'"
+            + " type='ccm' subtype='fir'/>"
+            + "<rtcp-fb xmlns='urn:xmpp:jingle:apps:rtp:rtcp-fb:0'"
+            + " type='nack'/>"
+            + "<rtcp-fb xmlns='urn:xmpp:jingle:apps:rtp:rtcp-fb:0'"
+            + " type='nack' subtype='pli'/>"
+            + "<rtcp-fb xmlns='urn:xmpp:jingle:apps:rtp:rtcp-fb:0'"
+            + " type='goog-remb'/></payload-type>"
+            + "<payload-type id='96' name='rtx' clockrate='90000'>"
+            + "<parameter name='apt' value='100'/></payload-type>"
+            + "<payload-type id='116' name='red' clockrate='90000'/>"
+            + "<payload-type id='117' name='ulpfec' clockrate='90000'/>"
+            + "<source xmlns='urn:xmpp:jingle:apps:rtp:ssma:0'"
+            + " ssrc='1239366168'><parameter name='msid'"
+            + " value='mixedmslabel mixedlabelvideo0'/></source>"
+            + "<source xmlns='urn:xmpp:jingle:apps:rtp:ssma:0'"
+            + " ssrc='2447521424'/>"
+            + "<source xmlns='urn:xmpp:jingle:apps:rtp:ssma:0'"
+            + " ssrc='2447521425'/>"
+            + "<source xmlns='urn:xmpp:jingle:apps:rtp:ssma:0'"
+            + " ssrc='2447521426'/>"
+            + "<source xmlns='urn:xmpp:jingle:apps:rtp:ssma:0'"
+            + " ssrc='1117284339'/>"
+            + "<ssrc-group xmlns='urn:xmpp:jingle:apps:rtp:ssma:0'"
+            + " semantics='SIM'><source ssrc='2447521424'/>"
+            + "<source ssrc='2447521425'/><source ssrc='2447521426'/>"
+            + "</ssrc-group>"
+            + "<ssrc-group xmlns='urn:xmpp:jingle:apps:rtp:ssma:0'"
+            + " semantics='FID'><source ssrc='2447521424'/>"
+            + "<source ssrc='1117284339'/></ssrc-group>"
+            + "</description>"
+            + ICE_UDP_TRANSPORT
+            + "</content>"
+            + "<content creator='initiator' name='data' senders='both'>"
+            + "<description xmlns='urn:xmpp:jingle:apps:rtp:1'"
+            + " media='application'/>"
+            + ICE_UDP_TRANSPORT
+            + "</content>"
+            + "<group xmlns='urn:xmpp:jingle:apps:grouping:0'"
+            + " semantics='BUNDLE'><content name='audio'/>"
+            + "<content name='video'/><content name='data'/></group>"
+            + "</jingle>";
+
+    private final JingleIQProvider provider = new JingleIQProvider();
+
+    private JingleIQ sessionInitiate;
+
+    @Setup
+    public void setUp()
+        throws Exception
+    {
+        LibJitsi.start();
+        sessionInitiate = parse(SESSION_INITIATE);
+    }
+
+    @TearDown
+    public void tearDown()
+    {
+        LibJitsi.stop();
+    }
+
+    @Benchmark
+    public JingleIQ parseSessionInitiate()
+        throws Exception
+    {
+        return parse(SESSION_INITIATE);
+    }
+
+    @Benchmark
+    public Map<MediaFormat, Byte> getFormatAndDynamicPTs()
+    {
+        return JinglePacketParser.getFormatAndDynamicPTs(sessionInitiate,
+            MediaType.VIDEO);
+    }
+
+    @Benchmark
+    public Map<MediaType, IceUdpTransportPacketExtension> getTransportPacketExts()
+    {
+        return JinglePacketParser.getTransportPacketExts(sessionInitiate);
+    }
+
+    @Benchmark
+    public DtlsFingerprintPacketExtension getFingerprintPacketExt()
+    {
+        return JinglePacketParser.getFingerprintPacketExt(sessionInitiate,
+            MediaType.AUDIO);
+    }
+
+    @Benchmark
+    public MediaType[] getSupportedMediaTypes()
+    {
+        return JinglePacketParser.getSupportedMediaTypes(sessionInitiate);
+    }
+
+    private JingleIQ parse(String xml)
+        throws Exception
+    {
+        XmlPullParser parser = new MXParser();
+        parser.setFeature(XmlPullParser.FEATURE_PROCESS_NAMESPACES, true);
+        parser.setInput(new StringReader(xml));
+        parser.next();
+        return provider.parseIQ(parser);
+    }
+}
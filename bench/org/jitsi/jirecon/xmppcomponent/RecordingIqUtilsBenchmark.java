@@ -0,0 +1,150 @@
+/*
+/*
+ * Jirecon, the JItsi REcording COntainer.
+ *
+ *
+ * Copyright @ 2015 Atlassian Pty Ltd
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.jitsi.jirecon.xmppcomponent;
+
+import java.util.concurrent.*;
+
+import org.dom4j.*;
+import org.openjdk.jmh.annotations.*;
+import org.xmpp.packet.*;
+
+/**
+ * Benchmarks of the building of the recording IQs: the notification which is
+ * sent to the client whenever the status of a session changes, the result of
+ * a start, and the answer to a status request.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class RecordingIqUtilsBenchmark
+{
+    private static final String COMPONENT_JID = "jirecon.example.com";
+
+    private static final String CLIENT_JID = "focus@auth.example.com/focus";
+
+    private static final String MUC_JID =
+        "8khk07b3a61j1yvi@conference.example.com";
+
+    private static final String RID = "d9ab2b7fe3524a0c";
+
+    /**
+     * The sessions in the answer to a status request.
+     */
+    @State(Scope.Thread)
+    public static class Sessions
+    {
+        @Param({ "1", "16", "64" })
+        public int count;
+    }
+
+    private IQ startRequest;
+
+    @Setup
+    public void setUp()
+    {
+        startRequest = RecordingIqUtils.createIqSet(CLIENT_JID, COMPONENT_JID);
+        RecordingIqUtils.addAttribute(startRequest,
+            RecordingIqUtils.ACTION_NAME,
+            RecordingIqUtils.Action.START.toString());
+        RecordingIqUtils.addAttribute(startRequest,
+            RecordingIqUtils.MUCJID_NAME, MUC_JID);
+    }
+
+    @Benchmark
+    public String notification()
+    {
+        IQ notification =
+            RecordingIqUtils.createIqSet(COMPONENT_JID, CLIENT_JID);
+
+        RecordingIqUtils.addAttribute(notification,
+            RecordingIqUtils.ACTION_NAME,
+            RecordingIqUtils.Action.INFO.toString());
+        RecordingIqUtils.addAttribute(notification,
+            RecordingIqUtils.STATUS_NAME,
+            RecordingIqUtils.Status.STARTED.toString());
+        RecordingIqUtils.addAttribute(notification,
+            RecordingIqUtils.MUCJID_NAME, MUC_JID);
+        RecordingIqUtils.addAttribute(notification,
+            RecordingIqUtils.RID_NAME, RID);
+        return notification.toXML();
+    }
+
+    @Benchmark
+    public String startResult()
+    {
+        IQ result = RecordingIqUtils.createIqResult(startRequest);
+
+        RecordingIqUtils.addAttribute(result, RecordingIqUtils.ACTION_NAME,
+            RecordingIqUtils.Action.START.toString());
+        RecordingIqUtils.addAttribute(result, RecordingIqUtils.STATUS_NAME,
+            RecordingIqUtils.Status.INITIATING.toString());
+        RecordingIqUtils.addAttribute(result, RecordingIqUtils.RID_NAME, RID);
+        return result.toXML();
+    }
+
+    @Benchmark
+    public String statusResult(Sessions sessions)
+    {
+        IQ result = RecordingIqUtils.createIqResult(startRequest);
+
+        RecordingIqUtils.addAttribute(result, RecordingIqUtils.ACTION_NAME,
+            RecordingIqUtils.Action.STATUS.toString());
+        Element node =
+            RecordingIqUtils.addChildElement(result,
+                RecordingIqUtils.NODE_ELEMENT_NAME);
+        node.addAttribute("load", "0.42");
+        node.addAttribute("sessions", String.valueOf(sessions.count));
+
+        for (int i = 0; i < sessions.count; i++)
+        {
+            Element session =
+                RecordingIqUtils.addChildElement(result,
+                    RecordingIqUtils.SESSION_ELEMENT_NAME);
+            session.addAttribute(RecordingIqUtils.RID_NAME, RID + i);
+            session.addAttribute(RecordingIqUtils.MUCJID_NAME, i + MUC_JID);
+            session.addAttribute(RecordingIqUtils.STATUS_NAME,
+                RecordingIqUtils.Status.STARTED.toString());
+            session.addAttribute("duration", String.valueOf(60000L * i));
+
+            for (int j = 0; j < 2; j++)
+            {
+                Element stream =
+                    session.addElement(RecordingIqUtils.STREAM_ELEMENT_NAME,
+                        RecordingIqUtils.NAMESPACE);
+                stream.addAttribute(RecordingIqUtils.MEDIA_NAME,
+                    0 == j ? "audio" : "video");
+                stream.addAttribute("ssrc", String.valueOf(1000L * i + j));
+                stream.addAttribute("received", "123456");
+                stream.addAttribute("lost", "12");
+            }
+        }
+        return result.toXML();
+    }
+
+    @Benchmark
+    public String getAttribute()
+    {
+        return RecordingIqUtils.getAttribute(startRequest,
+            RecordingIqUtils.MUCJID_NAME);
+    }
+}
@@ -0,0 +1,75 @@
+/*
+/*
+ * Jirecon, the JItsi REcording COntainer.
+ *
+ *
+ * Copyright @ 2015 Atlassian Pty Ltd
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.jitsi.jirecon;
+
+/**
+ * A change of one endpoint of the meeting: it has been added, updated (its
+ * SSRCs have changed) or removed.
+ * <p>
+ * The <tt>EndpointInfo</tt> it carries is a snapshot which isn't modified
+ * afterwards, so it can be applied on any thread.
+ */
+public class EndpointDelta
+{
+    /**
+     * The kind of change.
+     */
+    public enum Type
+    {
+        ADDED,
+
+        UPDATED,
+
+        REMOVED
+    }
+
+    private final Type type;
+
+    private final EndpointInfo endpoint;
+
+    /**
+     * Construction method.
+     * 
+     * @param type the kind of change.
+     * @param endpoint the endpoint after the change, or the last known state
+     *            of a removed endpoint.
+     */
+    public EndpointDelta(Type type, EndpointInfo endpoint)
+    {
+        this.type = type;
+        this.endpoint = endpoint;
+    }
+
+    public Type getType()
+    {
+        return type;
+    }
+
+    public EndpointInfo getEndpoint()
+    {
+        return endpoint;
+    }
+
+    @Override
+    public String toString()
+    {
+        return type + " " + endpoint.getId() + " " + endpoint.getSsrcs();
+    }
+}
@@ -39,6 +39,13 @@ public class EndpointInfo
      */
     private Map<MediaType, Long> ssrcs = new HashMap<MediaType, Long>();
 
+    /**
+     * Map between <tt>MediaType</tt> and the SSRC groups (SIM/FID) which the
+     * SSRC of that media type belongs to.
+     */
+    private Map<MediaType, List<SsrcGroupInfo>> ssrcGroups =
+        new HashMap<MediaType, List<SsrcGroupInfo>>();
+
     /**
      * Endpoint id.
      */
@@ -73,4 +80,79 @@ public class EndpointInfo
     {
         return ssrcs.get(mediaType);
     }
+
+    public void setSsrcGroups(MediaType mediaType, List<SsrcGroupInfo> groups)
+    {
+        ssrcGroups.put(mediaType, groups);
+    }
+
+    public List<SsrcGroupInfo> getSsrcGroups(MediaType mediaType)
+    {
+        List<SsrcGroupInfo> groups = ssrcGroups.get(mediaType);
+
+        return null == groups ? Collections.<SsrcGroupInfo> emptyList()
+            : groups;
+    }
+
+    /**
+     * Get the simulcast layers of a media type, from the lowest to the
+     * highest quality. If the endpoint doesn't send simulcast, the only layer
+     * is its SSRC.
+     * 
+     * @param mediaType
+     * @return the SSRCs of the layers, or an empty list if the endpoint
+     *         doesn't send the media type.
+     */
+    public List<Long> getSimulcastLayers(MediaType mediaType)
+    {
+        for (SsrcGroupInfo group : getSsrcGroups(mediaType))
+        {
+            if (group.isSimulcast())
+                return group.getSsrcs();
+        }
+
+        Long ssrc = ssrcs.get(mediaType);
+        return null == ssrc ? Collections.<Long> emptyList() : Collections
+            .singletonList(ssrc);
+    }
+
+    /**
+     * Get all the SSRCs of a media type: the signaled SSRC, the simulcast
+     * layers and their retransmission SSRCs.
+     * 
+     * @param mediaType
+     * @return
+     */
+    public Set<Long> getAllSsrcs(MediaType mediaType)
+    {
+        Set<Long> all = new HashSet<Long>();
+        Long ssrc = ssrcs.get(mediaType);
+
+        if (null != ssrc)
+            all.add(ssrc);
+        for (SsrcGroupInfo group : getSsrcGroups(mediaType))
+            all.addAll(group.getSsrcs());
+        return all;
+    }
+
+    /**
+     * Check whether an SSRC of a media type belongs to this endpoint.
+     * 
+     * @param mediaType
+     * @param ssrc
+     * @return
+     */
+    public boolean hasSsrc(MediaType mediaType, long ssrc)
+    {
+        Long own = ssrcs.get(mediaType);
+
+        if (null != own && own == ssrc)
+            return true;
+        for (SsrcGroupInfo group : getSsrcGroups(mediaType))
+        {
+            if (group.contains(ssrc))
+                return true;
+        }
+        return false;
+    }
 }
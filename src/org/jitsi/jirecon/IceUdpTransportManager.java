@@ -23,10 +23,12 @@ import java.beans.*;
 import java.net.*;
 import java.util.*;
 import java.util.concurrent.*;
+import java.util.concurrent.atomic.*;
 import net.java.sip.communicator.impl.protocol.jabber.extensions.jingle.*;
 import net.java.sip.communicator.impl.protocol.jabber.extensions.jingle.CandidateType;
 import org.ice4j.*;
 import org.ice4j.ice.*;
+import org.ice4j.ice.harvest.*;
 import org.jitsi.jirecon.utils.*;
 import org.jitsi.service.configuration.*;
 import org.jitsi.service.libjitsi.*;
@@ -95,6 +97,54 @@ public class IceUdpTransportManager
      */
     private static int lastUsedPort = -1;
 
+    /**
+     * The number of ports which are held by the ICE components of all the
+     * <tt>IceUdpTransportManager</tt>s of the process.
+     */
+    private static final AtomicInteger allocatedPortCount =
+        new AtomicInteger();
+
+    /**
+     * The number of ports which are held by the ICE components of this.
+     */
+    private final AtomicInteger portCount = new AtomicInteger();
+
+    /**
+     * The pool of <tt>Thread</tt>s which harvest the trickled candidates.
+     */
+    private static final ExecutorService trickleExecutor = ExecutorUtils
+        .newCachedThreadPool(true, IceUdpTransportManager.class.getName());
+
+    /**
+     * The id of the next <tt>CandidatePacketExtension</tt>, which must be
+     * unique within the session since candidates are trickled.
+     */
+    private int nextCandidateId = 1;
+
+    /**
+     * The remote transports which have come before the
+     * <tt>IceMediaStream</tt> of their media type has been created.
+     */
+    private final Map<MediaType, List<IceUdpTransportPacketExtension>> pendingRemoteTransportPEs =
+        new HashMap<MediaType, List<IceUdpTransportPacketExtension>>();
+
+    /**
+     * The media types whose local candidates have been harvested.
+     */
+    private final Set<MediaType> harvestedMediaTypes = new HashSet<MediaType>();
+
+    /**
+     * Whether connectivity checks have started, after which remote candidates
+     * have to be added to the check lists as updates.
+     */
+    private boolean connectivityEstablishmentStarted = false;
+
+    /**
+     * Whether this has been freed, after which no candidate is trickled any
+     * more.
+     */
+    private volatile boolean freed = false;
+
     public IceUdpTransportManager()
     {
         iceAgent = new Agent();
@@ -104,6 +154,9 @@ public class IceUdpTransportManager
 
         LibJitsi.start();
         ConfigurationService configuration = LibJitsi.getConfigurationService();
+        // Only harvest host candidates up front, the others are trickled.
+        iceAgent.setTrickling(configuration.getBoolean(
+            ConfigurationKey.ICE_TRICKLE_KEY, true));
         MIN_STREAM_PORT =
             configuration.getInt(ConfigurationKey.MIN_STREAM_PORT_KEY,
                 -1);
@@ -117,7 +170,20 @@ public class IceUdpTransportManager
      */
     public void free()
     {
+        freed = true;
         iceAgent.free();
+        allocatedPortCount.addAndGet(-portCount.getAndSet(0));
+    }
+
+    /**
+     * Get the number of ports which are held by the ICE components of all the
+     * <tt>IceUdpTransportManager</tt>s of the process.
+     * 
+     * @return
+     */
+    public static int getAllocatedPortCount()
+    {
+        return allocatedPortCount.get();
     }
 
     /**
@@ -128,11 +194,7 @@ public class IceUdpTransportManager
      */
     public IceUdpTransportPacketExtension createTransportPacketExt(MediaType mediaType)
     {
-        IceUdpTransportPacketExtension transportPE =
-            new IceUdpTransportPacketExtension();
-        
-        transportPE.setPassword(iceAgent.getLocalPassword());
-        transportPE.setUfrag(iceAgent.getLocalUfrag());
+        IceUdpTransportPacketExtension transportPE = createTransportPacketExt();
 
         for (CandidatePacketExtension candidatePE : createLocalCandidatePacketExts(mediaType))
         {
@@ -142,6 +204,22 @@ public class IceUdpTransportManager
         return transportPE;
     }
 
+    /**
+     * Create a <tt>IceUdpTransportPacketExtension</tt> without candidates.
+     * 
+     * @return
+     */
+    private IceUdpTransportPacketExtension createTransportPacketExt()
+    {
+        IceUdpTransportPacketExtension transportPE =
+            new IceUdpTransportPacketExtension();
+
+        transportPE.setPassword(iceAgent.getLocalPassword());
+        transportPE.setUfrag(iceAgent.getLocalUfrag());
+
+        return transportPE;
+    }
+
     /**
      * Starts ICE connectivity establishment and returns immediately.
      * <p>
@@ -153,7 +231,78 @@ public class IceUdpTransportManager
     {
         logger.debug("startConnectivityEstablishment");
 
-        iceAgent.startConnectivityEstablishment();
+        synchronized (this)
+        {
+            iceAgent.startConnectivityEstablishment();
+            connectivityEstablishmentStarted = true;
+        }
+    }
+
+    /**
+     * Check whether the local candidates other than the host ones are
+     * trickled rather than harvested up front.
+     * 
+     * @return
+     */
+    public boolean isTrickling()
+    {
+        return iceAgent.isTrickling();
+    }
+
+    /**
+     * Harvest the local candidates which haven't been harvested up front
+     * (e.g. the server reflexive ones), and hand them to <tt>listener</tt> as
+     * soon as they are known.
+     * <p>
+     * <strong>Warning:</strong> This method is asynchronous, the listener is
+     * called on another thread. It must only be called if
+     * {@link #isTrickling()}, once {@link #harvestLocalCandidates(MediaType)}
+     * has been called for every media type.
+     * 
+     * @param listener
+     */
+    public void startCandidateTrickle(final TrickleListener listener)
+    {
+        logger.debug("startCandidateTrickle");
+
+        trickleExecutor.execute(new Runnable()
+        {
+            @Override
+            public void run()
+            {
+                iceAgent.startCandidateTrickle(new TrickleCallback()
+                {
+                    @Override
+                    public void onIceCandidates(
+                        Collection<LocalCandidate> candidates)
+                    {
+                        // The end of candidates has no Jingle counterpart.
+                        if (null == candidates || candidates.isEmpty()
+                            || freed)
+                            return;
+
+                        Map<MediaType, IceUdpTransportPacketExtension> transportPEs =
+                            new HashMap<MediaType, IceUdpTransportPacketExtension>();
+                        for (LocalCandidate candidate : candidates)
+                        {
+                            MediaType mediaType = MediaType.parseString(
+                                candidate.getParentComponent()
+                                    .getParentStream().getName());
+                            IceUdpTransportPacketExtension transportPE =
+                                transportPEs.get(mediaType);
+                            if (null == transportPE)
+                            {
+                                transportPE = createTransportPacketExt();
+                                transportPEs.put(mediaType, transportPE);
+                            }
+                            transportPE.addCandidate(
+                                createCandidatePacketExt(candidate));
+                        }
+                        listener.localCandidatesHarvested(transportPEs);
+                    }
+                });
+            }
+        });
     }
 
     /**
@@ -243,6 +392,7 @@ public class IceUdpTransportManager
         {
             iceAgent.createComponent(stream, Transport.UDP, getPreferredPort(),
                 MIN_STREAM_PORT, MAX_STREAM_PORT);
+            countPort();
 
             // We don't need an RTCP component for DATA.
             if (MediaType.AUDIO == mediaType || MediaType.VIDEO == mediaType)
@@ -254,6 +404,7 @@ public class IceUdpTransportManager
                         getPreferredPort(),
                         MIN_STREAM_PORT,
                         MAX_STREAM_PORT);
+                countPort();
             }
         }
         catch (Exception e)
@@ -261,6 +412,27 @@ public class IceUdpTransportManager
             throw new Exception("Could not create ICE component, "
                 + e.getMessage());
         }
+
+        List<IceUdpTransportPacketExtension> pending;
+        synchronized (this)
+        {
+            harvestedMediaTypes.add(mediaType);
+            pending = pendingRemoteTransportPEs.remove(mediaType);
+        }
+        if (null != pending)
+        {
+            for (IceUdpTransportPacketExtension transportPE : pending)
+                addRemoteCandidates(mediaType, transportPE);
+        }
+    }
+
+    /**
+     * Count a port which has been taken by an ICE component.
+     */
+    private void countPort()
+    {
+        portCount.incrementAndGet();
+        allocatedPortCount.incrementAndGet();
     }
 
     /**
@@ -283,6 +455,11 @@ public class IceUdpTransportManager
     /**
      * Add all remote candidates from the values of <tt>transportPEs</tt> to the
      * corresponding IceMediaStream.
+     * <p>
+     * It may be called again with the candidates which are trickled by the
+     * remote peer, even once connectivity checks have started. The
+     * candidates of a media type whose local candidates haven't been
+     * harvested yet are kept until they are.
      *
      * @param transportPEs The <tt>IceUdpTransportPacketExtension</tt> to be
      * parsed.
@@ -295,62 +472,109 @@ public class IceUdpTransportManager
         for (java.util.Map.Entry<MediaType, IceUdpTransportPacketExtension> e : transportPEs
             .entrySet())
         {
-            final MediaType mediaType = e.getKey();
-            final IceUdpTransportPacketExtension transportPE = e.getValue();
-            final IceMediaStream stream = getIceMediaStream(mediaType);
-            final String ufrag = transportPE.getUfrag();
-            if (null != ufrag)
-                stream.setRemoteUfrag(ufrag);
-
-            final String password = transportPE.getPassword();
-            if (null != password)
-                stream.setRemotePassword(password);
-
-            List<CandidatePacketExtension> candidates = transportPE.getCandidateList();
-            /*
-             * Sort the remote candidates (host < reflexive < relayed) in order
-             * to create first the host, then the reflexive, the relayed
-             * candidates and thus be able to set the relative-candidate
-             * matching the rel-addr/rel-port attribute.
-             */
-            Collections.sort(candidates);
-
-            for (CandidatePacketExtension candidate : candidates)
+            if (null != e.getValue())
+                addRemoteCandidates(e.getKey(), e.getValue());
+        }
+    }
+
+    /**
+     * Add the remote candidates of one media type.
+     * 
+     * @param mediaType
+     * @param transportPE
+     */
+    private synchronized void addRemoteCandidates(MediaType mediaType,
+        IceUdpTransportPacketExtension transportPE)
+    {
+        if (freed)
+            return;
+
+        if (!harvestedMediaTypes.contains(mediaType))
+        {
+            List<IceUdpTransportPacketExtension> pending =
+                pendingRemoteTransportPEs.get(mediaType);
+            if (null == pending)
             {
-                if (candidate.getGeneration() != iceAgent.getGeneration())
-                    continue;
+                pending = new ArrayList<IceUdpTransportPacketExtension>();
+                pendingRemoteTransportPEs.put(mediaType, pending);
+            }
+            pending.add(transportPE);
+            return;
+        }
+
+        final IceMediaStream stream = getIceMediaStream(mediaType);
 
-                final Component component =
-                    stream.getComponent(candidate.getComponent());
+        final String ufrag = transportPE.getUfrag();
+        if (null != ufrag)
+            stream.setRemoteUfrag(ufrag);
+
+        final String password = transportPE.getPassword();
+        if (null != password)
+            stream.setRemotePassword(password);
+
+        List<CandidatePacketExtension> candidates = transportPE.getCandidateList();
+        /*
+         * Sort the remote candidates (host < reflexive < relayed) in order
+         * to create first the host, then the reflexive, the relayed
+         * candidates and thus be able to set the relative-candidate
+         * matching the rel-addr/rel-port attribute.
+         */
+        Collections.sort(candidates);
+
+        Set<Component> updatedComponents = new HashSet<Component>();
+        for (CandidatePacketExtension candidate : candidates)
+        {
+            if (candidate.getGeneration() != iceAgent.getGeneration())
+                continue;
 
-                final String relAddr = candidate.getRelAddr();
-                final int relPort = candidate.getRelPort();
-                TransportAddress relatedAddress = null;
+            final Component component =
+                stream.getComponent(candidate.getComponent());
+            if (null == component)
+                continue;
 
-                if ((relAddr != null) && (relPort > 0))
-                {
-                    relatedAddress =
-                        new TransportAddress(relAddr, relPort,
-                            Transport.parse(candidate.getProtocol()));
-                }
+            final String relAddr = candidate.getRelAddr();
+            final int relPort = candidate.getRelPort();
+            TransportAddress relatedAddress = null;
 
-                final RemoteCandidate relatedCandidate =
-                    component.findRemoteCandidate(relatedAddress);
+            if ((relAddr != null) && (relPort > 0))
+            {
+                relatedAddress =
+                    new TransportAddress(relAddr, relPort,
+                        Transport.parse(candidate.getProtocol()));
+            }
+
+            final RemoteCandidate relatedCandidate =
+                component.findRemoteCandidate(relatedAddress);
+
+            final TransportAddress mainAddress =
+                new TransportAddress(candidate.getIP(),
+                    candidate.getPort(), Transport.parse(candidate
+                        .getProtocol()));
 
-                final TransportAddress mainAddress =
-                    new TransportAddress(candidate.getIP(),
-                        candidate.getPort(), Transport.parse(candidate
-                            .getProtocol()));
+            // The same candidate may be signaled more than once.
+            if (null != component.findRemoteCandidate(mainAddress))
+                continue;
 
-                final RemoteCandidate remoteCandidate =
-                    new RemoteCandidate(mainAddress, component,
-                        org.ice4j.ice.CandidateType.parse(candidate.getType()
-                            .toString()), candidate.getFoundation(),
-                        candidate.getPriority(), relatedCandidate);
+            final RemoteCandidate remoteCandidate =
+                new RemoteCandidate(mainAddress, component,
+                    org.ice4j.ice.CandidateType.parse(candidate.getType()
+                        .toString()), candidate.getFoundation(),
+                    candidate.getPriority(), relatedCandidate);
 
+            if (connectivityEstablishmentStarted)
+            {
+                component.addUpdateRemoteCandidates(remoteCandidate);
+                updatedComponents.add(component);
+            }
+            else
+            {
                 component.addRemoteCandidate(remoteCandidate);
             }
         }
+
+        // Pair the trickled candidates and check them right away.
+        for (Component component : updatedComponents)
+            component.updateRemoteCandidates();
     }
 
     /**
@@ -386,29 +610,40 @@ public class IceUdpTransportManager
         List<CandidatePacketExtension> candidatePEs =
             new ArrayList<CandidatePacketExtension>();
 
-        int id = 1;
         for (LocalCandidate candidate : getLocalCandidates(mediaType))
-        {
-            CandidatePacketExtension packetExt =
-                new CandidatePacketExtension();
-            packetExt.setComponent(candidate.getParentComponent()
-                .getComponentID());
-            packetExt.setFoundation(candidate.getFoundation());
-            packetExt.setGeneration(iceAgent.getGeneration());
-            packetExt.setID(String.valueOf(id++));
-            packetExt.setNetwork(0); // Why it is 0?
-            packetExt.setIP(candidate.getTransportAddress().getHostAddress());
-            packetExt.setPort(candidate.getTransportAddress().getPort());
-            packetExt.setPriority(candidate.getPriority());
-            packetExt.setProtocol(candidate.getTransport().toString());
-            packetExt.setType(CandidateType.valueOf(candidate.getType()
-                .toString()));
-            candidatePEs.add(packetExt);
-        }
+            candidatePEs.add(createCandidatePacketExt(candidate));
 
         return candidatePEs;
     }
 
+    /**
+     * Create the <tt>CandidatePacketExtension</tt> of a local candidate.
+     * 
+     * @param candidate
+     * @return
+     */
+    private CandidatePacketExtension createCandidatePacketExt(
+        LocalCandidate candidate)
+    {
+        CandidatePacketExtension packetExt = new CandidatePacketExtension();
+        packetExt.setComponent(candidate.getParentComponent()
+            .getComponentID());
+        packetExt.setFoundation(candidate.getFoundation());
+        packetExt.setGeneration(iceAgent.getGeneration());
+        synchronized (this)
+        {
+            packetExt.setID(String.valueOf(nextCandidateId++));
+        }
+        packetExt.setNetwork(0); // Why it is 0?
+        packetExt.setIP(candidate.getTransportAddress().getHostAddress());
+        packetExt.setPort(candidate.getTransportAddress().getPort());
+        packetExt.setPriority(candidate.getPriority());
+        packetExt.setProtocol(candidate.getTransport().toString());
+        packetExt.setType(CandidateType.valueOf(candidate.getType()
+            .toString()));
+        return packetExt;
+    }
+
     /**
      * Get local candidates of specified <tt>MediaType</tt>
      * 
@@ -533,4 +768,18 @@ public class IceUdpTransportManager
 
         return streamConnector;
     }
+
+    /**
+     * Is notified of the local candidates which are trickled.
+     */
+    public interface TrickleListener
+    {
+        /**
+         * Handle a batch of trickled local candidates.
+         * 
+         * @param transportPEs the candidates, according to media type.
+         */
+        public void localCandidatesHarvested(
+            Map<MediaType, IceUdpTransportPacketExtension> transportPEs);
+    }
 }
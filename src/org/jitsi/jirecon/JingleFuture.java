@@ -0,0 +1,347 @@
+/*
+/*
+ * Jirecon, the JItsi REcording COntainer.
+ *
+ *
+ * Copyright @ 2015 Atlassian Pty Ltd
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.jitsi.jirecon;
+
+import java.util.*;
+import java.util.concurrent.*;
+
+import net.java.sip.communicator.impl.protocol.jabber.extensions.jingle.*;
+
+import org.jitsi.jirecon.utils.*;
+import org.jivesoftware.smack.*;
+import org.jivesoftware.smack.packet.*;
+
+/**
+ * The awaited IQ of a Jingle session: either a Jingle action (e.g.
+ * session-initiate) of the session, or the response to an IQ that we have
+ * sent, matched by its packet id.
+ * <p>
+ * It's completed by {@link #offer(Packet)} with the first matching packet, or
+ * with a <tt>TimeoutException</tt> by the process-wide
+ * <tt>HashedWheelTimer</tt>, so no thread is blocked unless somebody calls
+ * {@link #get()}.
+ */
+public class JingleFuture
+    implements Future<IQ>
+{
+    /**
+     * The action of the awaited Jingle IQ, or null if a response is awaited.
+     */
+    private final JingleAction action;
+
+    /**
+     * The session id of the awaited Jingle IQ, or null if any session matches.
+     */
+    private final String sid;
+
+    /**
+     * The packet id of the IQ whose response is awaited, or null.
+     */
+    private final String packetId;
+
+    /**
+     * The listeners which are called once this is done.
+     */
+    private final List<Listener> listeners = new ArrayList<Listener>();
+
+    private boolean done = false;
+
+    private boolean cancelled = false;
+
+    private IQ result;
+
+    /**
+     * Why this has failed, or null.
+     */
+    private Exception failure;
+
+    private HashedWheelTimer.Timeout timeout;
+
+    private JingleFuture(JingleAction action, String sid, String packetId)
+    {
+        this.action = action;
+        this.sid = sid;
+        this.packetId = packetId;
+    }
+
+    /**
+     * Create a future of a Jingle action.
+     * 
+     * @param action the action of the awaited <tt>JingleIQ</tt>.
+     * @param sid the session id of the awaited <tt>JingleIQ</tt>, or null if
+     *            it isn't known yet.
+     * @return
+     */
+    public static JingleFuture forAction(JingleAction action, String sid)
+    {
+        return new JingleFuture(action, sid, null);
+    }
+
+    /**
+     * Create a future of the response to an IQ. A response of type error
+     * makes it fail with an <tt>XMPPException</tt>.
+     * 
+     * @param packetId the packet id of the IQ that we send.
+     * @return
+     */
+    public static JingleFuture forResponse(String packetId)
+    {
+        return new JingleFuture(null, null, packetId);
+    }
+
+    /**
+     * Make this fail with a <tt>TimeoutException</tt> if it isn't done in
+     * time.
+     * 
+     * @param delay
+     * @param unit
+     * @return this.
+     */
+    public JingleFuture setTimeout(long delay, TimeUnit unit)
+    {
+        HashedWheelTimer.Timeout timeout = HashedWheelTimer.getInstance()
+            .newTimeout(new Runnable()
+            {
+                @Override
+                public void run()
+                {
+                    complete(null, new TimeoutException(
+                        "Timed out waiting for " + describe()), false);
+                }
+            }, delay, unit);
+
+        boolean scheduled;
+        synchronized (this)
+        {
+            scheduled = !done;
+            if (scheduled)
+                this.timeout = timeout;
+        }
+        if (!scheduled)
+            timeout.cancel();
+        return this;
+    }
+
+    /**
+     * Complete this with a packet if the packet is the awaited one.
+     * 
+     * @param packet
+     * @return <tt>true</tt> if the packet has completed this.
+     */
+    public boolean offer(Packet packet)
+    {
+        if (!matches(packet))
+            return false;
+
+        IQ iq = (IQ) packet;
+        if (null != packetId && IQ.Type.ERROR.equals(iq.getType()))
+            return complete(iq, new XMPPException(iq.getError()), false);
+        return complete(iq, null, false);
+    }
+
+    /**
+     * Check whether a packet is the awaited one.
+     * 
+     * @param packet
+     * @return
+     */
+    private boolean matches(Packet packet)
+    {
+        if (!(packet instanceof IQ))
+            return false;
+
+        if (null != packetId)
+        {
+            IQ.Type type = ((IQ) packet).getType();
+            return packetId.equals(packet.getPacketID())
+                && (IQ.Type.RESULT.equals(type) || IQ.Type.ERROR.equals(type));
+        }
+
+        if (!(packet instanceof JingleIQ))
+            return false;
+        JingleIQ jiq = (JingleIQ) packet;
+        return action.equals(jiq.getAction())
+            && (null == sid || sid.equals(jiq.getSID()));
+    }
+
+    /**
+     * Complete this, unless it's already done.
+     * 
+     * @param result the awaited IQ, or null.
+     * @param failure why it has failed, or null.
+     * @param cancelled whether it has been cancelled.
+     * @return <tt>true</tt> if this has been completed by the call.
+     */
+    private boolean complete(IQ result, Exception failure, boolean cancelled)
+    {
+        HashedWheelTimer.Timeout timeout;
+        List<Listener> listeners;
+        synchronized (this)
+        {
+            if (done)
+                return false;
+
+            done = true;
+            this.result = result;
+            this.failure = failure;
+            this.cancelled = cancelled;
+            timeout = this.timeout;
+            this.timeout = null;
+            listeners = new ArrayList<Listener>(this.listeners);
+            this.listeners.clear();
+            notifyAll();
+        }
+
+        if (null != timeout)
+            timeout.cancel();
+        for (Listener l : listeners)
+            l.jingleFutureDone(this);
+        return true;
+    }
+
+    /**
+     * Add a listener which is called once this is done, or right away if it's
+     * already done.
+     * 
+     * @param listener
+     */
+    public void addListener(Listener listener)
+    {
+        synchronized (this)
+        {
+            if (!done)
+            {
+                listeners.add(listener);
+                return;
+            }
+        }
+        listener.jingleFutureDone(this);
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public boolean cancel(boolean mayInterruptIfRunning)
+    {
+        return complete(null, null, true);
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public synchronized boolean isCancelled()
+    {
+        return cancelled;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public synchronized boolean isDone()
+    {
+        return done;
+    }
+
+    /**
+     * Check whether this has failed because it wasn't done in time.
+     * 
+     * @return
+     */
+    public synchronized boolean isTimedOut()
+    {
+        return failure instanceof TimeoutException;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public synchronized IQ get()
+        throws InterruptedException,
+        ExecutionException
+    {
+        while (!done)
+            wait();
+        return getResult();
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public synchronized IQ get(long timeout, TimeUnit unit)
+        throws InterruptedException,
+        ExecutionException,
+        TimeoutException
+    {
+        long deadline = System.nanoTime() + unit.toNanos(timeout);
+        while (!done)
+        {
+            long left = deadline - System.nanoTime();
+            if (left <= 0)
+                throw new TimeoutException();
+            TimeUnit.NANOSECONDS.timedWait(this, left);
+        }
+        return getResult();
+    }
+
+    /**
+     * <strong>Warning:</strong> The caller must hold the lock of this, and
+     * this must be done.
+     */
+    private IQ getResult()
+        throws ExecutionException
+    {
+        if (cancelled)
+            throw new CancellationException();
+        if (null != failure)
+            throw new ExecutionException(failure);
+        return result;
+    }
+
+    /**
+     * Describe what is awaited.
+     * 
+     * @return
+     */
+    private String describe()
+    {
+        if (null != packetId)
+            return "the response to " + packetId;
+        return action + (null == sid ? "" : " of " + sid);
+    }
+
+    /**
+     * Is called once a <tt>JingleFuture</tt> is done.
+     */
+    public interface Listener
+    {
+        /**
+         * Is called once the future is done, on the thread which has
+         * completed it, so it must return quickly.
+         * 
+         * @param future
+         */
+        public void jingleFutureDone(JingleFuture future);
+    }
+}
@@ -20,6 +20,7 @@
 package org.jitsi.jirecon;
 
 import java.util.*;
+import java.util.concurrent.*;
 
 import net.java.sip.communicator.impl.protocol.jabber.extensions.*;
 import net.java.sip.communicator.impl.protocol.jabber.extensions.colibri.*;
@@ -28,13 +29,16 @@ import net.java.sip.communicator.impl.protocol.jabber.extensions.jingle.ContentP
 import net.java.sip.communicator.util.*;
 
 import org.jitsi.jirecon.TaskEvent.*;
+import org.jitsi.jirecon.datachannel.*;
 import org.jitsi.jirecon.protocol.extension.*;
+import org.jitsi.jirecon.utils.*;
 import org.jitsi.service.libjitsi.*;
 import org.jitsi.service.neomedia.*;
 import org.jitsi.service.neomedia.format.*;
 import org.jivesoftware.smack.*;
 import org.jivesoftware.smack.filter.*;
 import org.jivesoftware.smack.packet.*;
+import org.jivesoftware.smack.util.StringUtils;
 import org.jivesoftware.smackx.muc.*;
 import org.jivesoftware.smackx.packet.*;
 
@@ -64,6 +68,12 @@ public class JingleSessionManager
      * to the MUC. Not to be confused with the ID within the room.
      */
     private static final String NICKNAME = "Jirecon Recorder";
+
+    /**
+     * The media types which the presences of the participants describe.
+     */
+    private static final MediaType[] PRESENCE_MEDIA_TYPES = new MediaType[]
+    { MediaType.AUDIO, MediaType.VIDEO };
     
     /**
      * The <tt>XMPPConnection</tt> is used to send/receive XMPP packets.
@@ -83,6 +93,17 @@ public class JingleSessionManager
      */
     private MultiUserChat muc;
 
+    /**
+     * The nickname which we have asked for in the MUC.
+     */
+    private String nickname;
+
+    /**
+     * The state of the recorder extension of our presence in the MUC, which
+     * is sent again when we rejoin it.
+     */
+    private volatile String recorderState = null;
+
     /**
      * Local node's full-jid which is used for creating <tt>JingleIQ</tt>.
      */
@@ -96,7 +117,7 @@ public class JingleSessionManager
     /**
      * Jingle session id which is used for making <tt>JingleIq</tt>.
      */
-    private String sid;
+    private volatile String sid;
 
     /**
      * <tt>Endpoint</tt>s in the meeting.
@@ -104,16 +125,115 @@ public class JingleSessionManager
     private final Map<String, EndpointInfo> endpoints
         = new HashMap<String, EndpointInfo>();
 
+    /**
+     * The SSRC groups (SIM/FID) which the remote peer has signaled, according
+     * to media type. They are attached to the <tt>EndpointInfo</tt>s whose
+     * SSRCs they contain.
+     * <p>
+     * <strong>Warning:</strong> It's guarded by {@link #endpoints}.
+     */
+    private final Map<MediaType, List<SsrcGroupInfo>> remoteSsrcGroups =
+        new HashMap<MediaType, List<SsrcGroupInfo>>();
+
+    /**
+     * The endpoints whose SSRCs have been signaled by Jingle (e.g. in
+     * source-add), which is authoritative: their presences are then only
+     * used to tell whether they are still in the MUC.
+     * <p>
+     * <strong>Warning:</strong> It's guarded by {@link #endpoints}.
+     */
+    private final Set<String> jingleSignaledEndpoints = new HashSet<String>();
+
+    /**
+     * The JIDs of the participants according to their MUC JIDs, which the
+     * owners of the Jingle sources are.
+     */
+    private final Map<String, String> participantJids =
+        new ConcurrentHashMap<String, String>();
+
+    /**
+     * The Jingle sources whose owner hasn't been seen in the MUC yet,
+     * according to the MUC JID of the owner.
+     * <p>
+     * <strong>Warning:</strong> It's guarded by {@link #endpoints}.
+     */
+    private final Map<String, List<JingleSource>> pendingSources =
+        new HashMap<String, List<JingleSource>>();
+
     /**
      * The list of <tt>JireconSessionPacketListener</tt> which is used for
      * handling kinds of XMPP packet.
      */
     private List<JireconSessionPacketListener> packetListeners =
-        new ArrayList<JireconSessionPacketListener>();
-    
-    private PacketListener sendingListener;
+        new CopyOnWriteArrayList<JireconSessionPacketListener>();
     
-    private PacketListener receivingListener;
+    /**
+     * The <tt>JingleFuture</tt>s which await the packets of this session.
+     * They remove themselves once they are done.
+     */
+    private final List<JingleFuture> pendingFutures =
+        new CopyOnWriteArrayList<JingleFuture>();
+
+    /**
+     * The future of the session-init packet, or null if we haven't started
+     * joining the MUC.
+     */
+    private volatile JingleFuture initFuture;
+
+    /**
+     * The future of the result of the session-accept packet, or null if it
+     * hasn't been sent.
+     */
+    private volatile JingleFuture acceptFuture;
+
+    /**
+     * The capture of the stanzas of this session, or null if they aren't
+     * captured.
+     */
+    private volatile StanzaCapture stanzaCapture;
+
+    /**
+     * The router of the packets received on {@link #connection}, which is
+     * shared by all sessions.
+     */
+    private PacketRouter router;
+
+    /**
+     * Collapses the bursts of presences of the participants.
+     */
+    private PresenceCoalescer presenceCoalescer;
+
+    /**
+     * Receives the packets which {@link #router} routes to this session.
+     */
+    private final PacketRouter.Route route = new PacketRouter.Route()
+    {
+        @Override
+        public void processPacket(Packet packet)
+        {
+            if (logger.isDebugEnabled())
+                logger.debug("<---: " + packet.toXML());
+
+            StanzaCapture stanzaCapture =
+                JingleSessionManager.this.stanzaCapture;
+            if (null != stanzaCapture)
+                stanzaCapture.received(packet);
+
+            handlePacket(packet);
+        }
+
+        @Override
+        public void processSentPacket(Packet packet)
+        {
+            if (logger.isDebugEnabled())
+                logger.debug("--->: " + packet.toXML());
+
+            StanzaCapture stanzaCapture =
+                JingleSessionManager.this.stanzaCapture;
+            if (null != stanzaCapture)
+                stanzaCapture.sent(packet);
+        }
+    };
     
     /**
      * Initialize <tt>JireconSession</tt>.
@@ -127,9 +247,24 @@ public class JingleSessionManager
          */
         LibJitsi.start();
         this.connection = connection;
+        this.router = PacketRouter.getInstanceFor(connection);
+        this.presenceCoalescer = new PresenceCoalescer(
+            new PresenceCoalescer.Handler()
+            {
+                @Override
+                public boolean isUnchanged(String jid, MediaExtension mediaExt)
+                {
+                    return isPresenceUnchanged(jid, mediaExt);
+                }
 
-        addPacketSendingListener();
-        addPacketReceivingListener();
+                @Override
+                public void apply(String jid, MediaExtension mediaExt)
+                {
+                    applyPresence(jid, mediaExt);
+                }
+            }, LibJitsi.getConfigurationService().getLong(
+                ConfigurationKey.PRESENCE_COALESCE_WINDOW_KEY,
+                PresenceCoalescer.DEFAULT_WINDOW));
 
         /*
          * Register the packet listener to handle presence packet.
@@ -146,8 +281,68 @@ public class JingleSessionManager
             };
 
         addPacketListener(packetListener);
+
+        /*
+         * Register the packet listener to handle the candidates trickled by
+         * the remote peer.
+         */
+        JireconSessionPacketListener transportInfoListener =
+            new JireconSessionPacketListener()
+            {
+                @Override
+                public void handlePacket(Packet packet)
+                {
+                    if (packet instanceof JingleIQ
+                        && JingleAction.TRANSPORT_INFO
+                            .equals(((JingleIQ) packet).getAction()))
+                    {
+                        handleTransportInfoPacket((JingleIQ) packet);
+                    }
+                }
+            };
+
+        addPacketListener(transportInfoListener);
+
+        /*
+         * Register the packet listener to handle the sources which the remote
+         * peer adds and removes.
+         */
+        JireconSessionPacketListener sourceListener =
+            new JireconSessionPacketListener()
+            {
+                @Override
+                public void handlePacket(Packet packet)
+                {
+                    if (!(packet instanceof JingleIQ))
+                        return;
+
+                    JingleAction action = ((JingleIQ) packet).getAction();
+                    if (JingleAction.SOURCEADD.equals(action)
+                        || JingleAction.ADDSOURCE.equals(action))
+                    {
+                        handleSourcePacket((JingleIQ) packet, true);
+                    }
+                    else if (JingleAction.SOURCEREMOVE.equals(action)
+                        || JingleAction.REMOVESOURCE.equals(action))
+                    {
+                        handleSourcePacket((JingleIQ) packet, false);
+                    }
+                }
+            };
+
+        addPacketListener(sourceListener);
     }
     
+    /**
+     * Set the capture of the stanzas of this session.
+     * 
+     * @param stanzaCapture the capture, or null to stop capturing.
+     */
+    public void setStanzaCapture(StanzaCapture stanzaCapture)
+    {
+        this.stanzaCapture = stanzaCapture;
+    }
+
     /**
      * Join a Multi-User-Chat of specified MUC jid.
      * 
@@ -158,9 +353,70 @@ public class JingleSessionManager
     public void connect(String mucJid, String nickname) 
         throws Exception
     {
+        /*
+         * The session-init packet may come right after we have joined, before
+         * anybody waits for it, so start awaiting it now.
+         */
+        initFuture = expect(JingleFuture.forAction(
+            JingleAction.SESSION_INITIATE, null));
+        this.nickname = nickname;
         joinMUC(mucJid, nickname);
     }
 
+    /**
+     * Join the MUC again once the XMPP connection has been restored, without
+     * touching the Jingle session or the media.
+     * <p>
+     * The presences of the occupants come again as we join, so the endpoints
+     * which have come or changed meanwhile are updated as usual. Those which
+     * have left while we were away are removed once we have joined.
+     * 
+     * @throws Exception if failed to join MUC.
+     */
+    public void rejoin()
+        throws Exception
+    {
+        MultiUserChat oldMuc = muc;
+        if (null == oldMuc)
+            return;
+
+        logger.info("Rejoining MUC " + oldMuc.getRoom());
+        joinMUC(oldMuc.getRoom(), nickname);
+
+        Set<String> present = new HashSet<String>();
+        Iterator<String> occupants = muc.getOccupants();
+        while (occupants.hasNext())
+        {
+            String occupantJid = occupants.next();
+            Occupant occupant = muc.getOccupant(occupantJid);
+            if (null != occupant && null != occupant.getJid())
+                present.add(occupant.getJid());
+        }
+
+        for (Map.Entry<String, String> e : participantJids.entrySet())
+        {
+            if (!present.contains(e.getValue()))
+                participantJids.remove(e.getKey());
+        }
+
+        List<String> gone = new ArrayList<String>();
+        synchronized (endpoints)
+        {
+            for (String jid : endpoints.keySet())
+            {
+                if (!present.contains(jid))
+                    gone.add(jid);
+            }
+            pendingSources.keySet().retainAll(participantJids.keySet());
+        }
+        // Behind the presences which have come as we joined.
+        for (String jid : gone)
+        {
+            logger.info("Endpoint left while we were away: " + jid);
+            presenceCoalescer.offerLeft(jid);
+        }
+    }
+
     /**
      * Disconnect with XMPP server and terminate the Jingle session.
      * 
@@ -169,10 +425,16 @@ public class JingleSessionManager
      */
     public void disconnect(Reason reason, String reasonText)
     {
-        sendByePacket(reason, reasonText);
-        leaveMUC();
-        connection.removePacketSendingListener(sendingListener);
-        connection.removePacketListener(receivingListener);
+        if (connection.isConnected())
+        {
+            sendByePacket(reason, reasonText);
+            leaveMUC();
+        }
+        router.removeRoute(route);
+        presenceCoalescer.stop();
+
+        for (JingleFuture future : pendingFutures)
+            future.cancel(false);
     }
 
     /**
@@ -186,6 +448,9 @@ public class JingleSessionManager
         throws Exception
     {
         muc = new MultiUserChat(connection, mucJid);
+        // The presences of the room are ours from the very first one.
+        router.addRoom(mucJid, route);
+
         int suffix = 1;
         String finalNickname = nickname;
         while (true)
@@ -197,7 +462,8 @@ public class JingleSessionManager
             }
             catch (XMPPException e)
             {
-                if (409 == e.getXMPPError().getCode() && suffix < 10)
+                if (null != e.getXMPPError()
+                    && 409 == e.getXMPPError().getCode() && suffix < 10)
                 {
                     finalNickname = nickname + "_" + suffix++;
                     continue;
@@ -207,11 +473,13 @@ public class JingleSessionManager
         }
 
         logger.info("Joined MUC as " + mucJid + "/" + finalNickname);
+        router.addJid(mucJid + "/" + finalNickname, route);
+
         Packet presence = new Presence(Presence.Type.available);
         presence.setTo(mucJid);
         presence.addExtension(new Nick(NICKNAME));
-        presence.addExtension(new RecorderExtension(null));
-        connection.sendPacket(presence);
+        presence.addExtension(new RecorderExtension(recorderState));
+        sendPacket(presence);
     }
 
     /**
@@ -242,7 +510,97 @@ public class JingleSessionManager
         logger.debug("sendAcceptPacket");
         
         JingleIQ acceptIq = createAcceptPacket(formatAndPTs, localSsrcs, transportPEs, fingerprintPEs);
-        connection.sendPacket(acceptIq);
+
+        // Go on right away, the result is only checked by whoever cares.
+        acceptFuture = expectResult(acceptIq);
+        sendPacket(acceptIq);
+    }
+
+    /**
+     * Send Jingle transport-info packet with the local candidates which have
+     * been trickled.
+     * 
+     * @param transportPEs Transport packet extensions according to media
+     *            type.
+     */
+    public void sendTransportInfoPacket(
+        Map<MediaType, IceUdpTransportPacketExtension> transportPEs)
+    {
+        logger.debug("sendTransportInfoPacket");
+
+        List<ContentPacketExtension> contentPEs =
+            new ArrayList<ContentPacketExtension>();
+        for (Map.Entry<MediaType, IceUdpTransportPacketExtension> e : transportPEs
+            .entrySet())
+        {
+            contentPEs.add(createContentPacketExtension(e.getKey().toString(),
+                null, e.getValue()));
+        }
+
+        JingleIQ transportInfoIq =
+            JinglePacketFactory.createTransportInfo(localFullJid,
+                remoteFullJid, sid, contentPEs);
+        expectResult(transportInfoIq);
+        sendPacket(transportInfoIq);
+    }
+
+    /**
+     * Start awaiting the result of an IQ that we are about to send, and
+     * complain if it fails or doesn't come.
+     * 
+     * @param iq
+     * @return the future of the result.
+     */
+    private JingleFuture expectResult(final JingleIQ iq)
+    {
+        JingleFuture future = expect(JingleFuture.forResponse(iq.getPacketID()));
+        future.addListener(new JingleFuture.Listener()
+        {
+            @Override
+            public void jingleFutureDone(JingleFuture future)
+            {
+                try
+                {
+                    future.get();
+                }
+                catch (ExecutionException e)
+                {
+                    logger.warn(iq.getAction() + " was not acknowledged: "
+                        + e.getCause().getMessage());
+                }
+                catch (Exception e)
+                {
+                    // Cancelled, nothing to complain about.
+                }
+            }
+        });
+        return future;
+    }
+
+    /**
+     * Send a packet, unless the XMPP connection is down, in which case it is
+     * dropped: the session outlives the connection.
+     * 
+     * @param packet
+     */
+    private void sendPacket(Packet packet)
+    {
+        if (!connection.isConnected())
+        {
+            logger.warn("XMPP connection down, dropping "
+                + packet.getClass().getSimpleName() + " " + packet.getPacketID());
+            return;
+        }
+
+        try
+        {
+            connection.sendPacket(packet);
+        }
+        catch (IllegalStateException e)
+        {
+            // It has gone down in the meantime.
+            logger.warn("Failed to send packet: " + e.getMessage());
+        }
     }
 
     /**
@@ -254,7 +612,7 @@ public class JingleSessionManager
     {
         logger.debug("sendAck");
         
-        connection.sendPacket(IQ.createResultIQ(jiq));
+        sendPacket(IQ.createResultIQ(jiq));
     }
 
     /**
@@ -267,7 +625,7 @@ public class JingleSessionManager
     {
         logger.debug("sendByePacket");
 
-        connection.sendPacket(JinglePacketFactory.createSessionTerminate(
+        sendPacket(JinglePacketFactory.createSessionTerminate(
             localFullJid, remoteFullJid, sid, reason, reasonText));
     }
 
@@ -283,14 +641,405 @@ public class JingleSessionManager
         localFullJid = initJiq.getTo();
         remoteFullJid = initJiq.getFrom();
         sid = initJiq.getSID();
+        router.addSid(sid, route);
+
+        // The sources of those who were there before us.
+        List<EndpointDelta> deltas;
+        synchronized (endpoints)
+        {
+            deltas = recordSsrcGroups(initJiq.getContentList());
+            deltas.addAll(addSources(getSources(initJiq.getContentList())));
+        }
+        for (EndpointDelta delta : deltas)
+            fireEndpointEvent(delta);
+    }
+
+    /**
+     * Record the SSRC groups of the contents, and attach them to the
+     * endpoints we already know. The endpoints whose groups change are
+     * replaced, like in {@link #addOrUpdateEndpoint(String, Map)}.
+     * 
+     * @param contents the contents of a Jingle packet.
+     * @return the changes of the endpoints.
+     */
+    private List<EndpointDelta> recordSsrcGroups(
+        List<ContentPacketExtension> contents)
+    {
+        synchronized (endpoints)
+        {
+            for (ContentPacketExtension content : contents)
+            {
+                RtpDescriptionPacketExtension description =
+                    content.getFirstChildOfType(
+                        RtpDescriptionPacketExtension.class);
+                if (null == description)
+                    continue;
+
+                MediaType mediaType = getMediaType(content, description);
+                if (null == mediaType)
+                    continue;
+
+                List<SsrcGroupInfo> groups = remoteSsrcGroups.get(mediaType);
+                if (null == groups)
+                {
+                    groups = new ArrayList<SsrcGroupInfo>();
+                    remoteSsrcGroups.put(mediaType, groups);
+                }
+
+                for (SourceGroupPacketExtension groupPE : description
+                    .getChildExtensionsOfType(SourceGroupPacketExtension.class))
+                {
+                    List<Long> ssrcs = new ArrayList<Long>();
+                    for (SourcePacketExtension sourcePE : groupPE.getSources())
+                        ssrcs.add(sourcePE.getSSRC());
+
+                    SsrcGroupInfo group =
+                        new SsrcGroupInfo(groupPE.getSemantics(), ssrcs);
+                    logger.debug("SSRC group " + mediaType + " " + group);
+                    if (!groups.contains(group))
+                        groups.add(group);
+                }
+            }
+
+            return updateEndpoints();
+        }
+    }
+
+    /**
+     * Replace the endpoints whose SSRC groups have changed.
+     * <p>
+     * <strong>Warning:</strong> The caller must hold the lock of
+     * {@link #endpoints}.
+     * 
+     * @return the changes of the endpoints.
+     */
+    private List<EndpointDelta> updateEndpoints()
+    {
+        List<EndpointDelta> deltas = new ArrayList<EndpointDelta>();
+
+        for (EndpointInfo old : new ArrayList<EndpointInfo>(endpoints.values()))
+        {
+            EndpointDelta delta =
+                addOrUpdateEndpoint(old.getId(), old.getSsrcs());
+            if (null != delta)
+                deltas.add(delta);
+        }
+        return deltas;
+    }
+
+    /**
+     * Get the media type of a content.
+     * 
+     * @param content
+     * @param description the description of the content.
+     * @return the media type, or null if it is unknown.
+     */
+    private static MediaType getMediaType(ContentPacketExtension content,
+        RtpDescriptionPacketExtension description)
+    {
+        try
+        {
+            return MediaType.parseString(null != description.getMedia()
+                ? description.getMedia() : content.getName());
+        }
+        catch (IllegalArgumentException e)
+        {
+            return null;
+        }
+    }
+
+    /**
+     * Get the sources of the contents of a Jingle packet, which are either
+     * "source" or (from older peers) "ssrc" elements.
+     * 
+     * @param contents
+     * @return
+     */
+    private static List<JingleSource> getSources(
+        List<ContentPacketExtension> contents)
+    {
+        List<JingleSource> sources = new ArrayList<JingleSource>();
+
+        for (ContentPacketExtension content : contents)
+        {
+            RtpDescriptionPacketExtension description =
+                content.getFirstChildOfType(
+                    RtpDescriptionPacketExtension.class);
+            if (null == description)
+                continue;
+
+            MediaType mediaType = getMediaType(content, description);
+            if (null == mediaType)
+                continue;
+
+            for (SourcePacketExtension sourcePE : description
+                .getChildExtensionsOfType(SourcePacketExtension.class))
+            {
+                if (sourcePE.getSSRC() < 0)
+                    continue;
+
+                SsrcInfoPacketExtension info =
+                    sourcePE.getFirstChildOfType(SsrcInfoPacketExtension.class);
+                sources.add(new JingleSource(mediaType, sourcePE.getSSRC(),
+                    null == info ? null : info.getOwner()));
+            }
+
+            for (SsrcPacketExtension ssrcPE : description
+                .getChildExtensionsOfType(SsrcPacketExtension.class))
+            {
+                try
+                {
+                    sources.add(new JingleSource(mediaType, Long
+                        .parseLong(ssrcPE.getSsrc()), null));
+                }
+                catch (NumberFormatException e)
+                {
+                    logger.warn("Ignoring source with bad SSRC "
+                        + ssrcPE.getSsrc());
+                }
+            }
+        }
+
+        return sources;
+    }
+
+    /**
+     * Give the owners of Jingle sources their SSRCs. The sources without owner
+     * are only used through their SSRC groups, and those whose owner hasn't
+     * been seen in the MUC yet are kept until it is.
+     * <p>
+     * <strong>Warning:</strong> The caller must hold the lock of
+     * {@link #endpoints}, and must have recorded the SSRC groups of the
+     * sources.
+     * 
+     * @param sources
+     * @return the changes of the endpoints.
+     */
+    private List<EndpointDelta> addSources(List<JingleSource> sources)
+    {
+        Map<String, Map<MediaType, List<Long>>> ssrcsByEndpoint =
+            new LinkedHashMap<String, Map<MediaType, List<Long>>>();
+
+        for (JingleSource source : sources)
+        {
+            if (null == source.owner)
+                continue;
+
+            String jid = participantJids.get(source.owner);
+            if (null == jid)
+            {
+                // Only the participants of the MUC will ever show up.
+                if (null == muc || !StringUtils.parseBareAddress(source.owner)
+                    .equalsIgnoreCase(muc.getRoom()))
+                    continue;
+
+                List<JingleSource> pending = pendingSources.get(source.owner);
+                if (null == pending)
+                {
+                    pending = new ArrayList<JingleSource>();
+                    pendingSources.put(source.owner, pending);
+                }
+                pending.add(source);
+                continue;
+            }
+
+            Map<MediaType, List<Long>> ssrcs = ssrcsByEndpoint.get(jid);
+            if (null == ssrcs)
+            {
+                ssrcs = new HashMap<MediaType, List<Long>>();
+                ssrcsByEndpoint.put(jid, ssrcs);
+            }
+            List<Long> mediaSsrcs = ssrcs.get(source.mediaType);
+            if (null == mediaSsrcs)
+            {
+                mediaSsrcs = new ArrayList<Long>();
+                ssrcs.put(source.mediaType, mediaSsrcs);
+            }
+            mediaSsrcs.add(source.ssrc);
+        }
+
+        List<EndpointDelta> deltas = new ArrayList<EndpointDelta>();
+        for (Map.Entry<String, Map<MediaType, List<Long>>> e : ssrcsByEndpoint
+            .entrySet())
+        {
+            String jid = e.getKey();
+            EndpointInfo old = endpoints.get(jid);
+            Map<MediaType, Long> ssrcs = null == old
+                ? new HashMap<MediaType, Long>()
+                : new HashMap<MediaType, Long>(old.getSsrcs());
+
+            for (Map.Entry<MediaType, List<Long>> mediaSsrcs : e.getValue()
+                .entrySet())
+            {
+                ssrcs.put(mediaSsrcs.getKey(), getPrimarySsrc(
+                    mediaSsrcs.getKey(), mediaSsrcs.getValue()));
+            }
+
+            jingleSignaledEndpoints.add(jid);
+            EndpointDelta delta = addOrUpdateEndpoint(jid, ssrcs);
+            if (null != delta)
+                deltas.add(delta);
+        }
+        return deltas;
+    }
+
+    /**
+     * Take the SSRCs of Jingle sources away from their endpoints, and forget
+     * the SSRC groups they belong to.
+     * <p>
+     * <strong>Warning:</strong> The caller must hold the lock of
+     * {@link #endpoints}.
+     * 
+     * @param sources
+     * @return the changes of the endpoints.
+     */
+    private List<EndpointDelta> removeSources(List<JingleSource> sources)
+    {
+        Map<MediaType, Set<Long>> removed = new HashMap<MediaType, Set<Long>>();
+        for (JingleSource source : sources)
+        {
+            Set<Long> ssrcs = removed.get(source.mediaType);
+            if (null == ssrcs)
+            {
+                ssrcs = new HashSet<Long>();
+                removed.put(source.mediaType, ssrcs);
+            }
+            ssrcs.add(source.ssrc);
+        }
+
+        for (Map.Entry<MediaType, Set<Long>> e : removed.entrySet())
+        {
+            List<SsrcGroupInfo> groups = remoteSsrcGroups.get(e.getKey());
+            if (null == groups)
+                continue;
+
+            Iterator<SsrcGroupInfo> i = groups.iterator();
+            while (i.hasNext())
+            {
+                SsrcGroupInfo group = i.next();
+                for (long ssrc : e.getValue())
+                {
+                    if (group.contains(ssrc))
+                    {
+                        i.remove();
+                        break;
+                    }
+                }
+            }
+        }
+
+        List<EndpointDelta> deltas = new ArrayList<EndpointDelta>();
+        for (EndpointInfo old : new ArrayList<EndpointInfo>(endpoints.values()))
+        {
+            Map<MediaType, Long> ssrcs =
+                new HashMap<MediaType, Long>(old.getSsrcs());
+            for (Map.Entry<MediaType, Set<Long>> e : removed.entrySet())
+            {
+                Long ssrc = ssrcs.get(e.getKey());
+                if (null != ssrc && e.getValue().contains(ssrc))
+                    ssrcs.remove(e.getKey());
+            }
+
+            EndpointDelta delta = addOrUpdateEndpoint(old.getId(), ssrcs);
+            if (null != delta)
+                deltas.add(delta);
+        }
+        return deltas;
+    }
+
+    /**
+     * Pick the SSRC which represents the sources of an endpoint: the first
+     * layer of its simulcast group, or its first SSRC which isn't a
+     * retransmission one.
+     * <p>
+     * <strong>Warning:</strong> The caller must hold the lock of
+     * {@link #endpoints}.
+     * 
+     * @param mediaType
+     * @param ssrcs the SSRCs of the sources of the endpoint.
+     * @return
+     */
+    private long getPrimarySsrc(MediaType mediaType, List<Long> ssrcs)
+    {
+        List<SsrcGroupInfo> groups = remoteSsrcGroups.get(mediaType);
+        if (null == groups)
+            return ssrcs.get(0);
+
+        for (SsrcGroupInfo group : groups)
+        {
+            if (group.isSimulcast() && !group.getSsrcs().isEmpty()
+                && ssrcs.contains(group.getSsrcs().get(0)))
+            {
+                return group.getSsrcs().get(0);
+            }
+        }
+
+        for (Long ssrc : ssrcs)
+        {
+            boolean retransmission = false;
+            for (SsrcGroupInfo group : groups)
+            {
+                if (group.isFid() && group.getSsrcs().size() > 1
+                    && ssrc.equals(group.getSsrcs().get(1)))
+                {
+                    retransmission = true;
+                    break;
+                }
+            }
+            if (!retransmission)
+                return ssrc;
+        }
+        return ssrcs.get(0);
+    }
+
+    /**
+     * Attach the SSRC groups of {@link #remoteSsrcGroups} to an endpoint: the
+     * simulcast group which contains the SSRC of the endpoint, and the FID
+     * groups of its layers.
+     * <p>
+     * <strong>Warning:</strong> The caller must hold the lock of
+     * {@link #endpoints}, and the endpoint must not have been handed out yet.
+     * 
+     * @param endpoint
+     */
+    private void attachSsrcGroups(EndpointInfo endpoint)
+    {
+        for (Map.Entry<MediaType, List<SsrcGroupInfo>> e : remoteSsrcGroups
+            .entrySet())
+        {
+            Long ssrc = endpoint.getSsrcs().get(e.getKey());
+            if (null == ssrc)
+                continue;
+
+            List<SsrcGroupInfo> attached = new ArrayList<SsrcGroupInfo>();
+            List<Long> layers = Collections.singletonList(ssrc);
+            for (SsrcGroupInfo group : e.getValue())
+            {
+                if (group.isSimulcast() && group.contains(ssrc))
+                {
+                    attached.add(group);
+                    layers = group.getSsrcs();
+                    break;
+                }
+            }
+            for (SsrcGroupInfo group : e.getValue())
+            {
+                if (group.isFid() && !group.getSsrcs().isEmpty()
+                    && layers.contains(group.getSsrcs().get(0)))
+                {
+                    attached.add(group);
+                }
+            }
+            endpoint.setSsrcGroups(e.getKey(), attached);
+        }
     }
 
     /**
      * Wait for Jingle session-init packet after join the MUC.
      * <p>
      * <strong>Warning:</strong> This method will block for at most
-     * <tt>MAX_WAIT_TIME</tt> ms to wait for session-init packet. If time out,
-     * throws exception.
+     * <tt>MAX_WAIT_TIME</tt> ms since we started joining the MUC to wait for
+     * session-init packet. If time out, throws exception.
      * <p>
      * Once We got session-init packet, send back ack packet.
      * 
@@ -302,65 +1051,30 @@ public class JingleSessionManager
     {
         logger.info("waitForInitPacket");
 
-        final List<JingleIQ> resultList = new ArrayList<JingleIQ>();
-        final Object waitForInitPacketSyncRoot = new Object();
-
-        /*
-         * Register a packet listener for handling Jingle session-init packet.
-         */
-        JireconSessionPacketListener packetListener =
-            new JireconSessionPacketListener()
-            {
-                @Override
-                public void handlePacket(Packet packet)
-                {
-                    if (packet instanceof JingleIQ)
-                    {
-                        final JingleIQ jiq = (JingleIQ) packet;
-                        if (JingleAction.SESSION_INITIATE.equals(jiq
-                            .getAction()))
-                        {
-                            resultList.add(jiq);
-                            JingleSessionManager.this.removePacketListener(this);
-
-                            synchronized (waitForInitPacketSyncRoot)
-                            {
-                                waitForInitPacketSyncRoot.notify();
-                            }
-                        }
-                    }
-                }
-            };
-
-        addPacketListener(packetListener);
-        boolean interrupted = false;
-
-        synchronized (waitForInitPacketSyncRoot)
+        JingleFuture initFuture = this.initFuture;
+        if (null == initFuture)
         {
-            while (resultList.isEmpty())
-            {
-                try
-                {
-                    waitForInitPacketSyncRoot.wait(MAX_WAIT_TIME);
-                    break;
-                }
-                catch (InterruptedException ie)
-                {
-                    interrupted = true;
-                }
-            }
+            initFuture = expect(JingleFuture.forAction(
+                JingleAction.SESSION_INITIATE, null));
         }
-        if (interrupted)
-            Thread.currentThread().interrupt();
 
-        removePacketListener(packetListener);
-        if (resultList.isEmpty())
+        final JingleIQ initIq;
+        try
+        {
+            initIq = (JingleIQ) initFuture.get();
+        }
+        catch (InterruptedException e)
+        {
+            initFuture.cancel(false);
+            throw e;
+        }
+        catch (ExecutionException e)
         {
             throw new Exception(
-                "Could not get session-init packet, maybe the MUC has locked.");
+                "Could not get session-init packet, maybe the MUC has locked.",
+                e.getCause());
         }
 
-        final JingleIQ initIq = resultList.get(0);
         recordSessionInfo(initIq);
         sendAck(initIq);
 
@@ -368,64 +1082,170 @@ public class JingleSessionManager
     }
 
     /**
-     * Wait for ack packet.
+     * Wait for the result of the session-accept packet.
      * <p>
      * <strong>Warning:</strong> This method will block for at most
-     * <tt>MAX_WAIT_TIME</tt> ms if there isn't ack packet.
+     * <tt>MAX_WAIT_TIME</tt> ms since the session-accept was sent, if there
+     * isn't result packet.
      */
     public void waitForResultPacket() 
     {
         logger.info("waitForAckPacket");
 
-        final List<Packet> resultList = new ArrayList<Packet>();
-        final Object waitForAckPacketSyncRoot = new Object();
+        JingleFuture acceptFuture = this.acceptFuture;
+        if (null == acceptFuture)
+            return;
 
-        /*
-         * Register a packet listener for handling ack packet.
-         */
-        JireconSessionPacketListener packetListener =
-            new JireconSessionPacketListener()
+        try
+        {
+            acceptFuture.get();
+        }
+        catch (InterruptedException e)
+        {
+            Thread.currentThread().interrupt();
+        }
+        catch (ExecutionException e)
+        {
+            // The listener of the future has already complained.
+        }
+        catch (CancellationException e)
+        {
+            // The session has been disconnected.
+        }
+    }
+
+    /**
+     * Start awaiting a packet: the packets which we receive are offered to
+     * the future until it's done, for <tt>MAX_WAIT_TIME</tt> ms at most.
+     * 
+     * @param future
+     * @return the future.
+     */
+    private JingleFuture expect(final JingleFuture future)
+    {
+        pendingFutures.add(future);
+        future.addListener(new JingleFuture.Listener()
+        {
+            @Override
+            public void jingleFutureDone(JingleFuture f)
             {
-                @Override
-                public void handlePacket(Packet packet)
-                {
-                    //TODO match for the ID as well...
-                    if (packet instanceof IQ && IQ.Type.RESULT.equals(((IQ)packet).getType()))
-                    {
-                        resultList.add(packet);
-                        synchronized (waitForAckPacketSyncRoot)
-                        {
-                            waitForAckPacketSyncRoot.notify();
-                        }
-                    }
-                }
-            };
+                pendingFutures.remove(f);
+            }
+        });
+        return future.setTimeout(MAX_WAIT_TIME, TimeUnit.MILLISECONDS);
+    }
 
-        addPacketListener(packetListener);
-        boolean interrupted = false;
+    /**
+     * Handle the Jingle transport-info packet, hand the candidates which the
+     * remote peer has trickled to the listeners.
+     * 
+     * @param jiq is the transport-info packet.
+     */
+    private void handleTransportInfoPacket(JingleIQ jiq)
+    {
+        String sid = getSessionId();
+        if (null == sid || !sid.equals(jiq.getSID()))
+        {
+            logger.warn("Ignoring transport-info of unknown session "
+                + jiq.getSID());
+            return;
+        }
+
+        sendAck(jiq);
+
+        Map<MediaType, IceUdpTransportPacketExtension> transportPEs;
+        try
+        {
+            transportPEs = JinglePacketParser.getTransportPacketExts(jiq);
+        }
+        catch (IllegalArgumentException e)
+        {
+            logger.warn("Ignoring transport-info with unknown content, "
+                + e.getMessage());
+            return;
+        }
 
-        synchronized (waitForAckPacketSyncRoot)
+        if (!transportPEs.isEmpty())
+            fireEvent(new TaskEvent(TaskEvent.Type.REMOTE_CANDIDATES,
+                transportPEs));
+    }
+
+    /**
+     * Get the Jingle session id, which is known as soon as the session-init
+     * packet has come, even before it has been handled.
+     * 
+     * @return the session id, or null.
+     */
+    private String getSessionId()
+    {
+        String sid = this.sid;
+        JingleFuture initFuture = this.initFuture;
+        if (null == sid && null != initFuture && initFuture.isDone())
         {
-            while (resultList.isEmpty())
+            try
             {
-                try
-                {
-                    waitForAckPacketSyncRoot.wait(MAX_WAIT_TIME);
-                }
-                catch (InterruptedException ie)
-                {
-                    interrupted = true;
-                }
+                sid = ((JingleIQ) initFuture.get()).getSID();
+            }
+            catch (Exception e)
+            {
+                // There is no session.
             }
         }
-        if (interrupted)
-            Thread.currentThread().interrupt();
+        return sid;
+    }
+
+    /**
+     * Handle the Jingle source-add and source-remove packets, which are
+     * authoritative about the SSRCs of the participants.
+     * 
+     * @param jiq is the source-add or source-remove packet.
+     * @param add whether the sources are added.
+     */
+    private void handleSourcePacket(JingleIQ jiq, boolean add)
+    {
+        String sid = getSessionId();
+        if (null == sid || !sid.equals(jiq.getSID()))
+        {
+            logger.warn("Ignoring " + jiq.getAction()
+                + " of unknown session " + jiq.getSID());
+            return;
+        }
 
-        removePacketListener(packetListener);
-        if (resultList.isEmpty())
+        sendAck(jiq);
+
+        List<EndpointDelta> deltas;
+        synchronized (endpoints)
         {
-            logger.warn("Couldn't receive result packet from remote peer.");
+            List<JingleSource> sources = getSources(jiq.getContentList());
+            if (add)
+            {
+                deltas = recordSsrcGroups(jiq.getContentList());
+                deltas.addAll(addSources(sources));
+            }
+            else
+            {
+                deltas = removeSources(sources);
+            }
         }
+        for (EndpointDelta delta : deltas)
+            fireEndpointEvent(delta);
+    }
+
+    /**
+     * Fire the <tt>TaskEvent</tt> of a change of endpoint.
+     * 
+     * @param delta
+     */
+    private void fireEndpointEvent(EndpointDelta delta)
+    {
+        TaskEvent.Type type;
+        if (EndpointDelta.Type.ADDED == delta.getType())
+            type = TaskEvent.Type.PARTICIPANT_CAME;
+        else if (EndpointDelta.Type.UPDATED == delta.getType())
+            type = TaskEvent.Type.PARTICIPANT_UPDATED;
+        else
+            type = TaskEvent.Type.PARTICIPANT_LEFT;
+        fireEvent(new TaskEvent(type, delta));
     }
 
     /**
@@ -440,57 +1260,143 @@ public class JingleSessionManager
         final String name = "x";
         final String namespace = "http://jabber.org/protocol/muc#user";
         MUCUser userExt = (MUCUser) p.getExtension(name, namespace);
-        
+
+        if (null == userExt || null == userExt.getItem())
+            return;
+
         /*
          * In case of presence packet isn't sent by participant, so we can't get
          * participant id from p.getFrom().
          */ 
         String participantJid = userExt.getItem().getJid();
 
+        if (null == participantJid)
+            return;
+
+        // Oh, it seems that some participant has left the MUC.
+        if (p.getType() == Presence.Type.unavailable)
+        {
+            participantJids.remove(p.getFrom());
+            synchronized (endpoints)
+            {
+                pendingSources.remove(p.getFrom());
+            }
+            presenceCoalescer.offerLeft(participantJid);
+            return;
+        }
+
+        if (null == participantJids.put(p.getFrom(), participantJid))
+        {
+            // Its sources may have been signaled before it showed up.
+            List<EndpointDelta> deltas = null;
+            synchronized (endpoints)
+            {
+                List<JingleSource> pending =
+                    pendingSources.remove(p.getFrom());
+                if (null != pending)
+                    deltas = addSources(pending);
+            }
+            if (null != deltas)
+            {
+                for (EndpointDelta delta : deltas)
+                    fireEndpointEvent(delta);
+            }
+        }
+
         /*
          * Jitsi-meeting presence packet should contain participant jid and
          * media packet extension
          */
-        if (null == participantJid || null == packetExt)
+        if (null == packetExt)
             return;
-        
-        MediaExtension mediaExt = (MediaExtension) packetExt;
-        Map<MediaType, Long> ssrcs = new HashMap<MediaType, Long>();
-        
-        for (MediaType mediaType : new MediaType[] {MediaType.AUDIO, MediaType.VIDEO})
+
+        presenceCoalescer.offer(participantJid, (MediaExtension) packetExt);
+    }
+
+    /**
+     * Apply the latest presence of a participant, once it has gone through
+     * {@link #presenceCoalescer}.
+     * 
+     * @param participantJid
+     * @param mediaExt the media of the participant, or null if it has left.
+     */
+    private void applyPresence(String participantJid, MediaExtension mediaExt)
+    {
+        if (null == mediaExt)
         {
-            MediaDirection direction =
-                MediaDirection.parseString(mediaExt.getDirection(mediaType
-                    .toString()));
-            
-            if (direction.allowsSending())
+            EndpointInfo removed = removeEndpoint(participantJid);
+            if (null != removed)
             {
-                ssrcs.put(mediaType,
-                    Long.valueOf(mediaExt.getSsrc(mediaType.toString())));
+                fireEndpointEvent(
+                    new EndpointDelta(EndpointDelta.Type.REMOVED, removed));
             }
-            
+            return;
         }
-        
-        // Oh, it seems that some participant has left the MUC.
-        if (p.getType() == Presence.Type.unavailable)
+
+        synchronized (endpoints)
         {
-            removeEndpoint(participantJid);
-            fireEvent(new TaskEvent(
-                TaskEvent.Type.PARTICIPANT_LEFT));
+            // Jingle has told us its SSRCs already.
+            if (jingleSignaledEndpoints.contains(participantJid))
+                return;
         }
-        // Otherwise we think that some new participant has joined the MUC.
-        else
+
+        // The media which are advertised without an SSRC are skipped.
+        Map<MediaType, Long> ssrcs =
+            JinglePacketParser.getPresenceSsrcs(mediaExt,
+                PRESENCE_MEDIA_TYPES);
+
+        // Otherwise some participant has joined the MUC or changed its
+        // presence, which only matters if its SSRCs have changed.
+        EndpointDelta delta = addOrUpdateEndpoint(participantJid, ssrcs);
+        if (null != delta)
+            fireEndpointEvent(delta);
+    }
+
+    /**
+     * Tell whether the media of a presence are the same as what we know of
+     * the participant, without building anything.
+     * 
+     * @param participantJid
+     * @param mediaExt
+     * @return
+     */
+    private boolean isPresenceUnchanged(String participantJid,
+        MediaExtension mediaExt)
+    {
+        synchronized (endpoints)
         {
-            if(addOrUpdateEndpoint(participantJid, ssrcs))
+            EndpointInfo endpoint = endpoints.get(participantJid);
+            if (null == endpoint)
+                return false;
+            if (jingleSignaledEndpoints.contains(participantJid))
+                return true;
+
+            for (MediaType mediaType : PRESENCE_MEDIA_TYPES)
             {
-                fireEvent(new TaskEvent(
-                        TaskEvent.Type.PARTICIPANT_CAME));
+                Long ssrc = endpoint.getSsrcs().get(mediaType);
+                String newSsrc =
+                    JinglePacketParser.getPresenceSsrc(mediaExt, mediaType);
+
+                if (null == newSsrc)
+                {
+                    if (null != ssrc)
+                        return false;
+                    continue;
+                }
+
+                if (null == ssrc || !newSsrc.equals(ssrc.toString()))
+                    return false;
             }
+            return true;
         }
     }
     
     /**
      * Create Jingle session-accept packet.
+     * <p>
+     * Only the contents which we have transport and fingerprint packet
+     * extensions for are accepted. The other contents of the offer (e.g. video
+     * in an audio-only task) are declined by leaving them out.
      * 
      * @return Jingle session-accept packet.
      */
@@ -509,7 +1415,10 @@ public class JingleSessionManager
         {
             if (!transportPEs.containsKey(mediaType) ||
                 !fingerprintPEs.containsKey(mediaType))
+            {
+                logger.debug("Not accepting " + mediaType + " content");
                 continue;
+            }
             
             /* The packet extension that we will create :) */
             RtpDescriptionPacketExtension descriptionPE = null;
@@ -542,10 +1451,10 @@ public class JingleSessionManager
             if (MediaType.DATA == mediaType)
             {
                 /*
-                 * Actually the port could be any number, but let's keep it 5000
-                 * everywhere.
+                 * Actually the port could be any number, but let's keep the
+                 * configured one everywhere.
                  */
-                final int port = 5000;
+                final int port = SctpRuntime.getInstance().getPort();
                 /*
                  * Jirecon didn't care about this at this moment. So just set it 1024. 
                  */
@@ -716,72 +1625,15 @@ public class JingleSessionManager
      */
     private void handlePacket(Packet packet)
     {
+        for (JingleFuture future : pendingFutures)
+            future.offer(packet);
+
         for (JireconSessionPacketListener l : packetListeners)
         {
             l.handlePacket(packet);
         }
     }
 
-    /**
-     * Add packet sending listener to connection. This method is used just for
-     * debugging.
-     */
-    private void addPacketSendingListener()
-    {
-        sendingListener = new PacketListener()
-        {
-            @Override
-            public void processPacket(Packet packet)
-            {
-                logger.debug("--->: " + packet.toXML());
-            }
-        };
-
-        connection.addPacketSendingListener(sendingListener, new PacketFilter()
-        {
-            @Override
-            public boolean accept(Packet packet)
-            {
-                return true;
-            }
-        });
-    }
-
-    /**
-     * Add packet receiving listener to connection.
-     * <p>
-     * <strong>Warning:</strong> Packet will be ignored if its destination jid
-     * is not equal with local jid.
-     */
-    private void addPacketReceivingListener()
-    {
-        receivingListener = new PacketListener()
-        {
-            @Override
-            public void processPacket(Packet packet)
-            {
-                logger.debug(packet.getClass() + "<---: " + packet.toXML());
-                handlePacket(packet);
-            }
-        };
-
-        connection.addPacketListener(receivingListener, new PacketFilter()
-        {
-            @Override
-            public boolean accept(Packet packet)
-            {
-                if (null != localFullJid
-                        && !packet.getTo().equals(localFullJid))
-                {
-                    logger.warn("packet rejected: \"to\" is " + packet.getTo()
-                                        + ", but we are " + localFullJid);
-                    return false;
-                }
-                return true;
-            }
-        });
-    }
-
     /**
      * Handles events coming from the {@link org.jitsi.jirecon.Task} which owns
      * us.
@@ -811,8 +1663,9 @@ public class JingleSessionManager
         Packet presence = new Presence(Presence.Type.available);
         presence.setTo(muc.getRoom());
         presence.addExtension(new Nick(NICKNAME));
-        presence.addExtension(new RecorderExtension("true"));
-        connection.sendPacket(presence);
+        recorderState = "true";
+        presence.addExtension(new RecorderExtension(recorderState));
+        sendPacket(presence);
     }
 
     /**
@@ -823,8 +1676,32 @@ public class JingleSessionManager
         Packet presence = new Presence(Presence.Type.available);
         presence.setTo(muc.getRoom());
         presence.addExtension(new Nick(NICKNAME));
-        presence.addExtension(new RecorderExtension("false"));
-        connection.sendPacket(presence);
+        recorderState = "false";
+        presence.addExtension(new RecorderExtension(recorderState));
+        sendPacket(presence);
+    }
+
+    /**
+     * A source of a Jingle packet.
+     */
+    private static class JingleSource
+    {
+        private final MediaType mediaType;
+
+        private final long ssrc;
+
+        /**
+         * The MUC JID of the participant which owns the source, or null if it
+         * isn't known.
+         */
+        private final String owner;
+
+        private JingleSource(MediaType mediaType, long ssrc, String owner)
+        {
+            this.mediaType = mediaType;
+            this.ssrc = ssrc;
+            this.owner = owner;
+        }
     }
 
     /**
@@ -875,52 +1752,88 @@ public class JingleSessionManager
         }
     }
 
+    /**
+     * Whether there is any endpoint in the meeting.
+     * 
+     * @return
+     */
+    public boolean hasEndpoints()
+    {
+        synchronized (endpoints)
+        {
+            return !endpoints.isEmpty();
+        }
+    }
+
     /**
      * Add a new endpoint to {@link #endpoints}, or update the stored
      * information for the endpoint if it is already in the list.
+     * <p>
+     * The stored <tt>EndpointInfo</tt> is replaced rather than modified, so
+     * that the ones which have been handed out stay unchanged.
      *
      * @param jid The endpoint id.
      * @param ssrcs The SSRCs of the endpoint, according to media type.
      *
-     * @return <tt>true</tt> if the endpoint was added to the list, and
-     * <tt>false</tt> otherwise.
+     * @return the change of the endpoint, or null if neither its SSRCs nor
+     * their SSRC groups have changed.
      */
-    private boolean addOrUpdateEndpoint(String jid, Map<MediaType, Long> ssrcs)
+    private EndpointDelta addOrUpdateEndpoint(String jid,
+        Map<MediaType, Long> ssrcs)
     {
         synchronized (endpoints)
         {
-            boolean added = false;
-            EndpointInfo endpoint = endpoints.get(jid);
-            if (endpoint == null)
-            {
-                endpoint = new EndpointInfo();
-                added = true;
-            }
-            
+            EndpointInfo endpoint = new EndpointInfo();
             endpoint.setId(jid);
-            for (MediaType mediaType : new MediaType[]
-            { MediaType.AUDIO, MediaType.VIDEO })
+            for (Map.Entry<MediaType, Long> ssrc : ssrcs.entrySet())
+                endpoint.setSsrc(ssrc.getKey(), ssrc.getValue());
+            attachSsrcGroups(endpoint);
+
+            EndpointInfo old = endpoints.get(jid);
+            if (null != old && old.getSsrcs().equals(endpoint.getSsrcs())
+                && hasSameSsrcGroups(old, endpoint))
             {
-                endpoint.setSsrc(mediaType, ssrcs.get(mediaType));
+                return null;
             }
 
             endpoints.put(jid, endpoint);
-            return added;
+            return new EndpointDelta(null == old ? EndpointDelta.Type.ADDED
+                : EndpointDelta.Type.UPDATED, endpoint);
+        }
+    }
+
+    /**
+     * Tell whether two endpoints have the same SSRC groups.
+     * 
+     * @param a
+     * @param b
+     * @return
+     */
+    private static boolean hasSameSsrcGroups(EndpointInfo a, EndpointInfo b)
+    {
+        for (MediaType mediaType : MediaType.values())
+        {
+            if (!a.getSsrcGroups(mediaType).equals(
+                b.getSsrcGroups(mediaType)))
+                return false;
         }
+        return true;
     }
 
     /**
      * Remove an endpoint with the given JID specified endpoint.
      * 
      * @param jid Indicate which endpoint to remove.
+     * @return the removed endpoint, or null if it wasn't there.
      */
-    private void removeEndpoint(String jid)
+    private EndpointInfo removeEndpoint(String jid)
     {
         logger.debug("Remove Endpoint " + jid);
         
         synchronized (endpoints)
         {
-            endpoints.remove(jid);
+            jingleSignaledEndpoints.remove(jid);
+            return endpoints.remove(jid);
         }
     }
 }
@@ -0,0 +1,448 @@
+/*
+/*
+ * Jirecon, the JItsi REcording COntainer.
+ *
+ *
+ * Copyright @ 2015 Atlassian Pty Ltd
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.jitsi.jirecon;
+
+import java.util.*;
+import java.util.Map.*;
+import java.util.concurrent.*;
+
+import org.jitsi.impl.neomedia.rtp.translator.*;
+import org.jitsi.service.neomedia.*;
+import org.jitsi.service.neomedia.codec.*;
+import org.jitsi.service.neomedia.format.*;
+import org.jitsi.util.*;
+
+/**
+ * Requests key frames (FIR) for the video SSRCs which are recorded, so that
+ * the recorded video becomes decodable as soon as possible instead of at the
+ * next key frame the sender happens to produce.
+ * <p>
+ * It is installed as a <tt>WriteFilter</tt> on the video
+ * <tt>RTPTranslator</tt>, so it sees every RTP packet before the recorder
+ * does. A key frame is requested when an SSRC is announced or seen for the
+ * first time, and again (at most once per <tt>minRequestInterval</tt>) until
+ * the first VP8 key frame of the SSRC arrives. Packets which arrive before
+ * that key frame can't be decoded, so they are not passed to the recorder.
+ * <p>
+ * The time between the first packet and the first key frame of each SSRC is
+ * kept as a metric, which the <tt>ReceiveStatsCollector</tt> samples. The
+ * state of an SSRC is dropped when the SSRC is removed.
+ */
+public class KeyFrameRequester
+    implements RTPTranslator.WriteFilter
+{
+    /**
+     * The <tt>Logger</tt>, used to log messages to standard output.
+     */
+    private static final Logger logger = Logger
+        .getLogger(KeyFrameRequester.class);
+
+    /**
+     * The default minimum interval in milliseconds between two key frame
+     * requests for the same SSRC.
+     */
+    public static final long DEFAULT_MIN_REQUEST_INTERVAL = 1000;
+
+    /**
+     * The pool of <tt>Thread</tt>s which send the key frame requests, so that
+     * RTCP isn't written from the thread which receives the RTP packets.
+     */
+    private static final ExecutorService requestExecutor = ExecutorUtils
+        .newCachedThreadPool(true, KeyFrameRequester.class.getName());
+
+    /**
+     * The video <tt>RTPTranslator</tt> which we filter and send the requests
+     * through.
+     */
+    private final RTPTranslatorImpl translator;
+
+    /**
+     * The payload type of VP8, or -1 if VP8 wasn't negotiated. We can only
+     * detect key frames of VP8.
+     */
+    private final int vp8PayloadType;
+
+    /**
+     * The minimum interval in milliseconds between two key frame requests for
+     * the same SSRC.
+     */
+    private final long minRequestInterval;
+
+    /**
+     * Map between SSRC and its key frame state. Each state is guarded by its
+     * own lock, so the packets of different SSRCs don't contend.
+     */
+    private final ConcurrentMap<Long, SsrcState> states =
+        new ConcurrentHashMap<Long, SsrcState>();
+
+    /**
+     * Construction method.
+     *
+     * @param translator the video <tt>RTPTranslator</tt>.
+     * @param formatAndPTs the video formats and their payload types.
+     * @param minRequestInterval the minimum interval in milliseconds between
+     *            two key frame requests for the same SSRC.
+     */
+    public KeyFrameRequester(RTPTranslatorImpl translator,
+        Map<MediaFormat, Byte> formatAndPTs, long minRequestInterval)
+    {
+        this.translator = translator;
+        this.minRequestInterval = minRequestInterval;
+
+        int pt = -1;
+        if (null != formatAndPTs)
+        {
+            for (Entry<MediaFormat, Byte> e : formatAndPTs.entrySet())
+            {
+                if (Constants.VP8.equalsIgnoreCase(e.getKey().getEncoding()))
+                {
+                    pt = e.getValue() & 0x7F;
+                    break;
+                }
+            }
+        }
+        this.vp8PayloadType = pt;
+    }
+
+    /**
+     * Start filtering the packets of the translator.
+     */
+    public void start()
+    {
+        translator.addWriteFilter(this);
+    }
+
+    /**
+     * Stop filtering the packets of the translator and log the SSRCs which
+     * haven't sent a key frame. The metrics can still be read afterwards.
+     */
+    public void stop()
+    {
+        translator.removeWriteFilter(this);
+
+        for (SsrcState state : states.values())
+        {
+            synchronized (state)
+            {
+                if (state.keyFrameTime < 0)
+                {
+                    logger.info("No key frame received for SSRC "
+                        + state.ssrc + " after " + state.requestCount
+                        + " request(s).");
+                }
+            }
+        }
+    }
+
+    /**
+     * Request a key frame for a video SSRC, e.g. when a new participant has
+     * come. Nothing is done if we have already got a key frame of the SSRC,
+     * or if we have recently requested one.
+     *
+     * @param ssrc the video SSRC.
+     */
+    public void requestKeyFrame(long ssrc)
+    {
+        SsrcState state = getState(ssrc);
+
+        synchronized (state)
+        {
+            if (state.keyFrameTime < 0)
+                maybeRequest(state, System.currentTimeMillis());
+        }
+    }
+
+    /**
+     * Forget what we know about a video SSRC and request a key frame for it,
+     * e.g. when it starts being recorded again after a pause. Its packets are
+     * dropped until its next key frame.
+     *
+     * @param ssrc the video SSRC.
+     */
+    public void resetKeyFrame(long ssrc)
+    {
+        SsrcState state = new SsrcState(ssrc);
+
+        states.put(ssrc, state);
+        synchronized (state)
+        {
+            maybeRequest(state, System.currentTimeMillis());
+        }
+    }
+
+    /**
+     * Forget a video SSRC, e.g. when its endpoint has left.
+     *
+     * @param ssrc the video SSRC.
+     */
+    public void removeSsrc(long ssrc)
+    {
+        states.remove(ssrc);
+    }
+
+    /**
+     * Get the time in milliseconds from the first packet to the first key
+     * frame, of each SSRC which has got a key frame.
+     *
+     * @return Map between SSRC and its key frame delay.
+     */
+    public Map<Long, Long> getKeyFrameDelays()
+    {
+        Map<Long, Long> delays = new HashMap<Long, Long>();
+
+        for (SsrcState state : states.values())
+        {
+            synchronized (state)
+            {
+                if (state.keyFrameTime >= 0 && state.firstPacketTime >= 0)
+                {
+                    delays.put(state.ssrc, state.keyFrameTime
+                        - state.firstPacketTime);
+                }
+            }
+        }
+        return delays;
+    }
+
+    /**
+     * {@inheritDoc}
+     *
+     * Tracks the first packet and the first key frame of each SSRC, requests
+     * key frames while there hasn't been one and drops the packets which
+     * precede it.
+     */
+    @Override
+    public boolean accept(MediaStream source, byte[] buf, int off, int len,
+        MediaStream destination, boolean data)
+    {
+        // We only care about RTP.
+        if (!data || len < 12 || (buf[off] & 0xC0) != 0x80)
+            return true;
+
+        final long ssrc = readUnsignedInt(buf, off + 8);
+        final int pt = buf[off + 1] & 0x7F;
+
+        final SsrcState state = getState(ssrc);
+
+        // Once the key frame has come, which is the case of almost every
+        // packet, we don't lock.
+        if (state.keyFrameTime >= 0)
+            return true;
+
+        synchronized (state)
+        {
+            if (state.keyFrameTime >= 0)
+                return true;
+
+            long now = System.currentTimeMillis();
+            if (state.firstPacketTime < 0)
+                state.firstPacketTime = now;
+
+            if (vp8PayloadType < 0 || pt != vp8PayloadType)
+            {
+                // We can't tell the key frames of this payload, so just ask
+                // for one once and let everything through.
+                if (state.requestCount == 0)
+                    maybeRequest(state, now);
+                return true;
+            }
+
+            if (isVp8KeyFrame(buf, off, len))
+            {
+                state.keyFrameTime = now;
+                logger.info("First key frame of SSRC " + ssrc + " after "
+                    + (now - state.firstPacketTime) + " ms, "
+                    + state.requestCount + " request(s).");
+                return true;
+            }
+
+            maybeRequest(state, now);
+            return false;
+        }
+    }
+
+    /**
+     * Get the state of an SSRC, create a new one if it doesn't exist.
+     *
+     * @param ssrc
+     * @return
+     */
+    private SsrcState getState(long ssrc)
+    {
+        SsrcState state = states.get(ssrc);
+
+        if (null == state)
+        {
+            SsrcState newState = new SsrcState(ssrc);
+
+            state = states.putIfAbsent(ssrc, newState);
+            if (null == state)
+                state = newState;
+        }
+        return state;
+    }
+
+    /**
+     * Request a key frame for the SSRC of <tt>state</tt>, unless one has been
+     * requested less than {@link #minRequestInterval} ago.
+     * <p>
+     * <strong>Warning:</strong> The caller must hold the lock of
+     * <tt>state</tt>.
+     *
+     * @param state
+     * @param now the current time in milliseconds.
+     */
+    private void maybeRequest(SsrcState state, long now)
+    {
+        if (state.lastRequestTime >= 0
+            && now - state.lastRequestTime < minRequestInterval)
+            return;
+
+        state.lastRequestTime = now;
+        state.requestCount++;
+
+        final int ssrc = (int) state.ssrc;
+        requestExecutor.execute(new Runnable()
+        {
+            @Override
+            public void run()
+            {
+                RTCPFeedbackMessageSender sender =
+                    translator.getRtcpFeedbackMessageSender();
+
+                if (null == sender || !sender.sendFIR(ssrc))
+                {
+                    logger.debug("Failed to send FIR for SSRC "
+                        + (ssrc & 0xFFFFFFFFL));
+                }
+            }
+        });
+    }
+
+    /**
+     * Check whether an RTP packet carries the beginning of a VP8 key frame.
+     *
+     * @param buf
+     * @param off
+     * @param len
+     * @return
+     */
+    static boolean isVp8KeyFrame(byte[] buf, int off, int len)
+    {
+        int headerLength = 12 + 4 * (buf[off] & 0x0F);
+
+        // The header extension.
+        if ((buf[off] & 0x10) != 0)
+        {
+            if (len < headerLength + 4)
+                return false;
+            headerLength +=
+                4 + 4 * (((buf[off + headerLength + 2] & 0xFF) << 8)
+                    | (buf[off + headerLength + 3] & 0xFF));
+        }
+
+        final int payloadOff = off + headerLength;
+        if (len <= headerLength)
+            return false;
+
+        // The VP8 payload descriptor (RFC 7741). A frame starts with the S bit
+        // set and the partition index 0.
+        final byte first = buf[payloadOff];
+        if ((first & 0x10) == 0 || (first & 0x07) != 0)
+            return false;
+
+        int descriptorSize = 1;
+        if ((first & 0x80) != 0)
+        {
+            if (len <= headerLength + 1)
+                return false;
+            final byte extension = buf[payloadOff + 1];
+            descriptorSize++;
+
+            // PictureID, which is 15 bits long if its M bit is set.
+            if ((extension & 0x80) != 0)
+            {
+                if (len <= headerLength + descriptorSize)
+                    return false;
+                descriptorSize +=
+                    (buf[payloadOff + descriptorSize] & 0x80) != 0 ? 2 : 1;
+            }
+            // TL0PICIDX
+            if ((extension & 0x40) != 0)
+                descriptorSize++;
+            // TID/Y/KEYIDX
+            if ((extension & 0x30) != 0)
+                descriptorSize++;
+        }
+
+        if (len <= headerLength + descriptorSize)
+            return false;
+
+        // The P bit of the VP8 payload header is 0 for key frames.
+        return (buf[payloadOff + descriptorSize] & 0x01) == 0;
+    }
+
+    /**
+     * Read an unsigned 32 bits integer.
+     *
+     * @param buf
+     * @param off
+     * @return
+     */
+    private static long readUnsignedInt(byte[] buf, int off)
+    {
+        return ((buf[off] & 0xFFL) << 24) | ((buf[off + 1] & 0xFFL) << 16)
+            | ((buf[off + 2] & 0xFFL) << 8) | (buf[off + 3] & 0xFFL);
+    }
+
+    /**
+     * Key frame state of an SSRC.
+     */
+    private static class SsrcState
+    {
+        private final long ssrc;
+
+        /**
+         * When the first packet arrived, or -1.
+         */
+        private long firstPacketTime = -1;
+
+        /**
+         * When the first key frame arrived, or -1. It's read without the
+         * lock on the packet path.
+         */
+        private volatile long keyFrameTime = -1;
+
+        /**
+         * When the last key frame request was sent, or -1.
+         */
+        private long lastRequestTime = -1;
+
+        /**
+         * How many key frame requests have been sent.
+         */
+        private int requestCount = 0;
+
+        private SsrcState(long ssrc)
+        {
+            this.ssrc = ssrc;
+        }
+    }
+}
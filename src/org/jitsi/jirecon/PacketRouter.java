@@ -0,0 +1,315 @@
+/*
+/*
+ * Jirecon, the JItsi REcording COntainer.
+ *
+ *
+ * Copyright @ 2015 Atlassian Pty Ltd
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.jitsi.jirecon;
+
+import java.util.*;
+import java.util.concurrent.*;
+
+import net.java.sip.communicator.impl.protocol.jabber.extensions.jingle.*;
+
+import org.jitsi.util.Logger;
+import org.jivesoftware.smack.*;
+import org.jivesoftware.smack.filter.*;
+import org.jivesoftware.smack.packet.*;
+import org.jivesoftware.smack.util.StringUtils;
+
+/**
+ * Dispatches the packets received and sent on an <tt>XMPPConnection</tt> to
+ * the <tt>JingleSessionManager</tt>s which own them.
+ * <p>
+ * There is a single receiving and a single sending <tt>PacketListener</tt> on
+ * the connection, whatever the number of tasks. A received packet is routed
+ * with hash lookups by, in this order:
+ * <ol>
+ * <li>the Jingle session id, for Jingle IQs of a known session;</li>
+ * <li>the recipient JID, for packets sent to a JID which is specific to a
+ * session (e.g. our occupant JID in its MUC);</li>
+ * <li>the MUC room of the sender, for presences and for the packets of the
+ * focus before the session is known.</li>
+ * </ol>
+ * A sent packet is routed by its Jingle session id, or else by the MUC room
+ * of its recipient. Packets which aren't owned by any session are dropped, so
+ * each session only ever sees its own traffic.
+ */
+public class PacketRouter
+{
+    /**
+     * The <tt>Logger</tt>, used to log messages to standard output.
+     */
+    private static final Logger logger = Logger.getLogger(PacketRouter.class);
+
+    /**
+     * The <tt>PacketRouter</tt>s of the connections.
+     */
+    private static final Map<Connection, PacketRouter> instances =
+        new WeakHashMap<Connection, PacketRouter>();
+
+    /**
+     * Get the <tt>PacketRouter</tt> of a connection, and create it if needed.
+     * 
+     * @param connection
+     * @return
+     */
+    public static PacketRouter getInstanceFor(Connection connection)
+    {
+        synchronized (instances)
+        {
+            PacketRouter router = instances.get(connection);
+            if (null == router)
+            {
+                router = new PacketRouter(connection);
+                instances.put(connection, router);
+            }
+            return router;
+        }
+    }
+
+    /**
+     * Remove the <tt>PacketRouter</tt> of a connection from the connection.
+     * 
+     * @param connection
+     */
+    public static void removeInstanceFor(Connection connection)
+    {
+        PacketRouter router;
+        synchronized (instances)
+        {
+            router = instances.remove(connection);
+        }
+        if (null != router)
+        {
+            connection.removePacketListener(router.listener);
+            connection.removePacketSendingListener(router.sendingListener);
+        }
+    }
+
+    /**
+     * The owner of routed packets.
+     */
+    public interface Route
+    {
+        /**
+         * Handle a packet which has been routed to this <tt>Route</tt>.
+         * 
+         * @param packet
+         */
+        public void processPacket(Packet packet);
+
+        /**
+         * Handle a packet which has been sent, and routed to this
+         * <tt>Route</tt>.
+         * 
+         * @param packet
+         */
+        public void processSentPacket(Packet packet);
+    }
+
+    /**
+     * The routes by Jingle session id.
+     */
+    private final Map<String, Route> routesBySid =
+        new ConcurrentHashMap<String, Route>();
+
+    /**
+     * The routes by recipient full JID.
+     */
+    private final Map<String, Route> routesByJid =
+        new ConcurrentHashMap<String, Route>();
+
+    /**
+     * The routes by MUC room bare JID.
+     */
+    private final Map<String, Route> routesByRoom =
+        new ConcurrentHashMap<String, Route>();
+
+    /**
+     * The listener of the connection.
+     */
+    private final PacketListener listener = new PacketListener()
+    {
+        @Override
+        public void processPacket(Packet packet)
+        {
+            route(packet);
+        }
+    };
+
+    /**
+     * The sending listener of the connection.
+     */
+    private final PacketListener sendingListener = new PacketListener()
+    {
+        @Override
+        public void processPacket(Packet packet)
+        {
+            routeSent(packet);
+        }
+    };
+
+    private PacketRouter(Connection connection)
+    {
+        PacketFilter acceptAll = new PacketFilter()
+        {
+            @Override
+            public boolean accept(Packet packet)
+            {
+                return true;
+            }
+        };
+
+        connection.addPacketListener(listener, acceptAll);
+        connection.addPacketSendingListener(sendingListener, acceptAll);
+    }
+
+    /**
+     * Route the packets of a Jingle session to a <tt>Route</tt>.
+     * 
+     * @param sid the Jingle session id.
+     * @param route
+     */
+    public void addSid(String sid, Route route)
+    {
+        routesBySid.put(sid, route);
+    }
+
+    /**
+     * Route the packets sent to a JID to a <tt>Route</tt>.
+     * 
+     * @param jid the full JID of the recipient.
+     * @param route
+     */
+    public void addJid(String jid, Route route)
+    {
+        routesByJid.put(jid, route);
+    }
+
+    /**
+     * Route the packets sent from a MUC room to a <tt>Route</tt>.
+     * 
+     * @param roomJid the bare JID of the room.
+     * @param route
+     */
+    public void addRoom(String roomJid, Route route)
+    {
+        routesByRoom.put(roomJid.toLowerCase(), route);
+    }
+
+    /**
+     * Stop routing any packet to a <tt>Route</tt>.
+     * 
+     * @param route
+     */
+    public void removeRoute(Route route)
+    {
+        for (Map<String, Route> routes : Arrays.asList(routesBySid,
+            routesByJid, routesByRoom))
+        {
+            routes.values().removeAll(Collections.singleton(route));
+        }
+    }
+
+    /**
+     * Get the route of a packet.
+     * 
+     * @param packet
+     * @return the route, or null if no session owns the packet.
+     */
+    Route getRoute(Packet packet)
+    {
+        Route route = null;
+
+        if (packet instanceof JingleIQ)
+        {
+            String sid = ((JingleIQ) packet).getSID();
+            if (null != sid)
+                route = routesBySid.get(sid);
+        }
+
+        if (null == route && null != packet.getTo())
+            route = routesByJid.get(packet.getTo());
+
+        if (null == route && null != packet.getFrom())
+        {
+            route = routesByRoom.get(
+                StringUtils.parseBareAddress(packet.getFrom()).toLowerCase());
+        }
+
+        return route;
+    }
+
+    /**
+     * Get the route of a sent packet.
+     * 
+     * @param packet
+     * @return the route, or null if no session owns the packet.
+     */
+    Route getSentRoute(Packet packet)
+    {
+        Route route = null;
+
+        if (packet instanceof JingleIQ)
+        {
+            String sid = ((JingleIQ) packet).getSID();
+            if (null != sid)
+                route = routesBySid.get(sid);
+        }
+
+        if (null == route && null != packet.getTo())
+        {
+            route = routesByRoom.get(
+                StringUtils.parseBareAddress(packet.getTo()).toLowerCase());
+        }
+
+        return route;
+    }
+
+    /**
+     * Dispatch a sent packet to its route.
+     * 
+     * @param packet
+     */
+    private void routeSent(Packet packet)
+    {
+        Route route = getSentRoute(packet);
+
+        if (null != route)
+            route.processSentPacket(packet);
+    }
+
+    /**
+     * Dispatch a packet to its route.
+     * 
+     * @param packet
+     */
+    private void route(Packet packet)
+    {
+        Route route = getRoute(packet);
+
+        if (null != route)
+        {
+            route.processPacket(packet);
+        }
+        else if (logger.isDebugEnabled())
+        {
+            logger.debug("No route for " + packet.getClass().getSimpleName()
+                + " from " + packet.getFrom() + " to " + packet.getTo());
+        }
+    }
+}
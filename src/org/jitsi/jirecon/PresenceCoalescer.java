@@ -0,0 +1,289 @@
+/*
+/*
+ * Jirecon, the JItsi REcording COntainer.
+ *
+ *
+ * Copyright @ 2015 Atlassian Pty Ltd
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.jitsi.jirecon;
+
+import java.util.*;
+import java.util.concurrent.*;
+
+import org.jitsi.jirecon.protocol.extension.*;
+import org.jitsi.util.*;
+
+/**
+ * Collapses the bursts of presences of a meeting into one state change per
+ * participant.
+ * <p>
+ * Participants re-send their presence for many reasons the recorder doesn't
+ * care about (status, audio or video mute...). A presence whose media is the
+ * same as the current state of its participant is dropped right away, with a
+ * cheap comparison. The other ones are kept, only the latest one per
+ * participant, and applied all at once at the end of a short window, rather
+ * than on the thread of the XMPP connection.
+ * <p>
+ * The timer which is shared by all tasks only schedules the flushes, which run
+ * on a shared pool, so a task which is slow to apply its presences (e.g.
+ * because it's stopping) doesn't hold the other tasks back. The flushes of a
+ * task never overlap, and don't wait for the thread of the task, which is
+ * busy while the task is starting.
+ */
+public class PresenceCoalescer
+{
+    /**
+     * The <tt>Logger</tt>, used to log messages to standard output.
+     */
+    private static final Logger logger = Logger
+        .getLogger(PresenceCoalescer.class);
+
+    /**
+     * The default window in milliseconds.
+     */
+    public static final long DEFAULT_WINDOW = 100;
+
+    /**
+     * Stands for the pending presence of a participant who has left.
+     */
+    private static final MediaExtension LEFT = new MediaExtension();
+
+    /**
+     * The timer which schedules the flushes of all tasks.
+     */
+    private static final ScheduledExecutorService timer = Executors
+        .newSingleThreadScheduledExecutor(new ThreadFactory()
+        {
+            @Override
+            public Thread newThread(Runnable r)
+            {
+                Thread t = new Thread(r, PresenceCoalescer.class.getName());
+                t.setDaemon(true);
+                return t;
+            }
+        });
+
+    /**
+     * The pool of <tt>Thread</tt>s which run the flushes of all tasks.
+     */
+    private static final ExecutorService flushers = ExecutorUtils
+        .newCachedThreadPool(true, PresenceCoalescer.class.getName());
+
+    /**
+     * Compares and applies the presences.
+     */
+    public interface Handler
+    {
+        /**
+         * Tell whether the media of a participant are the same as its current
+         * state.
+         * 
+         * @param jid the JID of the participant.
+         * @param mediaExt the media of its presence.
+         * @return
+         */
+        public boolean isUnchanged(String jid, MediaExtension mediaExt);
+
+        /**
+         * Apply the latest presence of a participant.
+         * 
+         * @param jid the JID of the participant.
+         * @param mediaExt the media of its presence, or null if it has left.
+         */
+        public void apply(String jid, MediaExtension mediaExt);
+    }
+
+    private final Handler handler;
+
+    /**
+     * The window in milliseconds. If it isn't positive, presences are applied
+     * as soon as they arrive.
+     */
+    private final long window;
+
+    /**
+     * The latest pending presence of each participant, in arrival order.
+     */
+    private Map<String, MediaExtension> pending =
+        new LinkedHashMap<String, MediaExtension>();
+
+    /**
+     * The presences which are being applied by a flush, or null.
+     */
+    private Map<String, MediaExtension> applying;
+
+    /**
+     * The scheduled or running flush, or null.
+     */
+    private ScheduledFuture<?> flush;
+
+    private boolean stopped = false;
+
+    /**
+     * Construction method.
+     * 
+     * @param handler
+     * @param window the window in milliseconds, 0 to disable coalescing.
+     */
+    public PresenceCoalescer(Handler handler, long window)
+    {
+        this.handler = handler;
+        this.window = window;
+    }
+
+    /**
+     * Offer the presence of a participant.
+     * 
+     * @param jid the JID of the participant.
+     * @param mediaExt the media of its presence.
+     */
+    public void offer(String jid, MediaExtension mediaExt)
+    {
+        synchronized (this)
+        {
+            if (stopped)
+                return;
+
+            // The current state is only final once no presence of the
+            // participant is pending or being applied.
+            if (!pending.containsKey(jid)
+                && (null == applying || !applying.containsKey(jid))
+                && handler.isUnchanged(jid, mediaExt))
+            {
+                return;
+            }
+            if (window > 0)
+            {
+                pending.put(jid, mediaExt);
+                scheduleFlush();
+                return;
+            }
+        }
+
+        handler.apply(jid, mediaExt);
+    }
+
+    /**
+     * Offer the unavailable presence of a participant.
+     * 
+     * @param jid the JID of the participant.
+     */
+    public void offerLeft(String jid)
+    {
+        synchronized (this)
+        {
+            if (stopped)
+                return;
+
+            if (window > 0)
+            {
+                // Leaving supersedes whatever was pending.
+                pending.remove(jid);
+                pending.put(jid, LEFT);
+                scheduleFlush();
+                return;
+            }
+        }
+
+        handler.apply(jid, null);
+    }
+
+    /**
+     * Drop the pending presences, and stop accepting new ones.
+     */
+    public synchronized void stop()
+    {
+        stopped = true;
+        pending.clear();
+        if (null != flush)
+        {
+            flush.cancel(false);
+            flush = null;
+        }
+    }
+
+    /**
+     * <strong>Warning:</strong> The caller must hold the lock of this.
+     */
+    private void scheduleFlush()
+    {
+        if (null != flush)
+            return;
+
+        final Runnable flushTask = new Runnable()
+        {
+            @Override
+            public void run()
+            {
+                flush();
+            }
+        };
+
+        flush = timer.schedule(new Runnable()
+        {
+            @Override
+            public void run()
+            {
+                flushers.execute(flushTask);
+            }
+        }, window, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Apply the pending presences. The presences which arrive meanwhile are
+     * left for the next flush, which is only scheduled once this one is done.
+     */
+    private void flush()
+    {
+        Map<String, MediaExtension> flushed;
+        synchronized (this)
+        {
+            if (stopped || pending.isEmpty())
+            {
+                flush = null;
+                return;
+            }
+
+            flushed = pending;
+            pending = new LinkedHashMap<String, MediaExtension>();
+            applying = flushed;
+        }
+
+        if (logger.isDebugEnabled())
+            logger.debug("Applying " + flushed.size() + " presences");
+
+        for (Map.Entry<String, MediaExtension> e : flushed.entrySet())
+        {
+            MediaExtension mediaExt = e.getValue();
+            try
+            {
+                handler.apply(e.getKey(), LEFT == mediaExt ? null : mediaExt);
+            }
+            catch (Exception ex)
+            {
+                logger.error("Failed to apply the presence of " + e.getKey(),
+                    ex);
+            }
+        }
+
+        synchronized (this)
+        {
+            applying = null;
+            flush = null;
+            if (!stopped && !pending.isEmpty())
+                scheduleFlush();
+        }
+    }
+}
@@ -0,0 +1,168 @@
+/*
+/*
+ * Jirecon, the JItsi REcording COntainer.
+ *
+ *
+ * Copyright @ 2015 Atlassian Pty Ltd
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.jitsi.jirecon;
+
+import java.io.*;
+
+import org.json.simple.*;
+import org.json.simple.parser.*;
+
+/**
+ * Where a segment of a recording is on the timeline of the whole recording.
+ * <p>
+ * A recording is written in several segments when it's resumed after a crash
+ * or taken over by a standby node. Every segment saves its info next to its
+ * metadata, in "segment.json" for the first one and "segment-N.json" for the
+ * next ones, so that the segments can be put back on one timeline: the media
+ * of a segment start <tt>offset</tt> milliseconds after the recording
+ * started.
+ */
+public class SegmentInfo
+{
+    private static final String SEGMENT = "segment";
+
+    private static final String RECORDING_START = "recording_start";
+
+    private static final String SEGMENT_START = "segment_start";
+
+    private static final String OFFSET = "offset";
+
+    private final int segment;
+
+    private final long recordingStart;
+
+    private final long segmentStart;
+
+    /**
+     * Construction method.
+     * 
+     * @param segment the number of the segment, 0 for the first one.
+     * @param recordingStart when the first segment started, in milliseconds
+     *            since the epoch, or 0 if it isn't known.
+     * @param segmentStart when this segment started, in milliseconds since
+     *            the epoch.
+     */
+    public SegmentInfo(int segment, long recordingStart, long segmentStart)
+    {
+        this.segment = segment;
+        this.recordingStart = recordingStart;
+        this.segmentStart = segmentStart;
+    }
+
+    public int getSegment()
+    {
+        return segment;
+    }
+
+    public long getRecordingStart()
+    {
+        return recordingStart;
+    }
+
+    public long getSegmentStart()
+    {
+        return segmentStart;
+    }
+
+    /**
+     * Get the offset of this segment on the timeline of the recording.
+     * 
+     * @return the offset in milliseconds, or -1 if the start of the recording
+     *         isn't known.
+     */
+    public long getOffset()
+    {
+        return recordingStart <= 0 ? -1 : segmentStart - recordingStart;
+    }
+
+    /**
+     * Get the name of the file of a segment.
+     * 
+     * @param segment
+     * @return
+     */
+    public static String getFilename(int segment)
+    {
+        return 0 == segment ? "segment.json" : "segment-" + segment + ".json";
+    }
+
+    /**
+     * Save this info in an output directory.
+     * 
+     * @param outputDir
+     * @throws IOException
+     */
+    @SuppressWarnings("unchecked")
+    public void write(String outputDir)
+        throws IOException
+    {
+        JSONObject json = new JSONObject();
+        json.put(SEGMENT, segment);
+        json.put(RECORDING_START, recordingStart);
+        json.put(SEGMENT_START, segmentStart);
+        json.put(OFFSET, getOffset());
+
+        Writer writer =
+            new OutputStreamWriter(new FileOutputStream(new File(outputDir,
+                getFilename(segment))), "UTF-8");
+        try
+        {
+            json.writeJSONString(writer);
+        }
+        finally
+        {
+            writer.close();
+        }
+    }
+
+    /**
+     * Read the info of a segment from an output directory.
+     * 
+     * @param outputDir
+     * @param segment
+     * @return the info, or null if it can't be read.
+     */
+    public static SegmentInfo read(String outputDir, int segment)
+    {
+        try
+        {
+            Reader reader =
+                new InputStreamReader(new FileInputStream(new File(outputDir,
+                    getFilename(segment))), "UTF-8");
+            try
+            {
+                JSONObject json = (JSONObject) new JSONParser().parse(reader);
+
+                return new SegmentInfo(
+                    ((Number) json.get(SEGMENT)).intValue(),
+                    ((Number) json.get(RECORDING_START)).longValue(),
+                    ((Number) json.get(SEGMENT_START)).longValue());
+            }
+            finally
+            {
+                reader.close();
+            }
+        }
+        catch (Exception e)
+        {
+            return null;
+        }
+    }
+}
@@ -0,0 +1,336 @@
+/*
+/*
+ * Jirecon, the JItsi REcording COntainer.
+ *
+ *
+ * Copyright @ 2015 Atlassian Pty Ltd
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.jitsi.jirecon;
+
+import java.util.*;
+import java.util.concurrent.*;
+
+import org.jitsi.service.neomedia.*;
+import org.jitsi.util.*;
+
+/**
+ * Selects exactly one simulcast layer of the video of each endpoint to be
+ * recorded, and drops the packets of the other layers (and of the
+ * retransmission SSRCs) before they reach the recorder.
+ * <p>
+ * It is installed as a <tt>WriteFilter</tt> on the video
+ * <tt>RTPTranslator</tt>. SSRCs which don't belong to the SSRC groups of any
+ * known endpoint are let through untouched, so endpoints which don't send
+ * simulcast are recorded as before.
+ */
+public class SimulcastLayerSelector
+    implements RTPTranslator.WriteFilter
+{
+    /**
+     * The <tt>Logger</tt>, used to log messages to standard output.
+     */
+    private static final Logger logger = Logger
+        .getLogger(SimulcastLayerSelector.class);
+
+    /**
+     * Which layer is selected for an endpoint.
+     */
+    public enum Policy
+    {
+        /**
+         * Record the highest layer of every endpoint.
+         */
+        HIGHEST,
+
+        /**
+         * Record the lowest layer of every endpoint.
+         */
+        LOWEST,
+
+        /**
+         * Record the highest layer of the dominant speaker and the lowest
+         * layer of the others.
+         */
+        DOMINANT_SPEAKER;
+
+        /**
+         * Parse a <tt>Policy</tt>, ignoring case.
+         *
+         * @param s
+         * @return the <tt>Policy</tt>, or {@link #HIGHEST} if <tt>s</tt> is
+         *         null or unknown.
+         */
+        public static Policy parseString(String s)
+        {
+            if (null != s)
+            {
+                for (Policy policy : values())
+                {
+                    if (policy.name().equalsIgnoreCase(s.trim()))
+                        return policy;
+                }
+                logger.warn("Unknown simulcast layer policy " + s
+                    + ", use " + HIGHEST);
+            }
+            return HIGHEST;
+        }
+    }
+
+    /**
+     * The layer selection policy.
+     */
+    private final Policy policy;
+
+    /**
+     * The id of the current dominant speaker, or null.
+     */
+    private String dominantSpeaker;
+
+    /**
+     * The endpoints we select layers for, by id.
+     */
+    private final Map<String, EndpointInfo> endpoints =
+        new HashMap<String, EndpointInfo>();
+
+    /**
+     * Map between endpoint id and its selected video SSRC.
+     */
+    private final Map<String, Long> selected = new HashMap<String, Long>();
+
+    /**
+     * Map between endpoint id and its video SSRCs which are dropped.
+     */
+    private final Map<String, Set<Long>> droppedByEndpoint =
+        new HashMap<String, Set<Long>>();
+
+    /**
+     * The SSRCs whose packets are dropped, i.e. the union of
+     * {@link #droppedByEndpoint}. It's concurrent, so that the packet threads
+     * can read it without locking while it's updated endpoint by endpoint.
+     */
+    private final Set<Long> dropped = Collections
+        .newSetFromMap(new ConcurrentHashMap<Long, Boolean>());
+
+    /**
+     * Construction method.
+     *
+     * @param policy the layer selection policy.
+     */
+    public SimulcastLayerSelector(Policy policy)
+    {
+        this.policy = policy;
+    }
+
+    /**
+     * Update the endpoints and select their layers again.
+     *
+     * @param endpoints the endpoints in the meeting.
+     * @return the SSRCs which have just become selected.
+     */
+    public synchronized List<Long> setEndpoints(List<EndpointInfo> endpoints)
+    {
+        Set<String> removed = new HashSet<String>(this.endpoints.keySet());
+        for (EndpointInfo endpoint : endpoints)
+            removed.remove(endpoint.getId());
+        for (String endpointId : removed)
+            removeEndpoint(endpointId);
+
+        List<Long> changed = new ArrayList<Long>();
+        for (EndpointInfo endpoint : endpoints)
+        {
+            this.endpoints.put(endpoint.getId(), endpoint);
+            select(endpoint, changed);
+        }
+        return changed;
+    }
+
+    /**
+     * Add or update one endpoint and select its layer again. The other
+     * endpoints aren't touched.
+     *
+     * @param endpoint
+     * @return the SSRCs which have just become selected.
+     */
+    public synchronized List<Long> updateEndpoint(EndpointInfo endpoint)
+    {
+        List<Long> changed = new ArrayList<Long>(1);
+
+        endpoints.put(endpoint.getId(), endpoint);
+        select(endpoint, changed);
+        return changed;
+    }
+
+    /**
+     * Remove one endpoint. Its SSRCs aren't dropped any more.
+     *
+     * @param endpointId
+     */
+    public synchronized void removeEndpoint(String endpointId)
+    {
+        endpoints.remove(endpointId);
+        selected.remove(endpointId);
+
+        Set<Long> endpointDropped = droppedByEndpoint.remove(endpointId);
+        if (null != endpointDropped)
+            dropped.removeAll(endpointDropped);
+    }
+
+    /**
+     * Update the dominant speaker. With the {@link Policy#DOMINANT_SPEAKER}
+     * policy, this moves the highest layer to the new dominant speaker.
+     *
+     * @param endpointId the id of the dominant speaker.
+     * @return the SSRCs which have just become selected.
+     */
+    public synchronized List<Long> setDominantSpeaker(String endpointId)
+    {
+        if (StringUtils.isNullOrEmpty(endpointId)
+            || endpointId.equals(dominantSpeaker))
+            return Collections.emptyList();
+
+        String previous = dominantSpeaker;
+        dominantSpeaker = endpointId;
+        if (Policy.DOMINANT_SPEAKER != policy)
+            return Collections.emptyList();
+
+        // Only the previous and the new dominant speakers change layer.
+        List<Long> changed = new ArrayList<Long>();
+        for (EndpointInfo endpoint : endpoints.values())
+        {
+            if (isEndpoint(endpoint, previous)
+                || isEndpoint(endpoint, endpointId))
+            {
+                select(endpoint, changed);
+            }
+        }
+        return changed;
+    }
+
+    /**
+     * Tell whether an id, full or bare, is the one of an endpoint.
+     *
+     * @param endpoint
+     * @param endpointId
+     * @return
+     */
+    private static boolean isEndpoint(EndpointInfo endpoint,
+        String endpointId)
+    {
+        return null != endpointId
+            && (endpoint.getId().equals(endpointId) || endpoint.getBareId()
+                .equals(endpointId));
+    }
+
+    /**
+     * Get the selected video SSRC of an endpoint.
+     *
+     * @param endpointId
+     * @return the SSRC, or -1 if there isn't any.
+     */
+    public synchronized long getSelectedSsrc(String endpointId)
+    {
+        Long ssrc = selected.get(endpointId);
+
+        return null == ssrc ? -1 : ssrc;
+    }
+
+    /**
+     * Get the selected video SSRCs of all endpoints.
+     *
+     * @return
+     */
+    public synchronized Collection<Long> getSelectedSsrcs()
+    {
+        return new ArrayList<Long>(selected.values());
+    }
+
+    /**
+     * Select the layer of an endpoint according to the policy.
+     * <p>
+     * <strong>Warning:</strong> The caller must hold the lock of this.
+     *
+     * @param endpoint
+     * @param changed the list to add the SSRC to, if it has just become
+     *            selected.
+     */
+    private void select(EndpointInfo endpoint, List<Long> changed)
+    {
+        final String endpointId = endpoint.getId();
+        List<Long> layers = endpoint.getSimulcastLayers(MediaType.VIDEO);
+        Set<Long> endpointDropped = endpoint.getAllSsrcs(MediaType.VIDEO);
+
+        if (layers.isEmpty())
+        {
+            selected.remove(endpointId);
+        }
+        else
+        {
+            boolean highest;
+            switch (policy)
+            {
+            case LOWEST:
+                highest = false;
+                break;
+            case DOMINANT_SPEAKER:
+                highest = isEndpoint(endpoint, dominantSpeaker);
+                break;
+            default:
+                highest = true;
+                break;
+            }
+
+            final Long ssrc = layers.get(highest ? layers.size() - 1 : 0);
+            if (!ssrc.equals(selected.put(endpointId, ssrc)))
+            {
+                logger.info("Select video SSRC " + ssrc + " of endpoint "
+                    + endpointId + " among " + layers);
+                changed.add(ssrc);
+            }
+            endpointDropped.remove(ssrc);
+        }
+
+        // Drop the new SSRCs before letting the old ones through, so that no
+        // packet of a dropped layer slips in between.
+        dropped.addAll(endpointDropped);
+        Set<Long> oldDropped = droppedByEndpoint.put(endpointId,
+            endpointDropped);
+        if (null != oldDropped)
+        {
+            oldDropped.removeAll(endpointDropped);
+            dropped.removeAll(oldDropped);
+        }
+    }
+
+    /**
+     * {@inheritDoc}
+     *
+     * Drops the RTP packets of the SSRCs which are not selected.
+     */
+    @Override
+    public boolean accept(MediaStream source, byte[] buf, int off, int len,
+        MediaStream destination, boolean data)
+    {
+        if (!data || len < 12)
+            return true;
+
+        if (dropped.isEmpty())
+            return true;
+
+        final long ssrc =
+            ((buf[off + 8] & 0xFFL) << 24) | ((buf[off + 9] & 0xFFL) << 16)
+                | ((buf[off + 10] & 0xFFL) << 8) | (buf[off + 11] & 0xFFL);
+        return !dropped.contains(ssrc);
+    }
+}
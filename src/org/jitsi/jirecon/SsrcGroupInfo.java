@@ -0,0 +1,121 @@
+/*
+/*
+ * Jirecon, the JItsi REcording COntainer.
+ *
+ *
+ * Copyright @ 2015 Atlassian Pty Ltd
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.jitsi.jirecon;
+
+import java.util.*;
+
+/**
+ * Data structure that encapsulates an SSRC group, as signaled in the
+ * "ssrc-group" elements of Jingle.
+ * <p>
+ * The SSRCs of a <tt>SIM</tt> group are the simulcast layers of one video
+ * source, ordered from the lowest to the highest quality. The SSRCs of a
+ * <tt>FID</tt> group are a primary SSRC followed by its retransmission SSRC.
+ */
+public class SsrcGroupInfo
+{
+    /**
+     * The semantics of simulcast groups.
+     */
+    public static final String SEMANTICS_SIMULCAST = "SIM";
+
+    /**
+     * The semantics of flow identification (RTX) groups.
+     */
+    public static final String SEMANTICS_FID = "FID";
+
+    /**
+     * The semantics of this group.
+     */
+    private final String semantics;
+
+    /**
+     * The SSRCs of this group, in the signaled order.
+     */
+    private final List<Long> ssrcs;
+
+    /**
+     * Construction method.
+     *
+     * @param semantics the semantics of the group.
+     * @param ssrcs the SSRCs of the group, in the signaled order.
+     */
+    public SsrcGroupInfo(String semantics, List<Long> ssrcs)
+    {
+        this.semantics = semantics;
+        this.ssrcs = Collections.unmodifiableList(new ArrayList<Long>(ssrcs));
+    }
+
+    public String getSemantics()
+    {
+        return semantics;
+    }
+
+    public List<Long> getSsrcs()
+    {
+        return ssrcs;
+    }
+
+    public boolean isSimulcast()
+    {
+        return SEMANTICS_SIMULCAST.equalsIgnoreCase(semantics);
+    }
+
+    public boolean isFid()
+    {
+        return SEMANTICS_FID.equalsIgnoreCase(semantics);
+    }
+
+    /**
+     * Check whether this group contains an SSRC.
+     *
+     * @param ssrc
+     * @return <tt>true</tt> if the SSRC is in this group.
+     */
+    public boolean contains(long ssrc)
+    {
+        return ssrcs.contains(ssrc);
+    }
+
+    @Override
+    public boolean equals(Object obj)
+    {
+        if (this == obj)
+            return true;
+        if (!(obj instanceof SsrcGroupInfo))
+            return false;
+
+        SsrcGroupInfo other = (SsrcGroupInfo) obj;
+        return (null == semantics ? null == other.semantics : semantics
+            .equalsIgnoreCase(other.semantics)) && ssrcs.equals(other.ssrcs);
+    }
+
+    @Override
+    public int hashCode()
+    {
+        return ssrcs.hashCode();
+    }
+
+    @Override
+    public String toString()
+    {
+        return semantics + ssrcs;
+    }
+}
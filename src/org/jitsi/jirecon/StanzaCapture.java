@@ -0,0 +1,206 @@
+/*
+/*
+ * Jirecon, the JItsi REcording COntainer.
+ *
+ *
+ * Copyright @ 2015 Atlassian Pty Ltd
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.jitsi.jirecon;
+
+import java.io.*;
+import java.text.*;
+import java.util.*;
+
+import org.jivesoftware.smack.packet.*;
+
+/**
+ * A bounded in-memory capture of the stanzas of a task, for diagnostics.
+ * <p>
+ * Capturing a stanza only keeps a reference to it in a ring buffer whose
+ * entries are allocated once: nothing is serialized until the capture is
+ * dumped. When the buffer is full, the oldest stanzas are overwritten.
+ */
+public class StanzaCapture
+{
+    /**
+     * The entries of the ring buffer.
+     */
+    private final Entry[] entries;
+
+    /**
+     * The index of the entry the next stanza goes into.
+     */
+    private int next = 0;
+
+    /**
+     * The number of stanzas captured so far, including the overwritten ones.
+     */
+    private long count = 0;
+
+    /**
+     * Construction method.
+     * 
+     * @param capacity the number of stanzas which are kept.
+     */
+    public StanzaCapture(int capacity)
+    {
+        if (capacity <= 0)
+            throw new IllegalArgumentException("capacity " + capacity);
+
+        entries = new Entry[capacity];
+        for (int i = 0; i < capacity; i++)
+            entries[i] = new Entry();
+    }
+
+    /**
+     * Capture a received stanza.
+     * 
+     * @param packet
+     */
+    public void received(Packet packet)
+    {
+        add(packet, false);
+    }
+
+    /**
+     * Capture a sent stanza.
+     * 
+     * @param packet
+     */
+    public void sent(Packet packet)
+    {
+        add(packet, true);
+    }
+
+    private synchronized void add(Packet packet, boolean sent)
+    {
+        Entry entry = entries[next];
+        entry.time = System.currentTimeMillis();
+        entry.sent = sent;
+        entry.packet = packet;
+
+        next = (next + 1) % entries.length;
+        count++;
+    }
+
+    /**
+     * Get the number of stanzas captured so far, including the ones which
+     * have been overwritten.
+     * 
+     * @return
+     */
+    public synchronized long getCount()
+    {
+        return count;
+    }
+
+    /**
+     * Write the captured stanzas, oldest first. They are serialized now,
+     * outside of the lock of the capture.
+     * 
+     * @param writer
+     * @throws IOException
+     */
+    public void dump(Writer writer)
+        throws IOException
+    {
+        List<Entry> snapshot = new ArrayList<Entry>(entries.length);
+        long dropped;
+
+        synchronized (this)
+        {
+            for (int i = 0; i < entries.length; i++)
+            {
+                Entry entry = entries[(next + i) % entries.length];
+                if (null != entry.packet)
+                    snapshot.add(entry.copy());
+            }
+            dropped = count - snapshot.size();
+        }
+
+        DateFormat format = new SimpleDateFormat("yyyy-MM-dd HH:mm:ss.SSS");
+        if (dropped > 0)
+            writer.write("(" + dropped + " older stanzas dropped)\n");
+        for (Entry entry : snapshot)
+        {
+            writer.write(format.format(new Date(entry.time)));
+            writer.write(entry.sent ? " --->: " : " <---: ");
+            writer.write(entry.packet.toXML());
+            writer.write('\n');
+        }
+        writer.flush();
+    }
+
+    /**
+     * Get the captured stanzas, oldest first.
+     * 
+     * @return
+     */
+    public String dump()
+    {
+        StringWriter writer = new StringWriter();
+        try
+        {
+            dump(writer);
+        }
+        catch (IOException e)
+        {
+            // A StringWriter doesn't throw.
+        }
+        return writer.toString();
+    }
+
+    /**
+     * Write the captured stanzas to a file, oldest first.
+     * 
+     * @param file
+     * @throws IOException
+     */
+    public void dump(File file)
+        throws IOException
+    {
+        Writer writer =
+            new OutputStreamWriter(new FileOutputStream(file), "UTF-8");
+        try
+        {
+            dump(writer);
+        }
+        finally
+        {
+            writer.close();
+        }
+    }
+
+    /**
+     * An entry of the ring buffer.
+     */
+    private static class Entry
+    {
+        private long time;
+
+        private boolean sent;
+
+        private Packet packet;
+
+        private Entry copy()
+        {
+            Entry copy = new Entry();
+            copy.time = time;
+            copy.sent = sent;
+            copy.packet = packet;
+            return copy;
+        }
+    }
+}
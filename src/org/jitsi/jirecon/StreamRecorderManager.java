@@ -22,19 +22,18 @@ package org.jitsi.jirecon;
 import java.io.*;
 import java.util.*;
 import java.util.Map.*;
-import java.util.concurrent.*;
 
 import org.jitsi.impl.neomedia.recording.*;
 import org.jitsi.impl.neomedia.rtp.translator.*;
 import org.jitsi.jirecon.TaskEvent.*;
 import org.jitsi.jirecon.datachannel.*;
+import org.jitsi.jirecon.stats.*;
+import org.jitsi.jirecon.utils.*;
 import org.jitsi.service.libjitsi.*;
 import org.jitsi.service.neomedia.*;
 import org.jitsi.service.neomedia.format.*;
 import org.jitsi.service.neomedia.recording.*;
 import org.jitsi.util.*;
-import org.json.simple.*;
-import org.json.simple.parser.*;
 
  /**
  * <tt>StreamRecorderManager</tt> is used to record media
@@ -77,6 +76,23 @@ public class StreamRecorderManager
     private Map<MediaType, Recorder> recorders =
         new HashMap<MediaType, Recorder>();
 
+    /**
+     * Selects the simulcast layer of each endpoint which is recorded. It is
+     * null if we don't record video.
+     */
+    private SimulcastLayerSelector layerSelector;
+
+    /**
+     * Requests key frames for the recorded video SSRCs. It is null if we don't
+     * record video.
+     */
+    private KeyFrameRequester keyFrameRequester;
+
+    /**
+     * Samples the receive statistics of {@link #streams}.
+     */
+    private volatile ReceiveStatsCollector statsCollector;
+
     /**
      * SCTP data channel. It's used for receiving some event packets, such as
      * SPEAKER_CHANGE event.
@@ -96,9 +112,10 @@ public class StreamRecorderManager
         new ArrayList<TaskEventListener>();
 
     /**
-     * Active endpoints in the meeting currently.
+     * Active endpoints in the meeting currently, by id.
      */
-    private List<EndpointInfo> endpoints = new ArrayList<EndpointInfo>();
+    private final Map<String, EndpointInfo> endpoints =
+        new LinkedHashMap<String, EndpointInfo>();
 
     /**
      * The endpoints sync root.
@@ -125,6 +142,17 @@ public class StreamRecorderManager
      */
     private String outputDir;
 
+    /**
+     * The number of the segment of the recording which is written.
+     */
+    private int segment = 0;
+
+    /**
+     * When the first segment of the recording started, or 0 if it isn't
+     * known.
+     */
+    private long recordingStart = 0;
+
     /**
      * Initialize <tt>JireconRecorder</tt>.
      * <p>
@@ -134,10 +162,31 @@ public class StreamRecorderManager
      * @param outputDir decide where to output the files. The directory must be
      *            existed and writable.
      * @param dtlsControls is the map between <tt>MediaType</tt> and
-     *            <tt>DtlsControl</tt> which is used for SRTP transfer.
+     *            <tt>DtlsControl</tt> which is used for SRTP transfer. Only
+     *            the audio and video <tt>MediaType</tt>s found in it will be
+     *            recorded.
      */
     public void init(String outputDir, Map<MediaType, DtlsControl> dtlsControls)
     {
+        init(outputDir, 0, System.currentTimeMillis(), dtlsControls);
+    }
+
+    /**
+     * Initialize <tt>JireconRecorder</tt> to write a segment of a recording.
+     * The metadata and the statistics of the segments after the first one
+     * are written to their own files, e.g. "metadata-1.json".
+     * 
+     * @param outputDir decide where to output the files.
+     * @param segment the number of the segment, 0 for the first one.
+     * @param recordingStart when the first segment started, in milliseconds
+     *            since the epoch, or 0 if it isn't known.
+     * @param dtlsControls see {@link #init(String, Map)}.
+     */
+    public void init(String outputDir, int segment, long recordingStart,
+        Map<MediaType, DtlsControl> dtlsControls)
+    {
+        this.segment = segment;
+        this.recordingStart = recordingStart;
         this.mediaService = LibJitsi.getMediaService();
         this.outputDir = outputDir;
         logger.setLevelAll();
@@ -174,9 +223,20 @@ public class StreamRecorderManager
          * Here we don't guarantee whether file path is available.
          * RecorderEventHandlerImpl needs check this and do some job.
          */
-        final String filename = "metadata.json";
+        final String filename = getSegmentFilename("metadata", ".json");
         eventHandler = new RecorderEventHandlerImpl(outputDir + "/" + filename);
 
+        // Where this segment is on the timeline of the whole recording.
+        try
+        {
+            new SegmentInfo(segment, recordingStart, System.currentTimeMillis())
+                .write(outputDir);
+        }
+        catch (IOException e)
+        {
+            logger.warn("Failed to write the segment info: " + e);
+        }
+
         /*
          * 1. Open sctp data channel, if there is data connector and target.
          */
@@ -189,19 +249,35 @@ public class StreamRecorderManager
         prepareMediaStreams(formatAndDynamicPTs, connectors, targets);
 
         /*
-         * 3. Start receiving audio and video streams
+         * 3. Watch the video packets, before any of them arrives, in order to
+         * drop the simulcast layers we don't record and to request key frames
+         * of new video SSRCs.
+         */
+        prepareLayerSelector();
+        prepareKeyFrameRequester(formatAndDynamicPTs.get(MediaType.VIDEO));
+
+        /*
+         * 4. Start receiving audio and video streams, and sampling their
+         * statistics.
          */
         startReceivingStreams();
+        startCollectingStats();
 
         /*
-         * 4. Prepare audio and video recorders.
+         * 5. Prepare audio and video recorders.
          */
         prepareRecorders();
 
         /*
-         * 5. Start recording audio and video streams.
+         * 6. Start recording audio and video streams.
          */
         startRecordingStreams();
+
+        /*
+         * 7. Now that the recorders are recording, ask every known video
+         * source for a key frame.
+         */
+        requestKeyFrames();
     }
 
     /**
@@ -210,13 +286,14 @@ public class StreamRecorderManager
     public void stopRecording()
     {
         stopRecordingStreams();
+        stopCollectingStats();
         stopReceivingStreams();
         closeDataChannel();
 
         // Create an empty ".recording_finished" file in the output directory in
         // order to mark the directory as containing a finished recording.
         File recordingFinished
-                = new File(outputDir + File.pathSeparator + ".recording_finished");
+                = new File(outputDir + File.separator + ".recording_finished");
         try
         {
             if (!recordingFinished.createNewFile())
@@ -277,6 +354,128 @@ public class StreamRecorderManager
         }
     }
 
+    /**
+     * Create the <tt>SimulcastLayerSelector</tt> of the video translator, if
+     * we record video. It must be added before the
+     * <tt>KeyFrameRequester</tt>, so that the latter doesn't see the layers
+     * which are dropped.
+     */
+    private void prepareLayerSelector()
+    {
+        if (!streams.containsKey(MediaType.VIDEO))
+            return;
+
+        SimulcastLayerSelector.Policy policy =
+            SimulcastLayerSelector.Policy.parseString(LibJitsi
+                .getConfigurationService().getString(
+                    ConfigurationKey.SIMULCAST_LAYER_KEY));
+
+        layerSelector = new SimulcastLayerSelector(policy);
+        synchronized (endpointsSyncRoot)
+        {
+            layerSelector.setEndpoints(
+                new ArrayList<EndpointInfo>(endpoints.values()));
+        }
+        getTranslator(MediaType.VIDEO).addWriteFilter(layerSelector);
+    }
+
+    /**
+     * Create the <tt>KeyFrameRequester</tt> of the video translator, if we
+     * record video.
+     * 
+     * @param formatAndPTs the video formats and their payload types.
+     */
+    private void prepareKeyFrameRequester(Map<MediaFormat, Byte> formatAndPTs)
+    {
+        if (!streams.containsKey(MediaType.VIDEO))
+            return;
+
+        final long interval =
+            LibJitsi.getConfigurationService().getLong(
+                ConfigurationKey.KEYFRAME_REQUEST_INTERVAL_KEY,
+                KeyFrameRequester.DEFAULT_MIN_REQUEST_INTERVAL);
+
+        keyFrameRequester =
+            new KeyFrameRequester(
+                (RTPTranslatorImpl) getTranslator(MediaType.VIDEO),
+                formatAndPTs, interval);
+        keyFrameRequester.start();
+    }
+
+    /**
+     * Request key frames for the video SSRCs of all endpoints. The
+     * <tt>KeyFrameRequester</tt> ignores the SSRCs which have already sent a
+     * key frame, and limits the rate of the others.
+     */
+    private void requestKeyFrames()
+    {
+        if (null == keyFrameRequester)
+            return;
+
+        if (null != layerSelector)
+        {
+            for (long ssrc : layerSelector.getSelectedSsrcs())
+                keyFrameRequester.requestKeyFrame(ssrc);
+            return;
+        }
+
+        synchronized (endpointsSyncRoot)
+        {
+            for (EndpointInfo endpoint : endpoints.values())
+                requestKeyFrame(endpoint);
+        }
+    }
+
+    /**
+     * Request a key frame for the recorded video SSRC of an endpoint.
+     * 
+     * @param endpoint
+     */
+    private void requestKeyFrame(EndpointInfo endpoint)
+    {
+        if (null == keyFrameRequester)
+            return;
+
+        long ssrc = -1;
+        if (null != layerSelector)
+            ssrc = layerSelector.getSelectedSsrc(endpoint.getId());
+        if (-1 == ssrc && endpoint.getSsrcs().containsKey(MediaType.VIDEO))
+            ssrc = endpoint.getSsrc(MediaType.VIDEO);
+        if (-1 != ssrc)
+            keyFrameRequester.requestKeyFrame(ssrc);
+    }
+
+    /**
+     * Forget the key frame state of the video SSRCs of an endpoint, e.g. when
+     * it has left. The SSRCs which are still announced are requested again
+     * anyway.
+     * 
+     * @param endpoint
+     */
+    private void forgetKeyFrames(EndpointInfo endpoint)
+    {
+        if (null == keyFrameRequester)
+            return;
+
+        for (long ssrc : endpoint.getAllSsrcs(MediaType.VIDEO))
+            keyFrameRequester.removeSsrc(ssrc);
+    }
+
+    /**
+     * Handle the simulcast layers which have just become selected: they have
+     * to start with a key frame.
+     * 
+     * @param ssrcs the newly selected video SSRCs.
+     */
+    private void onLayersSelected(List<Long> ssrcs)
+    {
+        if (null == keyFrameRequester || !isRecording)
+            return;
+
+        for (long ssrc : ssrcs)
+            keyFrameRequester.resetKeyFrame(ssrc);
+    }
+
     /**
      * The shared synchronizer between the audio and the video recorder.
      */
@@ -366,6 +565,71 @@ public class StreamRecorderManager
         isReceiving = true;
     }
 
+    /**
+     * Start sampling the receive statistics of the media streams, if it's
+     * enabled.
+     */
+    private void startCollectingStats()
+    {
+        final long interval =
+            LibJitsi.getConfigurationService().getLong(
+                ConfigurationKey.STATS_INTERVAL_KEY,
+                ReceiveStatsCollector.DEFAULT_INTERVAL);
+        if (interval <= 0)
+            return;
+
+        statsCollector = new ReceiveStatsCollector(streams);
+        statsCollector.setKeyFrameRequester(keyFrameRequester);
+        statsCollector.start(interval);
+    }
+
+    /**
+     * Stop sampling the receive statistics, and save the final sample next to
+     * the recording metadata.
+     */
+    private void stopCollectingStats()
+    {
+        if (null == statsCollector)
+            return;
+
+        statsCollector.stop();
+
+        final String filename = getSegmentFilename("receive_stats", ".json");
+        try
+        {
+            statsCollector.writeJson(new File(outputDir + "/" + filename));
+        }
+        catch (IOException e)
+        {
+            logger.warn("Failed to write " + filename + ": " + e);
+        }
+    }
+
+    /**
+     * Get the name of a file of the segment which is written, e.g.
+     * "metadata.json" for the first segment and "metadata-1.json" for the
+     * next one.
+     * 
+     * @param name
+     * @param extension
+     * @return
+     */
+    private String getSegmentFilename(String name, String extension)
+    {
+        return 0 == segment ? name + extension : name + "-" + segment
+            + extension;
+    }
+
+    /**
+     * Get the collector of the receive statistics.
+     * 
+     * @return the collector, or null if the statistics aren't sampled.
+     */
+    public ReceiveStatsCollector getReceiveStatsCollector()
+    {
+        return statsCollector;
+    }
+
     /**
      * Start recording media streams.
      * 
@@ -423,6 +687,18 @@ public class StreamRecorderManager
             e.getValue().stop();
         }
         recorders.clear();
+
+        if (null != layerSelector)
+        {
+            getTranslator(MediaType.VIDEO).removeWriteFilter(layerSelector);
+            layerSelector = null;
+        }
+        if (null != keyFrameRequester)
+        {
+            // The final sample of the statistics still reads its delays.
+            keyFrameRequester.stop();
+            keyFrameRequester = null;
+        }
         isRecording = false;
     }
 
@@ -478,7 +754,9 @@ public class StreamRecorderManager
      * <tt>MediaStream</tt> at this moment.
      * 
      * @param dtlsControls is the map between <tt>MediaType</tt> and
-     *            <tt>SrtpControl</tt>.
+     *            <tt>SrtpControl</tt>. No stream is created for a media type
+     *            which has no <tt>SrtpControl</tt>, e.g. video of an
+     *            audio-only task.
      */
     private void createMediaStreams(Map<MediaType, DtlsControl> dtlsControls)
     {
@@ -487,6 +765,12 @@ public class StreamRecorderManager
         for (MediaType mediaType : new MediaType[]
         { MediaType.AUDIO, MediaType.VIDEO })
         {
+            if (!dtlsControls.containsKey(mediaType))
+            {
+                logger.info("Not recording " + mediaType);
+                continue;
+            }
+
             MediaStream stream =
                 mediaService.createMediaStream(
                         null,
@@ -541,9 +825,9 @@ public class StreamRecorderManager
     {
         synchronized (endpointsSyncRoot)
         {
-            if (endpoints != null && !endpoints.isEmpty())
+            if (!endpoints.isEmpty())
             {
-                for (EndpointInfo endpoint : endpoints)
+                for (EndpointInfo endpoint : endpoints.values())
                 {
                     Map<MediaType, Long> ssrcs = endpoint.getSsrcs();
 
@@ -552,6 +836,16 @@ public class StreamRecorderManager
 
                     if (ssrcs.containsValue(ssrc))
                     {
+                        // The recorded layer, if the endpoint sends simulcast.
+                        if (MediaType.VIDEO == mediaType
+                            && null != layerSelector)
+                        {
+                            long selected =
+                                layerSelector.getSelectedSsrc(endpoint
+                                    .getId());
+                            if (selected != -1)
+                                return selected;
+                        }
                         return ssrcs.get(mediaType);
                     }
                 }
@@ -580,14 +874,21 @@ public class StreamRecorderManager
     {
         synchronized (endpointsSyncRoot)
         {
-            if (endpoints != null && !endpoints.isEmpty())
+            EndpointInfo found = endpoints.get(endpointId);
+            if (null != found)
+            {
+                Long ssrc = found.getSsrcs().get(mediaType);
+                return null == ssrc ? -1 : ssrc;
+            }
+
+            if (!endpoints.isEmpty())
             {
-                for (EndpointInfo endpoint : endpoints)
+                for (EndpointInfo endpoint : endpoints.values())
                 {
-                    if (0 == endpoint.getId().compareTo(endpointId)
-                        || 0 == endpoint.getBareId().compareTo(endpointId))
+                    if (0 == endpoint.getBareId().compareTo(endpointId))
                     {
-                        return endpoint.getSsrc(mediaType);
+                        Long ssrc = endpoint.getSsrcs().get(mediaType);
+                        return null == ssrc ? -1 : ssrc;
                     }
                 }
             }
@@ -612,11 +913,11 @@ public class StreamRecorderManager
     {
         synchronized (endpointsSyncRoot)
         {
-            if (endpoints != null && !endpoints.isEmpty())
+            if (!endpoints.isEmpty())
             {
-                for (EndpointInfo endpoint : endpoints)
+                for (EndpointInfo endpoint : endpoints.values())
                 {
-                    if (endpoint.getSsrc(mediaType) == ssrc)
+                    if (endpoint.hasSsrc(mediaType, ssrc))
                     {
                         return endpoint.getId();
                     }
@@ -632,14 +933,69 @@ public class StreamRecorderManager
     }
 
     /**
-     * {@inheritDoc}
+     * Replace all the endpoints of the meeting.
+     * 
+     * @param newEndpoints
      */
     public void setEndpoints(List<EndpointInfo> newEndpoints)
     {
         synchronized (endpointsSyncRoot)
         {
-            endpoints = newEndpoints;
+            Map<String, EndpointInfo> oldEndpoints =
+                new HashMap<String, EndpointInfo>(endpoints);
+
+            endpoints.clear();
+            for (EndpointInfo endpoint : newEndpoints)
+            {
+                endpoints.put(endpoint.getId(), endpoint);
+                oldEndpoints.remove(endpoint.getId());
+            }
+            for (EndpointInfo endpoint : oldEndpoints.values())
+                forgetKeyFrames(endpoint);
             updateSynchronizers();
+
+            if (null != layerSelector)
+                onLayersSelected(layerSelector.setEndpoints(newEndpoints));
+
+            // New participants may have come, their video is only decodable
+            // from their next key frame on.
+            if (isRecording)
+                requestKeyFrames();
+        }
+    }
+
+    /**
+     * Apply the change of one endpoint. Only that endpoint is touched.
+     * 
+     * @param delta
+     */
+    public void applyEndpointDelta(EndpointDelta delta)
+    {
+        final EndpointInfo endpoint = delta.getEndpoint();
+        final String endpointId = endpoint.getId();
+
+        logger.debug("Endpoint " + delta);
+        synchronized (endpointsSyncRoot)
+        {
+            if (EndpointDelta.Type.REMOVED == delta.getType())
+            {
+                EndpointInfo removed = endpoints.remove(endpointId);
+                if (null != removed)
+                    forgetKeyFrames(removed);
+                if (null != layerSelector)
+                    layerSelector.removeEndpoint(endpointId);
+                return;
+            }
+
+            endpoints.put(endpointId, endpoint);
+            updateSynchronizers(endpoint);
+
+            if (null != layerSelector)
+                onLayersSelected(layerSelector.updateEndpoint(endpoint));
+
+            // Its video is only decodable from its next key frame on.
+            if (isRecording)
+                requestKeyFrame(endpoint);
         }
     }
 
@@ -647,28 +1003,47 @@ public class StreamRecorderManager
     {
         synchronized (endpointsSyncRoot)
         {
-            for (EndpointInfo endpoint : endpoints)
+            for (EndpointInfo endpoint : endpoints.values())
+                updateSynchronizers(endpoint);
+        }
+    }
+
+    /**
+     * Map the SSRCs of an endpoint to its id in the synchronizers.
+     * 
+     * @param endpoint
+     */
+    private void updateSynchronizers(EndpointInfo endpoint)
+    {
+        final String endpointId = endpoint.getId();
+
+        // Every simulcast layer may be recorded at some point.
+        Recorder videoRecorder = recorders.get(MediaType.VIDEO);
+        if (videoRecorder != null)
+        {
+            for (long layer : endpoint.getSimulcastLayers(MediaType.VIDEO))
             {
-                final String endpointId = endpoint.getId();
-                for (Entry<MediaType, Long> ssrc : endpoint.getSsrcs()
-                    .entrySet())
-                {
-                    Recorder recorder = recorders.get(ssrc.getKey());
-                    // During the ICE connectivity establishment and after we've
-                    // joined the MUC, there is a high probability that we
-                    // process a media type/ssrc for which we *don't* have a
-                    // recorder yet (because we get XMPP presence packets before
-                    // the recorders are prepared (see method
-                    // prepareRecorders())
-                    if (recorder != null)
-                    {
-                        Synchronizer synchronizer = recorder.getSynchronizer();
-                        synchronizer.setEndpoint(ssrc.getValue(), endpointId);
-                    }
-                    logger.info("endpoint: " + endpointId + " " + ssrc.getKey()
-                        + " " + ssrc.getValue());
-                }
+                videoRecorder.getSynchronizer().setEndpoint(layer,
+                    endpointId);
+            }
+        }
+
+        for (Entry<MediaType, Long> ssrc : endpoint.getSsrcs().entrySet())
+        {
+            Recorder recorder = recorders.get(ssrc.getKey());
+            // During the ICE connectivity establishment and after we've
+            // joined the MUC, there is a high probability that we process a
+            // media type/ssrc for which we *don't* have a recorder yet
+            // (because we get the sources of the session-initiate and XMPP
+            // presence packets before the recorders are prepared). They are
+            // mapped once they are, see method prepareRecorders().
+            if (recorder != null)
+            {
+                Synchronizer synchronizer = recorder.getSynchronizer();
+                synchronizer.setEndpoint(ssrc.getValue(), endpointId);
             }
+            logger.info("endpoint: " + endpointId + " " + ssrc.getKey() + " "
+                + ssrc.getValue());
         }
     }
 
@@ -741,7 +1116,7 @@ public class StreamRecorderManager
      * @author lishunyang
      * 
      */
-    private class RecorderEventHandlerImpl
+    class RecorderEventHandlerImpl
         implements RecorderEventHandler
     {
         /**
@@ -750,6 +1125,18 @@ public class StreamRecorderManager
          */
         private RecorderEventHandler handler;
 
+        /**
+         * Create a <tt>RecorderEventHandlerImpl</tt> which hands the events
+         * over to another handler once their endpoints are found, e.g. in
+         * the benchmarks.
+         * 
+         * @param handler
+         */
+        RecorderEventHandlerImpl(RecorderEventHandler handler)
+        {
+            this.handler = handler;
+        }
+
         /**
          * The construction method for creating
          * <tt>JireconRecorderEventHandler</tt>.
@@ -822,6 +1209,15 @@ public class StreamRecorderManager
                     + event.getAudioSsrc());
 
                 final long audioSsrc = event.getAudioSsrc();
+
+                // The highest layer may follow the dominant speaker.
+                if (null != layerSelector)
+                {
+                    onLayersSelected(layerSelector
+                        .setDominantSpeaker(getEndpointId(audioSsrc,
+                            MediaType.AUDIO)));
+                }
+
                 final long videoSsrc =
                     getAssociatedSsrc(audioSsrc, MediaType.VIDEO);
                 if (videoSsrc < 0)
@@ -838,6 +1234,15 @@ public class StreamRecorderManager
                 event.setSsrc(videoSsrc);
             }
 
+            // The file name includes the directory of the recording.
+            ReceiveStatsCollector collector = statsCollector;
+            if (RecorderEvent.Type.RECORDING_STARTED.equals(type)
+                && null != collector
+                && !StringUtils.isNullOrEmpty(event.getFilename()))
+            {
+                collector.addOutputFile(new File(event.getFilename()));
+            }
+
             String endpointId = event.getEndpointId();
             if (StringUtils.isNullOrEmpty(endpointId))
             {
@@ -889,7 +1294,7 @@ public class StreamRecorderManager
      * 
      */
     private class DataChannelAdapter
-        implements WebRtcDataStreamListener
+        implements WebRtcDataStreamListener, ColibriEventListener
     {
         /**
          * We have to keep this <tt>DtlsControl</tt> for a while, because
@@ -906,11 +1311,12 @@ public class StreamRecorderManager
          * Encapsulate the <tt>WebRtcDataStreamManager</tt>.
          */
         private WebRtcDataStream dataChannel;
-        
-        private ExecutorService executorService = Executors
-            .newSingleThreadExecutor();
-        
-        private final Object syncRoot = new Object();
+
+        /**
+         * Decodes the colibri messages received on {@link #dataChannel}.
+         */
+        private final ColibriMessageDecoder decoder =
+            new ColibriMessageDecoder(this);
         
         public DataChannelAdapter(DtlsControl dtlsControl)
         {
@@ -920,8 +1326,9 @@ public class StreamRecorderManager
         }
 
         /**
-         * Start <tt>WebRtcDataStreamManager</tt> and wait for videobridge
-         * create a default <tt>WebRtcDataStream</tt> whose sid is "0".
+         * Start <tt>WebRtcDataStreamManager</tt>. The videobridge will then
+         * create a default <tt>WebRtcDataStream</tt> whose sid is "0", see
+         * {@link #onChannelOpened(WebRtcDataStream)}.
          * 
          * @param connector
          * @param streamTarget
@@ -930,30 +1337,6 @@ public class StreamRecorderManager
             MediaStreamTarget streamTarget)
         {
             streamManager.runAsClient(connector, streamTarget, dtlsControl);
-
-            executorService.execute(new Runnable()
-            {
-                @Override
-                public void run()
-                {
-                    synchronized (syncRoot)
-                    {
-                        try
-                        {
-                            syncRoot.wait();
-                        }
-                        catch (InterruptedException e)
-                        {
-                            // TODO Auto-generated catch block
-                            e.printStackTrace();
-                        }
-                    }
-
-                    logger.info("DataChannel connected (?)");
-                    prepareDataChannel();
-                }
-
-            });
         }
 
         public void disconnect()
@@ -966,49 +1349,35 @@ public class StreamRecorderManager
         public void onChannelOpened(WebRtcDataStream channel)
         {
             dataChannel = channel;
-            
-            synchronized (syncRoot)
-            {
-                syncRoot.notify();
-            }
+
+            logger.info("DataChannel connected");
+            prepareDataChannel();
         }
         
         private void prepareDataChannel()
         {
-            dataChannel.setDataCallback(new WebRtcDataStream.DataCallback()
+            dataChannel.setDataCallback(new WebRtcDataStream.Utf8DataCallback()
             {
+                @Override
+                public void onUtf8Data(WebRtcDataStream src, byte[] data,
+                    int offset, int length)
+                {
+                    decoder.decode(data, offset, length);
+                }
+
                 @Override
                 public void onStringData(WebRtcDataStream src, String msg)
                 {
                     try
                     {
-                        /*
-                         * Once we got an legal message(SPEAKER_CHANGE event),
-                         * we create a RecorderEvent and let event handler to
-                         * handle it.
-                         */
-                        JSONParser parser = new JSONParser();
-                        JSONObject json = (JSONObject) parser.parse(msg);
-                        String endpointId =
-                            json.get("dominantSpeakerEndpoint").toString();
-
-                        logger.debug("Hey! " + endpointId);
-                        System.out.println("Event: " + msg);
-                        System.out.println("Hey! " + endpointId);
-
-                        RecorderEvent event = new RecorderEvent();
-                        event.setMediaType(MediaType.AUDIO);
-                        event.setType(RecorderEvent.Type.SPEAKER_CHANGED);
-                        event.setEndpointId(endpointId);
-                        event.setAudioSsrc(getEndpointSsrc(endpointId,
-                            MediaType.AUDIO));
-                        event.setInstant(System.currentTimeMillis());
+                        byte[] data = msg.getBytes("UTF-8");
 
-                        eventHandler.handleEvent(event);
+                        decoder.decode(data, 0, data.length);
                     }
-                    catch (ParseException e)
+                    catch (UnsupportedEncodingException e)
                     {
-                        e.printStackTrace();
+                        // Should not happen
+                        logger.error("Failed to decode " + msg, e);
                     }
                 }
 
@@ -1021,5 +1390,43 @@ public class StreamRecorderManager
                 }
             });
         }
+
+        /**
+         * Once we got a SPEAKER_CHANGE event, we create a
+         * <tt>RecorderEvent</tt> and let event handler to handle it.
+         */
+        @Override
+        public void dominantSpeakerChanged(String endpointId)
+        {
+            logger.debug("Dominant speaker: " + endpointId);
+
+            RecorderEvent event = new RecorderEvent();
+            event.setMediaType(MediaType.AUDIO);
+            event.setType(RecorderEvent.Type.SPEAKER_CHANGED);
+            event.setEndpointId(endpointId);
+            event.setAudioSsrc(getEndpointSsrc(endpointId, MediaType.AUDIO));
+            event.setInstant(System.currentTimeMillis());
+
+            eventHandler.handleEvent(event);
+        }
+
+        @Override
+        public void lastNEndpointsChanged(List<String> lastNEndpoints,
+            List<String> endpointsEnteringLastN)
+        {
+            if (logger.isDebugEnabled())
+            {
+                logger.debug("Last-N endpoints: " + lastNEndpoints
+                    + ", entering: " + endpointsEnteringLastN);
+            }
+        }
+
+        @Override
+        public void endpointConnectivityChanged(String endpointId,
+            boolean active)
+        {
+            logger.info("Endpoint " + endpointId
+                + (active ? " connected" : " lost connectivity"));
+        }
     }
 }
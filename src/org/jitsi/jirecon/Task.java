@@ -29,6 +29,7 @@ import net.java.sip.communicator.impl.protocol.jabber.extensions.jingle.*;
 import org.jitsi.jirecon.*;
 import org.jitsi.jirecon.TaskEvent.*;
 import org.jitsi.jirecon.TaskManagerEvent.*;
+import org.jitsi.jirecon.stats.*;
 import org.jitsi.jirecon.utils.*;
 import org.jitsi.service.configuration.*;
 import org.jitsi.service.libjitsi.*;
@@ -106,6 +107,12 @@ public class Task
      * system.
      */
     private TaskInfo info = new TaskInfo();
+
+    /**
+     * The capture of the stanzas of this task, or null if they aren't
+     * captured.
+     */
+    private volatile StanzaCapture stanzaCapture;
     
     /**
      * Initialize a <tt>JireconTask</tt>. Specify which Jitsi-meet you want to
@@ -117,10 +124,56 @@ public class Task
      * @param savingDir indicates where we should output the media files.
      */
     public void init(String mucJid, XMPPConnection connection, String savingDir)
+    {
+        init(mucJid, connection, savingDir, LibJitsi.getConfigurationService()
+            .getBoolean(ConfigurationKey.AUDIO_ONLY_KEY, false));
+    }
+
+    /**
+     * Initialize a <tt>JireconTask</tt>. Specify which Jitsi-meet you want to
+     * record, where we should output the media files and whether only audio
+     * should be recorded.
+     * 
+     * @param mucJid indicates which meet you want to record.
+     * @param connection is an existed <tt>XMPPConnection</tt> which will be
+     *            used to send/receive Jingle packet.
+     * @param savingDir indicates where we should output the media files.
+     * @param audioOnly indicates whether we should only record audio. If it is
+     *            true, the video content will be declined and no video stream
+     *            will be created.
+     */
+    public void init(String mucJid, XMPPConnection connection,
+        String savingDir, boolean audioOnly)
+    {
+        init(mucJid, connection, savingDir, audioOnly, 0,
+            System.currentTimeMillis());
+    }
+
+    /**
+     * Initialize a <tt>JireconTask</tt> which writes a segment of a
+     * recording. The segments after the first one are written when a
+     * recording is resumed after a crash, in the same directory.
+     * 
+     * @param mucJid indicates which meet you want to record.
+     * @param connection is an existed <tt>XMPPConnection</tt> which will be
+     *            used to send/receive Jingle packet.
+     * @param savingDir indicates where we should output the media files.
+     * @param audioOnly indicates whether we should only record audio.
+     * @param segment the number of the segment, 0 for the first one.
+     * @param recordingStart when the first segment started, in milliseconds
+     *            since the epoch, or 0 if it isn't known. The start of every
+     *            segment is saved relatively to it, so that the segments can
+     *            be put on one timeline.
+     */
+    public void init(String mucJid, XMPPConnection connection,
+        String savingDir, boolean audioOnly, int segment, long recordingStart)
     {
         logger.info(this.getClass() + " init");
         
         info.setOutputDir(savingDir);
+        info.setSegment(segment);
+        info.setRecordingStart(recordingStart);
+        info.setAudioOnly(audioOnly);
         File dir = new File(savingDir);
         if (!dir.exists())
             dir.mkdirs();
@@ -143,9 +196,42 @@ public class Task
         jingleSessionMgr.init(connection);
         addEventListener(jingleSessionMgr);
 
+        int stanzaCaptureSize =
+            configuration.getInt(ConfigurationKey.STANZA_CAPTURE_SIZE_KEY, 0);
+        if (stanzaCaptureSize > 0)
+            captureStanzas(stanzaCaptureSize);
+
+        /*
+         * Only create DtlsControls for the media we are going to record, so
+         * that the recorder doesn't create streams for the other ones.
+         */
+        Map<MediaType, DtlsControl> dtlsControls =
+            new HashMap<MediaType, DtlsControl>();
+        for (MediaType mediaType : MediaType.values())
+        {
+            if (isRecorded(mediaType))
+            {
+                dtlsControls.put(mediaType,
+                    dtlsControlMgr.getDtlsControl(mediaType));
+            }
+        }
+
         recorderMgr = new StreamRecorderManager();
         recorderMgr.addTaskEventListener(this);
-        recorderMgr.init(savingDir, dtlsControlMgr.getAllDtlsControl());
+        recorderMgr.init(savingDir, segment, recordingStart, dtlsControls);
+    }
+
+    /**
+     * Check whether this task records (and thus accepts in the Jingle session)
+     * the specified <tt>MediaType</tt>.
+     * 
+     * @param mediaType the <tt>MediaType</tt> to check.
+     * @return <tt>false</tt> if this task is audio-only and
+     *         <tt>mediaType</tt> is video, <tt>true</tt> otherwise.
+     */
+    private boolean isRecorded(MediaType mediaType)
+    {
+        return !(info.isAudioOnly() && MediaType.VIDEO == mediaType);
     }
 
     /**
@@ -162,7 +248,8 @@ public class Task
         listeners.clear();
 //        transport.free();
 
-        if (!keepData)
+        // The previous segments of a resumed recording are never removed.
+        if (!keepData && 0 == info.getSegment())
         {
             logger.info("Delete output files " + info.getOutputDir());
             try
@@ -215,6 +302,57 @@ public class Task
         }
     }
 
+    /**
+     * Notify the <tt>Task</tt> that the XMPP connection has been lost. The
+     * media don't go through XMPP, so the recording simply goes on.
+     */
+    public void xmppConnectionLost()
+    {
+        if (!isStopped)
+            logger.info("XMPP connection lost, keep recording "
+                + info.getMucJid());
+    }
+
+    /**
+     * Notify the <tt>Task</tt> that the XMPP connection has been restored, so
+     * it rejoins the MUC. The rejoin is done on the task thread, so a slow MUC
+     * doesn't hold the other tasks back.
+     * <p>
+     * If the MUC can't be rejoined, the task is finished and what has been
+     * recorded so far is kept.
+     */
+    public void xmppConnectionRestored()
+    {
+        try
+        {
+            taskExecutor.execute(new Runnable()
+            {
+                @Override
+                public void run()
+                {
+                    if (isStopped)
+                        return;
+
+                    try
+                    {
+                        jingleSessionMgr.rejoin();
+                        logger.info("Rejoined " + info.getMucJid());
+                    }
+                    catch (Exception e)
+                    {
+                        logger.error("Failed to rejoin " + info.getMucJid()
+                            + ", finish the task: " + e.getMessage());
+                        stop();
+                    }
+                }
+            });
+        }
+        catch (RejectedExecutionException e)
+        {
+            // The task has been shut down meanwhile.
+        }
+    }
+
     /**
      * This is actually the main part of method "start", in order to make the
      * method "start" to be asynchronous.
@@ -229,8 +367,26 @@ public class Task
 
             /* 2. Wait for session-init packet. */
             JingleIQ initIq = jingleSessionMgr.waitForInitPacket();
+
+            /*
+             * Only go on with the media types which we record, the others
+             * (e.g. video in audio-only mode) are declined by leaving them out
+             * of the session-accept, so we don't harvest, negotiate or
+             * handshake for them.
+             */
+            List<MediaType> acceptedMediaTypes = new ArrayList<MediaType>();
+            for (MediaType mediaType : JinglePacketParser
+                .getSupportedMediaTypes(initIq))
+            {
+                if (isRecorded(mediaType))
+                    acceptedMediaTypes.add(mediaType);
+                else
+                    logger.info("Declining " + mediaType + " content ("
+                        + info.getMucJid() + ")");
+            }
             MediaType[] supportedMediaTypes =
-                JinglePacketParser.getSupportedMediaTypes(initIq);
+                acceptedMediaTypes.toArray(new MediaType[acceptedMediaTypes
+                    .size()]);
 
             /*
              * 3.1 Prepare for sending session-accept packet.
@@ -239,6 +395,8 @@ public class Task
             Map<MediaType, Map<MediaFormat, Byte>> formatAndPTs = new HashMap<MediaType, Map<MediaFormat, Byte>>();
             for (MediaType mediaType : new MediaType[] {MediaType.AUDIO, MediaType.VIDEO})
             {
+                if (!isRecorded(mediaType))
+                    continue;
                 formatAndPTs.put(mediaType, JinglePacketParser
                     .getFormatAndDynamicPTs(initIq, mediaType));
             }
@@ -277,13 +435,33 @@ public class Task
             jingleSessionMgr.sendAcceptPacket(formatAndPTs, localSsrcs, transportPEs,
                 fingerprintPEs);
 
-            /* 3.3 Wait for session-ack packet. */
+            /*
+             * 3.3 Trickle the local candidates which haven't been harvested
+             * up front, while ICE goes on with the host ones.
+             */
+            if (transportMgr.isTrickling())
+            {
+                transportMgr.startCandidateTrickle(
+                    new IceUdpTransportManager.TrickleListener()
+                    {
+                        @Override
+                        public void localCandidatesHarvested(
+                            Map<MediaType, IceUdpTransportPacketExtension> transportPEs)
+                        {
+                            jingleSessionMgr
+                                .sendTransportInfoPacket(transportPEs);
+                        }
+                    });
+            }
+
+            /* 3.4 Wait for session-ack packet. */
             // Go on with ICE, no need to waste an RTT here.
             //jingleSessionMgr.waitForResultPacket();
 
             /*
              * 4.1 Prepare for ICE connectivity establishment. Harvest remote
-             * candidates.
+             * candidates. Those which the remote peer trickles are added as
+             * they come.
              */
             Map<MediaType, IceUdpTransportPacketExtension> remoteTransportPEs = new HashMap<MediaType, IceUdpTransportPacketExtension>();
             for (MediaType mediaType : supportedMediaTypes)
@@ -333,7 +511,12 @@ public class Task
                 mediaStreamTargets.put(mediaType, mediaStreamTarget);
             }
             
-            /* 5.2 Start recording. */
+            /*
+             * 5.2 Start recording. Hand over the endpoints first, the SSRC
+             * groups of those which joined before the session-initiate have
+             * only been known since then.
+             */
+            recorderMgr.setEndpoints(jingleSessionMgr.getEndpoints());
             recorderMgr.startRecording(formatAndPTs, streamConnectors,
                 mediaStreamTargets);
 
@@ -378,6 +561,62 @@ public class Task
         return info;
     }
 
+    /**
+     * Get the collector of the receive statistics of the recorded streams.
+     * 
+     * @return the collector, or null if the statistics aren't sampled.
+     */
+    public ReceiveStatsCollector getReceiveStatsCollector()
+    {
+        return recorderMgr.getReceiveStatsCollector();
+    }
+
+    /**
+     * Start capturing the stanzas of this task in memory, so that they can be
+     * dumped for diagnostics. They are dumped automatically if the task is
+     * aborted.
+     * 
+     * @param capacity the number of stanzas to keep, or 0 to stop capturing.
+     */
+    public void captureStanzas(int capacity)
+    {
+        stanzaCapture = capacity > 0 ? new StanzaCapture(capacity) : null;
+        jingleSessionMgr.setStanzaCapture(stanzaCapture);
+    }
+
+    /**
+     * Get the capture of the stanzas of this task.
+     * 
+     * @return the capture, or null if the stanzas aren't captured.
+     */
+    public StanzaCapture getStanzaCapture()
+    {
+        return stanzaCapture;
+    }
+
+    /**
+     * Dump the captured stanzas, if any, next to the output directory (which
+     * is deleted when the task is aborted).
+     */
+    private void dumpStanzaCapture()
+    {
+        StanzaCapture stanzaCapture = this.stanzaCapture;
+        if (null == stanzaCapture || null == info.getOutputDir())
+            return;
+
+        File file = new File(info.getOutputDir() + "-stanzas.log");
+        try
+        {
+            stanzaCapture.dump(file);
+            logger.info("Dumped the stanzas of " + info.getMucJid() + " to "
+                + file);
+        }
+        catch (IOException e)
+        {
+            logger.warn("Failed to dump the stanzas to " + file + ": " + e);
+        }
+    }
+
     /**
      * {@inheritDoc}
      */
@@ -398,21 +637,18 @@ public class Task
     {
         logger.info("JireconTask event: " + event.getType());
 
-        if (event.getType() == TaskEvent.Type.PARTICIPANT_CAME)
+        if (event.getType() == TaskEvent.Type.PARTICIPANT_CAME
+            || event.getType() == TaskEvent.Type.PARTICIPANT_UPDATED)
         {
-            List<EndpointInfo> endpoints =
-                jingleSessionMgr.getEndpoints();
-            recorderMgr.setEndpoints(endpoints);
+            recorderMgr.applyEndpointDelta(event.getEndpointDelta());
         }
 
         else if (event.getType() == TaskEvent.Type.PARTICIPANT_LEFT)
         {
-            List<EndpointInfo> endpoints =
-                jingleSessionMgr.getEndpoints();
             // Oh, it seems that all participants have left the MUC(except Jirecon
             // or other participants which only receive data). It's time to
             // finish the recording.
-            if (endpoints.isEmpty())
+            if (!jingleSessionMgr.hasEndpoints())
             {
                 stop();
                 fireEvent(new TaskManagerEvent(info.getMucJid(),
@@ -420,9 +656,14 @@ public class Task
             }
             else
             {
-                recorderMgr.setEndpoints(endpoints);
+                recorderMgr.applyEndpointDelta(event.getEndpointDelta());
             }
         }
+
+        else if (event.getType() == TaskEvent.Type.REMOTE_CANDIDATES)
+        {
+            transportMgr.addRemoteCandidates(event.getTransportPEs());
+        }
     }
     
     /**
@@ -435,6 +676,8 @@ public class Task
         if (TaskManagerEvent.Type.TASK_ABORTED == evt.getType())
         {
             isAborted = true;
+            // Before the listeners uninitialize us.
+            dumpStanzaCapture();
         }
         
         for (JireconEventListener l : listeners)
@@ -19,6 +19,12 @@
  */
 package org.jitsi.jirecon;
 
+import java.util.*;
+
+import net.java.sip.communicator.impl.protocol.jabber.extensions.jingle.*;
+
+import org.jitsi.service.neomedia.*;
+
 /**
  * Task event which can be used by <tt>JireconSession</tt> and
  * <tt>JireconRecorder</tt> to notify outside system, such as
@@ -34,6 +40,16 @@ public class TaskEvent
      */
     private Type type;
 
+    /**
+     * The change of the endpoint this event is about, or null.
+     */
+    private EndpointDelta endpointDelta;
+
+    /**
+     * The transports which the remote peer has trickled, or null.
+     */
+    private Map<MediaType, IceUdpTransportPacketExtension> transportPEs;
+
     /**
      * Construction method.
      * 
@@ -44,6 +60,31 @@ public class TaskEvent
         this.type = type;
     }
 
+    /**
+     * Construction method of the events about an endpoint.
+     * 
+     * @param type
+     * @param endpointDelta the change of the endpoint.
+     */
+    public TaskEvent(Type type, EndpointDelta endpointDelta)
+    {
+        this.type = type;
+        this.endpointDelta = endpointDelta;
+    }
+
+    /**
+     * Construction method of the events about remote candidates.
+     * 
+     * @param type
+     * @param transportPEs the transports, according to media type.
+     */
+    public TaskEvent(Type type,
+        Map<MediaType, IceUdpTransportPacketExtension> transportPEs)
+    {
+        this.type = type;
+        this.transportPEs = transportPEs;
+    }
+
     /**
      * Get event type.
      * 
@@ -54,6 +95,27 @@ public class TaskEvent
         return type;
     }
 
+    /**
+     * Get the change of the endpoint this event is about.
+     * 
+     * @return the change, or null if the event isn't about an endpoint.
+     */
+    public EndpointDelta getEndpointDelta()
+    {
+        return endpointDelta;
+    }
+
+    /**
+     * Get the transports which the remote peer has trickled.
+     * 
+     * @return the transports according to media type, or null if the event
+     *         isn't about remote candidates.
+     */
+    public Map<MediaType, IceUdpTransportPacketExtension> getTransportPEs()
+    {
+        return transportPEs;
+    }
+
     /**
      * <tt>JireconTaskEvent</tt> type.
      * 
@@ -67,11 +129,21 @@ public class TaskEvent
          */
         PARTICIPANT_CAME("PARTICIPANT_CAME"),
 
+        /**
+         * The SSRCs of a participant have changed.
+         */
+        PARTICIPANT_UPDATED("PARTICIPANT_UPDATED"),
+
         /**
          * One participant left.
          */
         PARTICIPANT_LEFT("PARTICIPANT_LEFT"),
 
+        /**
+         * The remote peer has sent candidates in a transport-info.
+         */
+        REMOTE_CANDIDATES("REMOTE_CANDIDATES"),
+
         /**
          * Recorder has broken for some reasons.
          */
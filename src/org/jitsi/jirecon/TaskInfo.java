@@ -45,6 +45,25 @@ public class TaskInfo
      */
     private String outputDir;
 
+    /**
+     * The number of the segment of the recording which JireconTask writes. A
+     * recording which is resumed after a crash continues into a new segment
+     * in the same output directory.
+     */
+    private int segment = 0;
+
+    /**
+     * When the first segment of the recording started, in milliseconds since
+     * the epoch, or 0 if it isn't known.
+     */
+    private long recordingStart = 0;
+
+    /**
+     * Whether JireconTask records audio only, in which case the video content
+     * offered by the remote peer is declined.
+     */
+    private boolean audioOnly = false;
+
     /**
      * Set Jitsi-meeting jid.
      * 
@@ -104,4 +123,65 @@ public class TaskInfo
     {
         return outputDir;
     }
+
+    /**
+     * Set whether the task records audio only.
+     * 
+     * @param audioOnly
+     */
+    public void setAudioOnly(boolean audioOnly)
+    {
+        this.audioOnly = audioOnly;
+    }
+
+    /**
+     * Get whether the task records audio only.
+     * 
+     * @return
+     */
+    public boolean isAudioOnly()
+    {
+        return audioOnly;
+    }
+
+    /**
+     * Set the number of the segment of the recording.
+     * 
+     * @param segment
+     */
+    public void setSegment(int segment)
+    {
+        this.segment = segment;
+    }
+
+    /**
+     * Get the number of the segment of the recording, 0 for the first one.
+     * 
+     * @return
+     */
+    public int getSegment()
+    {
+        return segment;
+    }
+
+    /**
+     * Set when the first segment of the recording started.
+     * 
+     * @param recordingStart
+     */
+    public void setRecordingStart(long recordingStart)
+    {
+        this.recordingStart = recordingStart;
+    }
+
+    /**
+     * Get when the first segment of the recording started, in milliseconds
+     * since the epoch.
+     * 
+     * @return the time, or 0 if it isn't known.
+     */
+    public long getRecordingStart()
+    {
+        return recordingStart;
+    }
 }
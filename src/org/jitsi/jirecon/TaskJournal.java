@@ -0,0 +1,372 @@
+/*
+/*
+ * Jirecon, the JItsi REcording COntainer.
+ *
+ *
+ * Copyright @ 2015 Atlassian Pty Ltd
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.jitsi.jirecon;
+
+import java.io.*;
+import java.util.*;
+
+import org.jitsi.util.*;
+import org.json.simple.*;
+import org.json.simple.parser.*;
+
+/**
+ * An append-only journal of the active tasks of a <tt>TaskManager</tt>, so
+ * that the recordings which were going on when the process died can be
+ * resumed when it starts again.
+ * <p>
+ * Every line is a JSON record: a "start" record with the MUC JID, the rid,
+ * the output directory, whether it's audio only, the segment and when the
+ * recording started, or a "stop" record with the MUC JID. Every record is
+ * synced to the disk before the method returns. A last line which was cut by
+ * a crash is ignored.
+ * <p>
+ * When the journal is opened, it's replayed and rewritten with only the
+ * active tasks, so it doesn't grow forever.
+ */
+public class TaskJournal
+{
+    /**
+     * The <tt>Logger</tt>, used to log messages to standard output.
+     */
+    private static final Logger logger = Logger.getLogger(TaskJournal.class);
+
+    private static final String OP = "op";
+
+    private static final String OP_START = "start";
+
+    private static final String OP_STOP = "stop";
+
+    private static final String MUCJID = "mucjid";
+
+    private static final String RID = "rid";
+
+    private static final String DIR = "dir";
+
+    private static final String AUDIO_ONLY = "audio_only";
+
+    private static final String SEGMENT = "segment";
+
+    private static final String RECORDING_START = "recording_start";
+
+    /**
+     * An active task, as recorded in the journal.
+     */
+    public static class Entry
+    {
+        private final String mucJid;
+
+        private final String rid;
+
+        private final String outputDir;
+
+        private final boolean audioOnly;
+
+        private final int segment;
+
+        private final long recordingStart;
+
+        /**
+         * Construction method.
+         * 
+         * @param mucJid the JID of the recorded MUC.
+         * @param rid the ID of the recording given by the client, or null.
+         * @param outputDir the output directory of the recording.
+         * @param audioOnly whether only audio is recorded.
+         * @param segment the number of the segment which the task writes.
+         * @param recordingStart when the first segment of the recording
+         *            started, in milliseconds since the epoch, or 0 if it
+         *            isn't known.
+         */
+        public Entry(String mucJid, String rid, String outputDir,
+            boolean audioOnly, int segment, long recordingStart)
+        {
+            this.mucJid = mucJid;
+            this.rid = rid;
+            this.outputDir = outputDir;
+            this.audioOnly = audioOnly;
+            this.segment = segment;
+            this.recordingStart = recordingStart;
+        }
+
+        public String getMucJid()
+        {
+            return mucJid;
+        }
+
+        public String getRid()
+        {
+            return rid;
+        }
+
+        public String getOutputDir()
+        {
+            return outputDir;
+        }
+
+        public boolean isAudioOnly()
+        {
+            return audioOnly;
+        }
+
+        public int getSegment()
+        {
+            return segment;
+        }
+
+        public long getRecordingStart()
+        {
+            return recordingStart;
+        }
+
+        /**
+         * Get the JSON representation of this entry, as a "start" record.
+         * 
+         * @return
+         */
+        @SuppressWarnings("unchecked")
+        public JSONObject toJson()
+        {
+            JSONObject json = new JSONObject();
+            json.put(OP, OP_START);
+            json.put(MUCJID, mucJid);
+            if (null != rid)
+                json.put(RID, rid);
+            json.put(DIR, outputDir);
+            json.put(AUDIO_ONLY, audioOnly);
+            json.put(SEGMENT, segment);
+            json.put(RECORDING_START, recordingStart);
+            return json;
+        }
+
+        /**
+         * Get an entry from its JSON representation.
+         * 
+         * @param json
+         * @return
+         */
+        public static Entry fromJson(JSONObject json)
+        {
+            Object segment = json.get(SEGMENT);
+            Object recordingStart = json.get(RECORDING_START);
+
+            return new Entry((String) json.get(MUCJID),
+                (String) json.get(RID), (String) json.get(DIR),
+                Boolean.TRUE.equals(json.get(AUDIO_ONLY)),
+                segment instanceof Number ? ((Number) segment).intValue() : 0,
+                recordingStart instanceof Number ? ((Number) recordingStart)
+                    .longValue() : 0);
+        }
+    }
+
+    private final File file;
+
+    /**
+     * The stream which the records are appended to, or null if the journal
+     * isn't open.
+     */
+    private FileOutputStream out;
+
+    /**
+     * Construction method.
+     * 
+     * @param file the file of the journal.
+     */
+    public TaskJournal(File file)
+    {
+        this.file = file;
+    }
+
+    /**
+     * Open the journal: replay it, rewrite it with only the active tasks, and
+     * get ready to append.
+     * 
+     * @return the tasks which were active, i.e. which have been started and
+     *         not stopped, in the order they were started.
+     * @throws IOException if the journal can't be written.
+     */
+    public synchronized List<Entry> open()
+        throws IOException
+    {
+        if (null != out)
+            throw new IllegalStateException("Journal already open: " + file);
+
+        Map<String, Entry> active = replay();
+
+        File tmp = new File(file.getPath() + ".tmp");
+        FileOutputStream tmpOut = new FileOutputStream(tmp);
+        try
+        {
+            for (Entry entry : active.values())
+                write(tmpOut, entry.toJson());
+            tmpOut.getFD().sync();
+        }
+        finally
+        {
+            tmpOut.close();
+        }
+        if (!tmp.renameTo(file))
+        {
+            file.delete();
+            if (!tmp.renameTo(file))
+                throw new IOException("Failed to rewrite " + file);
+        }
+
+        out = new FileOutputStream(file, true);
+        return new ArrayList<Entry>(active.values());
+    }
+
+    /**
+     * Record that a task has started.
+     * 
+     * @param entry
+     */
+    public synchronized void taskStarted(Entry entry)
+    {
+        append(entry.toJson());
+    }
+
+    /**
+     * Record that a task has stopped, so it won't be resumed.
+     * 
+     * @param mucJid the JID of the recorded MUC.
+     */
+    @SuppressWarnings("unchecked")
+    public synchronized void taskStopped(String mucJid)
+    {
+        JSONObject json = new JSONObject();
+        json.put(OP, OP_STOP);
+        json.put(MUCJID, mucJid);
+        append(json);
+    }
+
+    /**
+     * Close the journal. The active tasks stay recorded.
+     */
+    public synchronized void close()
+    {
+        if (null == out)
+            return;
+
+        try
+        {
+            out.close();
+        }
+        catch (IOException e)
+        {
+            logger.warn("Failed to close the task journal: " + e);
+        }
+        out = null;
+    }
+
+    /**
+     * Read the journal.
+     * 
+     * @return the active tasks according to their MUC JIDs.
+     */
+    private Map<String, Entry> replay()
+    {
+        Map<String, Entry> active = new LinkedHashMap<String, Entry>();
+        if (!file.exists())
+            return active;
+
+        JSONParser parser = new JSONParser();
+        BufferedReader reader = null;
+        try
+        {
+            reader =
+                new BufferedReader(new InputStreamReader(new FileInputStream(
+                    file), "UTF-8"));
+            String line;
+            while (null != (line = reader.readLine()))
+            {
+                if (0 == line.trim().length())
+                    continue;
+
+                JSONObject json;
+                try
+                {
+                    json = (JSONObject) parser.parse(line);
+                }
+                catch (Exception e)
+                {
+                    logger.warn("Ignoring a broken record of the task journal: "
+                        + line);
+                    continue;
+                }
+
+                Object mucJid = json.get(MUCJID);
+                if (!(mucJid instanceof String))
+                    continue;
+
+                if (OP_START.equals(json.get(OP)))
+                    active.put((String) mucJid, Entry.fromJson(json));
+                else if (OP_STOP.equals(json.get(OP)))
+                    active.remove(mucJid);
+            }
+        }
+        catch (IOException e)
+        {
+            logger.warn("Failed to read the task journal: " + e);
+        }
+        finally
+        {
+            if (null != reader)
+            {
+                try
+                {
+                    reader.close();
+                }
+                catch (IOException e)
+                {
+                    // Nothing to do.
+                }
+            }
+        }
+        return active;
+    }
+
+    /**
+     * Append a record and sync it to the disk. A failure is only logged, a
+     * task doesn't fail because of the journal.
+     * 
+     * @param json
+     */
+    private void append(JSONObject json)
+    {
+        if (null == out)
+            return;
+
+        try
+        {
+            write(out, json);
+            out.getFD().sync();
+        }
+        catch (IOException e)
+        {
+            logger.warn("Failed to write the task journal: " + e);
+        }
+    }
+
+    private static void write(OutputStream out, JSONObject json)
+        throws IOException
+    {
+        out.write((json.toJSONString() + "\n").getBytes("UTF-8"));
+    }
+}
@@ -19,13 +19,18 @@
  */
 package org.jitsi.jirecon;
 
+import java.io.*;
 import java.text.*;
 import java.util.*;
 
 import net.java.sip.communicator.impl.protocol.jabber.*;
+import net.java.sip.communicator.impl.protocol.jabber.extensions.*;
+import net.java.sip.communicator.impl.protocol.jabber.extensions.colibri.*;
 import net.java.sip.communicator.impl.protocol.jabber.extensions.jingle.*;
 import org.jitsi.jirecon.TaskManagerEvent.*;
+import org.jitsi.jirecon.datachannel.*;
 import org.jitsi.jirecon.protocol.extension.*;
+import org.jitsi.jirecon.stats.*;
 import org.jitsi.jirecon.utils.*;
 import org.jitsi.service.configuration.*;
 import org.jitsi.service.libjitsi.*;
@@ -33,6 +38,7 @@ import org.jitsi.util.*;
 import org.jivesoftware.smack.*;
 import org.jivesoftware.smack.provider.*;
 import org.jivesoftware.smackx.*;
+import org.json.simple.*;
 
 /**
  * The manager of <tt>Task</tt>s. Each <tt>Task</tt> represents a
@@ -61,18 +67,61 @@ public class TaskManager
      */
     private XMPPConnection connection;
 
+    /**
+     * Reconnects {@link #connection} when it has been closed on error, and
+     * lets the tasks rejoin their MUCs.
+     */
+    private XmppReconnector reconnector;
+
     /**
      * Maps an ID of a Jitsi Meet conference (the JID of the MUC) to the
      * <tt>JireconTask</tt> for the conference.
      */
     private final Map<String, Task> tasks = new HashMap<String, Task>();
 
+    /**
+     * What each task of {@link #tasks} records and where, according to the
+     * MUC JID. It's guarded by the lock of {@link #tasks}.
+     */
+    private final Map<String, TaskJournal.Entry> taskEntries =
+        new HashMap<String, TaskJournal.Entry>();
+
+    /**
+     * An immutable copy of {@link #tasks}, which is replaced whenever a task
+     * is added or removed, so that the tasks can be looked up without
+     * locking, e.g. by frequent status requests.
+     */
+    private volatile Map<String, Task> tasksSnapshot = Collections.emptyMap();
+
     /**
      * The base directory to save recording files. <tt>JireconImpl</tt> will
      * save each recording in its own subdirectory of the base directory.
      */
     private String baseOutputDir;
+
+    /**
+     * Whether tasks record audio only, unless specified otherwise when they
+     * are started.
+     */
+    private boolean defaultAudioOnly = false;
+
+    /**
+     * Serves the receive statistics over HTTP, or null if it isn't enabled.
+     */
+    private MetricsHttpServer metricsServer;
     
+    /**
+     * The journal of the active tasks, or null if it isn't enabled.
+     */
+    private volatile TaskJournal journal;
+
+    /**
+     * The tasks which have been resumed from the journal when we were
+     * initialized.
+     */
+    private List<TaskJournal.Entry> resumedTasks =
+        Collections.emptyList();
+
     /**
      * Indicates whether <tt>JireconImpl</tt> has been initialized.
      */
@@ -129,6 +178,19 @@ public class TaskManager
                 baseOutputDir.substring(0, baseOutputDir.length() - 1);
         }
 
+        defaultAudioOnly =
+            cfg.getBoolean(ConfigurationKey.AUDIO_ONLY_KEY, false);
+
+        /*
+         * The SCTP stack is shared by all tasks. We hold it for as long as we
+         * are initialized, so that it isn't set up again for every task.
+         */
+        SctpRuntime.getInstance().configure(
+            cfg.getLong(ConfigurationKey.SCTP_IDLE_TIMEOUT_KEY,
+                SctpRuntime.DEFAULT_IDLE_TIMEOUT),
+            cfg.getInt(ConfigurationKey.SCTP_PORT_KEY,
+                SctpRuntime.DEFAULT_PORT));
+
         final String xmppHost = cfg.getString(ConfigurationKey.XMPP_HOST_KEY);
         final int xmppPort = cfg.getInt(ConfigurationKey.XMPP_PORT_KEY, -1);
         final String xmppUser = cfg.getString(ConfigurationKey.XMPP_USER_KEY);
@@ -144,8 +206,96 @@ public class TaskManager
             uninit();
             throw e;
         }
+
+        final int metricsPort =
+            cfg.getInt(ConfigurationKey.METRICS_PORT_KEY, -1);
+        if (metricsPort > 0)
+        {
+            metricsServer = new MetricsHttpServer(this);
+            try
+            {
+                metricsServer.start(
+                    cfg.getString(ConfigurationKey.METRICS_ADDRESS_KEY),
+                    metricsPort);
+            }
+            catch (IOException e)
+            {
+                // Recording works without the metrics.
+                logger.warn("Failed to start the metrics endpoint: " + e);
+                metricsServer = null;
+            }
+        }
         
+        SctpRuntime.getInstance().acquire();
         isInitialized = true;
+
+        openJournal(cfg.getString(ConfigurationKey.TASK_JOURNAL_KEY,
+            baseOutputDir + "/.task_journal"));
+    }
+
+    /**
+     * Open the journal of the active tasks, and resume the tasks which were
+     * active when the process died, each into a new segment of its recording.
+     * The tasks whose output directory is gone aren't resumed, and are
+     * dropped from the journal.
+     * <p>
+     * It's called by {@link #init(String)} with the configured path.
+     * 
+     * @param path the path of the journal, or an empty string to disable it.
+     */
+    public void openJournal(String path)
+    {
+        if (StringUtils.isNullOrEmpty(path))
+            return;
+
+        File file = new File(path);
+        if (null != file.getParentFile())
+            file.getParentFile().mkdirs();
+
+        TaskJournal journal = new TaskJournal(file);
+        List<TaskJournal.Entry> entries;
+        try
+        {
+            entries = journal.open();
+        }
+        catch (IOException e)
+        {
+            logger.warn("Failed to open the task journal " + path + ": " + e);
+            return;
+        }
+        this.journal = journal;
+
+        List<TaskJournal.Entry> resumed = new ArrayList<TaskJournal.Entry>();
+        for (TaskJournal.Entry entry : entries)
+        {
+            if (!new File(entry.getOutputDir()).isDirectory())
+            {
+                logger.warn("Not resuming " + entry.getMucJid()
+                    + ", its output directory is gone.");
+                journal.taskStopped(entry.getMucJid());
+                continue;
+            }
+
+            logger.info("Resuming the recording of " + entry.getMucJid()
+                + " into segment " + (entry.getSegment() + 1) + " of "
+                + entry.getOutputDir());
+            if (resumeJireconTask(entry))
+            {
+                resumed.add(entry);
+            }
+        }
+        resumedTasks = Collections.unmodifiableList(resumed);
+    }
+
+    /**
+     * Get the tasks which have been resumed from the journal when we were
+     * initialized, as they were recorded before the restart.
+     * 
+     * @return
+     */
+    public List<TaskJournal.Entry> getResumedTasks()
+    {
+        return resumedTasks;
     }
 
     /**
@@ -169,15 +319,62 @@ public class TaskManager
 
         synchronized (tasks)
         {
-            for (Task task : tasks.values())
+            // Stopping a task removes it from the map.
+            for (Map.Entry<String, Task> e
+                    : new HashMap<String, Task>(tasks).entrySet())
             {
-                task.uninit(true);
+                e.getValue().uninit(true);
+                if (null != journal)
+                    journal.taskStopped(e.getKey());
             }
         }
+        if (null != journal)
+        {
+            journal.close();
+            journal = null;
+        }
+        if (null != metricsServer)
+        {
+            metricsServer.stop();
+            metricsServer = null;
+        }
         closeConnection();
+        SctpRuntime.getInstance().release();
         LibJitsi.stop();
     }
 
+    /**
+     * Get the latest receive statistics of every task, and their aggregate
+     * for this node.
+     * 
+     * @return the statistics in JSON.
+     */
+    @SuppressWarnings("unchecked")
+    public JSONObject getReceiveStats()
+    {
+        JSONObject tasksJson = new JSONObject();
+        List<SsrcReceiveStats> all = new ArrayList<SsrcReceiveStats>();
+
+        synchronized (tasks)
+        {
+            for (Map.Entry<String, Task> e : tasks.entrySet())
+            {
+                ReceiveStatsCollector collector =
+                    e.getValue().getReceiveStatsCollector();
+                if (null == collector)
+                    continue;
+
+                tasksJson.put(e.getKey(), collector.toJson());
+                all.addAll(collector.getSnapshot());
+            }
+        }
+
+        JSONObject json = new JSONObject();
+        json.put("tasks", tasksJson);
+        json.put("total", ReceiveStatsCollector.aggregate(all));
+        return json;
+    }
+
     /**
      * Create a new recording task for a specified Jitsi-meeting.
      * <p>
@@ -193,7 +390,109 @@ public class TaskManager
      */
     public boolean startJireconTask(String mucJid)
     {
-        logger.info("Starting jirecon task: " + mucJid);
+        return startJireconTask(mucJid, defaultAudioOnly);
+    }
+
+    /**
+     * Create a new recording task for a specified Jitsi-meeting, recording
+     * either audio and video or audio only.
+     * <p>
+     * <strong>Warning:</strong> This method is asynchronous, see
+     * {@link #startJireconTask(String)}.
+     * 
+     * @param mucJid indicates the Jitsi Meet conference to record.
+     * @param audioOnly whether to record audio only. An audio-only task
+     * declines the video content, so it doesn't create any video stream or
+     * recorder.
+     * @return <tt>true</tt> if the task was initiated asynchronously (and its
+     * success is unknown), or <tt>false</tt> if the task failed to be initiated.
+     */
+    public boolean startJireconTask(String mucJid, boolean audioOnly)
+    {
+        return startJireconTask(mucJid, audioOnly, null);
+    }
+
+    /**
+     * Create a new recording task for a specified Jitsi-meeting, with the ID
+     * which the client knows the recording by.
+     * <p>
+     * <strong>Warning:</strong> This method is asynchronous, see
+     * {@link #startJireconTask(String)}.
+     * 
+     * @param mucJid indicates the Jitsi Meet conference to record.
+     * @param audioOnly whether to record audio only.
+     * @param rid the ID of the recording, which is kept in the journal so
+     *            that the recording can be found again after a restart. It
+     *            may be null.
+     * @return <tt>true</tt> if the task was initiated asynchronously (and its
+     * success is unknown), or <tt>false</tt> if the task failed to be initiated.
+     */
+    public boolean startJireconTask(String mucJid, boolean audioOnly,
+        String rid)
+    {
+        String outputDir =
+            baseOutputDir + "/" + mucJid
+                + new SimpleDateFormat("-yyMMdd-HHmmss").format(new Date());
+
+        return startTask(new TaskJournal.Entry(mucJid, rid, outputDir,
+            audioOnly, 0, System.currentTimeMillis()));
+    }
+
+    /**
+     * Resume a recording which has been interrupted, e.g. by a crash of this
+     * process or of another node, into the next segment in the same output
+     * directory.
+     * <p>
+     * <strong>Warning:</strong> This method is asynchronous, see
+     * {@link #startJireconTask(String)}.
+     * 
+     * @param previous the task which was recording, as it was journaled.
+     * @return <tt>true</tt> if the task was initiated asynchronously (and its
+     * success is unknown), or <tt>false</tt> if the task failed to be initiated.
+     */
+    public boolean resumeJireconTask(TaskJournal.Entry previous)
+    {
+        return startTask(new TaskJournal.Entry(previous.getMucJid(),
+            previous.getRid(), previous.getOutputDir(), previous.isAudioOnly(),
+            previous.getSegment() + 1, previous.getRecordingStart()));
+    }
+
+    /**
+     * Get the active tasks, as they are journaled.
+     * 
+     * @return
+     */
+    public List<TaskJournal.Entry> getActiveTasks()
+    {
+        synchronized (tasks)
+        {
+            return new ArrayList<TaskJournal.Entry>(taskEntries.values());
+        }
+    }
+
+    /**
+     * Whether tasks record audio only, unless specified otherwise when they
+     * are started.
+     * 
+     * @return
+     */
+    public boolean isDefaultAudioOnly()
+    {
+        return defaultAudioOnly;
+    }
+
+    /**
+     * Create a new recording task.
+     * 
+     * @param entry what the task records and where.
+     * @return <tt>false</tt> if the task failed to be initiated.
+     */
+    private boolean startTask(TaskJournal.Entry entry)
+    {
+        final String mucJid = entry.getMucJid();
+
+        logger.info("Starting jirecon task: " + mucJid
+            + (entry.isAudioOnly() ? " (audio only)" : ""));
 
         Task task;
         synchronized (tasks)
@@ -205,14 +504,16 @@ public class TaskManager
             }
             task = new Task();
             tasks.put(mucJid, task);
+            taskEntries.put(mucJid, entry);
+            publishTasks();
         }
 
-        String outputDir =
-            baseOutputDir + "/" + mucJid
-                + new SimpleDateFormat("-yyMMdd-HHmmss").format(new Date());
-
         task.addEventListener(this);
-        task.init(mucJid, connection, outputDir);
+        task.init(mucJid, connection, entry.getOutputDir(),
+            entry.isAudioOnly(), entry.getSegment(),
+            entry.getRecordingStart());
+        if (null != journal)
+            journal.taskStarted(entry);
 
         task.start();
         return true;
@@ -234,6 +535,8 @@ public class TaskManager
         synchronized (tasks)
         {
             task = tasks.remove(mucJid);
+            taskEntries.remove(mucJid);
+            publishTasks();
         }
         
         if (task == null)
@@ -243,12 +546,91 @@ public class TaskManager
         }
         else
         {
+            if (null != journal)
+                journal.taskStopped(mucJid);
             task.stop();
             task.uninit(keepData);
         }
         return true;
     }
 
+    /**
+     * Replace {@link #tasksSnapshot} with a copy of {@link #tasks}.
+     * <p>
+     * <strong>Warning:</strong> The caller must hold the lock of
+     * {@link #tasks}.
+     */
+    private void publishTasks()
+    {
+        tasksSnapshot =
+            Collections.unmodifiableMap(new HashMap<String, Task>(tasks));
+    }
+
+    /**
+     * Get the collector of the receive statistics of a task, without locking.
+     * 
+     * @param mucJid the MUC JID of the Jitsi Meet conference of the task.
+     * @return the collector, or null if there is no such task or its
+     *         statistics aren't sampled (yet).
+     */
+    public ReceiveStatsCollector getReceiveStatsCollector(String mucJid)
+    {
+        Task task = tasksSnapshot.get(mucJid);
+
+        return null == task ? null : task.getReceiveStatsCollector();
+    }
+
+    /**
+     * Get the number of tasks, without locking.
+     * 
+     * @return
+     */
+    public int getTaskCount()
+    {
+        return tasksSnapshot.size();
+    }
+
+    /**
+     * Start or stop capturing the stanzas of a task in memory.
+     * 
+     * @param mucJid the MUC JID of the Jitsi Meet conference of the task.
+     * @param capacity the number of stanzas to keep, or 0 to stop capturing.
+     * @return <tt>false</tt> if there is no such task.
+     */
+    public boolean captureStanzas(String mucJid, int capacity)
+    {
+        Task task;
+        synchronized (tasks)
+        {
+            task = tasks.get(mucJid);
+        }
+        if (null == task)
+            return false;
+
+        task.captureStanzas(capacity);
+        return true;
+    }
+
+    /**
+     * Get the stanzas which have been captured for a task.
+     * 
+     * @param mucJid the MUC JID of the Jitsi Meet conference of the task.
+     * @return the stanzas, oldest first, or null if there is no such task or
+     *         its stanzas aren't captured.
+     */
+    public String dumpStanzas(String mucJid)
+    {
+        Task task;
+        synchronized (tasks)
+        {
+            task = tasks.get(mucJid);
+        }
+        StanzaCapture stanzaCapture =
+            null == task ? null : task.getStanzaCapture();
+
+        return null == stanzaCapture ? null : stanzaCapture.dump();
+    }
+
     /**
      * Creates {@link #connection} and connects to the XMPP server.
      * 
@@ -265,9 +647,37 @@ public class TaskManager
     {
         ConnectionConfiguration conf =
             new ConnectionConfiguration(xmppHost, xmppPort);
+        // We reconnect ourselves, see XmppReconnector.
+        conf.setReconnectionAllowed(false);
         connection = new XMPPConnection(conf);
         connection.connect();
 
+        ConfigurationService cfg = LibJitsi.getConfigurationService();
+        reconnector = new XmppReconnector(connection,
+            new XmppReconnector.Listener()
+            {
+                @Override
+                public void xmppConnectionLost()
+                {
+                    for (Task task : getTasks())
+                        task.xmppConnectionLost();
+                }
+
+                @Override
+                public void xmppConnectionRestored()
+                {
+                    for (Task task : getTasks())
+                        task.xmppConnectionRestored();
+                }
+            },
+            cfg.getLong(ConfigurationKey.XMPP_RECONNECT_MIN_DELAY_KEY,
+                XmppReconnector.DEFAULT_MIN_DELAY),
+            cfg.getLong(ConfigurationKey.XMPP_RECONNECT_MAX_DELAY_KEY,
+                XmppReconnector.DEFAULT_MAX_DELAY));
+
+        // All tasks receive their packets through the router.
+        PacketRouter.getInstanceFor(connection);
+
         // Register Jingle Features.
         ServiceDiscoveryManager discoManager
             = ServiceDiscoveryManager.getInstanceFor(connection);
@@ -305,14 +715,37 @@ public class TaskManager
         }
     }
 
+    /**
+     * Get a snapshot of the tasks, so that they can be notified without
+     * holding the lock of {@link #tasks}.
+     *
+     * @return
+     */
+    private List<Task> getTasks()
+    {
+        synchronized (tasks)
+        {
+            return new ArrayList<Task>(tasks.values());
+        }
+    }
+
     /**
      * Closes the XMPP connection.
      */
     private void closeConnection()
     {
         logger.info("Closing the XMPP connection.");
-        if (connection != null && connection.isConnected())
-            connection.disconnect();
+        if (reconnector != null)
+        {
+            reconnector.stop();
+            reconnector = null;
+        }
+        if (connection != null)
+        {
+            PacketRouter.removeInstanceFor(connection);
+            if (connection.isConnected())
+                connection.disconnect();
+        }
     }
 
     /**
@@ -335,6 +768,32 @@ public class TaskManager
                 SctpMapExtension.ELEMENT_NAME,
                 SctpMapExtension.NAMESPACE,
                 new SctpMapExtensionProvider());
+
+        // The sources of the Jingle descriptions (e.g. in source-add).
+        providerManager.addExtensionProvider(
+                SourcePacketExtension.ELEMENT_NAME,
+                SourcePacketExtension.NAMESPACE,
+                new DefaultPacketExtensionProvider<SourcePacketExtension>(
+                    SourcePacketExtension.class));
+        providerManager.addExtensionProvider(
+                ParameterPacketExtension.ELEMENT_NAME,
+                SourcePacketExtension.NAMESPACE,
+                new DefaultPacketExtensionProvider<ParameterPacketExtension>(
+                    ParameterPacketExtension.class));
+        providerManager.addExtensionProvider(
+                SourceGroupPacketExtension.ELEMENT_NAME,
+                SourceGroupPacketExtension.NAMESPACE,
+                new DefaultPacketExtensionProvider<SourceGroupPacketExtension>(
+                    SourceGroupPacketExtension.class));
+        providerManager.addExtensionProvider(
+                SsrcInfoPacketExtension.ELEMENT_NAME,
+                SsrcInfoPacketExtension.NAMESPACE,
+                new DefaultPacketExtensionProvider<SsrcInfoPacketExtension>(
+                    SsrcInfoPacketExtension.class));
+        providerManager.addExtensionProvider(
+                SsrcProvider.ELEMENT_NAME,
+                SsrcProvider.NAMESPACE,
+                new SsrcProvider());
     }
 
     /**
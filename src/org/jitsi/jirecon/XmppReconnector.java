@@ -0,0 +1,272 @@
+/*
+/*
+ * Jirecon, the JItsi REcording COntainer.
+ *
+ *
+ * Copyright @ 2015 Atlassian Pty Ltd
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.jitsi.jirecon;
+
+import java.util.*;
+import java.util.concurrent.*;
+
+import org.jitsi.util.*;
+import org.jivesoftware.smack.*;
+
+/**
+ * Reconnects an <tt>XMPPConnection</tt> which has been closed on error, with
+ * an exponential backoff between the attempts.
+ * <p>
+ * Smack's own reconnection must be disabled on the connection. The same
+ * connection object is reconnected (and logged in again), so the packet
+ * listeners which are registered on it are kept, and the
+ * <tt>Listener</tt> decides what to restore on top of it, e.g. the MUCs.
+ */
+public class XmppReconnector
+    implements ConnectionListener
+{
+    /**
+     * The <tt>Logger</tt>, used to log messages to standard output.
+     */
+    private static final Logger logger = Logger
+        .getLogger(XmppReconnector.class);
+
+    /**
+     * The default delay in milliseconds before the first attempt.
+     */
+    public static final long DEFAULT_MIN_DELAY = 1000;
+
+    /**
+     * The default maximum delay in milliseconds between two attempts.
+     */
+    public static final long DEFAULT_MAX_DELAY = 60000;
+
+    /**
+     * Is notified when the connection is lost and when it's back.
+     */
+    public interface Listener
+    {
+        /**
+         * The connection has been closed on error. It is reconnected in the
+         * background.
+         */
+        public void xmppConnectionLost();
+
+        /**
+         * The connection has been reconnected and logged in again. It's called
+         * on the thread of the reconnector.
+         */
+        public void xmppConnectionRestored();
+    }
+
+    private final XMPPConnection connection;
+
+    private final Listener listener;
+
+    private final long minDelay;
+
+    private final long maxDelay;
+
+    private final Random random = new Random();
+
+    /**
+     * The worker which runs the attempts. Its thread only exists while a
+     * reconnection is pending.
+     */
+    private final ScheduledThreadPoolExecutor executor;
+
+    /**
+     * The delay before the next attempt.
+     */
+    private long delay;
+
+    /**
+     * The number of attempts since the connection was lost.
+     */
+    private int attempts = 0;
+
+    /**
+     * Whether a reconnection is pending.
+     */
+    private boolean reconnecting = false;
+
+    private boolean stopped = false;
+
+    /**
+     * Construction method.
+     * 
+     * @param connection the connection, whose own reconnection is disabled.
+     * @param listener
+     * @param minDelay the delay in milliseconds before the first attempt.
+     * @param maxDelay the maximum delay in milliseconds between two attempts.
+     */
+    public XmppReconnector(XMPPConnection connection, Listener listener,
+        long minDelay, long maxDelay)
+    {
+        this.connection = connection;
+        this.listener = listener;
+        this.minDelay = Math.max(1, minDelay);
+        this.maxDelay = Math.max(this.minDelay, maxDelay);
+
+        executor = new ScheduledThreadPoolExecutor(1, new ThreadFactory()
+        {
+            @Override
+            public Thread newThread(Runnable r)
+            {
+                Thread t = new Thread(r, XmppReconnector.class.getName());
+                t.setDaemon(true);
+                return t;
+            }
+        });
+        executor.setKeepAliveTime(1, TimeUnit.SECONDS);
+        executor.allowCoreThreadTimeOut(true);
+
+        connection.addConnectionListener(this);
+    }
+
+    /**
+     * Stop reconnecting, e.g. before the connection is closed on purpose.
+     */
+    public synchronized void stop()
+    {
+        stopped = true;
+        connection.removeConnectionListener(this);
+        executor.shutdownNow();
+    }
+
+    /**
+     * Check whether the connection is being reconnected.
+     * 
+     * @return
+     */
+    public synchronized boolean isReconnecting()
+    {
+        return reconnecting;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public void connectionClosedOnError(Exception e)
+    {
+        synchronized (this)
+        {
+            if (stopped || reconnecting)
+                return;
+            reconnecting = true;
+            attempts = 0;
+            delay = minDelay;
+            schedule();
+        }
+
+        logger.warn("XMPP connection lost, reconnecting: " + e);
+        listener.xmppConnectionLost();
+    }
+
+    /**
+     * Schedule the next attempt, with some jitter so that many recorders
+     * don't come back at once.
+     * <p>
+     * <strong>Warning:</strong> The caller must hold the lock of this.
+     */
+    private void schedule()
+    {
+        long jittered = delay + (long) (random.nextDouble() * delay / 4);
+        executor.schedule(new Runnable()
+        {
+            @Override
+            public void run()
+            {
+                reconnect();
+            }
+        }, jittered, TimeUnit.MILLISECONDS);
+        delay = Math.min(maxDelay, delay * 2);
+    }
+
+    /**
+     * Make an attempt, on the thread of the executor.
+     */
+    private void reconnect()
+    {
+        synchronized (this)
+        {
+            if (stopped)
+                return;
+            attempts++;
+        }
+
+        try
+        {
+            if (!connection.isConnected())
+                connection.connect();
+        }
+        catch (Exception e)
+        {
+            synchronized (this)
+            {
+                logger.warn("XMPP reconnection attempt " + attempts
+                    + " failed, next one in about " + delay + " ms: " + e);
+                if (!stopped)
+                    schedule();
+            }
+            return;
+        }
+
+        synchronized (this)
+        {
+            reconnecting = false;
+            logger.info("XMPP connection restored after " + attempts
+                + " attempt(s).");
+        }
+        listener.xmppConnectionRestored();
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public void connectionClosed()
+    {
+        // Closed on purpose.
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public void reconnectingIn(int seconds)
+    {
+        // Only for Smack's own reconnection.
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public void reconnectionSuccessful()
+    {
+        // We handle it once connect() has returned.
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public void reconnectionFailed(Exception e)
+    {
+        // Only for Smack's own reconnection.
+    }
+}
@@ -0,0 +1,109 @@
+/*
+/*
+ * Jirecon, the JItsi REcording COntainer.
+ *
+ *
+ * Copyright @ 2015 Atlassian Pty Ltd
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.jitsi.jirecon.cluster;
+
+import java.util.*;
+
+/**
+ * The shared state of a cluster of Jirecon nodes: which nodes are members,
+ * which MUCs are to be recorded, and which node records each of them.
+ * <p>
+ * The owner of a MUC is decided by every node on its own with a
+ * <tt>ConsistentHashRing</tt> of the members. The claims make sure that a MUC
+ * is never recorded by two nodes: a node only starts a recording once it has
+ * claimed it, and a claim is only granted while no other node holds it.
+ * <p>
+ * An implementation must notify the listeners of all the members after
+ * every change, outside of its locks and one notification at a time.
+ */
+public interface ClusterCoordinator
+{
+    /**
+     * Is notified when the members, the recordings or the claims change.
+     */
+    public interface Listener
+    {
+        public void clusterChanged();
+    }
+
+    /**
+     * Join the cluster.
+     * 
+     * @param nodeId the ID of the node, unique in the cluster.
+     * @param listener
+     */
+    public void join(String nodeId, Listener listener);
+
+    /**
+     * Leave the cluster. The recordings which the node still holds are
+     * released, so that other nodes take them over.
+     * 
+     * @param nodeId
+     */
+    public void leave(String nodeId);
+
+    /**
+     * Get the IDs of the members.
+     * 
+     * @return
+     */
+    public Set<String> getMembers();
+
+    /**
+     * Ask the cluster to record a MUC.
+     * 
+     * @param mucJid
+     */
+    public void addRecording(String mucJid);
+
+    /**
+     * Ask the cluster to stop recording a MUC.
+     * 
+     * @param mucJid
+     */
+    public void removeRecording(String mucJid);
+
+    /**
+     * Get the MUCs which are to be recorded.
+     * 
+     * @return the ID of the node which holds each MUC, or null if none holds
+     *         it yet.
+     */
+    public Map<String, String> getRecordings();
+
+    /**
+     * Claim the recording of a MUC.
+     * 
+     * @param mucJid
+     * @param nodeId
+     * @return whether the node holds the recording, i.e. whether the MUC is to
+     *         be recorded, the node is a member and no other node holds it.
+     */
+    public boolean claim(String mucJid, String nodeId);
+
+    /**
+     * Release the recording of a MUC, once the node has stopped recording it.
+     * Nothing happens if the node doesn't hold it.
+     * 
+     * @param mucJid
+     * @param nodeId
+     */
+    public void release(String mucJid, String nodeId);
+}
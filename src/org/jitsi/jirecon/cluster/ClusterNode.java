@@ -0,0 +1,271 @@
+/*
+/*
+ * Jirecon, the JItsi REcording COntainer.
+ *
+ *
+ * Copyright @ 2015 Atlassian Pty Ltd
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.jitsi.jirecon.cluster;
+
+import java.util.*;
+
+import org.jitsi.util.*;
+
+/**
+ * A Jirecon node of a cluster. The MUCs which are to be recorded are spread
+ * over the members by consistent hashing, and every node records the ones it
+ * owns.
+ * <p>
+ * Whenever the cluster changes, the node reconciles what it records with the
+ * ring: it stops and releases the MUCs it doesn't own any more, so that their
+ * new owner claims and starts them, and it claims and starts the MUCs it owns
+ * which nobody holds. Since a MUC is released before its new owner can claim
+ * it, it is never recorded twice, at the cost of a short gap at the handoff.
+ */
+public class ClusterNode
+    implements ClusterCoordinator.Listener
+{
+    /**
+     * The <tt>Logger</tt>, used to log messages to standard output.
+     */
+    private static final Logger logger = Logger.getLogger(ClusterNode.class);
+
+    /**
+     * Starts and stops the recordings of the node, e.g. with a
+     * <tt>TaskManager</tt>.
+     */
+    public interface Recorder
+    {
+        /**
+         * Start recording a MUC.
+         * 
+         * @param mucJid
+         * @return <tt>false</tt> if the recording failed to start.
+         */
+        public boolean startRecording(String mucJid);
+
+        /**
+         * Stop recording a MUC.
+         * 
+         * @param mucJid
+         */
+        public void stopRecording(String mucJid);
+    }
+
+    private final String nodeId;
+
+    private final ClusterCoordinator coordinator;
+
+    private final Recorder recorder;
+
+    private final int virtualNodes;
+
+    /**
+     * The ring of the current members.
+     */
+    private volatile ConsistentHashRing ring;
+
+    /**
+     * The MUCs which this node records.
+     */
+    private final Set<String> recording = new HashSet<String>();
+
+    /**
+     * Whether the node has left or is leaving the cluster, after which it
+     * doesn't start anything.
+     */
+    private boolean left = true;
+
+    /**
+     * Construction method.
+     * 
+     * @param nodeId the ID of the node, unique in the cluster.
+     * @param coordinator
+     * @param recorder
+     * @param virtualNodes the number of virtual nodes of every node on the
+     *            ring. It must be the same on all nodes.
+     */
+    public ClusterNode(String nodeId, ClusterCoordinator coordinator,
+        Recorder recorder, int virtualNodes)
+    {
+        this.nodeId = nodeId;
+        this.coordinator = coordinator;
+        this.recorder = recorder;
+        this.virtualNodes = virtualNodes;
+        this.ring =
+            new ConsistentHashRing(Collections.<String> emptySet(),
+                virtualNodes);
+    }
+
+    public String getNodeId()
+    {
+        return nodeId;
+    }
+
+    /**
+     * Join the cluster.
+     */
+    public void join()
+    {
+        synchronized (this)
+        {
+            left = false;
+        }
+        coordinator.join(nodeId, this);
+    }
+
+    /**
+     * Leave the cluster gracefully: the recordings of this node are stopped
+     * and released, so that the other nodes take them over.
+     */
+    public void leave()
+    {
+        synchronized (this)
+        {
+            left = true;
+            for (String mucJid : recording)
+            {
+                recorder.stopRecording(mucJid);
+                coordinator.release(mucJid, nodeId);
+            }
+            recording.clear();
+        }
+        coordinator.leave(nodeId);
+    }
+
+    /**
+     * Ask the cluster to record a MUC. It's recorded by its owner, which may
+     * be another node.
+     * 
+     * @param mucJid
+     * @return the ID of the current owner of the MUC.
+     */
+    public String startRecording(String mucJid)
+    {
+        coordinator.addRecording(mucJid);
+        return getOwner(mucJid);
+    }
+
+    /**
+     * Ask the cluster to stop recording a MUC, whichever node records it.
+     * 
+     * @param mucJid
+     */
+    public void stopRecording(String mucJid)
+    {
+        coordinator.removeRecording(mucJid);
+    }
+
+    /**
+     * Get the node which owns a MUC, according to the members this node
+     * knows.
+     * 
+     * @param mucJid
+     * @return
+     */
+    public String getOwner(String mucJid)
+    {
+        return ring.getOwner(mucJid);
+    }
+
+    /**
+     * Get the MUCs which this node records.
+     * 
+     * @return
+     */
+    public synchronized Set<String> getRecordings()
+    {
+        return new HashSet<String>(recording);
+    }
+
+    @Override
+    public void clusterChanged()
+    {
+        reconcile();
+    }
+
+    /**
+     * Reconcile what this node records with the state of the cluster.
+     */
+    private synchronized void reconcile()
+    {
+        if (left)
+            return;
+
+        Set<String> members = coordinator.getMembers();
+        if (!members.contains(nodeId))
+        {
+            // We have been considered failed, the others take over.
+            logger.warn("Node " + nodeId + " isn't a member any more.");
+            for (String mucJid : recording)
+                recorder.stopRecording(mucJid);
+            recording.clear();
+            return;
+        }
+
+        ConsistentHashRing ring = this.ring;
+        if (!ring.getNodes().equals(members))
+        {
+            ring = new ConsistentHashRing(members, virtualNodes);
+            this.ring = ring;
+        }
+
+        Map<String, String> recordings = coordinator.getRecordings();
+
+        for (Iterator<String> i = recording.iterator(); i.hasNext();)
+        {
+            String mucJid = i.next();
+
+            if (!recordings.containsKey(mucJid))
+            {
+                // Not wanted any more.
+                recorder.stopRecording(mucJid);
+                i.remove();
+            }
+            else if (!nodeId.equals(recordings.get(mucJid)))
+            {
+                // Our claim is gone, someone else may record it already.
+                recorder.stopRecording(mucJid);
+                i.remove();
+            }
+            else if (!nodeId.equals(ring.getOwner(mucJid)))
+            {
+                logger.info("Hand " + mucJid + " off to "
+                    + ring.getOwner(mucJid));
+                recorder.stopRecording(mucJid);
+                i.remove();
+                coordinator.release(mucJid, nodeId);
+            }
+        }
+
+        for (Map.Entry<String, String> e : recordings.entrySet())
+        {
+            String mucJid = e.getKey();
+            if (null != e.getValue() || !nodeId.equals(ring.getOwner(mucJid))
+                || !coordinator.claim(mucJid, nodeId))
+                continue;
+
+            if (recorder.startRecording(mucJid))
+            {
+                recording.add(mucJid);
+            }
+            else
+            {
+                logger.warn("Failed to start recording " + mucJid);
+                coordinator.removeRecording(mucJid);
+            }
+        }
+    }
+}
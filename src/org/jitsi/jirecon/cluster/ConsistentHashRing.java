@@ -0,0 +1,122 @@
+/*
+/*
+ * Jirecon, the JItsi REcording COntainer.
+ *
+ *
+ * Copyright @ 2015 Atlassian Pty Ltd
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.jitsi.jirecon.cluster;
+
+import java.io.*;
+import java.security.*;
+import java.util.*;
+
+/**
+ * A consistent hash ring of the nodes of a cluster, which decides the owner
+ * of a key (e.g. the JID of a MUC).
+ * <p>
+ * Every node is put on the ring a number of times (its virtual nodes), so the
+ * keys are spread evenly, and when a node joins or leaves only the keys it
+ * takes or gives away change their owner.
+ * <p>
+ * A ring is immutable, a new one is built when the members change.
+ */
+public class ConsistentHashRing
+{
+    /**
+     * The default number of virtual nodes of a node.
+     */
+    public static final int DEFAULT_VIRTUAL_NODES = 160;
+
+    /**
+     * The nodes according to the positions of their virtual nodes.
+     */
+    private final TreeMap<Long, String> ring = new TreeMap<Long, String>();
+
+    private final Set<String> nodes;
+
+    /**
+     * Construction method.
+     * 
+     * @param nodes the IDs of the nodes.
+     * @param virtualNodes the number of virtual nodes of every node.
+     */
+    public ConsistentHashRing(Collection<String> nodes, int virtualNodes)
+    {
+        this.nodes = Collections.unmodifiableSet(new HashSet<String>(nodes));
+
+        for (String node : this.nodes)
+        {
+            for (int i = 0; i < virtualNodes; i++)
+                ring.put(hash(node + "#" + i), node);
+        }
+    }
+
+    /**
+     * Get the owner of a key.
+     * 
+     * @param key
+     * @return the ID of the node, or null if the ring is empty.
+     */
+    public String getOwner(String key)
+    {
+        if (ring.isEmpty())
+            return null;
+
+        Map.Entry<Long, String> entry = ring.ceilingEntry(hash(key));
+        if (null == entry)
+            entry = ring.firstEntry();
+        return entry.getValue();
+    }
+
+    /**
+     * Get the IDs of the nodes.
+     * 
+     * @return
+     */
+    public Set<String> getNodes()
+    {
+        return nodes;
+    }
+
+    /**
+     * Get the position of a string on the ring, from its MD5 digest.
+     * 
+     * @param s
+     * @return
+     */
+    private static long hash(String s)
+    {
+        byte[] digest;
+        try
+        {
+            digest =
+                MessageDigest.getInstance("MD5").digest(s.getBytes("UTF-8"));
+        }
+        catch (NoSuchAlgorithmException e)
+        {
+            throw new IllegalStateException(e);
+        }
+        catch (UnsupportedEncodingException e)
+        {
+            throw new IllegalStateException(e);
+        }
+
+        long h = 0;
+        for (int i = 0; i < 8; i++)
+            h = (h << 8) | (digest[i] & 0xFF);
+        return h;
+    }
+}
@@ -0,0 +1,242 @@
+/*
+/*
+ * Jirecon, the JItsi REcording COntainer.
+ *
+ *
+ * Copyright @ 2015 Atlassian Pty Ltd
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.jitsi.jirecon.cluster;
+
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.*;
+
+import org.jitsi.util.*;
+
+/**
+ * A <tt>ClusterCoordinator</tt> which keeps the state of the cluster in
+ * memory, for nodes which run in the same process, e.g. in tests.
+ * <p>
+ * The listeners are notified on a single thread of the coordinator.
+ */
+public class LocalClusterCoordinator
+    implements ClusterCoordinator
+{
+    /**
+     * The <tt>Logger</tt>, used to log messages to standard output.
+     */
+    private static final Logger logger = Logger
+        .getLogger(LocalClusterCoordinator.class);
+
+    /**
+     * The listeners of the members, according to their IDs.
+     */
+    private final Map<String, Listener> members =
+        new HashMap<String, Listener>();
+
+    /**
+     * The MUCs which are to be recorded, and the node which holds each of
+     * them (or null).
+     */
+    private final Map<String, String> recordings =
+        new HashMap<String, String>();
+
+    /**
+     * Notifies the listeners.
+     */
+    private final ExecutorService notifier = Executors
+        .newSingleThreadExecutor(new ThreadFactory()
+        {
+            @Override
+            public Thread newThread(Runnable r)
+            {
+                Thread t =
+                    new Thread(r, LocalClusterCoordinator.class.getName());
+                t.setDaemon(true);
+                return t;
+            }
+        });
+
+    /**
+     * The number of notifications which haven't been delivered yet.
+     */
+    private final AtomicInteger pendingNotifications = new AtomicInteger();
+
+    @Override
+    public void join(String nodeId, Listener listener)
+    {
+        synchronized (this)
+        {
+            members.put(nodeId, listener);
+        }
+        notifyMembers();
+    }
+
+    @Override
+    public void leave(String nodeId)
+    {
+        synchronized (this)
+        {
+            if (null == members.remove(nodeId))
+                return;
+
+            for (Map.Entry<String, String> e : recordings.entrySet())
+            {
+                if (nodeId.equals(e.getValue()))
+                    e.setValue(null);
+            }
+        }
+        notifyMembers();
+    }
+
+    /**
+     * Remove a node which has failed, as a failure detector would do. It's
+     * the same as if the node had left.
+     * 
+     * @param nodeId
+     */
+    public void fail(String nodeId)
+    {
+        logger.info("Node failed: " + nodeId);
+        leave(nodeId);
+    }
+
+    @Override
+    public synchronized Set<String> getMembers()
+    {
+        return new HashSet<String>(members.keySet());
+    }
+
+    @Override
+    public void addRecording(String mucJid)
+    {
+        synchronized (this)
+        {
+            if (recordings.containsKey(mucJid))
+                return;
+            recordings.put(mucJid, null);
+        }
+        notifyMembers();
+    }
+
+    @Override
+    public void removeRecording(String mucJid)
+    {
+        synchronized (this)
+        {
+            if (!recordings.containsKey(mucJid))
+                return;
+            recordings.remove(mucJid);
+        }
+        notifyMembers();
+    }
+
+    @Override
+    public synchronized Map<String, String> getRecordings()
+    {
+        return new HashMap<String, String>(recordings);
+    }
+
+    @Override
+    public boolean claim(String mucJid, String nodeId)
+    {
+        synchronized (this)
+        {
+            if (!members.containsKey(nodeId)
+                || !recordings.containsKey(mucJid))
+                return false;
+
+            String holder = recordings.get(mucJid);
+            if (null != holder)
+                return nodeId.equals(holder);
+
+            recordings.put(mucJid, nodeId);
+        }
+        notifyMembers();
+        return true;
+    }
+
+    @Override
+    public void release(String mucJid, String nodeId)
+    {
+        synchronized (this)
+        {
+            if (!nodeId.equals(recordings.get(mucJid)))
+                return;
+            recordings.put(mucJid, null);
+        }
+        notifyMembers();
+    }
+
+    /**
+     * Wait until all the notifications have been delivered, and the listeners
+     * haven't changed anything more.
+     * 
+     * @param timeout the maximum time to wait in milliseconds.
+     * @return <tt>false</tt> if the timeout has elapsed.
+     * @throws InterruptedException
+     */
+    public boolean awaitIdle(long timeout)
+        throws InterruptedException
+    {
+        final long deadline = System.currentTimeMillis() + timeout;
+
+        while (pendingNotifications.get() > 0)
+        {
+            if (System.currentTimeMillis() > deadline)
+                return false;
+            Thread.sleep(5);
+        }
+        return true;
+    }
+
+    /**
+     * Notify the listeners of all the members, on the notifier thread.
+     */
+    private void notifyMembers()
+    {
+        pendingNotifications.incrementAndGet();
+        notifier.execute(new Runnable()
+        {
+            @Override
+            public void run()
+            {
+                try
+                {
+                    List<Listener> listeners;
+                    synchronized (LocalClusterCoordinator.this)
+                    {
+                        listeners = new ArrayList<Listener>(members.values());
+                    }
+                    for (Listener listener : listeners)
+                    {
+                        try
+                        {
+                            listener.clusterChanged();
+                        }
+                        catch (Throwable t)
+                        {
+                            logger.error("Cluster listener failed", t);
+                        }
+                    }
+                }
+                finally
+                {
+                    pendingNotifications.decrementAndGet();
+                }
+            }
+        });
+    }
+}
@@ -0,0 +1,115 @@
+/*
+/*
+ * Jirecon, the JItsi REcording COntainer.
+ *
+ *
+ * Copyright @ 2015 Atlassian Pty Ltd
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.jitsi.jirecon.cluster;
+
+import java.util.*;
+
+import org.jitsi.jirecon.*;
+import org.jitsi.jirecon.TaskManagerEvent.*;
+import org.jitsi.util.*;
+
+/**
+ * Records the MUCs which a <tt>ClusterNode</tt> owns with the tasks of a
+ * <tt>TaskManager</tt>.
+ * <p>
+ * A task may also end by itself, e.g. when everybody has left the MUC or it
+ * has failed. Its recording is then removed from the cluster, otherwise the
+ * node would keep holding it and nobody would ever record the MUC again.
+ */
+public class TaskManagerRecorder
+    implements ClusterNode.Recorder, JireconEventListener
+{
+    /**
+     * The <tt>Logger</tt>, used to log messages to standard output.
+     */
+    private static final Logger logger = Logger
+        .getLogger(TaskManagerRecorder.class);
+
+    private final TaskManager taskManager;
+
+    private final ClusterCoordinator coordinator;
+
+    /**
+     * The MUCs whose tasks are being stopped by the node, e.g. at a handoff.
+     * Their end isn't reported to the coordinator.
+     */
+    private final Set<String> stopping =
+        Collections.synchronizedSet(new HashSet<String>());
+
+    /**
+     * Construction method. The recorder listens to the tasks of
+     * <tt>taskManager</tt> until it's closed.
+     * 
+     * @param taskManager an initialized <tt>TaskManager</tt>.
+     * @param coordinator the coordinator of the cluster of the node.
+     */
+    public TaskManagerRecorder(TaskManager taskManager,
+        ClusterCoordinator coordinator)
+    {
+        this.taskManager = taskManager;
+        this.coordinator = coordinator;
+        taskManager.addEventListener(this);
+    }
+
+    /**
+     * Stop listening to the tasks.
+     */
+    public void close()
+    {
+        taskManager.removeEventListener(this);
+    }
+
+    @Override
+    public boolean startRecording(String mucJid)
+    {
+        return taskManager.startJireconTask(mucJid);
+    }
+
+    @Override
+    public void stopRecording(String mucJid)
+    {
+        // The task reports its end while it's being stopped.
+        stopping.add(mucJid);
+        try
+        {
+            taskManager.stopJireconTask(mucJid, true);
+        }
+        finally
+        {
+            stopping.remove(mucJid);
+        }
+    }
+
+    @Override
+    public void handleEvent(TaskManagerEvent evt)
+    {
+        if (TaskManagerEvent.Type.TASK_FINISED != evt.getType()
+            && TaskManagerEvent.Type.TASK_ABORTED != evt.getType())
+            return;
+
+        String mucJid = evt.getMucJid();
+        if (stopping.contains(mucJid))
+            return;
+
+        logger.info("The recording of " + mucJid + " has ended, "
+            + evt.getType());
+        coordinator.removeRecording(mucJid);
+    }
+}
@@ -0,0 +1,59 @@
+/*
+/*
+ * Jirecon, the JItsi REcording COntainer.
+ *
+ *
+ * Copyright @ 2015 Atlassian Pty Ltd
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.jitsi.jirecon.datachannel;
+
+import java.util.*;
+
+/**
+ * Listens to the colibri events which the videobridge sends over the data
+ * channel, as decoded by <tt>ColibriMessageDecoder</tt>.
+ * <p>
+ * The methods are called on the thread which decodes the message. The lists
+ * are reused for the next message, so they must be copied if they are kept
+ * after the method returns.
+ */
+public interface ColibriEventListener
+{
+    /**
+     * Fired when the dominant speaker of the conference has changed.
+     *
+     * @param endpointId the id of the new dominant speaker.
+     */
+    public void dominantSpeakerChanged(String endpointId);
+
+    /**
+     * Fired when the set of last-N endpoints has changed.
+     *
+     * @param lastNEndpoints the ids of the endpoints which are in the last-N
+     *            set now.
+     * @param endpointsEnteringLastN the ids of the endpoints which have just
+     *            entered the last-N set.
+     */
+    public void lastNEndpointsChanged(List<String> lastNEndpoints,
+        List<String> endpointsEnteringLastN);
+
+    /**
+     * Fired when the connectivity of an endpoint has changed.
+     *
+     * @param endpointId the id of the endpoint.
+     * @param active whether the endpoint is connected.
+     */
+    public void endpointConnectivityChanged(String endpointId, boolean active);
+}
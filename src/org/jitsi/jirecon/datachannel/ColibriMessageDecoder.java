@@ -0,0 +1,719 @@
+/*
+/*
+ * Jirecon, the JItsi REcording COntainer.
+ *
+ *
+ * Copyright @ 2015 Atlassian Pty Ltd
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.jitsi.jirecon.datachannel;
+
+import java.util.*;
+
+import org.jitsi.util.*;
+
+/**
+ * Decodes the colibri messages which the videobridge sends over the data
+ * channel, directly from the UTF-8 bytes of the SCTP payload, and dispatches
+ * them to a <tt>ColibriEventListener</tt>.
+ * <p>
+ * No <tt>String</tt> of the whole message and no JSON objects are built: the
+ * message is scanned once, the fields we don't know are skipped, and only the
+ * values of the fields we need are decoded into a reused buffer. Endpoint ids
+ * are taken from a small cache, so decoding the messages of a conference
+ * whose endpoints are known doesn't allocate at all.
+ * <p>
+ * The messages which are handled are <tt>DominantSpeakerEndpointChangeEvent</tt>,
+ * <tt>LastNEndpointsChangeEvent</tt> and
+ * <tt>EndpointConnectivityStatusChangeEvent</tt>. A message without
+ * <tt>colibriClass</tt> but with <tt>dominantSpeakerEndpoint</tt> is taken as
+ * a dominant speaker change, like older videobridges send it.
+ * <p>
+ * <strong>Warning:</strong> It isn't thread-safe, every data channel should
+ * have its own decoder.
+ */
+public class ColibriMessageDecoder
+{
+    /**
+     * The <tt>Logger</tt>, used to log messages to standard output.
+     */
+    private static final Logger logger = Logger
+        .getLogger(ColibriMessageDecoder.class);
+
+    private static final String COLIBRI_CLASS = "colibriClass";
+
+    private static final String DOMINANT_SPEAKER_CLASS =
+        "DominantSpeakerEndpointChangeEvent";
+
+    private static final String LAST_N_CLASS = "LastNEndpointsChangeEvent";
+
+    private static final String CONNECTIVITY_CLASS =
+        "EndpointConnectivityStatusChangeEvent";
+
+    private static final String DOMINANT_SPEAKER_ENDPOINT =
+        "dominantSpeakerEndpoint";
+
+    private static final String LAST_N_ENDPOINTS = "lastNEndpoints";
+
+    private static final String ENDPOINTS_ENTERING_LAST_N =
+        "endpointsEnteringLastN";
+
+    private static final String ENDPOINT = "endpoint";
+
+    private static final String ACTIVE = "active";
+
+    /**
+     * The kinds of message, as told by their <tt>colibriClass</tt>.
+     */
+    private static final int UNKNOWN = 0;
+
+    private static final int DOMINANT_SPEAKER = 1;
+
+    private static final int LAST_N = 2;
+
+    private static final int CONNECTIVITY = 3;
+
+    /**
+     * The number of endpoint ids which are cached.
+     */
+    private static final int ID_CACHE_SIZE = 64;
+
+    /**
+     * Thrown when a message isn't valid JSON. There is a single instance
+     * without stack trace, so that garbage on the channel is cheap.
+     */
+    private static final MalformedMessageException MALFORMED =
+        new MalformedMessageException();
+
+    private final ColibriEventListener listener;
+
+    /**
+     * The message being decoded.
+     */
+    private byte[] data;
+
+    /**
+     * The position of the next byte to decode in {@link #data}.
+     */
+    private int pos;
+
+    /**
+     * The end of the message in {@link #data}.
+     */
+    private int end;
+
+    /**
+     * The last decoded string, which is valid up to {@link #charCount}.
+     */
+    private char[] chars = new char[128];
+
+    private int charCount;
+
+    /**
+     * The cache of the endpoint ids, which is replaced round robin.
+     */
+    private final String[] idCache = new String[ID_CACHE_SIZE];
+
+    private int nextIdCacheIndex = 0;
+
+    /*
+     * The fields of the message being decoded.
+     */
+    private int messageClass;
+
+    private boolean hasClass;
+
+    private String dominantSpeakerEndpoint;
+
+    private String endpoint;
+
+    private boolean active;
+
+    private boolean hasActive;
+
+    private final List<String> lastNEndpoints = new ArrayList<String>();
+
+    private final List<String> endpointsEnteringLastN =
+        new ArrayList<String>();
+
+    private final List<String> lastNEndpointsView = Collections
+        .unmodifiableList(lastNEndpoints);
+
+    private final List<String> endpointsEnteringLastNView = Collections
+        .unmodifiableList(endpointsEnteringLastN);
+
+    /**
+     * Construction method.
+     *
+     * @param listener the listener of the decoded events.
+     */
+    public ColibriMessageDecoder(ColibriEventListener listener)
+    {
+        this.listener = listener;
+    }
+
+    /**
+     * Decode a message and dispatch its event.
+     *
+     * @param data the buffer which contains the UTF-8 encoded message.
+     * @param offset the offset of the message in <tt>data</tt>.
+     * @param length the length of the message.
+     * @return whether an event has been dispatched. It is <tt>false</tt> if
+     *         the message is malformed, or isn't one we handle.
+     */
+    public boolean decode(byte[] data, int offset, int length)
+    {
+        this.data = data;
+        this.pos = offset;
+        this.end = offset + length;
+        clearFields();
+
+        try
+        {
+            decodeMessage();
+        }
+        catch (MalformedMessageException e)
+        {
+            if (logger.isDebugEnabled())
+            {
+                logger.debug("Malformed colibri message at byte "
+                    + (pos - offset));
+            }
+            return false;
+        }
+        finally
+        {
+            this.data = null;
+        }
+
+        return dispatch();
+    }
+
+    private void clearFields()
+    {
+        messageClass = UNKNOWN;
+        hasClass = false;
+        dominantSpeakerEndpoint = null;
+        endpoint = null;
+        hasActive = false;
+        lastNEndpoints.clear();
+        endpointsEnteringLastN.clear();
+    }
+
+    /**
+     * Fire the event of the decoded message, if any.
+     *
+     * @return whether an event has been fired.
+     */
+    private boolean dispatch()
+    {
+        switch (messageClass)
+        {
+        case DOMINANT_SPEAKER:
+            if (null == dominantSpeakerEndpoint)
+                return false;
+            listener.dominantSpeakerChanged(dominantSpeakerEndpoint);
+            return true;
+
+        case LAST_N:
+            listener.lastNEndpointsChanged(lastNEndpointsView,
+                endpointsEnteringLastNView);
+            return true;
+
+        case CONNECTIVITY:
+            if (null == endpoint || !hasActive)
+                return false;
+            listener.endpointConnectivityChanged(endpoint, active);
+            return true;
+
+        default:
+            if (hasClass || null == dominantSpeakerEndpoint)
+                return false;
+            listener.dominantSpeakerChanged(dominantSpeakerEndpoint);
+            return true;
+        }
+    }
+
+    /**
+     * Decode the top level object of the message, keeping the fields we need.
+     *
+     * @throws MalformedMessageException
+     */
+    private void decodeMessage()
+        throws MalformedMessageException
+    {
+        expect('{');
+        if (peek() == '}')
+        {
+            pos++;
+            return;
+        }
+
+        while (true)
+        {
+            if (peek() != '"')
+                throw MALFORMED;
+            readString();
+            expect(':');
+
+            if (charsEqual(COLIBRI_CLASS))
+            {
+                hasClass = true;
+                if (readNullableString())
+                    messageClass = toMessageClass();
+            }
+            else if (charsEqual(DOMINANT_SPEAKER_ENDPOINT))
+            {
+                if (readNullableString())
+                    dominantSpeakerEndpoint = toEndpointId();
+            }
+            else if (charsEqual(ENDPOINT))
+            {
+                if (readNullableString())
+                    endpoint = toEndpointId();
+            }
+            else if (charsEqual(ACTIVE))
+            {
+                readActive();
+            }
+            else if (charsEqual(LAST_N_ENDPOINTS))
+            {
+                readEndpointIds(lastNEndpoints);
+            }
+            else if (charsEqual(ENDPOINTS_ENTERING_LAST_N))
+            {
+                readEndpointIds(endpointsEnteringLastN);
+            }
+            else
+            {
+                skipValue();
+            }
+
+            byte b = next();
+            if (b == '}')
+                break;
+            if (b != ',')
+                throw MALFORMED;
+            skipWhitespace();
+        }
+    }
+
+    private int toMessageClass()
+    {
+        if (charsEqual(DOMINANT_SPEAKER_CLASS))
+            return DOMINANT_SPEAKER;
+        if (charsEqual(LAST_N_CLASS))
+            return LAST_N;
+        if (charsEqual(CONNECTIVITY_CLASS))
+            return CONNECTIVITY;
+        return UNKNOWN;
+    }
+
+    /**
+     * Read the <tt>active</tt> field, which is either a boolean or the string
+     * of a boolean.
+     *
+     * @throws MalformedMessageException
+     */
+    private void readActive()
+        throws MalformedMessageException
+    {
+        byte b = peek();
+        if (b == 't' || b == 'f')
+        {
+            active = b == 't';
+            skipLiteral(active ? "true" : "false");
+            hasActive = true;
+        }
+        else if (readNullableString())
+        {
+            active = charsEqual("true");
+            hasActive = active || charsEqual("false");
+        }
+    }
+
+    /**
+     * Read an array of endpoint ids.
+     *
+     * @param ids the list to add the ids to.
+     * @throws MalformedMessageException
+     */
+    private void readEndpointIds(List<String> ids)
+        throws MalformedMessageException
+    {
+        if (peek() == 'n')
+        {
+            skipLiteral("null");
+            return;
+        }
+
+        expect('[');
+        if (peek() == ']')
+        {
+            pos++;
+            return;
+        }
+        while (true)
+        {
+            if (readNullableString())
+                ids.add(toEndpointId());
+
+            byte b = next();
+            if (b == ']')
+                break;
+            if (b != ',')
+                throw MALFORMED;
+            skipWhitespace();
+        }
+    }
+
+    /**
+     * Get the endpoint id which is in {@link #chars}, from the cache if
+     * possible.
+     *
+     * @return
+     */
+    private String toEndpointId()
+    {
+        for (String id : idCache)
+        {
+            if (null != id && charsEqual(id))
+                return id;
+        }
+
+        String id = new String(chars, 0, charCount);
+        idCache[nextIdCacheIndex] = id;
+        nextIdCacheIndex = (nextIdCacheIndex + 1) % ID_CACHE_SIZE;
+        return id;
+    }
+
+    /**
+     * Tell whether the last decoded string equals <tt>s</tt>.
+     *
+     * @param s
+     * @return
+     */
+    private boolean charsEqual(String s)
+    {
+        if (s.length() != charCount)
+            return false;
+        for (int i = 0; i < charCount; i++)
+        {
+            if (s.charAt(i) != chars[i])
+                return false;
+        }
+        return true;
+    }
+
+    /**
+     * Read a string value or <tt>null</tt>, and skip the whitespace after it.
+     *
+     * @return <tt>true</tt> if a string has been read into {@link #chars},
+     *         <tt>false</tt> if the value is <tt>null</tt>.
+     * @throws MalformedMessageException if the value is neither.
+     */
+    private boolean readNullableString()
+        throws MalformedMessageException
+    {
+        if (peek() == 'n')
+        {
+            skipLiteral("null");
+            return false;
+        }
+        if (peek() != '"')
+            throw MALFORMED;
+
+        readString();
+        return true;
+    }
+
+    /**
+     * Decode the string which starts at {@link #pos} into {@link #chars}, and
+     * skip the whitespace after it.
+     *
+     * @throws MalformedMessageException
+     */
+    private void readString()
+        throws MalformedMessageException
+    {
+        pos++; // The opening quote.
+        charCount = 0;
+
+        while (true)
+        {
+            int b = next0() & 0xFF;
+
+            if (b == '"')
+                break;
+
+            if (b == '\\')
+            {
+                appendChar(readEscape());
+            }
+            else if (b < 0x80)
+            {
+                appendChar((char) b);
+            }
+            else if ((b & 0xE0) == 0xC0)
+            {
+                appendChar((char) (((b & 0x1F) << 6) | continuation()));
+            }
+            else if ((b & 0xF0) == 0xE0)
+            {
+                int c = (b & 0x0F) << 12;
+                c |= continuation() << 6;
+                c |= continuation();
+                appendChar((char) c);
+            }
+            else if ((b & 0xF8) == 0xF0)
+            {
+                int c = (b & 0x07) << 18;
+                c |= continuation() << 12;
+                c |= continuation() << 6;
+                c |= continuation();
+                c -= 0x10000;
+                appendChar((char) (0xD800 | (c >> 10)));
+                appendChar((char) (0xDC00 | (c & 0x3FF)));
+            }
+            else
+            {
+                throw MALFORMED;
+            }
+        }
+
+        skipWhitespace();
+    }
+
+    /**
+     * Read the 6 low bits of a UTF-8 continuation byte.
+     *
+     * @return
+     * @throws MalformedMessageException
+     */
+    private int continuation()
+        throws MalformedMessageException
+    {
+        int b = next0();
+        if ((b & 0xC0) != 0x80)
+            throw MALFORMED;
+        return b & 0x3F;
+    }
+
+    /**
+     * Read the escape sequence after a backslash.
+     *
+     * @return the escaped char.
+     * @throws MalformedMessageException
+     */
+    private char readEscape()
+        throws MalformedMessageException
+    {
+        byte b = next0();
+        switch (b)
+        {
+        case '"':
+        case '\\':
+        case '/':
+            return (char) b;
+        case 'b':
+            return '\b';
+        case 'f':
+            return '\f';
+        case 'n':
+            return '\n';
+        case 'r':
+            return '\r';
+        case 't':
+            return '\t';
+        case 'u':
+            int c = 0;
+            for (int i = 0; i < 4; i++)
+            {
+                int digit = Character.digit(next0(), 16);
+                if (digit < 0)
+                    throw MALFORMED;
+                c = (c << 4) | digit;
+            }
+            return (char) c;
+        default:
+            throw MALFORMED;
+        }
+    }
+
+    private void appendChar(char c)
+    {
+        if (charCount == chars.length)
+            chars = Arrays.copyOf(chars, 2 * chars.length);
+        chars[charCount++] = c;
+    }
+
+    /**
+     * Skip any value: string, number, literal, object or array, and the
+     * whitespace after it.
+     *
+     * @throws MalformedMessageException
+     */
+    private void skipValue()
+        throws MalformedMessageException
+    {
+        int depth = 0;
+
+        do
+        {
+            byte b = peek();
+
+            if (b == '"')
+            {
+                skipString();
+                continue;
+            }
+
+            pos++;
+            if (b == '{' || b == '[')
+            {
+                depth++;
+            }
+            else if (b == '}' || b == ']')
+            {
+                if (--depth < 0)
+                    throw MALFORMED;
+            }
+            else if (b != ',' && b != ':')
+            {
+                // Number or literal.
+                while (pos < end && !isDelimiter(data[pos]))
+                    pos++;
+            }
+            skipWhitespace();
+        }
+        while (depth > 0);
+    }
+
+    private void skipString()
+        throws MalformedMessageException
+    {
+        pos++; // The opening quote.
+        while (true)
+        {
+            byte b = next0();
+            if (b == '"')
+                break;
+            if (b == '\\')
+                next0();
+        }
+        skipWhitespace();
+    }
+
+    private void skipLiteral(String literal)
+        throws MalformedMessageException
+    {
+        for (int i = 0; i < literal.length(); i++)
+        {
+            if (next0() != literal.charAt(i))
+                throw MALFORMED;
+        }
+        skipWhitespace();
+    }
+
+    private static boolean isDelimiter(byte b)
+    {
+        return b == ',' || b == '}' || b == ']' || b == ':' || b == '"'
+            || isWhitespace(b);
+    }
+
+    private static boolean isWhitespace(byte b)
+    {
+        return b == ' ' || b == '\t' || b == '\n' || b == '\r';
+    }
+
+    private void skipWhitespace()
+    {
+        while (pos < end && isWhitespace(data[pos]))
+            pos++;
+    }
+
+    /**
+     * Skip the whitespace, then check that the next byte is <tt>c</tt> and
+     * skip it and the whitespace after it.
+     *
+     * @param c
+     * @throws MalformedMessageException
+     */
+    private void expect(char c)
+        throws MalformedMessageException
+    {
+        skipWhitespace();
+        if (next0() != c)
+            throw MALFORMED;
+        skipWhitespace();
+    }
+
+    /**
+     * Get the next byte which isn't whitespace, without consuming it.
+     *
+     * @return
+     * @throws MalformedMessageException at the end of the message.
+     */
+    private byte peek()
+        throws MalformedMessageException
+    {
+        skipWhitespace();
+        if (pos >= end)
+            throw MALFORMED;
+        return data[pos];
+    }
+
+    /**
+     * Consume the next byte which isn't whitespace.
+     *
+     * @return
+     * @throws MalformedMessageException at the end of the message.
+     */
+    private byte next()
+        throws MalformedMessageException
+    {
+        byte b = peek();
+        pos++;
+        return b;
+    }
+
+    /**
+     * Consume the next byte, whitespace or not.
+     *
+     * @return
+     * @throws MalformedMessageException at the end of the message.
+     */
+    private byte next0()
+        throws MalformedMessageException
+    {
+        if (pos >= end)
+            throw MALFORMED;
+        return data[pos++];
+    }
+
+    /**
+     * Thrown when a message isn't valid JSON.
+     */
+    private static class MalformedMessageException
+        extends Exception
+    {
+        private static final long serialVersionUID = 0L;
+
+        @Override
+        public synchronized Throwable fillInStackTrace()
+        {
+            return this;
+        }
+    }
+}
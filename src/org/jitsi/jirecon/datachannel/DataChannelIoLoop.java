@@ -0,0 +1,210 @@
+/*
+/*
+ * Jirecon, the JItsi REcording COntainer.
+ *
+ *
+ * Copyright @ 2015 Atlassian Pty Ltd
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.jitsi.jirecon.datachannel;
+
+import java.io.*;
+import java.net.*;
+import java.util.concurrent.*;
+
+import org.jitsi.util.*;
+
+/**
+ * The receive loops of all data channel sockets of the process.
+ * <p>
+ * The sockets are those of ice4j, which aren't backed by a
+ * <tt>DatagramChannel</tt> and can't be selected, so each one is read by a
+ * thread of a shared pool. The threads are reused from one link to the next
+ * one, and a receive timeout makes sure that a thread always notices when its
+ * socket is unregistered.
+ * <p>
+ * {@link Registration#cancel()} returns only once the handler of the socket
+ * won't be called any more, so a link can be torn down deterministically.
+ */
+public class DataChannelIoLoop
+{
+    /**
+     * The <tt>Logger</tt>, used to log messages to standard output.
+     */
+    private static final Logger logger = Logger
+        .getLogger(DataChannelIoLoop.class);
+
+    /**
+     * The receive timeout in milliseconds of the sockets. It bounds the time
+     * <tt>cancel</tt> waits for.
+     */
+    public static final int POLL_TIMEOUT = 200;
+
+    /**
+     * The single instance.
+     */
+    private static final DataChannelIoLoop instance = new DataChannelIoLoop();
+
+    /**
+     * Get the single <tt>DataChannelIoLoop</tt> of the process.
+     *
+     * @return
+     */
+    public static DataChannelIoLoop getInstance()
+    {
+        return instance;
+    }
+
+    /**
+     * Handles the packets received on a socket.
+     */
+    public interface PacketHandler
+    {
+        /**
+         * Handle a packet. The packet is reused for the next packet once this
+         * method returns.
+         *
+         * @param packet the received packet.
+         * @throws IOException
+         */
+        public void handlePacket(PooledRawPacket packet)
+            throws IOException;
+    }
+
+    /**
+     * The pool of <tt>Thread</tt>s which read the sockets.
+     */
+    private final ExecutorService receivers = ExecutorUtils
+        .newCachedThreadPool(true, DataChannelIoLoop.class.getName());
+
+    private DataChannelIoLoop()
+    {
+    }
+
+    /**
+     * Start receiving the packets of a socket.
+     *
+     * @param socket
+     * @param handler the handler of the received packets.
+     * @param bufferSize the size of the receive buffer.
+     * @return the registration, which must be cancelled to stop receiving.
+     * @throws IOException if failed to set the socket up.
+     */
+    public Registration register(DatagramSocket socket,
+        PacketHandler handler, int bufferSize)
+        throws IOException
+    {
+        Registration registration =
+            new Registration(socket, handler, bufferSize);
+
+        socket.setSoTimeout(POLL_TIMEOUT);
+        receivers.execute(registration);
+        return registration;
+    }
+
+    /**
+     * The registration of a socket.
+     */
+    public class Registration
+        implements Runnable
+    {
+        private final DatagramSocket socket;
+
+        private final PacketHandler handler;
+
+        /**
+         * The packet which every datagram is received in.
+         */
+        private final PooledRawPacket packet;
+
+        private volatile boolean cancelled = false;
+
+        /**
+         * Counted down once the handler won't be called any more.
+         */
+        private final CountDownLatch done = new CountDownLatch(1);
+
+        private Registration(DatagramSocket socket, PacketHandler handler,
+            int bufferSize)
+        {
+            this.socket = socket;
+            this.handler = handler;
+            this.packet = new PooledRawPacket(bufferSize);
+        }
+
+        /**
+         * Stop receiving. When it returns, the handler isn't being called and
+         * won't be called any more, unless it is called from the handler
+         * itself or the handler blocks for longer than twice
+         * {@link #POLL_TIMEOUT}.
+         */
+        public void cancel()
+        {
+            if (cancelled)
+                return;
+            cancelled = true;
+
+            try
+            {
+                done.await(2 * POLL_TIMEOUT, TimeUnit.MILLISECONDS);
+            }
+            catch (InterruptedException e)
+            {
+                Thread.currentThread().interrupt();
+            }
+        }
+
+        /**
+         * Read the socket, on a pooled thread.
+         */
+        @Override
+        public void run()
+        {
+            byte[] buffer = packet.getPooledBuffer();
+            DatagramPacket datagram =
+                new DatagramPacket(buffer, 0, buffer.length);
+
+            try
+            {
+                while (!cancelled)
+                {
+                    datagram.setLength(buffer.length);
+                    try
+                    {
+                        socket.receive(datagram);
+                    }
+                    catch (SocketTimeoutException e)
+                    {
+                        continue;
+                    }
+
+                    if (cancelled)
+                        break;
+
+                    packet.reset(datagram.getLength());
+                    handler.handlePacket(packet);
+                }
+            }
+            catch (IOException e)
+            {
+                if (!cancelled)
+                    logger.warn("Failed to receive data channel packet", e);
+            }
+            finally
+            {
+                done.countDown();
+            }
+        }
+    }
+}
@@ -0,0 +1,48 @@
+/*
+/*
+ * Jirecon, the JItsi REcording COntainer.
+ *
+ *
+ * Copyright @ 2015 Atlassian Pty Ltd
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.jitsi.jirecon.datachannel;
+
+/**
+ * Traces the control packets of the WebRTC data channel establishment
+ * protocol which go through a <tt>WebRtcDataStreamManager</tt>.
+ * <p>
+ * When no tracer is set, the manager doesn't do any work for tracing, not
+ * even formatting the packets.
+ */
+public interface DataChannelTracer
+{
+    /**
+     * Fired when a control packet is received, before it is handled.
+     *
+     * @param endpointId the endpoint id of the manager.
+     * @param sid the SCTP stream id the packet has arrived on.
+     * @param data the packet. It must not be modified.
+     */
+    public void controlPacketReceived(String endpointId, int sid, byte[] data);
+
+    /**
+     * Fired when a control packet is about to be sent.
+     *
+     * @param endpointId the endpoint id of the manager.
+     * @param sid the SCTP stream id the packet is sent on.
+     * @param data the packet. It must not be modified.
+     */
+    public void controlPacketSent(String endpointId, int sid, byte[] data);
+}
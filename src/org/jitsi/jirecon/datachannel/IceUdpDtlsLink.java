@@ -21,7 +21,6 @@ package org.jitsi.jirecon.datachannel;
 
 import java.io.*;
 import java.net.*;
-import java.util.concurrent.*;
 import org.jitsi.impl.neomedia.*;
 import org.jitsi.impl.neomedia.transform.dtls.*;
 import org.jitsi.sctp4j.*;
@@ -38,17 +37,14 @@ import org.jitsi.service.packetlogging.*;
  * 
  */
 public class IceUdpDtlsLink
-    implements NetworkLink
+    implements NetworkLink, DataChannelIoLoop.PacketHandler
 {
     /**
-     * DTLS transport buffer size. Note: randomly chosen.
+     * Receive buffer size. We receive whole DTLS records and decrypt them in
+     * place, so it must hold the largest record.
      */
-    private final static int DTLS_BUFFER_SIZE = 2048;
-
-    /**
-     * SCTP transport buffer size.
-     */
-    private final static int SCTP_BUFFER_SIZE = DTLS_BUFFER_SIZE - 13;
+    private final static int RECEIVE_BUFFER_SIZE =
+        PooledRawPacket.MAX_RECORD_SIZE;
 
     /**
      * <tt>SctpSocket</tt> instance that is used in this connection.
@@ -65,8 +61,11 @@ public class IceUdpDtlsLink
      */
     private DtlsPacketTransformer transformer;
 
-    private ExecutorService executorService = Executors
-        .newSingleThreadExecutor();
+    /**
+     * Our registration with the <tt>DataChannelIoLoop</tt>, or null if we
+     * have been closed.
+     */
+    private DataChannelIoLoop.Registration registration;
 
     /**
      * Switch used for debugging SCTP traffic purposes. FIXME to be removed
@@ -83,14 +82,23 @@ public class IceUdpDtlsLink
      */
     private int debugId = generateDebugId();
 
+    /**
+     * The source and destination addresses of the packet logs.
+     */
+    private final byte[] logSourceAddress = { 0, 0, 0, (byte) (debugId + 1) };
+
+    private final byte[] logDestinationAddress = { 0, 0, 0, (byte) debugId };
+
     /**
      * 
      * @param sctpSocket Indicate which <tt>SctpSocket</tt> this link will bind to.
      * @param datagramSocket ICE-UDP socket which is used for receiving packets.
      * @param transformer DTLS transformer which is used for sending packets.
+     * @throws IOException if failed to start receiving.
      */
     public IceUdpDtlsLink(SctpSocket sctpSocket, DatagramSocket datagramSocket,
         DtlsPacketTransformer transformer)
+        throws IOException
     {
         this.sctpSocket = sctpSocket;
         this.datagramSocket = datagramSocket;
@@ -99,76 +107,74 @@ public class IceUdpDtlsLink
         startReceiving();
     }
 
+    /**
+     * Start receiving through the shared <tt>DataChannelIoLoop</tt>.
+     * 
+     * @throws IOException if failed to register the socket.
+     */
     private void startReceiving()
+        throws IOException
     {
-        executorService.execute(new Runnable()
+        registration =
+            DataChannelIoLoop.getInstance().register(datagramSocket, this,
+                RECEIVE_BUFFER_SIZE);
+    }
+
+    /**
+     * Stop receiving. Once it returns, nothing is passed to the
+     * <tt>SctpSocket</tt> any more.
+     */
+    public synchronized void close()
+    {
+        if (null != registration)
         {
-            public void run()
-            {
-                byte[] receiveBuffer = new byte[SCTP_BUFFER_SIZE];
-                DatagramPacket rcvPacket =
-                    new DatagramPacket(receiveBuffer, 0, receiveBuffer.length);
-
-                try
-                {
-                    /*
-                     * Once SctpSocket is closed, this loop will be broken down,
-                     * so we don't have to worry about closing this link.
-                     */
-                    do
-                    {
-                        datagramSocket.receive(rcvPacket);
-
-                        RawPacket raw =
-                            new RawPacket(rcvPacket.getData(), rcvPacket
-                                .getOffset(), rcvPacket.getLength());
-
-                        raw = transformer.reverseTransform(raw);
-                        // Check for app data
-                        if (raw == null)
-                            continue;
-
-                        if (LOG_SCTP_PACKETS)
-                        {
-                            LibJitsi.getPacketLoggingService().logPacket(
-                                PacketLoggingService.ProtocolName.ICE4J,
-                                new byte[]
-                                { 0, 0, 0, (byte) (debugId + 1) },
-                                datagramSocket.getPort(), new byte[]
-                                { 0, 0, 0, (byte) debugId }, 5000,
-                                PacketLoggingService.TransportName.UDP, false,
-                                raw.getBuffer(), raw.getOffset(),
-                                raw.getLength());
-                        }
-
-                        // Pass network packet to SCTP stack
-                        sctpSocket.onConnIn(raw.getBuffer(), raw.getOffset(),
-                            raw.getLength());
-                    }
-                    while (true);
-                }
-                catch (IOException e)
-                {
-                    e.printStackTrace();
-                }
-            }
-        });
+            registration.cancel();
+            registration = null;
+        }
     }
 
     /**
      * {@inheritDoc}
+     * <p>
+     * The datagram, the DTLS record and the decrypted SCTP packet all stay in
+     * the reused buffer of <tt>packet</tt>, so nothing is allocated per packet
+     * between receiving the datagram and <tt>sctpSocket.onConnIn</tt>.
      */
     @Override
-    public void onConnOut(final SctpSocket s, final byte[] packetData)
+    public void handlePacket(PooledRawPacket packet)
         throws IOException
     {
-        RawPacket rawPacket = new RawPacket();
+        RawPacket app = transformer.reverseTransform(packet);
+        // Check for app data
+        if (app == null)
+            return;
 
-        // Send through DTLS transport
-        rawPacket.setBuffer(packetData);
-        rawPacket.setLength(packetData.length);
+        if (LOG_SCTP_PACKETS)
+        {
+            LibJitsi.getPacketLoggingService().logPacket(
+                PacketLoggingService.ProtocolName.ICE4J,
+                logSourceAddress, datagramSocket.getPort(),
+                logDestinationAddress, 5000,
+                PacketLoggingService.TransportName.UDP, false,
+                app.getBuffer(), app.getOffset(), app.getLength());
+        }
+
+        // Pass network packet to SCTP stack
+        sctpSocket.onConnIn(app.getBuffer(), app.getOffset(), app.getLength());
+    }
 
-        transformer.transform(rawPacket);
+    /**
+     * {@inheritDoc}
+     * <p>
+     * The packet is handed to DTLS as it is, without wrapping it in a
+     * <tt>RawPacket</tt>.
+     */
+    @Override
+    public void onConnOut(final SctpSocket s, final byte[] packetData)
+        throws IOException
+    {
+        // Send through DTLS transport
+        transformer.sendApplicationData(packetData, 0, packetData.length);
     }
 
     private static synchronized int generateDebugId()
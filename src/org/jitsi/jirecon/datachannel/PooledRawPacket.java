@@ -0,0 +1,94 @@
+/*
+/*
+ * Jirecon, the JItsi REcording COntainer.
+ *
+ *
+ * Copyright @ 2015 Atlassian Pty Ltd
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.jitsi.jirecon.datachannel;
+
+import org.jitsi.impl.neomedia.*;
+
+/**
+ * A <tt>RawPacket</tt> which is reused for every packet received on a link.
+ * <p>
+ * <tt>DtlsPacketTransformer.reverseTransform</tt> grows the packet up to the
+ * DTLS receive limit before it decrypts the record in place, and
+ * <tt>RawPacket.grow</tt> always allocates a new buffer. This one only does
+ * so if its own buffer is too small, so with a buffer of
+ * {@link #MAX_RECORD_SIZE} bytes no allocation happens at all.
+ */
+public class PooledRawPacket
+    extends RawPacket
+{
+    /**
+     * The size of the largest DTLS record: the 13 bytes header, the largest
+     * plaintext (2^14 bytes) and the largest expansion (2048 bytes).
+     */
+    public static final int MAX_RECORD_SIZE = 13 + (1 << 14) + 2048;
+
+    /**
+     * The buffer which we own and return to after each packet.
+     */
+    private final byte[] pooledBuffer;
+
+    /**
+     * Construction method.
+     *
+     * @param size the size of the buffer.
+     */
+    public PooledRawPacket(int size)
+    {
+        pooledBuffer = new byte[size];
+        reset(0);
+    }
+
+    /**
+     * Get the buffer which this packet owns, to receive the next datagram in.
+     *
+     * @return
+     */
+    public byte[] getPooledBuffer()
+    {
+        return pooledBuffer;
+    }
+
+    /**
+     * Make the packet point to the beginning of its own buffer again.
+     *
+     * @param length the length of the data in the buffer.
+     */
+    public void reset(int length)
+    {
+        setBuffer(pooledBuffer);
+        setOffset(0);
+        setLength(length);
+    }
+
+    /**
+     * {@inheritDoc}
+     *
+     * Only allocates a new buffer if the current one doesn't have
+     * <tt>howMuch</tt> spare bytes after the data.
+     */
+    @Override
+    public void grow(int howMuch)
+    {
+        if (getBuffer().length - getOffset() - getLength() >= howMuch)
+            return;
+
+        super.grow(howMuch);
+    }
+}
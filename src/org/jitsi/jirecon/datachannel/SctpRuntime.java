@@ -0,0 +1,272 @@
+/*
+/*
+ * Jirecon, the JItsi REcording COntainer.
+ *
+ *
+ * Copyright @ 2015 Atlassian Pty Ltd
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.jitsi.jirecon.datachannel;
+
+import java.io.*;
+import java.util.concurrent.*;
+
+import org.jitsi.sctp4j.*;
+import org.jitsi.util.*;
+
+/**
+ * The process-wide owner of the native SCTP stack.
+ * <p>
+ * The usrsctp stack behind <tt>Sctp</tt> is global to the process, so it must
+ * not be initialized and finished by every data channel. Each user
+ * {@link #acquire()}s the runtime and {@link #release()}s it when done. The
+ * stack is initialized by the first user, and finished only after the last
+ * one has left and the runtime has stayed idle for the configured time, so
+ * tasks which start in quick succession don't pay for re-initialization.
+ */
+public class SctpRuntime
+{
+    /**
+     * The <tt>Logger</tt>, used to log messages to standard output.
+     */
+    private static final Logger logger = Logger.getLogger(SctpRuntime.class);
+
+    /**
+     * The default time in milliseconds the stack stays initialized after its
+     * last user has left.
+     */
+    public static final long DEFAULT_IDLE_TIMEOUT = 30000;
+
+    /**
+     * The default SCTP port of the sockets.
+     */
+    public static final int DEFAULT_PORT = 5000;
+
+    /**
+     * The single instance.
+     */
+    private static final SctpRuntime instance = new SctpRuntime();
+
+    /**
+     * Get the <tt>SctpRuntime</tt> of the process.
+     *
+     * @return
+     */
+    public static SctpRuntime getInstance()
+    {
+        return instance;
+    }
+
+    /**
+     * The worker which finishes the stack once it has been idle long enough.
+     * Its thread only exists while a finish is pending.
+     */
+    private final ScheduledThreadPoolExecutor finisher;
+
+    /**
+     * The time in milliseconds the stack stays initialized after its last
+     * user has left. If it's negative, the stack is never finished.
+     */
+    private long idleTimeout = DEFAULT_IDLE_TIMEOUT;
+
+    /**
+     * The SCTP port of the sockets.
+     */
+    private int port = DEFAULT_PORT;
+
+    /**
+     * The number of users.
+     */
+    private int refCount = 0;
+
+    /**
+     * Whether the stack is initialized.
+     */
+    private boolean initialized = false;
+
+    /**
+     * The pending finish of the stack, or null.
+     */
+    private ScheduledFuture<?> pendingFinish;
+
+    /**
+     * How many times the stack has been initialized.
+     */
+    private int initCount = 0;
+
+    private SctpRuntime()
+    {
+        finisher = new ScheduledThreadPoolExecutor(1, new ThreadFactory()
+        {
+            @Override
+            public Thread newThread(Runnable r)
+            {
+                Thread t = new Thread(r, SctpRuntime.class.getName());
+                t.setDaemon(true);
+                return t;
+            }
+        });
+        finisher.setKeepAliveTime(1, TimeUnit.SECONDS);
+        finisher.allowCoreThreadTimeOut(true);
+    }
+
+    /**
+     * Configure the runtime.
+     *
+     * @param idleTimeout the time in milliseconds the stack stays initialized
+     *            after its last user has left, negative for ever.
+     * @param port the SCTP port of the sockets.
+     */
+    public synchronized void configure(long idleTimeout, int port)
+    {
+        this.idleTimeout = idleTimeout;
+        this.port = port;
+    }
+
+    /**
+     * Become a user of the stack, and initialize it if needed.
+     */
+    public synchronized void acquire()
+    {
+        if (null != pendingFinish)
+        {
+            pendingFinish.cancel(false);
+            pendingFinish = null;
+        }
+        if (!initialized)
+        {
+            Sctp.init();
+            initialized = true;
+            initCount++;
+            logger.info("SCTP stack initialized.");
+        }
+
+        // Only count the user once the stack is up, a failed initialization
+        // mustn't keep the runtime from being finished.
+        refCount++;
+    }
+
+    /**
+     * Stop being a user of the stack. The last user schedules the finish of
+     * the stack.
+     */
+    public synchronized void release()
+    {
+        if (refCount <= 0)
+        {
+            logger.warn("SCTP runtime released more than acquired.",
+                new Throwable());
+            return;
+        }
+
+        refCount--;
+        if (0 != refCount || idleTimeout < 0)
+            return;
+
+        if (0 == idleTimeout)
+        {
+            finish();
+            return;
+        }
+
+        pendingFinish = finisher.schedule(new Runnable()
+        {
+            @Override
+            public void run()
+            {
+                synchronized (SctpRuntime.this)
+                {
+                    if (0 == refCount && null != pendingFinish)
+                    {
+                        pendingFinish = null;
+                        finish();
+                    }
+                }
+            }
+        }, idleTimeout, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Create an <tt>SctpSocket</tt> on the configured port.
+     * <p>
+     * <strong>Warning:</strong> The caller must have acquired the runtime.
+     *
+     * @return
+     */
+    public SctpSocket createSocket()
+    {
+        int port;
+        synchronized (this)
+        {
+            if (!initialized)
+                throw new IllegalStateException("SCTP runtime not acquired");
+            port = this.port;
+        }
+        return Sctp.createSocket(port);
+    }
+
+    /**
+     * Get the configured SCTP port of the sockets, which is also the one of
+     * the remote peer.
+     *
+     * @return
+     */
+    public synchronized int getPort()
+    {
+        return port;
+    }
+
+    /**
+     * Get the number of users.
+     *
+     * @return
+     */
+    public synchronized int getRefCount()
+    {
+        return refCount;
+    }
+
+    /**
+     * Get how many times the stack has been initialized since the process
+     * started.
+     *
+     * @return
+     */
+    public synchronized int getInitCount()
+    {
+        return initCount;
+    }
+
+    /**
+     * Finish the stack.
+     * <p>
+     * <strong>Warning:</strong> The caller must hold the lock of this.
+     */
+    private void finish()
+    {
+        if (!initialized)
+            return;
+
+        try
+        {
+            Sctp.finish();
+            logger.info("SCTP stack finished.");
+        }
+        catch (IOException e)
+        {
+            logger.error("Failed to finish the SCTP stack", e);
+        }
+        initialized = false;
+    }
+}
@@ -22,6 +22,7 @@ package org.jitsi.jirecon.datachannel;
 import net.java.sip.communicator.util.*;
 import org.jitsi.sctp4j.*;
 import java.io.*;
+import java.nio.charset.*;
 
 /**
  * Class represent WebRTC data channel that runs on top of DTLS/SCTP connection.
@@ -47,6 +48,11 @@ public class WebRtcDataStream
      */
     public static final int WEB_RTC_PPID_BIN = 53;
     
+    /**
+     * The charset of the string messages.
+     */
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+
     /**
      * The logger
      */
@@ -142,6 +148,27 @@ public class WebRtcDataStream
             dataCallback.onStringData(this, stringMsg);
     }
 
+    /**
+     * Fired when string UTF8 encoded data is received on this stream. If the
+     * callback is a <tt>Utf8DataCallback</tt> it gets the bytes as they are,
+     * otherwise they are decoded into a <tt>String</tt> first.
+     * @param data the UTF8 encoded string data received.
+     */
+    public void onStringMsg(byte[] data)
+    {
+        DataCallback dataCallback = this.dataCallback;
+
+        if (dataCallback instanceof Utf8DataCallback)
+        {
+            ((Utf8DataCallback) dataCallback)
+                .onUtf8Data(this, data, 0, data.length);
+        }
+        else if (dataCallback != null)
+        {
+            dataCallback.onStringData(this, new String(data, UTF8));
+        }
+    }
+
     /**
      * Sends given text message over this WebRTC data channel using UTF8
      * encoding.
@@ -231,4 +258,27 @@ public class WebRtcDataStream
          */
         public void onBinaryData(WebRtcDataStream src, byte[] data);
     }
+
+    /**
+     * A <tt>DataCallback</tt> which receives the string messages as UTF8
+     * encoded bytes, so that it can decode them without building a
+     * <tt>String</tt> first.
+     */
+    public interface Utf8DataCallback
+        extends DataCallback
+    {
+        /**
+         * Fired when <tt>String</tt> message is received on this
+         * <tt>WebRtcDataStream</tt>, instead of
+         * {@link DataCallback#onStringData(WebRtcDataStream, String)}.
+         *
+         * @param src the <tt>WebRtcDataStream</tt> on which this message was
+         *            received.
+         * @param data the buffer which contains the UTF8 encoded message.
+         * @param offset the offset of the message in <tt>data</tt>.
+         * @param length the length of the message.
+         */
+        public void onUtf8Data(WebRtcDataStream src, byte[] data, int offset,
+            int length);
+    }
 }
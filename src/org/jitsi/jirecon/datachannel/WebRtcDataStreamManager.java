@@ -22,8 +22,8 @@ package org.jitsi.jirecon.datachannel;
 import java.io.*;
 import java.net.*;
 import java.nio.*;
-import java.util.*;
 import java.util.concurrent.*;
+import java.util.concurrent.atomic.*;
 import javax.media.rtp.*;
 import org.jitsi.impl.neomedia.*;
 import org.jitsi.impl.neomedia.transform.dtls.*;
@@ -68,6 +68,12 @@ public class WebRtcDataStreamManager
     private static final String WEBRTC_DATA_CHANNEL_PROTOCOL =
         "http://jitsi.org/protocols/colibri";
 
+    /**
+     * The number of SCTP stream ids, which is the number of streams the
+     * socket negotiates. All sids are lower than it.
+     */
+    public static final int MAX_SID_COUNT = 1024;
+
     /**
      * The pool of <tt>Thread</tt>s which run <tt>SctpConnection</tt>s.
      */
@@ -91,16 +97,22 @@ public class WebRtcDataStreamManager
      */
     private SctpSocket sctpSocket;
 
+    /**
+     * The link which carries the SCTP packets of {@link #sctpSocket}.
+     */
+    private IceUdpDtlsLink link;
+
     /**
      * Owner endpoint id.
      */
     private String endpointId;
 
     /**
-     * Map of "sid" and <tt>WebRtcDataStream</tt>.
+     * The <tt>WebRtcDataStream</tt>s indexed by "sid". It is read without
+     * locking by every inbound message.
      */
-    private Map<Integer, WebRtcDataStream> channels =
-        new HashMap<Integer, WebRtcDataStream>();
+    private final AtomicReferenceArray<WebRtcDataStream> channels =
+        new AtomicReferenceArray<WebRtcDataStream>(MAX_SID_COUNT);
 
     /**
      * This receiver is used for handling control packets and forward message
@@ -108,7 +120,12 @@ public class WebRtcDataStreamManager
      */
     private SctpPacketReceiver packetReceiver = new SctpPacketReceiver();
     
-    private WebRtcDataStreamListener listener;
+    private volatile WebRtcDataStreamListener listener;
+
+    /**
+     * Traces the control packets, or null if tracing is disabled.
+     */
+    private volatile DataChannelTracer tracer;
 
     /**
      * 
@@ -117,6 +134,8 @@ public class WebRtcDataStreamManager
     public WebRtcDataStreamManager(String endpointId)
     {
         this.endpointId = endpointId;
+        if (logger.isTraceEnabled())
+            tracer = new LoggingTracer();
     }
 
     /**
@@ -136,6 +155,7 @@ public class WebRtcDataStreamManager
         try
         {
             initSctp(connector, streamTarget, dtlsControl);
+            sctpSocket.listen();
 
             // FIXME manage threads
             threadPool.execute(new Runnable()
@@ -179,7 +199,7 @@ public class WebRtcDataStreamManager
         try
         {
             initSctp(connector, streamTarget, dtlsControl);
-            sctpSocket.connect(5000);
+            sctpSocket.connect(SctpRuntime.getInstance().getPort());
         }
         catch (Exception e)
         {
@@ -222,11 +242,12 @@ public class WebRtcDataStreamManager
      * @param sid
      * @return
      */
-    public synchronized WebRtcDataStream getChannel(int sid)
+    public WebRtcDataStream getChannel(int sid)
     {
         WebRtcDataStream channel = null;
 
-        channel = channels.get(sid);
+        if (isValidSid(sid))
+            channel = channels.get(sid);
         if (null == channel)
         {
             logger.error("No channel found for sid: " + sid);
@@ -235,10 +256,26 @@ public class WebRtcDataStreamManager
         return channel;
     }
     
-    public synchronized void setListener(WebRtcDataStreamListener listener)
+    public void setListener(WebRtcDataStreamListener listener)
     {
         this.listener = listener;
     }
+
+    /**
+     * Set the tracer of the control packets. By default the packets are
+     * logged if trace logging is enabled, and not traced at all otherwise.
+     * 
+     * @param tracer the tracer, or null to disable tracing.
+     */
+    public void setTracer(DataChannelTracer tracer)
+    {
+        this.tracer = tracer;
+    }
+
+    private static boolean isValidSid(int sid)
+    {
+        return sid >= 0 && sid < MAX_SID_COUNT;
+    }
     
     /**
      * Create <tt>SctpSocket</tt> and initialize it.
@@ -258,8 +295,38 @@ public class WebRtcDataStreamManager
             return;
         }
 
-        Sctp.init();
-        
+        final SctpRuntime sctpRuntime = SctpRuntime.getInstance();
+        sctpRuntime.acquire();
+        try
+        {
+            createSctpSocket(connector, streamTarget, dtlsControl, sctpRuntime);
+        }
+        catch (Exception e)
+        {
+            if (null != sctpSocket)
+            {
+                sctpSocket.close();
+                sctpSocket = null;
+            }
+            sctpRuntime.release();
+            throw e;
+        }
+    }
+
+    /**
+     * Create <tt>SctpSocket</tt> and its link.
+     * 
+     * @param connector We need this to receive packets.
+     * @param streamTarget Indicate where to send packet.
+     * @param dtlsControl
+     * @param sctpRuntime The acquired SCTP runtime.
+     * @throws Exception
+     */
+    private void createSctpSocket(StreamConnector connector,
+        MediaStreamTarget streamTarget, DtlsControl dtlsControl,
+        SctpRuntime sctpRuntime)
+        throws Exception
+    {
         dtlsControl.start(MediaType.DATA);
 
         RTPConnectorUDPImpl rtpConnector = new RTPConnectorUDPImpl(connector);
@@ -276,19 +343,26 @@ public class WebRtcDataStreamManager
 
         final DatagramSocket iceUdpSocket = rtpConnector.getDataSocket();
 
-        sctpSocket = Sctp.createSocket(5000);
-        sctpSocket.setLink(new IceUdpDtlsLink(sctpSocket, iceUdpSocket,
-            transformer));
+        sctpSocket = sctpRuntime.createSocket();
+        link = new IceUdpDtlsLink(sctpSocket, iceUdpSocket, transformer);
+        sctpSocket.setLink(link);
         sctpSocket.setNotificationListener(packetReceiver);
         sctpSocket.setDataCallback(packetReceiver);
     }
 
     private void uinitSctp() throws IOException
     {
+        if (null == sctpSocket)
+            return;
+
+        // Stop feeding the socket before closing it.
+        link.close();
+        link = null;
+
         sctpSocket.close();
         // TODO: Don't we need to remove callback from SctpSocket?
         sctpSocket = null;
-        Sctp.finish();
+        SctpRuntime.getInstance().release();
     }
 
     /**
@@ -297,15 +371,18 @@ public class WebRtcDataStreamManager
      * @param data raw packet data that arrived on control PPID.
      * @param sid SCTP stream id on which the data has arrived.
      */
-    private synchronized void onCtrlPacket(byte[] data, int sid)
+    private void onCtrlPacket(byte[] data, int sid)
         throws IOException
     {
-        System.out.print("Control Packet");
-        for (byte b : data)
+        DataChannelTracer tracer = this.tracer;
+        if (null != tracer)
+            tracer.controlPacketReceived(endpointId, sid, data);
+
+        if (!isValidSid(sid))
         {
-            System.out.printf("%03d ", b);
+            logger.error("Ctrl msg on invalid sid: " + sid);
+            return;
         }
-        System.out.println();
 
         ByteBuffer buffer = ByteBuffer.wrap(data);
         int messageType = /* 1 byte unsigned integer */0xFF & buffer.get();
@@ -338,63 +415,30 @@ public class WebRtcDataStreamManager
         }
         else if (messageType == MSG_OPEN_CHANNEL)
         {
-            int channelType = /* 1 byte unsigned integer */0xFF & buffer.get();
-            int priority =
-            /* 2 bytes unsigned integer */0xFFFF & buffer.getShort();
-            long reliability =
-            /* 4 bytes unsigned integer */0xFFFFFFFFL & buffer.getInt();
-            int labelLength =
-            /* 2 bytes unsigned integer */0xFFFF & buffer.getShort();
-            int protocolLength =
-            /* 2 bytes unsigned integer */0xFFFF & buffer.getShort();
-            String label;
-            String protocol;
-
-            if (labelLength == 0)
-            {
-                label = "";
-            }
-            else
-            {
-                byte[] labelBytes = new byte[labelLength];
-
-                buffer.get(labelBytes);
-                label = new String(labelBytes, "UTF-8");
-            }
-            if (protocolLength == 0)
-            {
-                protocol = "";
-            }
-            else
-            {
-                byte[] protocolBytes = new byte[protocolLength];
-
-                buffer.get(protocolBytes);
-                protocol = new String(protocolBytes, "UTF-8");
-            }
+            OpenChannelMessage open = OpenChannelMessage.decode(buffer);
 
             if (logger.isDebugEnabled())
             {
                 logger.debug("!!! " + endpointId
                     + " data channel open request on SID: " + sid + " type: "
-                    + channelType + " prio: " + priority + " reliab: "
-                    + reliability + " label: " + label + " proto: " + protocol);
+                    + open.channelType + " prio: " + open.priority
+                    + " reliab: " + open.reliability + " label: "
+                    + open.label + " proto: " + open.protocol);
             }
 
-            if (channels.containsKey(sid))
+            WebRtcDataStream newChannel =
+                new WebRtcDataStream(sctpSocket, sid, open.label, true);
+            if (null != channels.getAndSet(sid, newChannel))
             {
                 logger.error("Channel on sid: " + sid + " already exists");
             }
 
-            WebRtcDataStream newChannel =
-                new WebRtcDataStream(sctpSocket, sid, label, true);
-            channels.put(sid, newChannel);
-
             sendOpenChannelAck(sid);
 
             /*
              * Notify listener that we have built a new channel
              */
+            WebRtcDataStreamListener listener = this.listener;
             if (null != listener)
                 listener.onChannelOpened(newChannel);
         }
@@ -437,12 +481,12 @@ public class WebRtcDataStreamManager
      *         WebRTC data channel.
      * @throws IOException if IO error occurs.
      */
-    public synchronized WebRtcDataStream openChannel(int type, int prio,
+    public WebRtcDataStream openChannel(int type, int prio,
         long reliab, int sid, String label) throws IOException
     {
-        if (channels.containsKey(sid))
+        if (!isValidSid(sid))
         {
-            throw new IOException("Channel on sid: " + sid + " already exists");
+            throw new IOException("Invalid sid: " + sid);
         }
 
         // Label Length & Label
@@ -507,12 +551,18 @@ public class WebRtcDataStreamManager
             packet.put(protocolBytes, 0, protocolByteLength);
         }
 
-        System.out.print("openChannel: ");
-        for (byte b : packet.array())
+        // Claim the sid before the open message can be answered.
+        WebRtcDataStream channel =
+            new WebRtcDataStream(sctpSocket, sid, label, false);
+
+        if (!channels.compareAndSet(sid, null, channel))
         {
-            System.out.printf("%03d ", b);
+            throw new IOException("Channel on sid: " + sid + " already exists");
         }
-        System.out.println();
+
+        DataChannelTracer tracer = this.tracer;
+        if (null != tracer)
+            tracer.controlPacketSent(endpointId, sid, packet.array());
 
         int sentCount =
             sctpSocket.send(packet.array(), true, sid,
@@ -520,14 +570,10 @@ public class WebRtcDataStreamManager
 
         if (sentCount != packet.capacity())
         {
+            channels.compareAndSet(sid, channel, null);
             throw new IOException("Failed to open new chanel on sid: " + sid);
         }
 
-        WebRtcDataStream channel =
-            new WebRtcDataStream(sctpSocket, sid, label, false);
-
-        channels.put(sid, channel);
-
         return channel;
     }
 
@@ -540,6 +586,10 @@ public class WebRtcDataStreamManager
     {
         // Send ACK
         byte[] ack = MSG_CHANNEL_ACK_BYTES;
+        DataChannelTracer tracer = this.tracer;
+        if (null != tracer)
+            tracer.controlPacketSent(endpointId, sid, ack);
+
         int sendAck =
             sctpSocket.send(ack, true, sid, WebRtcDataStream.WEB_RTC_PPID_CTRL);
 
@@ -587,21 +637,8 @@ public class WebRtcDataStreamManager
                 if (null == channel)
                     return;
 
-                // WebRTC String
-                String str;
-                String charsetName = "UTF-8";
-
-                try
-                {
-                    str = new String(data, charsetName);
-                }
-                catch (UnsupportedEncodingException uee)
-                {
-                    logger.error("Unsupported charset encoding/name "
-                        + charsetName, uee);
-                    str = null;
-                }
-                channel.onStringMsg(str);
+                // WebRTC String, which the channel decodes as it needs.
+                channel.onStringMsg(data);
             }
             else if (WebRtcDataStream.WEB_RTC_PPID_BIN == ppid)
             {
@@ -672,4 +709,98 @@ public class WebRtcDataStreamManager
         }
 
     }
+
+    /**
+     * A <tt>DATA_CHANNEL_OPEN</tt> message, after its message type.
+     */
+    static class OpenChannelMessage
+    {
+        final int channelType;
+
+        final int priority;
+
+        final long reliability;
+
+        final String label;
+
+        final String protocol;
+
+        private OpenChannelMessage(int channelType, int priority,
+            long reliability, String label, String protocol)
+        {
+            this.channelType = channelType;
+            this.priority = priority;
+            this.reliability = reliability;
+            this.label = label;
+            this.protocol = protocol;
+        }
+
+        /**
+         * Decode the message which follows the message type in a buffer.
+         * 
+         * @param buffer the buffer, positioned after the message type.
+         * @return
+         * @throws IOException if the label or the protocol can't be decoded.
+         */
+        static OpenChannelMessage decode(ByteBuffer buffer)
+            throws IOException
+        {
+            int channelType = /* 1 byte unsigned integer */0xFF & buffer.get();
+            int priority =
+            /* 2 bytes unsigned integer */0xFFFF & buffer.getShort();
+            long reliability =
+            /* 4 bytes unsigned integer */0xFFFFFFFFL & buffer.getInt();
+            int labelLength =
+            /* 2 bytes unsigned integer */0xFFFF & buffer.getShort();
+            int protocolLength =
+            /* 2 bytes unsigned integer */0xFFFF & buffer.getShort();
+
+            return new OpenChannelMessage(channelType, priority, reliability,
+                decodeString(buffer, labelLength),
+                decodeString(buffer, protocolLength));
+        }
+
+        private static String decodeString(ByteBuffer buffer, int length)
+            throws UnsupportedEncodingException
+        {
+            if (length == 0)
+                return "";
+
+            String string =
+                new String(buffer.array(), buffer.arrayOffset()
+                    + buffer.position(), length, "UTF-8");
+            buffer.position(buffer.position() + length);
+            return string;
+        }
+    }
+
+    /**
+     * Logs the bytes of the control packets, when trace logging is enabled.
+     */
+    private static class LoggingTracer
+        implements DataChannelTracer
+    {
+        @Override
+        public void controlPacketReceived(String endpointId, int sid,
+            byte[] data)
+        {
+            logger.trace(endpointId + " control packet received on sid "
+                + sid + ": " + toHex(data));
+        }
+
+        @Override
+        public void controlPacketSent(String endpointId, int sid, byte[] data)
+        {
+            logger.trace(endpointId + " control packet sent on sid " + sid
+                + ": " + toHex(data));
+        }
+
+        private static String toHex(byte[] data)
+        {
+            StringBuilder hex = new StringBuilder(3 * data.length);
+            for (byte b : data)
+                hex.append(String.format("%02x ", b));
+            return hex.toString();
+        }
+    }
 }
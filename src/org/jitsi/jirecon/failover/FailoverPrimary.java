@@ -0,0 +1,152 @@
+/*
+/*
+ * Jirecon, the JItsi REcording COntainer.
+ *
+ *
+ * Copyright @ 2015 Atlassian Pty Ltd
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.jitsi.jirecon.failover;
+
+import java.util.*;
+import java.util.concurrent.*;
+
+import org.jitsi.jirecon.*;
+import org.jitsi.util.*;
+
+/**
+ * The primary side of a failover pair: it sends a heartbeat with its active
+ * tasks at a fixed interval, so that a <tt>FailoverStandby</tt> knows it's
+ * alive and what to take over if it isn't.
+ */
+public class FailoverPrimary
+{
+    /**
+     * The <tt>Logger</tt>, used to log messages to standard output.
+     */
+    private static final Logger logger = Logger
+        .getLogger(FailoverPrimary.class);
+
+    /**
+     * Provides the active tasks of the node, e.g. a <tt>TaskManager</tt>.
+     */
+    public interface TaskSource
+    {
+        public List<TaskJournal.Entry> getActiveTasks();
+    }
+
+    private final String nodeId;
+
+    private final HeartbeatChannel channel;
+
+    private final TaskSource source;
+
+    private final long interval;
+
+    private ScheduledExecutorService sender;
+
+    /**
+     * The ID of this run of the node. The sequence of the heartbeats starts
+     * again when the node restarts, so the standby tells the new heartbeats
+     * from old ones by it.
+     */
+    private final long incarnation = new Random().nextLong();
+
+    private long sequence = 0;
+
+    /**
+     * Construction method.
+     * 
+     * @param nodeId the ID of the node.
+     * @param channel
+     * @param source
+     * @param interval the interval of the heartbeats, in milliseconds.
+     */
+    public FailoverPrimary(String nodeId, HeartbeatChannel channel,
+        TaskSource source, long interval)
+    {
+        this.nodeId = nodeId;
+        this.channel = channel;
+        this.source = source;
+        this.interval = interval;
+    }
+
+    public String getNodeId()
+    {
+        return nodeId;
+    }
+
+    /**
+     * Start sending heartbeats.
+     */
+    public synchronized void start()
+    {
+        if (null != sender)
+            return;
+
+        sender = Executors.newSingleThreadScheduledExecutor(new ThreadFactory()
+        {
+            @Override
+            public Thread newThread(Runnable r)
+            {
+                Thread t = new Thread(r, FailoverPrimary.class.getName());
+                t.setDaemon(true);
+                return t;
+            }
+        });
+        sender.scheduleAtFixedRate(new Runnable()
+        {
+            @Override
+            public void run()
+            {
+                beat();
+            }
+        }, 0, interval, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Stop sending heartbeats. The standby will take over once it notices.
+     */
+    public synchronized void stop()
+    {
+        if (null == sender)
+            return;
+
+        sender.shutdownNow();
+        sender = null;
+    }
+
+    /**
+     * Send a heartbeat now.
+     */
+    public void beat()
+    {
+        long sequence;
+        synchronized (this)
+        {
+            sequence = ++this.sequence;
+        }
+
+        try
+        {
+            channel.send(new Heartbeat(nodeId, incarnation, sequence, System
+                .currentTimeMillis(), source.getActiveTasks()));
+        }
+        catch (RuntimeException e)
+        {
+            // Don't let the scheduler cancel the heartbeats.
+            logger.warn("Failed to send heartbeat", e);
+        }
+    }
+}
@@ -0,0 +1,306 @@
+/*
+/*
+ * Jirecon, the JItsi REcording COntainer.
+ *
+ *
+ * Copyright @ 2015 Atlassian Pty Ltd
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.jitsi.jirecon.failover;
+
+import java.util.*;
+import java.util.concurrent.*;
+
+import org.jitsi.jirecon.*;
+import org.jitsi.util.*;
+
+/**
+ * The standby side of a failover pair. It tracks the active tasks of a
+ * primary node through its heartbeats, and once it hasn't heard of the
+ * primary for longer than the timeout, it takes over: every task which the
+ * primary was running is resumed here as the next segment of the same
+ * recording, with the same start, so that the segments share one timeline.
+ * <p>
+ * The standby takes over only once, and never resumes a task twice.
+ * <p>
+ * <strong>Warning:</strong> A primary which is only cut off from the standby
+ * isn't fenced, so both may record for a while after a takeover. The standby
+ * logs it when it hears from the primary again.
+ */
+public class FailoverStandby
+    implements HeartbeatChannel.Receiver
+{
+    /**
+     * The <tt>Logger</tt>, used to log messages to standard output.
+     */
+    private static final Logger logger = Logger
+        .getLogger(FailoverStandby.class);
+
+    /**
+     * Resumes the recordings of the primary on this node, e.g. with a
+     * <tt>TaskManager</tt>.
+     */
+    public interface Recorder
+    {
+        /**
+         * Resume a recording as its next segment.
+         * 
+         * @param previous the task as it was running on the primary.
+         * @return <tt>false</tt> if the recording failed to resume.
+         */
+        public boolean resumeRecording(TaskJournal.Entry previous);
+    }
+
+    private final String primaryId;
+
+    private final HeartbeatChannel channel;
+
+    private final Recorder recorder;
+
+    private final long timeout;
+
+    /**
+     * The tasks of the primary, according to its last heartbeat.
+     */
+    private List<TaskJournal.Entry> trackedTasks =
+        Collections.<TaskJournal.Entry> emptyList();
+
+    /**
+     * The incarnation of the primary which sent the last heartbeat.
+     */
+    private long lastIncarnation = 0;
+
+    /**
+     * The sequence of the last heartbeat of the primary.
+     */
+    private long lastSequence = 0;
+
+    /**
+     * When the last heartbeat of the primary was received, as of
+     * {@link System#nanoTime()}.
+     */
+    private long lastHeartbeat;
+
+    /**
+     * The tasks which this standby has resumed.
+     */
+    private final List<TaskJournal.Entry> resumedTasks =
+        new ArrayList<TaskJournal.Entry>();
+
+    /**
+     * Whether the takeover has begun.
+     */
+    private boolean takingOver = false;
+
+    /**
+     * Whether the takeover is done, i.e. all the tasks have been resumed or
+     * have failed to.
+     */
+    private boolean takenOver = false;
+
+    private ScheduledExecutorService checker;
+
+    /**
+     * Construction method.
+     * 
+     * @param primaryId the ID of the primary node to stand by for.
+     * @param channel
+     * @param recorder
+     * @param timeout the time in milliseconds without heartbeat after which
+     *            the primary is considered failed.
+     */
+    public FailoverStandby(String primaryId, HeartbeatChannel channel,
+        Recorder recorder, long timeout)
+    {
+        this.primaryId = primaryId;
+        this.channel = channel;
+        this.recorder = recorder;
+        this.timeout = timeout;
+    }
+
+    /**
+     * Start tracking the primary. The timeout starts now, so the primary
+     * which is down already is taken over as well, though there is nothing
+     * to resume then.
+     */
+    public synchronized void start()
+    {
+        if (null != checker)
+            return;
+
+        lastHeartbeat = System.nanoTime();
+        channel.addReceiver(this);
+
+        checker = Executors.newSingleThreadScheduledExecutor(new ThreadFactory()
+        {
+            @Override
+            public Thread newThread(Runnable r)
+            {
+                Thread t = new Thread(r, FailoverStandby.class.getName());
+                t.setDaemon(true);
+                return t;
+            }
+        });
+        long period = Math.max(1, timeout / 4);
+        checker.scheduleAtFixedRate(new Runnable()
+        {
+            @Override
+            public void run()
+            {
+                check();
+            }
+        }, period, period, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Stop tracking the primary. The tasks which have been resumed keep
+     * running.
+     */
+    public synchronized void stop()
+    {
+        channel.removeReceiver(this);
+        if (null != checker)
+        {
+            checker.shutdownNow();
+            checker = null;
+        }
+    }
+
+    @Override
+    public void heartbeatReceived(Heartbeat heartbeat)
+    {
+        if (!primaryId.equals(heartbeat.getNodeId()))
+            return;
+
+        synchronized (this)
+        {
+            if (takingOver)
+            {
+                logger.warn("Primary " + primaryId
+                    + " is alive after the takeover, its recordings may be"
+                    + " duplicated.");
+                return;
+            }
+            // A restarted primary counts its heartbeats from 1 again.
+            if (heartbeat.getIncarnation() == lastIncarnation
+                && heartbeat.getSequence() <= lastSequence)
+                return;
+
+            if (heartbeat.getIncarnation() != lastIncarnation
+                && 0 != lastSequence)
+            {
+                logger.info("Primary " + primaryId + " has restarted.");
+            }
+            lastIncarnation = heartbeat.getIncarnation();
+            lastSequence = heartbeat.getSequence();
+            lastHeartbeat = System.nanoTime();
+            trackedTasks = heartbeat.getTasks();
+        }
+    }
+
+    /**
+     * Take over if the primary has timed out.
+     */
+    private void check()
+    {
+        synchronized (this)
+        {
+            if (takingOver
+                || TimeUnit.NANOSECONDS.toMillis(System.nanoTime()
+                    - lastHeartbeat) <= timeout)
+            {
+                return;
+            }
+        }
+        logger.warn("Primary " + primaryId + " timed out, taking over.");
+        takeOver();
+    }
+
+    /**
+     * Take over the tasks of the primary now, whether it has failed or not.
+     * It has no effect if this standby has taken over already.
+     */
+    public void takeOver()
+    {
+        List<TaskJournal.Entry> tasks;
+        synchronized (this)
+        {
+            if (takingOver)
+                return;
+
+            takingOver = true;
+            tasks = trackedTasks;
+        }
+
+        for (TaskJournal.Entry entry : tasks)
+        {
+            try
+            {
+                if (recorder.resumeRecording(entry))
+                {
+                    synchronized (this)
+                    {
+                        resumedTasks.add(entry);
+                    }
+                    logger.info("Took over " + entry.getMucJid()
+                        + " as segment " + (entry.getSegment() + 1));
+                }
+                else
+                {
+                    logger.warn("Failed to take over " + entry.getMucJid());
+                }
+            }
+            catch (RuntimeException e)
+            {
+                logger.error("Failed to take over " + entry.getMucJid(), e);
+            }
+        }
+
+        synchronized (this)
+        {
+            takenOver = true;
+        }
+    }
+
+    /**
+     * Whether this standby has taken over from the primary, and all the tasks
+     * of the primary have been resumed or have failed to.
+     * 
+     * @return
+     */
+    public synchronized boolean isTakenOver()
+    {
+        return takenOver;
+    }
+
+    /**
+     * Get the tasks of the primary, according to its last heartbeat.
+     * 
+     * @return
+     */
+    public synchronized List<TaskJournal.Entry> getTrackedTasks()
+    {
+        return trackedTasks;
+    }
+
+    /**
+     * Get the tasks of the primary which this standby has resumed.
+     * 
+     * @return
+     */
+    public synchronized List<TaskJournal.Entry> getResumedTasks()
+    {
+        return new ArrayList<TaskJournal.Entry>(resumedTasks);
+    }
+}
@@ -0,0 +1,90 @@
+/*
+/*
+ * Jirecon, the JItsi REcording COntainer.
+ *
+ *
+ * Copyright @ 2015 Atlassian Pty Ltd
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.jitsi.jirecon.failover;
+
+import java.util.*;
+
+import org.jitsi.jirecon.*;
+
+/**
+ * A heartbeat of a primary node, which tells its standby that it's alive and
+ * what it's recording.
+ */
+public class Heartbeat
+{
+    private final String nodeId;
+
+    private final long incarnation;
+
+    private final long sequence;
+
+    private final long sentTime;
+
+    private final List<TaskJournal.Entry> tasks;
+
+    /**
+     * Construction method.
+     * 
+     * @param nodeId the ID of the primary node.
+     * @param incarnation the ID of the run of the primary node, which changes
+     *            when it restarts.
+     * @param sequence the number of the heartbeat, which increases with every
+     *            heartbeat of the incarnation.
+     * @param sentTime when the heartbeat was sent, in milliseconds since the
+     *            epoch.
+     * @param tasks the active tasks of the node.
+     */
+    public Heartbeat(String nodeId, long incarnation, long sequence,
+        long sentTime, List<TaskJournal.Entry> tasks)
+    {
+        this.nodeId = nodeId;
+        this.incarnation = incarnation;
+        this.sequence = sequence;
+        this.sentTime = sentTime;
+        this.tasks =
+            Collections.unmodifiableList(new ArrayList<TaskJournal.Entry>(
+                tasks));
+    }
+
+    public String getNodeId()
+    {
+        return nodeId;
+    }
+
+    public long getIncarnation()
+    {
+        return incarnation;
+    }
+
+    public long getSequence()
+    {
+        return sequence;
+    }
+
+    public long getSentTime()
+    {
+        return sentTime;
+    }
+
+    public List<TaskJournal.Entry> getTasks()
+    {
+        return tasks;
+    }
+}
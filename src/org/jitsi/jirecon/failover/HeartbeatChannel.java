@@ -0,0 +1,58 @@
+/*
+/*
+ * Jirecon, the JItsi REcording COntainer.
+ *
+ *
+ * Copyright @ 2015 Atlassian Pty Ltd
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.jitsi.jirecon.failover;
+
+/**
+ * Carries the heartbeats of primary nodes to their standbys.
+ * <p>
+ * An implementation may lose or delay heartbeats, but must deliver the
+ * heartbeats of a node in the order they were sent, one at a time.
+ */
+public interface HeartbeatChannel
+{
+    /**
+     * Receives the heartbeats of a channel.
+     */
+    public interface Receiver
+    {
+        public void heartbeatReceived(Heartbeat heartbeat);
+    }
+
+    /**
+     * Send a heartbeat to all the receivers.
+     * 
+     * @param heartbeat
+     */
+    public void send(Heartbeat heartbeat);
+
+    /**
+     * Start receiving the heartbeats.
+     * 
+     * @param receiver
+     */
+    public void addReceiver(Receiver receiver);
+
+    /**
+     * Stop receiving the heartbeats.
+     * 
+     * @param receiver
+     */
+    public void removeReceiver(Receiver receiver);
+}
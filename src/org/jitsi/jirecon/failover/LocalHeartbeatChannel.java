@@ -0,0 +1,103 @@
+/*
+/*
+ * Jirecon, the JItsi REcording COntainer.
+ *
+ *
+ * Copyright @ 2015 Atlassian Pty Ltd
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.jitsi.jirecon.failover;
+
+import java.util.*;
+import java.util.concurrent.*;
+
+/**
+ * A <tt>HeartbeatChannel</tt> in memory, for nodes which run in the same
+ * process, e.g. in tests.
+ * <p>
+ * The heartbeats are delivered on a single thread of the channel. The channel
+ * can be disconnected, to drop the heartbeats as a broken network would do.
+ */
+public class LocalHeartbeatChannel
+    implements HeartbeatChannel
+{
+    private final List<Receiver> receivers =
+        new CopyOnWriteArrayList<Receiver>();
+
+    /**
+     * Delivers the heartbeats.
+     */
+    private final ExecutorService delivery = Executors
+        .newSingleThreadExecutor(new ThreadFactory()
+        {
+            @Override
+            public Thread newThread(Runnable r)
+            {
+                Thread t =
+                    new Thread(r, LocalHeartbeatChannel.class.getName());
+                t.setDaemon(true);
+                return t;
+            }
+        });
+
+    private volatile boolean connected = true;
+
+    @Override
+    public void send(final Heartbeat heartbeat)
+    {
+        if (!connected)
+            return;
+
+        delivery.execute(new Runnable()
+        {
+            @Override
+            public void run()
+            {
+                for (Receiver receiver : receivers)
+                    receiver.heartbeatReceived(heartbeat);
+            }
+        });
+    }
+
+    @Override
+    public void addReceiver(Receiver receiver)
+    {
+        receivers.add(receiver);
+    }
+
+    @Override
+    public void removeReceiver(Receiver receiver)
+    {
+        receivers.remove(receiver);
+    }
+
+    /**
+     * Connect or disconnect the channel. The heartbeats which are sent while
+     * it's disconnected are lost.
+     * 
+     * @param connected
+     */
+    public void setConnected(boolean connected)
+    {
+        this.connected = connected;
+    }
+
+    /**
+     * Stop the delivery thread.
+     */
+    public void close()
+    {
+        delivery.shutdownNow();
+    }
+}
@@ -0,0 +1,56 @@
+/*
+/*
+ * Jirecon, the JItsi REcording COntainer.
+ *
+ *
+ * Copyright @ 2015 Atlassian Pty Ltd
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.jitsi.jirecon.failover;
+
+import java.util.*;
+
+import org.jitsi.jirecon.*;
+
+/**
+ * Links a <tt>FailoverPrimary</tt> or a <tt>FailoverStandby</tt> to the tasks
+ * of a <tt>TaskManager</tt>.
+ */
+public class TaskManagerFailover
+    implements FailoverPrimary.TaskSource, FailoverStandby.Recorder
+{
+    private final TaskManager taskManager;
+
+    /**
+     * Construction method.
+     * 
+     * @param taskManager an initialized <tt>TaskManager</tt>.
+     */
+    public TaskManagerFailover(TaskManager taskManager)
+    {
+        this.taskManager = taskManager;
+    }
+
+    @Override
+    public List<TaskJournal.Entry> getActiveTasks()
+    {
+        return taskManager.getActiveTasks();
+    }
+
+    @Override
+    public boolean resumeRecording(TaskJournal.Entry previous)
+    {
+        return taskManager.resumeJireconTask(previous);
+    }
+}
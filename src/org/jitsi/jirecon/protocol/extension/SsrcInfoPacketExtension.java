@@ -0,0 +1,71 @@
+/*
+/*
+ * Jirecon, the JItsi REcording COntainer.
+ *
+ *
+ * Copyright @ 2015 Atlassian Pty Ltd
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.jitsi.jirecon.protocol.extension;
+
+import net.java.sip.communicator.impl.protocol.jabber.extensions.*;
+
+/**
+ * The "ssrc-info" element which the focus adds to the sources of the Jingle
+ * packets, telling which participant of the MUC owns the source.
+ */
+public class SsrcInfoPacketExtension
+    extends AbstractPacketExtension
+{
+    /**
+     * The name of the "ssrc-info" element.
+     */
+    public static final String ELEMENT_NAME = "ssrc-info";
+
+    /**
+     * The namespace of the "ssrc-info" element.
+     */
+    public static final String NAMESPACE = "http://jitsi.org/jitmeet";
+
+    /**
+     * The name of the "owner" attribute, whose value is the MUC JID of the
+     * participant.
+     */
+    public static final String OWNER_ATTR_NAME = "owner";
+
+    public SsrcInfoPacketExtension()
+    {
+        super(NAMESPACE, ELEMENT_NAME);
+    }
+
+    /**
+     * Get the MUC JID of the participant which owns the source.
+     * 
+     * @return
+     */
+    public String getOwner()
+    {
+        return getAttributeAsString(OWNER_ATTR_NAME);
+    }
+
+    /**
+     * Set the MUC JID of the participant which owns the source.
+     * 
+     * @param owner
+     */
+    public void setOwner(String owner)
+    {
+        setAttribute(OWNER_ATTR_NAME, owner);
+    }
+}
@@ -0,0 +1,131 @@
+/*
+/*
+ * Jirecon, the JItsi REcording COntainer.
+ *
+ *
+ * Copyright @ 2015 Atlassian Pty Ltd
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.jitsi.jirecon.stats;
+
+import java.io.*;
+import java.net.*;
+
+import org.jitsi.jirecon.*;
+import org.jitsi.util.*;
+
+import com.sun.net.httpserver.*;
+
+/**
+ * A minimal HTTP server which serves the receive statistics of a
+ * <tt>TaskManager</tt> as JSON on <tt>GET /metrics</tt>.
+ */
+public class MetricsHttpServer
+{
+    /**
+     * The <tt>Logger</tt>, used to log messages to standard output.
+     */
+    private static final Logger logger = Logger
+        .getLogger(MetricsHttpServer.class);
+
+    /**
+     * The path of the metrics endpoint.
+     */
+    public static final String PATH = "/metrics";
+
+    /**
+     * The <tt>TaskManager</tt> whose statistics we serve.
+     */
+    private final TaskManager taskManager;
+
+    /**
+     * The underlying HTTP server, or null if we are stopped.
+     */
+    private HttpServer server;
+
+    /**
+     * Construction method.
+     *
+     * @param taskManager
+     */
+    public MetricsHttpServer(TaskManager taskManager)
+    {
+        this.taskManager = taskManager;
+    }
+
+    /**
+     * Start listening. The statistics name the MUCs which are recorded, and
+     * there is no authentication, so the address should be a private one.
+     *
+     * @param address the address to listen on, or null for the loopback
+     *            address.
+     * @param port the TCP port to listen on.
+     * @throws IOException if failed to bind the port.
+     */
+    public synchronized void start(String address, int port)
+        throws IOException
+    {
+        if (null != server)
+            return;
+
+        // A null host name stands for the loopback address.
+        InetSocketAddress socketAddress =
+            new InetSocketAddress(InetAddress.getByName(address), port);
+        server = HttpServer.create(socketAddress, 0);
+        server.createContext(PATH, new HttpHandler()
+        {
+            @Override
+            public void handle(HttpExchange exchange)
+                throws IOException
+            {
+                try
+                {
+                    if (!"GET".equalsIgnoreCase(exchange.getRequestMethod()))
+                    {
+                        exchange.sendResponseHeaders(405, -1);
+                        return;
+                    }
+
+                    byte[] body =
+                        taskManager.getReceiveStats().toJSONString()
+                            .getBytes("UTF-8");
+                    exchange.getResponseHeaders().set("Content-Type",
+                        "application/json");
+                    exchange.sendResponseHeaders(200, body.length);
+                    exchange.getResponseBody().write(body);
+                }
+                finally
+                {
+                    exchange.close();
+                }
+            }
+        });
+        // The default executor handles requests on the server thread, which
+        // is enough for occasional scrapes.
+        server.start();
+        logger.info("Serving metrics on " + socketAddress + PATH);
+    }
+
+    /**
+     * Stop listening.
+     */
+    public synchronized void stop()
+    {
+        if (null == server)
+            return;
+
+        server.stop(0);
+        server = null;
+    }
+}
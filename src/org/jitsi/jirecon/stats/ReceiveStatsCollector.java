@@ -0,0 +1,411 @@
+/*
+/*
+ * Jirecon, the JItsi REcording COntainer.
+ *
+ *
+ * Copyright @ 2015 Atlassian Pty Ltd
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.jitsi.jirecon.stats;
+
+import java.io.*;
+import java.util.*;
+import java.util.Map.*;
+import java.util.concurrent.*;
+
+import javax.media.rtp.*;
+
+import net.sf.fmj.media.rtp.*;
+
+import org.jitsi.impl.neomedia.*;
+import org.jitsi.jirecon.*;
+import org.jitsi.service.neomedia.*;
+import org.jitsi.service.neomedia.format.*;
+import org.jitsi.util.*;
+import org.json.simple.*;
+
+/**
+ * Periodically samples the receive statistics of each SSRC of the media
+ * streams of a task.
+ * <p>
+ * The sampling reads the counters which FMJ maintains anyway, so it adds no
+ * work to the packet path. All the collectors share one daemon thread. The
+ * latest samples are published as an immutable snapshot, so they can be read
+ * at any time without locking.
+ */
+public class ReceiveStatsCollector
+{
+    /**
+     * The <tt>Logger</tt>, used to log messages to standard output.
+     */
+    private static final Logger logger = Logger
+        .getLogger(ReceiveStatsCollector.class);
+
+    /**
+     * The default interval in milliseconds between two samples.
+     */
+    public static final long DEFAULT_INTERVAL = 5000;
+
+    /**
+     * The thread which samples the statistics of all tasks.
+     */
+    private static final ScheduledExecutorService sampler = Executors
+        .newSingleThreadScheduledExecutor(new ThreadFactory()
+        {
+            @Override
+            public Thread newThread(Runnable r)
+            {
+                Thread t =
+                    new Thread(r, ReceiveStatsCollector.class.getName());
+                t.setDaemon(true);
+                return t;
+            }
+        });
+
+    /**
+     * The streams which we sample.
+     */
+    private final Map<MediaType, MediaStream> streams;
+
+    /**
+     * The latest sample of each SSRC.
+     */
+    private volatile Map<Long, SsrcReceiveStats> snapshot = Collections
+        .emptyMap();
+
+    /**
+     * The latest stream level statistics, according to media type.
+     */
+    private volatile Map<MediaType, JSONObject> streamSnapshot = Collections
+        .emptyMap();
+
+    /**
+     * The files which the recording is written to.
+     */
+    private final Set<File> outputFiles = new CopyOnWriteArraySet<File>();
+
+    /**
+     * The number of bytes in {@link #outputFiles} at the latest sample.
+     */
+    private volatile long bytesWritten = 0;
+
+    /**
+     * The requester whose key frame delays are sampled, or null.
+     */
+    private volatile KeyFrameRequester keyFrameRequester;
+
+    /**
+     * The scheduled sampling, or null if we are stopped.
+     */
+    private ScheduledFuture<?> future;
+
+    /**
+     * Construction method.
+     *
+     * @param streams the streams to sample. They're read, not copied, since
+     *            they are created before the collector is started.
+     */
+    public ReceiveStatsCollector(Map<MediaType, MediaStream> streams)
+    {
+        this.streams = streams;
+    }
+
+    /**
+     * Start sampling periodically.
+     *
+     * @param interval the interval in milliseconds between two samples. The
+     *            collector isn't started if it isn't positive.
+     */
+    public synchronized void start(long interval)
+    {
+        if (null != future || interval <= 0)
+            return;
+
+        future = sampler.scheduleWithFixedDelay(new Runnable()
+        {
+            @Override
+            public void run()
+            {
+                try
+                {
+                    sample();
+                }
+                catch (Throwable t)
+                {
+                    logger.warn("Failed to sample receive statistics", t);
+                }
+            }
+        }, interval, interval, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Stop sampling. A final sample is taken, so the snapshot covers the
+     * whole recording.
+     */
+    public synchronized void stop()
+    {
+        if (null == future)
+            return;
+
+        future.cancel(false);
+        future = null;
+        sample();
+    }
+
+    /**
+     * Also measure how much has been written to a file at every sample. Only
+     * the files we are told about are measured, rather than the whole output
+     * directory, so a sample stays cheap however many files the directory
+     * holds.
+     *
+     * @param file a file which the recording is written to.
+     */
+    public void addOutputFile(File file)
+    {
+        outputFiles.add(file);
+    }
+
+    /**
+     * Also sample the time to the first key frame of each video SSRC. The
+     * requester may be stopped already when the final sample is taken.
+     *
+     * @param keyFrameRequester
+     */
+    public void setKeyFrameRequester(KeyFrameRequester keyFrameRequester)
+    {
+        this.keyFrameRequester = keyFrameRequester;
+    }
+
+    /**
+     * Get the number of bytes which had been written to the output files at
+     * the latest sample.
+     *
+     * @return
+     */
+    public long getBytesWritten()
+    {
+        return bytesWritten;
+    }
+
+    /**
+     * Get the latest sample of each SSRC.
+     *
+     * @return
+     */
+    public Collection<SsrcReceiveStats> getSnapshot()
+    {
+        return snapshot.values();
+    }
+
+    /**
+     * Take a sample of every SSRC of every stream.
+     */
+    synchronized void sample()
+    {
+        final long now = System.currentTimeMillis();
+        final Map<Long, SsrcReceiveStats> previous = snapshot;
+        Map<Long, SsrcReceiveStats> next =
+            new HashMap<Long, SsrcReceiveStats>();
+        Map<MediaType, JSONObject> nextStreams =
+            new HashMap<MediaType, JSONObject>();
+        final KeyFrameRequester keyFrameRequester = this.keyFrameRequester;
+        final Map<Long, Long> keyFrameDelays =
+            null == keyFrameRequester ? Collections.<Long, Long> emptyMap()
+                : keyFrameRequester.getKeyFrameDelays();
+
+        for (Entry<MediaType, MediaStream> e : streams.entrySet())
+        {
+            MediaStream stream = e.getValue();
+            if (!stream.isStarted() || !(stream instanceof MediaStreamImpl))
+                continue;
+
+            MediaStreamImpl streamImpl = (MediaStreamImpl) stream;
+            double clockRate = getClockRate(stream.getFormat());
+
+            for (ReceiveStream receiveStream : streamImpl.getReceiveStreams())
+            {
+                final long ssrc = receiveStream.getSSRC() & 0xFFFFFFFFL;
+                ReceptionStats stats =
+                    receiveStream.getSourceReceptionStats();
+                if (null == stats)
+                    continue;
+
+                long senderBytes = -1;
+                double jitterMs = -1;
+                if (receiveStream instanceof RecvSSRCInfo)
+                {
+                    RecvSSRCInfo info = (RecvSSRCInfo) receiveStream;
+                    if (null != info.getSenderReport())
+                        senderBytes = info.getSenderByteCount();
+                    if (clockRate > 0)
+                        jitterMs = info.jitter * 1000d / clockRate;
+                }
+
+                Long keyFrameDelay = keyFrameDelays.get(ssrc);
+
+                next.put(ssrc, new SsrcReceiveStats(e.getKey(), ssrc, now,
+                    stats.getPDUProcessed(), stats.getPDUlost(), stats
+                        .getPDUMisOrd(), stats.getPDUDuplicate(),
+                    senderBytes, jitterMs, null == keyFrameDelay ? -1
+                        : keyFrameDelay, previous.get(ssrc)));
+            }
+
+            nextStreams.put(e.getKey(), getStreamStats(streamImpl));
+        }
+
+        // SSRCs which have gone keep their last sample.
+        for (Entry<Long, SsrcReceiveStats> e : previous.entrySet())
+        {
+            if (!next.containsKey(e.getKey()))
+                next.put(e.getKey(), e.getValue());
+        }
+
+        snapshot = Collections.unmodifiableMap(next);
+        streamSnapshot = Collections.unmodifiableMap(nextStreams);
+
+        long size = 0;
+        for (File file : outputFiles)
+            size += file.length();
+        bytesWritten = size;
+    }
+
+    /**
+     * Get the stream level statistics, which include what FMJ doesn't count
+     * per SSRC, like the overall download bitrate.
+     *
+     * @param stream
+     * @return
+     */
+    @SuppressWarnings("unchecked")
+    private static JSONObject getStreamStats(MediaStreamImpl stream)
+    {
+        MediaStreamStats stats = stream.getMediaStreamStats();
+        JSONObject json = new JSONObject();
+
+        stats.updateStats();
+        json.put("bitrate_kbps", stats.getDownloadRateKiloBitPerSec());
+        json.put("loss_percent", stats.getDownloadPercentLoss());
+        json.put("jitter_ms", stats.getDownloadJitterMs());
+        json.put("bytes_received", stats.getNbReceivedBytes());
+        json.put("packets_received", stats.getNbPacketsReceived());
+        json.put("packets_discarded", stats.getNbDiscarded());
+        return json;
+    }
+
+    /**
+     * Get the RTP clock rate of a format.
+     *
+     * @param format
+     * @return the clock rate, or -1 if it's unknown.
+     */
+    private static double getClockRate(MediaFormat format)
+    {
+        return null == format ? -1 : format.getClockRate();
+    }
+
+    /**
+     * Get the JSON representation of the latest samples: the stream level
+     * statistics, the samples of each SSRC and their aggregate.
+     *
+     * @return
+     */
+    @SuppressWarnings("unchecked")
+    public JSONObject toJson()
+    {
+        final Map<MediaType, JSONObject> streamSnapshot = this.streamSnapshot;
+        final Collection<SsrcReceiveStats> ssrcs = getSnapshot();
+        JSONObject json = new JSONObject();
+
+        JSONObject streamsJson = new JSONObject();
+        for (Entry<MediaType, JSONObject> e : streamSnapshot.entrySet())
+            streamsJson.put(e.getKey().toString(), e.getValue());
+        json.put("streams", streamsJson);
+
+        JSONArray ssrcsJson = new JSONArray();
+        for (SsrcReceiveStats stats : ssrcs)
+            ssrcsJson.add(stats.toJson());
+        json.put("ssrcs", ssrcsJson);
+
+        json.put("total", aggregate(ssrcs));
+        json.put("bytes_written", bytesWritten);
+        return json;
+    }
+
+    /**
+     * Aggregate samples, e.g. of all SSRCs of a task or of a node.
+     *
+     * @param samples
+     * @return the number of SSRCs, the sums of the counters and of the rates,
+     *         the overall loss rate, the worst jitter and the worst time to
+     *         the first key frame.
+     */
+    @SuppressWarnings("unchecked")
+    public static JSONObject aggregate(Collection<SsrcReceiveStats> samples)
+    {
+        long received = 0;
+        long lost = 0;
+        long misordered = 0;
+        double bitrate = 0;
+        double packetRate = 0;
+        double maxJitter = -1;
+        long maxKeyFrameDelay = -1;
+
+        for (SsrcReceiveStats stats : samples)
+        {
+            received += stats.getPacketsReceived();
+            lost += Math.max(stats.getPacketsLost(), 0);
+            misordered += stats.getPacketsMisordered();
+            packetRate += stats.getPacketRate();
+            if (stats.getBitrateKbps() > 0)
+                bitrate += stats.getBitrateKbps();
+            maxJitter = Math.max(maxJitter, stats.getJitterMs());
+            maxKeyFrameDelay =
+                Math.max(maxKeyFrameDelay, stats.getKeyFrameDelayMs());
+        }
+
+        JSONObject json = new JSONObject();
+        json.put("ssrc_count", samples.size());
+        json.put("packets_received", received);
+        json.put("packets_lost", lost);
+        json.put("packets_misordered", misordered);
+        json.put("loss_rate", (received + lost) > 0 ? (double) lost
+            / (received + lost) : 0d);
+        json.put("packet_rate", packetRate);
+        json.put("bitrate_kbps", bitrate);
+        json.put("max_jitter_ms", maxJitter);
+        json.put("max_keyframe_delay_ms", maxKeyFrameDelay);
+        return json;
+    }
+
+    /**
+     * Write the JSON representation of the latest samples to a file.
+     *
+     * @param file
+     * @throws IOException
+     */
+    public void writeJson(File file)
+        throws IOException
+    {
+        Writer writer = new OutputStreamWriter(new FileOutputStream(file),
+            "UTF-8");
+        try
+        {
+            toJson().writeJSONString(writer);
+        }
+        finally
+        {
+            writer.close();
+        }
+    }
+}
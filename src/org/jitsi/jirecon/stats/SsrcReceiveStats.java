@@ -0,0 +1,240 @@
+/*
+/*
+ * Jirecon, the JItsi REcording COntainer.
+ *
+ *
+ * Copyright @ 2015 Atlassian Pty Ltd
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.jitsi.jirecon.stats;
+
+import org.jitsi.service.neomedia.*;
+import org.json.simple.*;
+
+/**
+ * An immutable sample of the receive statistics of one SSRC.
+ * <p>
+ * The counters are cumulative since the SSRC was first received, the rates are
+ * computed over the interval since the previous sample.
+ */
+public class SsrcReceiveStats
+{
+    private final MediaType mediaType;
+
+    private final long ssrc;
+
+    /**
+     * When the sample was taken, in milliseconds.
+     */
+    private final long timestamp;
+
+    private final long packetsReceived;
+
+    private final long packetsLost;
+
+    private final long packetsMisordered;
+
+    private final long packetsDuplicate;
+
+    /**
+     * The bytes the sender has reported in its last RTCP SR, or -1.
+     */
+    private final long senderBytes;
+
+    /**
+     * The interarrival jitter in milliseconds, or -1 if it's unknown.
+     */
+    private final double jitterMs;
+
+    /**
+     * The packets received per second over the last interval.
+     */
+    private final double packetRate;
+
+    /**
+     * The bitrate in kbps over the last interval, according to the RTCP SRs,
+     * or -1 if it's unknown.
+     */
+    private final double bitrateKbps;
+
+    /**
+     * The fraction of the packets lost over the last interval.
+     */
+    private final double lossRate;
+
+    /**
+     * The fraction of the packets received out of order over the last
+     * interval.
+     */
+    private final double misorderRate;
+
+    /**
+     * The time in milliseconds from the first packet to the first key frame,
+     * or -1 if it's unknown, e.g. for audio.
+     */
+    private final long keyFrameDelayMs;
+
+    /**
+     * Construction method, which computes the rates against the previous
+     * sample of the same SSRC.
+     *
+     * @param mediaType
+     * @param ssrc
+     * @param timestamp when the sample is taken, in milliseconds.
+     * @param packetsReceived
+     * @param packetsLost
+     * @param packetsMisordered
+     * @param packetsDuplicate
+     * @param senderBytes the bytes reported in the last RTCP SR, or -1.
+     * @param jitterMs the jitter in milliseconds, or -1.
+     * @param keyFrameDelayMs the time to the first key frame in milliseconds,
+     *            or -1 to keep the one of <tt>previous</tt>.
+     * @param previous the previous sample of the SSRC, or null.
+     */
+    public SsrcReceiveStats(MediaType mediaType, long ssrc, long timestamp,
+        long packetsReceived, long packetsLost, long packetsMisordered,
+        long packetsDuplicate, long senderBytes, double jitterMs,
+        long keyFrameDelayMs, SsrcReceiveStats previous)
+    {
+        this.mediaType = mediaType;
+        this.ssrc = ssrc;
+        this.timestamp = timestamp;
+        this.packetsReceived = packetsReceived;
+        this.packetsLost = packetsLost;
+        this.packetsMisordered = packetsMisordered;
+        this.packetsDuplicate = packetsDuplicate;
+        this.senderBytes = senderBytes;
+        this.jitterMs = jitterMs;
+        this.keyFrameDelayMs =
+            (keyFrameDelayMs < 0 && null != previous)
+                ? previous.keyFrameDelayMs : keyFrameDelayMs;
+
+        long received = packetsReceived;
+        long lost = packetsLost;
+        long misordered = packetsMisordered;
+        long bytes = senderBytes;
+        long interval = 0;
+        if (null != previous)
+        {
+            received -= previous.packetsReceived;
+            lost -= previous.packetsLost;
+            misordered -= previous.packetsMisordered;
+            bytes =
+                (senderBytes < 0 || previous.senderBytes < 0) ? -1
+                    : senderBytes - previous.senderBytes;
+            interval = timestamp - previous.timestamp;
+        }
+
+        // The lost counter decreases when late packets arrive.
+        lost = Math.max(lost, 0);
+        this.lossRate =
+            (received + lost) > 0 ? (double) lost / (received + lost) : 0;
+        this.misorderRate =
+            received > 0 ? (double) Math.max(misordered, 0) / received : 0;
+        this.packetRate = interval > 0 ? received * 1000d / interval : 0;
+        this.bitrateKbps =
+            (interval > 0 && bytes >= 0) ? bytes * 8d / interval : -1;
+    }
+
+    public MediaType getMediaType()
+    {
+        return mediaType;
+    }
+
+    public long getSsrc()
+    {
+        return ssrc;
+    }
+
+    public long getTimestamp()
+    {
+        return timestamp;
+    }
+
+    public long getPacketsReceived()
+    {
+        return packetsReceived;
+    }
+
+    public long getPacketsLost()
+    {
+        return packetsLost;
+    }
+
+    public long getPacketsMisordered()
+    {
+        return packetsMisordered;
+    }
+
+    public long getPacketsDuplicate()
+    {
+        return packetsDuplicate;
+    }
+
+    public double getJitterMs()
+    {
+        return jitterMs;
+    }
+
+    public double getPacketRate()
+    {
+        return packetRate;
+    }
+
+    public double getBitrateKbps()
+    {
+        return bitrateKbps;
+    }
+
+    public double getLossRate()
+    {
+        return lossRate;
+    }
+
+    public double getMisorderRate()
+    {
+        return misorderRate;
+    }
+
+    public long getKeyFrameDelayMs()
+    {
+        return keyFrameDelayMs;
+    }
+
+    /**
+     * Get the JSON representation of this sample.
+     *
+     * @return
+     */
+    @SuppressWarnings("unchecked")
+    public JSONObject toJson()
+    {
+        JSONObject json = new JSONObject();
+
+        json.put("media_type", mediaType.toString());
+        json.put("ssrc", ssrc);
+        json.put("timestamp", timestamp);
+        json.put("packets_received", packetsReceived);
+        json.put("packets_lost", packetsLost);
+        json.put("packets_misordered", packetsMisordered);
+        json.put("packets_duplicate", packetsDuplicate);
+        json.put("jitter_ms", jitterMs);
+        json.put("packet_rate", packetRate);
+        json.put("bitrate_kbps", bitrateKbps);
+        json.put("loss_rate", lossRate);
+        json.put("misorder_rate", misorderRate);
+        json.put("keyframe_delay_ms", keyFrameDelayMs);
+        return json;
+    }
+}
@@ -0,0 +1,53 @@
+/*
+/*
+ * Jirecon, the JItsi REcording COntainer.
+ *
+ *
+ * Copyright @ 2015 Atlassian Pty Ltd
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.jitsi.jirecon.test;
+
+import java.lang.management.*;
+
+/**
+ * Access to the bytes allocated by a thread, for the allocation benchmarks.
+ */
+public final class AllocationCounter
+{
+    private AllocationCounter()
+    {
+    }
+
+    /**
+     * Get the <tt>ThreadMXBean</tt> which counts the bytes allocated by each
+     * thread, with the counting enabled.
+     *
+     * @return the bean, or null if the JVM doesn't count allocations.
+     */
+    public static com.sun.management.ThreadMXBean getThreadBean()
+    {
+        ThreadMXBean bean = ManagementFactory.getThreadMXBean();
+        if (!(bean instanceof com.sun.management.ThreadMXBean))
+            return null;
+
+        com.sun.management.ThreadMXBean threadBean =
+            (com.sun.management.ThreadMXBean) bean;
+        if (!threadBean.isThreadAllocatedMemorySupported())
+            return null;
+
+        threadBean.setThreadAllocatedMemoryEnabled(true);
+        return threadBean;
+    }
+}
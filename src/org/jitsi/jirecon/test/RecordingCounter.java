@@ -0,0 +1,98 @@
+/*
+/*
+ * Jirecon, the JItsi REcording COntainer.
+ *
+ *
+ * Copyright @ 2015 Atlassian Pty Ltd
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.jitsi.jirecon.test;
+
+import java.util.*;
+
+/**
+ * Counts the nodes which record each MUC, for the tests which check that a
+ * MUC is never recorded twice at the same time.
+ */
+public class RecordingCounter
+{
+    /**
+     * The number of nodes which record each MUC.
+     */
+    private final Map<String, Integer> recorders =
+        new HashMap<String, Integer>();
+
+    /**
+     * The highest number of nodes which have recorded a MUC at the same time.
+     */
+    private int maxRecorders = 0;
+
+    private int starts = 0;
+
+    /**
+     * A node has started to record a MUC.
+     * 
+     * @param mucJid
+     */
+    public synchronized void started(String mucJid)
+    {
+        int count = getRecorders(mucJid) + 1;
+        recorders.put(mucJid, count);
+        maxRecorders = Math.max(maxRecorders, count);
+        starts++;
+    }
+
+    /**
+     * A node has stopped recording a MUC, or is gone with its recording.
+     * 
+     * @param mucJid
+     */
+    public synchronized void stopped(String mucJid)
+    {
+        recorders.put(mucJid, getRecorders(mucJid) - 1);
+    }
+
+    /**
+     * Get the number of nodes which record a MUC.
+     * 
+     * @param mucJid
+     * @return
+     */
+    public synchronized int getRecorders(String mucJid)
+    {
+        Integer count = recorders.get(mucJid);
+        return null == count ? 0 : count;
+    }
+
+    /**
+     * Get the highest number of nodes which have recorded a MUC at the same
+     * time.
+     * 
+     * @return
+     */
+    public synchronized int getMaxRecorders()
+    {
+        return maxRecorders;
+    }
+
+    /**
+     * Get the number of recordings which have been started.
+     * 
+     * @return
+     */
+    public synchronized int getStarts()
+    {
+        return starts;
+    }
+}
@@ -0,0 +1,265 @@
+/*
+/*
+ * Jirecon, the JItsi REcording COntainer.
+ *
+ *
+ * Copyright @ 2015 Atlassian Pty Ltd
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.jitsi.jirecon.test;
+
+import java.util.*;
+
+import org.jitsi.jirecon.*;
+import org.jitsi.jirecon.cluster.*;
+
+import junit.framework.TestCase;
+
+/**
+ * Tests of the consistent-hash ownership of the MUCs in a cluster of nodes,
+ * with the in-memory <tt>LocalClusterCoordinator</tt> and fake recorders
+ * which count how many nodes record each MUC at the same time.
+ */
+public class TestClusterOwnership
+    extends TestCase
+{
+    private static final int VIRTUAL_NODES =
+        ConsistentHashRing.DEFAULT_VIRTUAL_NODES;
+
+    private static final long IDLE_TIMEOUT = 10000;
+
+    private LocalClusterCoordinator coordinator;
+
+    private RecordingCounter counter;
+
+    @Override
+    protected void setUp()
+    {
+        coordinator = new LocalClusterCoordinator();
+        counter = new RecordingCounter();
+    }
+
+    public void testRingSpreadsKeysAndMovesFew()
+    {
+        List<String> nodes = new ArrayList<String>();
+        for (int i = 0; i < 5; i++)
+            nodes.add("node" + i);
+        ConsistentHashRing ring = new ConsistentHashRing(nodes, VIRTUAL_NODES);
+
+        final int keyCount = 10000;
+        Map<String, Integer> counts = new HashMap<String, Integer>();
+        for (int i = 0; i < keyCount; i++)
+        {
+            String owner = ring.getOwner(getMucJid(i));
+            Integer count = counts.get(owner);
+            counts.put(owner, null == count ? 1 : count + 1);
+        }
+        for (String node : nodes)
+        {
+            int count = counts.get(node);
+            assertTrue(node + " owns " + count, count > keyCount / 5 * 0.7
+                && count < keyCount / 5 * 1.3);
+        }
+
+        nodes.add("node5");
+        ConsistentHashRing grown = new ConsistentHashRing(nodes, VIRTUAL_NODES);
+        int moved = 0;
+        for (int i = 0; i < keyCount; i++)
+        {
+            String before = ring.getOwner(getMucJid(i));
+            String after = grown.getOwner(getMucJid(i));
+            if (!before.equals(after))
+            {
+                // Keys only move to the new node.
+                assertEquals("node5", after);
+                moved++;
+            }
+        }
+        assertTrue("Moved " + moved, moved < keyCount / 6 * 1.3);
+    }
+
+    public void testRecordingsAreSpreadOverNodes()
+        throws Exception
+    {
+        List<ClusterNode> nodes = createNodes(3);
+        startRecordings(nodes.get(0), 60);
+
+        assertRecordedOnceByOwner(nodes, 60);
+        for (ClusterNode node : nodes)
+            assertFalse(node.getRecordings().isEmpty());
+        assertEquals(60, counter.getStarts());
+    }
+
+    public void testHandoffWhenNodeJoins()
+        throws Exception
+    {
+        List<ClusterNode> nodes = createNodes(2);
+        startRecordings(nodes.get(0), 60);
+
+        ClusterNode newNode = createNode("node2");
+        nodes.add(newNode);
+        newNode.join();
+        assertTrue(coordinator.awaitIdle(IDLE_TIMEOUT));
+
+        assertRecordedOnceByOwner(nodes, 60);
+        assertFalse(newNode.getRecordings().isEmpty());
+        // Only what the new node took over has been started again.
+        assertEquals(60 + newNode.getRecordings().size(),
+            counter.getStarts());
+    }
+
+    public void testTakeOverWhenNodeLeaves()
+        throws Exception
+    {
+        List<ClusterNode> nodes = createNodes(3);
+        startRecordings(nodes.get(0), 60);
+
+        ClusterNode leaving = nodes.remove(1);
+        leaving.leave();
+        assertTrue(coordinator.awaitIdle(IDLE_TIMEOUT));
+
+        assertTrue(leaving.getRecordings().isEmpty());
+        assertRecordedOnceByOwner(nodes, 60);
+    }
+
+    public void testTakeOverWhenNodeFails()
+        throws Exception
+    {
+        List<ClusterNode> nodes = createNodes(3);
+        startRecordings(nodes.get(0), 60);
+
+        // The process of the node is gone with its recordings.
+        ClusterNode failed = nodes.remove(2);
+        for (String mucJid : failed.getRecordings())
+            counter.stopped(mucJid);
+        coordinator.fail(failed.getNodeId());
+        assertTrue(coordinator.awaitIdle(IDLE_TIMEOUT));
+
+        assertRecordedOnceByOwner(nodes, 60);
+    }
+
+    public void testStopFromAnyNode()
+        throws Exception
+    {
+        List<ClusterNode> nodes = createNodes(3);
+        startRecordings(nodes.get(0), 30);
+
+        for (int i = 0; i < 30; i++)
+            nodes.get(i % 3).stopRecording(getMucJid(i));
+        assertTrue(coordinator.awaitIdle(IDLE_TIMEOUT));
+
+        for (ClusterNode node : nodes)
+            assertTrue(node.getRecordings().isEmpty());
+        for (int i = 0; i < 30; i++)
+            assertEquals(0, counter.getRecorders(getMucJid(i)));
+    }
+
+    public void testRecordingWhichEndsIsRemoved()
+        throws Exception
+    {
+        TaskManager taskManager = new TaskManager();
+        TaskManagerRecorder recorder =
+            new TaskManagerRecorder(taskManager, coordinator);
+        List<ClusterNode> nodes = createNodes(2);
+        startRecordings(nodes.get(0), 2);
+
+        // The task of a MUC finishes by itself, e.g. everybody has left.
+        taskManager.handleEvent(new TaskManagerEvent(getMucJid(0),
+            TaskManagerEvent.Type.TASK_FINISED));
+        assertTrue(coordinator.awaitIdle(IDLE_TIMEOUT));
+
+        assertFalse(coordinator.getRecordings().containsKey(getMucJid(0)));
+        assertTrue(coordinator.getRecordings().containsKey(getMucJid(1)));
+        for (ClusterNode node : nodes)
+            assertFalse(node.getRecordings().contains(getMucJid(0)));
+        recorder.close();
+    }
+
+    private List<ClusterNode> createNodes(int count)
+        throws Exception
+    {
+        List<ClusterNode> nodes = new ArrayList<ClusterNode>();
+        for (int i = 0; i < count; i++)
+        {
+            ClusterNode node = createNode("node" + i);
+            node.join();
+            nodes.add(node);
+        }
+        assertTrue(coordinator.awaitIdle(IDLE_TIMEOUT));
+        return nodes;
+    }
+
+    private ClusterNode createNode(String nodeId)
+    {
+        return new ClusterNode(nodeId, coordinator, new FakeRecorder(),
+            VIRTUAL_NODES);
+    }
+
+    private void startRecordings(ClusterNode node, int count)
+        throws Exception
+    {
+        for (int i = 0; i < count; i++)
+            node.startRecording(getMucJid(i));
+        assertTrue(coordinator.awaitIdle(IDLE_TIMEOUT));
+    }
+
+    /**
+     * Check that every MUC is recorded by exactly one node, its owner, and
+     * that no MUC has ever been recorded twice at the same time.
+     */
+    private void assertRecordedOnceByOwner(List<ClusterNode> nodes, int count)
+    {
+        for (int i = 0; i < count; i++)
+        {
+            String mucJid = getMucJid(i);
+            ClusterNode holder = null;
+            for (ClusterNode node : nodes)
+            {
+                if (node.getRecordings().contains(mucJid))
+                {
+                    assertNull(mucJid + " recorded twice", holder);
+                    holder = node;
+                }
+            }
+            assertNotNull(mucJid + " not recorded", holder);
+            assertEquals(holder.getNodeId(), holder.getOwner(mucJid));
+        }
+
+        assertEquals(1, counter.getMaxRecorders());
+        for (int i = 0; i < count; i++)
+            assertEquals(1, counter.getRecorders(getMucJid(i)));
+    }
+
+    private static String getMucJid(int i)
+    {
+        return "room" + i + "@conference.example.com";
+    }
+
+    private class FakeRecorder
+        implements ClusterNode.Recorder
+    {
+        @Override
+        public boolean startRecording(String mucJid)
+        {
+            counter.started(mucJid);
+            return true;
+        }
+
+        @Override
+        public void stopRecording(String mucJid)
+        {
+            counter.stopped(mucJid);
+        }
+    }
+}
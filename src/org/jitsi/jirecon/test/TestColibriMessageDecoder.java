@@ -0,0 +1,231 @@
+/*
+/*
+ * Jirecon, the JItsi REcording COntainer.
+ *
+ *
+ * Copyright @ 2015 Atlassian Pty Ltd
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.jitsi.jirecon.test;
+
+import java.util.*;
+
+import org.jitsi.jirecon.datachannel.*;
+import org.jitsi.util.*;
+import org.json.simple.*;
+import org.json.simple.parser.*;
+
+import junit.framework.TestCase;
+
+/**
+ * Tests of <tt>ColibriMessageDecoder</tt>, and a benchmark of it against the
+ * <tt>JSONParser</tt> path it replaces, which builds a <tt>String</tt> and a
+ * <tt>JSONObject</tt> of every message. The time and the bytes allocated by
+ * the decoding thread are measured with the <tt>ThreadMXBean</tt>.
+ */
+public class TestColibriMessageDecoder
+    extends TestCase
+{
+    private static final Logger logger = Logger
+        .getLogger(TestColibriMessageDecoder.class);
+
+    private static final int MESSAGE_COUNT = 200000;
+
+    private static final int WARMUP_COUNT = 20000;
+
+    private static final String DOMINANT_SPEAKER_MESSAGE =
+        "{\"colibriClass\":\"DominantSpeakerEndpointChangeEvent\","
+            + "\"dominantSpeakerEndpoint\":\"5b7f3a1c\"}";
+
+    private final RecordingListener listener = new RecordingListener();
+
+    private final ColibriMessageDecoder decoder =
+        new ColibriMessageDecoder(listener);
+
+    public void testDominantSpeaker()
+    {
+        assertTrue(decode(DOMINANT_SPEAKER_MESSAGE));
+        assertEquals("speaker 5b7f3a1c", listener.last);
+
+        // Field order, whitespace and unknown fields don't matter.
+        assertTrue(decode(" { \"dominantSpeakerEndpoint\" : \"a\\u00e9b\" ,"
+            + " \"extra\": {\"x\": [1, 2.5e3, true, null, \"}\"]},"
+            + " \"colibriClass\" : \"DominantSpeakerEndpointChangeEvent\" } "));
+        assertEquals("speaker a\u00e9b", listener.last);
+
+        // Older videobridges don't send the class.
+        assertTrue(decode("{\"dominantSpeakerEndpoint\":\"\u00fcber\"}"));
+        assertEquals("speaker \u00fcber", listener.last);
+    }
+
+    public void testLastN()
+    {
+        assertTrue(decode("{\"colibriClass\":\"LastNEndpointsChangeEvent\","
+            + "\"lastNEndpoints\":[\"a\",\"b\",\"c\"],"
+            + "\"endpointsEnteringLastN\":[\"c\"]}"));
+        assertEquals("lastN [a, b, c] [c]", listener.last);
+
+        assertTrue(decode("{\"colibriClass\":\"LastNEndpointsChangeEvent\","
+            + "\"lastNEndpoints\":[],\"endpointsEnteringLastN\":null}"));
+        assertEquals("lastN [] []", listener.last);
+    }
+
+    public void testEndpointConnectivity()
+    {
+        assertTrue(decode("{\"colibriClass\":"
+            + "\"EndpointConnectivityStatusChangeEvent\","
+            + "\"endpoint\":\"a\",\"active\":\"false\"}"));
+        assertEquals("connectivity a false", listener.last);
+
+        assertTrue(decode("{\"active\":true,\"colibriClass\":"
+            + "\"EndpointConnectivityStatusChangeEvent\",\"endpoint\":\"b\"}"));
+        assertEquals("connectivity b true", listener.last);
+    }
+
+    public void testIgnoredMessages()
+    {
+        assertFalse(decode("{\"colibriClass\":\"ServerHello\"}"));
+        assertFalse(decode("{\"colibriClass\":\"SomethingElse\","
+            + "\"dominantSpeakerEndpoint\":\"a\"}"));
+        assertFalse(decode("{}"));
+        assertFalse(decode("{\"dominantSpeakerEndpoint\":\"a\""));
+        assertFalse(decode("{\"dominantSpeakerEndpoint\":\"a\\x\"}"));
+        assertFalse(decode("not json"));
+        assertFalse(decode(""));
+        assertNull(listener.last);
+    }
+
+    public void testDecoderIsAllocationFree()
+        throws Exception
+    {
+        com.sun.management.ThreadMXBean threadBean =
+            AllocationCounter.getThreadBean();
+        if (null == threadBean)
+        {
+            logger.warn("Allocation counting not supported, skipped.");
+            return;
+        }
+
+        final String[] messages = new String[8];
+        final byte[][] payloads = new byte[messages.length][];
+        for (int i = 0; i < messages.length; i++)
+        {
+            messages[i] = DOMINANT_SPEAKER_MESSAGE.replace("5b7f3a1c",
+                "endpoint" + i);
+            payloads[i] = messages[i].getBytes("UTF-8");
+        }
+
+        final long threadId = Thread.currentThread().getId();
+        int checksum = 0;
+
+        listener.describe = false;
+
+        // The previous path: a String, then a JSONObject of every message.
+        long before = 0, start = 0;
+        for (int i = 0; i < WARMUP_COUNT + MESSAGE_COUNT; i++)
+        {
+            if (WARMUP_COUNT == i)
+            {
+                before = threadBean.getThreadAllocatedBytes(threadId);
+                start = System.nanoTime();
+            }
+            byte[] payload = payloads[i % payloads.length];
+            JSONObject json = (JSONObject) new JSONParser()
+                .parse(new String(payload, "UTF-8"));
+            checksum += json.get("dominantSpeakerEndpoint").hashCode();
+        }
+        long parserTime = System.nanoTime() - start;
+        long parserBytes =
+            threadBean.getThreadAllocatedBytes(threadId) - before;
+
+        for (int i = 0; i < WARMUP_COUNT + MESSAGE_COUNT; i++)
+        {
+            if (WARMUP_COUNT == i)
+            {
+                before = threadBean.getThreadAllocatedBytes(threadId);
+                start = System.nanoTime();
+            }
+            byte[] payload = payloads[i % payloads.length];
+            decoder.decode(payload, 0, payload.length);
+            checksum -= listener.lastSpeaker.hashCode();
+        }
+        long decoderTime = System.nanoTime() - start;
+        long decoderBytes =
+            threadBean.getThreadAllocatedBytes(threadId) - before;
+
+        logger.info("Per message: JSONParser "
+            + parserTime / MESSAGE_COUNT + " ns, "
+            + parserBytes / MESSAGE_COUNT + " B; ColibriMessageDecoder "
+            + decoderTime / MESSAGE_COUNT + " ns, "
+            + decoderBytes / MESSAGE_COUNT + " B");
+
+        assertEquals(0, checksum);
+        assertTrue("The decoder allocates " + decoderBytes / MESSAGE_COUNT
+            + " bytes per message", decoderBytes / MESSAGE_COUNT < 8);
+        assertTrue(decoderBytes < parserBytes);
+    }
+
+    private boolean decode(String message)
+    {
+        listener.last = null;
+        try
+        {
+            byte[] data = ("xx" + message).getBytes("UTF-8");
+
+            return decoder.decode(data, 2, data.length - 2);
+        }
+        catch (java.io.UnsupportedEncodingException e)
+        {
+            throw new RuntimeException(e);
+        }
+    }
+
+    /**
+     * Keeps a description of the last event.
+     */
+    private static class RecordingListener
+        implements ColibriEventListener
+    {
+        private String last;
+
+        private String lastSpeaker;
+
+        /**
+         * Whether to describe the events, which allocates.
+         */
+        private boolean describe = true;
+
+        @Override
+        public void dominantSpeakerChanged(String endpointId)
+        {
+            lastSpeaker = endpointId;
+            if (describe)
+                last = "speaker " + endpointId;
+        }
+
+        @Override
+        public void lastNEndpointsChanged(List<String> lastNEndpoints,
+            List<String> endpointsEnteringLastN)
+        {
+            last = "lastN " + lastNEndpoints + " " + endpointsEnteringLastN;
+        }
+
+        @Override
+        public void endpointConnectivityChanged(String endpointId,
+            boolean active)
+        {
+            last = "connectivity " + endpointId + " " + active;
+        }
+    }
+}
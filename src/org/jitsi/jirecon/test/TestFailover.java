@@ -0,0 +1,450 @@
+/*
+/*
+ * Jirecon, the JItsi REcording COntainer.
+ *
+ *
+ * Copyright @ 2015 Atlassian Pty Ltd
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.jitsi.jirecon.test;
+
+import java.io.*;
+import java.util.*;
+import java.util.concurrent.*;
+
+import org.jitsi.jirecon.*;
+import org.jitsi.jirecon.failover.*;
+import org.jitsi.jirecon.test.harness.*;
+import org.jitsi.jirecon.utils.*;
+
+import junit.framework.TestCase;
+
+/**
+ * Tests of the failover of the recordings from a primary node to a standby,
+ * with the in-memory <tt>LocalHeartbeatChannel</tt> and fake nodes which
+ * write the segment info of their recordings like <tt>TaskManager</tt> does,
+ * or a standby which resumes the recordings with a real <tt>TaskManager</tt>
+ * in a conference of the harness.
+ */
+public class TestFailover
+    extends TestCase
+{
+    private static final long INTERVAL = 50;
+
+    private static final long TIMEOUT = 300;
+
+    private static final int BRIDGE_MIN_PORT = 20000;
+
+    private static final int BRIDGE_MAX_PORT = 30000;
+
+    private LocalHeartbeatChannel channel;
+
+    private File baseDir;
+
+    private FakeNode primary;
+
+    private FakeNode standby;
+
+    private final RecordingCounter counter = new RecordingCounter();
+
+    @Override
+    protected void setUp()
+        throws IOException
+    {
+        channel = new LocalHeartbeatChannel();
+        baseDir = File.createTempFile("failover", "");
+        baseDir.delete();
+        baseDir.mkdirs();
+        primary = new FakeNode();
+        standby = new FakeNode();
+    }
+
+    @Override
+    protected void tearDown()
+    {
+        channel.close();
+        delete(baseDir);
+    }
+
+    public void testStandbyTracksPrimaryTasks()
+        throws Exception
+    {
+        FailoverPrimary p = new FailoverPrimary("primary", channel, primary,
+            INTERVAL);
+        FailoverStandby s = new FailoverStandby("primary", channel, standby,
+            TIMEOUT);
+        s.start();
+        p.start();
+        try
+        {
+            primary.start("a@conference", 1000);
+            primary.start("b@conference", 2000);
+            assertTrue(waitForTracked(s, 2));
+
+            primary.stop("a@conference");
+            assertTrue(waitForTracked(s, 1));
+            assertEquals("b@conference", s.getTrackedTasks().get(0)
+                .getMucJid());
+            assertFalse(s.isTakenOver());
+        }
+        finally
+        {
+            p.stop();
+            s.stop();
+        }
+    }
+
+    public void testNoTakeoverWhileHeartbeatsFlow()
+        throws Exception
+    {
+        FailoverPrimary p = new FailoverPrimary("primary", channel, primary,
+            INTERVAL);
+        FailoverStandby s = new FailoverStandby("primary", channel, standby,
+            TIMEOUT);
+        // Heartbeats of another node don't keep the primary alive.
+        FailoverPrimary other = new FailoverPrimary("other", channel, primary,
+            INTERVAL);
+        s.start();
+        p.start();
+        other.start();
+        try
+        {
+            primary.start("a@conference", 1000);
+            Thread.sleep(3 * TIMEOUT);
+
+            assertFalse(s.isTakenOver());
+            assertEquals(0, standby.active.size());
+        }
+        finally
+        {
+            other.stop();
+            p.stop();
+            s.stop();
+        }
+    }
+
+    public void testNoTakeoverWhenPrimaryRestarts()
+        throws Exception
+    {
+        FailoverPrimary p = new FailoverPrimary("primary", channel, primary,
+            INTERVAL);
+        FailoverStandby s = new FailoverStandby("primary", channel, standby,
+            TIMEOUT);
+        s.start();
+        p.start();
+        try
+        {
+            primary.start("a@conference", 1000);
+            assertTrue(waitForTracked(s, 1));
+            // Far ahead of what the restarted primary sends before the
+            // timeout.
+            for (int i = 0; i < 100; i++)
+                p.beat();
+
+            // The primary restarts quickly and counts its heartbeats from 1
+            // again, with its recordings resumed.
+            p.stop();
+            p = new FailoverPrimary("primary", channel, primary, INTERVAL);
+            p.start();
+            primary.start("b@conference", 2000);
+            assertTrue(waitForTracked(s, 2));
+            Thread.sleep(3 * TIMEOUT);
+
+            assertFalse(s.isTakenOver());
+            assertEquals(0, standby.active.size());
+        }
+        finally
+        {
+            p.stop();
+            s.stop();
+        }
+    }
+
+    public void testTakeoverContinuesTimeline()
+        throws Exception
+    {
+        FailoverPrimary p = new FailoverPrimary("primary", channel, primary,
+            INTERVAL);
+        FailoverStandby s = new FailoverStandby("primary", channel, standby,
+            TIMEOUT);
+        s.start();
+        p.start();
+
+        long recordingStart = System.currentTimeMillis();
+        primary.start("a@conference", recordingStart);
+        primary.start("b@conference", recordingStart - 5000);
+        assertTrue(waitForTracked(s, 2));
+
+        // The primary dies: no more heartbeats, and its recordings end.
+        long failed = System.currentTimeMillis();
+        channel.setConnected(false);
+        p.stop();
+        primary.stopAll();
+
+        long deadline = failed + TIMEOUT + 10 * INTERVAL + 1000;
+        while (!s.isTakenOver() && System.currentTimeMillis() < deadline)
+            Thread.sleep(10);
+        s.stop();
+
+        assertTrue(s.isTakenOver());
+        assertTrue(System.currentTimeMillis() - failed >= TIMEOUT);
+        assertEquals(2, s.getResumedTasks().size());
+        assertEquals(2, standby.active.size());
+
+        for (TaskJournal.Entry entry : standby.active.values())
+        {
+            assertEquals(1, entry.getSegment());
+
+            SegmentInfo first = SegmentInfo.read(entry.getOutputDir(), 0);
+            SegmentInfo next = SegmentInfo.read(entry.getOutputDir(), 1);
+            assertNotNull(first);
+            assertNotNull(next);
+            assertEquals(first.getRecordingStart(), next.getRecordingStart());
+            assertEquals(0, first.getOffset());
+            assertEquals(next.getSegmentStart() - first.getSegmentStart(),
+                next.getOffset());
+            assertTrue(next.getOffset() >= TIMEOUT);
+        }
+
+        // Never recorded by both nodes, and resumed only once.
+        s.takeOver();
+        assertEquals(2, s.getResumedTasks().size());
+        assertEquals(1, counter.getMaxRecorders());
+    }
+
+    public void testTakeoverResumesInTaskManager()
+        throws Exception
+    {
+        LocalXmppServer server = new LocalXmppServer("localhost");
+        server.start();
+        ScheduledExecutorService scheduler =
+            Executors.newSingleThreadScheduledExecutor();
+        FakeFocus focus =
+            new FakeFocus(server, scheduler, 2, 1000, BRIDGE_MIN_PORT,
+                BRIDGE_MAX_PORT);
+        TaskManager taskManager = new TaskManager();
+        try
+        {
+            taskManager.init(writeConfiguration(server).getPath());
+            // The Jingle providers have been registered by the TaskManager.
+            focus.connect();
+            String mucJid = "failover@" + server.getMucDomain();
+            focus.startConference(mucJid);
+
+            FailoverPrimary p =
+                new FailoverPrimary("primary", channel, primary, INTERVAL);
+            FailoverStandby s =
+                new FailoverStandby("primary", channel,
+                    new TaskManagerFailover(taskManager), TIMEOUT);
+            s.start();
+            p.start();
+
+            long recordingStart = System.currentTimeMillis();
+            primary.start(mucJid, recordingStart);
+            assertTrue(waitForTracked(s, 1));
+
+            long failed = System.currentTimeMillis();
+            channel.setConnected(false);
+            p.stop();
+            primary.stopAll();
+
+            // The segment info is written by StreamRecorderManager once the
+            // resumed task records.
+            String outputDir = new File(baseDir, mucJid).getPath();
+            SegmentInfo next = null;
+            long deadline = failed + TIMEOUT + 30000;
+            while (null == next && System.currentTimeMillis() < deadline)
+            {
+                Thread.sleep(50);
+                next = SegmentInfo.read(outputDir, 1);
+            }
+            s.stop();
+
+            assertTrue(s.isTakenOver());
+            assertNotNull(next);
+            assertEquals(recordingStart, next.getRecordingStart());
+            assertEquals(next.getSegmentStart() - recordingStart,
+                next.getOffset());
+            assertTrue(next.getSegmentStart() - failed >= TIMEOUT);
+
+            List<TaskJournal.Entry> active = taskManager.getActiveTasks();
+            assertEquals(1, active.size());
+            assertEquals(mucJid, active.get(0).getMucJid());
+            assertEquals(1, active.get(0).getSegment());
+            assertEquals(outputDir, active.get(0).getOutputDir());
+            assertEquals(recordingStart, active.get(0).getRecordingStart());
+
+            taskManager.stopJireconTask(mucJid, true);
+        }
+        finally
+        {
+            focus.disconnect();
+            taskManager.uninit();
+            server.stop();
+            scheduler.shutdownNow();
+        }
+    }
+
+    public void testSegmentInfo()
+        throws Exception
+    {
+        new SegmentInfo(0, 1000, 1000).write(baseDir.getPath());
+        new SegmentInfo(3, 1000, 4500).write(baseDir.getPath());
+
+        assertTrue(new File(baseDir, "segment.json").exists());
+        assertTrue(new File(baseDir, "segment-3.json").exists());
+        assertEquals(3500, SegmentInfo.read(baseDir.getPath(), 3).getOffset());
+        assertEquals(-1, new SegmentInfo(1, 0, 4500).getOffset());
+        assertNull(SegmentInfo.read(baseDir.getPath(), 1));
+    }
+
+    public void testJournalEntryKeepsRecordingStart()
+    {
+        TaskJournal.Entry entry =
+            new TaskJournal.Entry("a@conference", "rid", "/tmp/a", true, 2,
+                12345);
+        TaskJournal.Entry copy = TaskJournal.Entry.fromJson(entry.toJson());
+
+        assertEquals(12345, copy.getRecordingStart());
+        assertEquals(2, copy.getSegment());
+        assertEquals("rid", copy.getRid());
+    }
+
+    private boolean waitForTracked(FailoverStandby s, int count)
+        throws InterruptedException
+    {
+        for (int i = 0; i < 100; i++)
+        {
+            if (s.getTrackedTasks().size() == count)
+                return true;
+            Thread.sleep(10);
+        }
+        return false;
+    }
+
+    /**
+     * Write the configuration of the <tt>TaskManager</tt> of the standby, with
+     * the local server and the output directory of the test.
+     * 
+     * @param server
+     * @return the configuration file.
+     * @throws IOException
+     */
+    private File writeConfiguration(LocalXmppServer server)
+        throws IOException
+    {
+        Properties properties = new Properties();
+        properties.setProperty(ConfigurationKey.XMPP_HOST_KEY,
+            server.getDomain());
+        properties.setProperty(ConfigurationKey.XMPP_PORT_KEY,
+            String.valueOf(server.getPort()));
+        properties.setProperty(ConfigurationKey.NICK_KEY, "jirecon");
+        properties.setProperty(ConfigurationKey.MIN_STREAM_PORT_KEY, "8000");
+        properties.setProperty(ConfigurationKey.MAX_STREAM_PORT_KEY, "10000");
+        properties.setProperty(ConfigurationKey.SAVING_DIR_KEY,
+            baseDir.getAbsolutePath());
+        properties.setProperty(ConfigurationKey.TASK_JOURNAL_KEY, new File(
+            baseDir, ".task_journal").getAbsolutePath());
+
+        File file = new File(baseDir, "jirecon.properties");
+        OutputStream out = new FileOutputStream(file);
+        try
+        {
+            properties.store(out, null);
+        }
+        finally
+        {
+            out.close();
+        }
+        return file;
+    }
+
+    private static void delete(File file)
+    {
+        File[] children = file.listFiles();
+        if (null != children)
+        {
+            for (File child : children)
+                delete(child);
+        }
+        file.delete();
+    }
+
+    /**
+     * A node which "records" by writing the segment info of its tasks.
+     */
+    private class FakeNode
+        implements FailoverPrimary.TaskSource, FailoverStandby.Recorder
+    {
+        private final Map<String, TaskJournal.Entry> active =
+            Collections
+                .synchronizedMap(new HashMap<String, TaskJournal.Entry>());
+
+        void start(String mucJid, long recordingStart)
+            throws IOException
+        {
+            File dir = new File(baseDir, mucJid);
+            dir.mkdirs();
+            TaskJournal.Entry entry =
+                new TaskJournal.Entry(mucJid, null, dir.getPath(), false, 0,
+                    recordingStart);
+            new SegmentInfo(0, recordingStart, recordingStart).write(dir
+                .getPath());
+            counter.started(mucJid);
+            active.put(mucJid, entry);
+        }
+
+        void stop(String mucJid)
+        {
+            if (null != active.remove(mucJid))
+                counter.stopped(mucJid);
+        }
+
+        void stopAll()
+        {
+            for (String mucJid : new ArrayList<String>(active.keySet()))
+                stop(mucJid);
+        }
+
+        @Override
+        public List<TaskJournal.Entry> getActiveTasks()
+        {
+            synchronized (active)
+            {
+                return new ArrayList<TaskJournal.Entry>(active.values());
+            }
+        }
+
+        @Override
+        public boolean resumeRecording(TaskJournal.Entry previous)
+        {
+            TaskJournal.Entry entry =
+                new TaskJournal.Entry(previous.getMucJid(), previous.getRid(),
+                    previous.getOutputDir(), previous.isAudioOnly(),
+                    previous.getSegment() + 1, previous.getRecordingStart());
+            try
+            {
+                new SegmentInfo(entry.getSegment(), entry.getRecordingStart(),
+                    System.currentTimeMillis()).write(entry.getOutputDir());
+            }
+            catch (IOException e)
+            {
+                return false;
+            }
+            counter.started(entry.getMucJid());
+            active.put(entry.getMucJid(), entry);
+            return true;
+        }
+    }
+}
@@ -0,0 +1,277 @@
+/*
+/*
+ * Jirecon, the JItsi REcording COntainer.
+ *
+ *
+ * Copyright @ 2015 Atlassian Pty Ltd
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.jitsi.jirecon.test;
+
+import java.net.*;
+import java.util.concurrent.atomic.*;
+
+import org.jitsi.impl.neomedia.*;
+import org.jitsi.impl.neomedia.transform.dtls.*;
+import org.jitsi.jirecon.datachannel.*;
+import org.jitsi.sctp4j.*;
+import org.jitsi.service.libjitsi.*;
+import org.jitsi.util.*;
+
+import junit.framework.TestCase;
+
+/**
+ * Allocation benchmark of the receive path of <tt>IceUdpDtlsLink</tt>.
+ * <p>
+ * A real link receives datagrams on the loopback interface and passes them to
+ * a real <tt>SctpSocket</tt>. Its <tt>DtlsPacketTransformer</tt> is replaced
+ * by one which treats the packet the way the DTLS record layer does around
+ * the decryption (grow it to the receive limit, then shrink it to the
+ * plaintext). The bytes allocated by the thread which serves the link are
+ * measured with the <tt>ThreadMXBean</tt>, and compared with those of a bare
+ * <tt>DataChannelIoLoop</tt> registration, i.e. with the cost of receiving
+ * the datagram itself.
+ * <p>
+ * It needs the native <tt>jnsctp</tt> library on <tt>java.library.path</tt>,
+ * and is skipped otherwise.
+ */
+public class TestIceUdpDtlsLinkAllocation
+    extends TestCase
+{
+    private static final Logger logger = Logger
+        .getLogger(TestIceUdpDtlsLinkAllocation.class);
+
+    private static final int PACKET_COUNT = 20000;
+
+    private static final int WARMUP_COUNT = 2000;
+
+    /**
+     * The number of datagrams which are sent before waiting for them to be
+     * received, so that none is dropped by the receive buffer.
+     */
+    private static final int BATCH_SIZE = 100;
+
+    private static final int BATCH_TIMEOUT = 2000;
+
+    private static final int PACKET_SIZE = 1200;
+
+    /**
+     * The DTLS receive limit, i.e. the largest plaintext.
+     */
+    private static final int RECEIVE_LIMIT = 1 << 14;
+
+    @Override
+    protected void setUp()
+    {
+        LibJitsi.start();
+    }
+
+    @Override
+    protected void tearDown()
+    {
+        LibJitsi.stop();
+    }
+
+    public void testReceivePathDoesNotAllocate()
+        throws Exception
+    {
+        com.sun.management.ThreadMXBean threadBean =
+            AllocationCounter.getThreadBean();
+        if (null == threadBean)
+        {
+            logger.warn("Allocation counting not supported, skipped.");
+            return;
+        }
+
+        SctpRuntime runtime = SctpRuntime.getInstance();
+        try
+        {
+            runtime.acquire();
+        }
+        catch (UnsatisfiedLinkError e)
+        {
+            logger.warn("Native SCTP not available, skipped: " + e);
+            return;
+        }
+
+        try
+        {
+            long receive = measure(threadBean, null);
+            SctpSocket sctpSocket = runtime.createSocket();
+            long link;
+            try
+            {
+                link = measure(threadBean, sctpSocket);
+            }
+            finally
+            {
+                sctpSocket.close();
+            }
+
+            logger.info("Bytes allocated per packet: receive " + receive
+                + ", link " + link);
+
+            assertTrue("The link allocates " + (link - receive)
+                + " bytes per packet", link - receive < 16);
+        }
+        finally
+        {
+            runtime.release();
+        }
+    }
+
+    /**
+     * Receive <tt>PACKET_COUNT</tt> datagrams, through an
+     * <tt>IceUdpDtlsLink</tt> if <tt>sctpSocket</tt> isn't null or through a
+     * bare <tt>DataChannelIoLoop</tt> registration otherwise, and count the
+     * bytes allocated by the receiving thread meanwhile.
+     *
+     * @return the bytes allocated per packet.
+     */
+    private long measure(com.sun.management.ThreadMXBean threadBean,
+        SctpSocket sctpSocket)
+        throws Exception
+    {
+        InetAddress loopback = InetAddress.getByName("127.0.0.1");
+        DatagramSocket receiver = new DatagramSocket(0, loopback);
+        DatagramSocket sender = new DatagramSocket(0, loopback);
+        receiver.setReceiveBufferSize(1 << 20);
+
+        Counter counter = new Counter();
+        CountingTransformer transformer = null;
+        IceUdpDtlsLink link = null;
+        DataChannelIoLoop.Registration registration = null;
+        try
+        {
+            if (null == sctpSocket)
+            {
+                registration =
+                    DataChannelIoLoop.getInstance().register(receiver,
+                        counter, PooledRawPacket.MAX_RECORD_SIZE);
+            }
+            else
+            {
+                transformer = new CountingTransformer(counter);
+                link = new IceUdpDtlsLink(sctpSocket, receiver, transformer);
+            }
+
+            DatagramPacket datagram =
+                new DatagramPacket(new byte[PACKET_SIZE], PACKET_SIZE,
+                    loopback, receiver.getLocalPort());
+            datagram.getData()[0] = 23; // DTLS application data
+
+            send(sender, datagram, counter, WARMUP_COUNT);
+            assertNotNull("Nothing received", counter.thread);
+
+            long threadId = counter.thread.getId();
+            int countBefore = counter.count.get();
+            long before = threadBean.getThreadAllocatedBytes(threadId);
+
+            send(sender, datagram, counter, PACKET_COUNT);
+
+            long allocated =
+                threadBean.getThreadAllocatedBytes(threadId) - before;
+            int count = counter.count.get() - countBefore;
+            assertTrue("Only " + count + " packets received",
+                count > PACKET_COUNT / 2);
+            return allocated / count;
+        }
+        finally
+        {
+            if (null != link)
+                link.close();
+            if (null != registration)
+                registration.cancel();
+            if (null != transformer)
+                transformer.close();
+            sender.close();
+            receiver.close();
+        }
+    }
+
+    /**
+     * Send <tt>count</tt> datagrams in batches, and wait for each batch to be
+     * received.
+     */
+    private void send(DatagramSocket sender, DatagramPacket datagram,
+        Counter counter, int count)
+        throws Exception
+    {
+        int target = counter.count.get();
+        for (int i = 0; i < count; i += BATCH_SIZE)
+        {
+            for (int j = 0; j < BATCH_SIZE; j++)
+                sender.send(datagram);
+            target += BATCH_SIZE;
+
+            long deadline = System.currentTimeMillis() + BATCH_TIMEOUT;
+            while (counter.count.get() < target
+                && System.currentTimeMillis() < deadline)
+            {
+                Thread.sleep(1);
+            }
+            // Don't wait for the datagrams which have been dropped again.
+            target = counter.count.get();
+        }
+    }
+
+    /**
+     * Counts the packets and remembers the thread which receives them.
+     */
+    private static class Counter
+        implements DataChannelIoLoop.PacketHandler
+    {
+        private final AtomicInteger count = new AtomicInteger();
+
+        private volatile Thread thread;
+
+        void received()
+        {
+            if (null == thread)
+                thread = Thread.currentThread();
+            count.incrementAndGet();
+        }
+
+        @Override
+        public void handlePacket(PooledRawPacket packet)
+        {
+            received();
+        }
+    }
+
+    /**
+     * A <tt>DtlsPacketTransformer</tt> which does to the packet what the DTLS
+     * record layer does around the decryption, without any handshake.
+     */
+    private static class CountingTransformer
+        extends DtlsPacketTransformer
+    {
+        private final Counter counter;
+
+        CountingTransformer(Counter counter)
+        {
+            super(new DtlsTransformEngine(new DtlsControlImpl(true)), 0);
+            this.counter = counter;
+        }
+
+        @Override
+        public RawPacket reverseTransform(RawPacket pkt)
+        {
+            pkt.grow(RECEIVE_LIMIT - pkt.getLength());
+            pkt.shrink(13); // the record header
+            counter.received();
+            return pkt;
+        }
+    }
+}
@@ -19,6 +19,8 @@
  */
 package org.jitsi.jirecon.test;
 
+import java.util.*;
+
 import net.java.sip.communicator.impl.protocol.jabber.extensions.jingle.*;
 import org.jitsi.jirecon.JingleSessionManager;
 import org.jitsi.jirecon.protocol.extension.*;
@@ -93,4 +95,31 @@ public class TestJinglePacketParser
         
         LibJitsi.stop();
     }
+
+    public void testPresenceWithoutSsrc()
+    {
+        MediaType[] mediaTypes = new MediaType[]
+        { MediaType.AUDIO, MediaType.VIDEO };
+        MediaExtension mediaExt = new MediaExtension();
+
+        // Video is sent, but its SSRC isn't known yet.
+        mediaExt.setDirection(MediaType.AUDIO.toString(), "sendrecv");
+        mediaExt.setSsrc(MediaType.AUDIO.toString(), "3735928559");
+        mediaExt.setDirection(MediaType.VIDEO.toString(), "sendrecv");
+
+        Map<MediaType, Long> ssrcs =
+            JinglePacketParser.getPresenceSsrcs(mediaExt, mediaTypes);
+        assertEquals(1, ssrcs.size());
+        assertEquals(Long.valueOf(3735928559L), ssrcs.get(MediaType.AUDIO));
+        assertNull(JinglePacketParser.getPresenceSsrc(mediaExt,
+            MediaType.VIDEO));
+
+        // Media which aren't sent, or whose SSRC is garbage, are skipped too.
+        mediaExt.setDirection(MediaType.AUDIO.toString(), "recvonly");
+        mediaExt.setSsrc(MediaType.VIDEO.toString(), "not an ssrc");
+        assertTrue(JinglePacketParser.getPresenceSsrcs(mediaExt, mediaTypes)
+            .isEmpty());
+        assertNull(JinglePacketParser.getPresenceSsrc(mediaExt,
+            MediaType.AUDIO));
+    }
 }
@@ -0,0 +1,254 @@
+/*
+/*
+ * Jirecon, the JItsi REcording COntainer.
+ *
+ *
+ * Copyright @ 2015 Atlassian Pty Ltd
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.jitsi.jirecon.test;
+
+import java.util.*;
+
+import org.jitsi.jirecon.xmppcomponent.*;
+import org.jitsi.util.*;
+import org.xmpp.packet.*;
+
+import junit.framework.TestCase;
+
+/**
+ * A local harness of several Jirecon components and a client which starts
+ * every recording on the component whose disco#info reports the least load.
+ * <p>
+ * The components are fakes which only keep the counters that a real
+ * <tt>XMPPComponent</tt> gives to its <tt>LoadReporter</tt>; the reports go
+ * through real disco#info results.
+ */
+public class TestLoadBalancing
+    extends TestCase
+{
+    private static final Logger logger = Logger
+        .getLogger(TestLoadBalancing.class);
+
+    private static final String DISCO_INFO_NAMESPACE =
+        "http://jabber.org/protocol/disco#info";
+
+    public void testReportRoundTrip()
+    {
+        LoadReport report = new LoadReport(3, 1, 0.25, 1980, 262144, 1024);
+        IQ discoInfo = createDiscoInfo();
+        report.addTo(discoInfo);
+
+        LoadReport parsed = LoadReport.parse(discoInfo);
+        assertNotNull(parsed);
+        assertEquals(3, parsed.getActiveTasks());
+        assertEquals(1, parsed.getQueuedStarts());
+        assertEquals(0.25, parsed.getCpuLoad(), 0);
+        assertEquals(1980, parsed.getFreePorts());
+        assertEquals(262144, parsed.getDiskWriteRate());
+        assertEquals(1024, parsed.getDiskHeadroom());
+
+        assertNull(LoadReport.parse(createDiscoInfo()));
+    }
+
+    public void testEqualComponentsAreBalanced()
+    {
+        List<FakeComponent> components = new ArrayList<FakeComponent>();
+        for (int i = 0; i < 4; i++)
+            components.add(new FakeComponent("jirecon" + i, 2001, -1));
+
+        startRecordings(components, 40);
+
+        for (FakeComponent component : components)
+            assertEquals(component.toString(), 10, component.tasks);
+    }
+
+    public void testFullComponentIsAvoided()
+    {
+        List<FakeComponent> components = new ArrayList<FakeComponent>();
+        // Room for 3 tasks only.
+        FakeComponent small = new FakeComponent("small", 15, -1);
+        components.add(small);
+        components.add(new FakeComponent("big0", 2001, -1));
+        components.add(new FakeComponent("big1", 2001, -1));
+
+        startRecordings(components, 21);
+
+        assertEquals(3, small.tasks);
+        assertEquals(9, components.get(1).tasks);
+        assertEquals(9, components.get(2).tasks);
+
+        // Once every component is full, nothing is selected.
+        assertNull(LoadReport.selectLeastLoaded(getReports(Arrays.asList(
+            small))));
+    }
+
+    public void testQueuedStartsCount()
+    {
+        FakeComponent busy = new FakeComponent("busy", 2001, -1);
+        FakeComponent idle = new FakeComponent("idle", 2001, -1);
+        busy.queued = 5;
+        idle.tasks = 3;
+
+        assertEquals("idle",
+            LoadReport.selectLeastLoaded(getReports(Arrays.asList(busy, idle))));
+    }
+
+    public void testSaturatedDiskIsAvoided()
+    {
+        FakeComponent slow = new FakeComponent("slow", 2001, 1000);
+        FakeComponent fast = new FakeComponent("fast", 2001, -1);
+        fast.tasks = 5;
+
+        slow.reporter.sample();
+        slow.bytesWritten += 1000000;
+        try
+        {
+            Thread.sleep(20);
+        }
+        catch (InterruptedException e)
+        {
+            fail();
+        }
+
+        assertEquals("fast",
+            LoadReport.selectLeastLoaded(getReports(Arrays.asList(slow, fast))));
+    }
+
+    /**
+     * Start recordings one after the other, each on the least loaded
+     * component. A recording is queued until the next one is requested, like
+     * a real start which takes a while.
+     */
+    private void startRecordings(List<FakeComponent> components, int count)
+    {
+        FakeComponent previous = null;
+        for (int i = 0; i < count; i++)
+        {
+            String jid = LoadReport.selectLeastLoaded(getReports(components));
+            assertNotNull(jid);
+
+            if (null != previous)
+            {
+                previous.queued--;
+                previous.tasks++;
+            }
+            previous = getComponent(components, jid);
+            previous.queued++;
+        }
+        previous.queued--;
+        previous.tasks++;
+
+        logger.info("Recordings per component: " + components);
+    }
+
+    /**
+     * Query the disco#info of every component, like a client would do.
+     */
+    private Map<String, LoadReport> getReports(
+        List<FakeComponent> components)
+    {
+        Map<String, LoadReport> reports = new HashMap<String, LoadReport>();
+
+        for (FakeComponent component : components)
+            reports.put(component.jid, LoadReport.parse(component.discoInfo()));
+        return reports;
+    }
+
+    private FakeComponent getComponent(List<FakeComponent> components,
+        String jid)
+    {
+        for (FakeComponent component : components)
+        {
+            if (component.jid.equals(jid))
+                return component;
+        }
+        return null;
+    }
+
+    private static IQ createDiscoInfo()
+    {
+        IQ discoInfo = new IQ(IQ.Type.result);
+        discoInfo.setChildElement("query", DISCO_INFO_NAMESPACE);
+        return discoInfo;
+    }
+
+    /**
+     * Stands for an <tt>XMPPComponent</tt> and its recording sessions.
+     */
+    private static class FakeComponent
+        implements LoadReporter.Source
+    {
+        private final String jid;
+
+        private final int portRange;
+
+        private final LoadReporter reporter;
+
+        private int tasks = 0;
+
+        private int queued = 0;
+
+        private long bytesWritten = 0;
+
+        private FakeComponent(String jid, int portRange, long diskCapacity)
+        {
+            this.jid = jid;
+            this.portRange = portRange;
+            this.reporter = new LoadReporter(this, diskCapacity);
+        }
+
+        /**
+         * Answer a disco#info request. The report is sampled first, as if
+         * the sampling interval had just passed.
+         */
+        private IQ discoInfo()
+        {
+            IQ discoInfo = createDiscoInfo();
+            reporter.sample().addTo(discoInfo);
+            return discoInfo;
+        }
+
+        @Override
+        public int getActiveTaskCount()
+        {
+            return tasks;
+        }
+
+        @Override
+        public int getQueuedStartCount()
+        {
+            return queued;
+        }
+
+        @Override
+        public int getFreePortCount()
+        {
+            return portRange
+                - LoadReport.PORTS_PER_TASK * (tasks + queued);
+        }
+
+        @Override
+        public long getBytesWritten()
+        {
+            return bytesWritten;
+        }
+
+        @Override
+        public String toString()
+        {
+            return jid + "=" + tasks;
+        }
+    }
+}
@@ -0,0 +1,168 @@
+/*
+/*
+ * Jirecon, the JItsi REcording COntainer.
+ *
+ *
+ * Copyright @ 2015 Atlassian Pty Ltd
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.jitsi.jirecon.test;
+
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.*;
+
+import org.jitsi.jirecon.*;
+import org.jitsi.jirecon.protocol.extension.*;
+
+import junit.framework.TestCase;
+
+/**
+ * Tests of <tt>PresenceCoalescer</tt>: the presences are applied while the
+ * thread which offers them is busy (like the thread of a starting task), and
+ * the flushes of one coalescer never overlap.
+ */
+public class TestPresenceCoalescer
+    extends TestCase
+{
+    private static final long WINDOW = 10;
+
+    private static final int TIMEOUT = 5000;
+
+    public void testAppliedWhileOffererIsBusy()
+        throws Exception
+    {
+        RecordingHandler handler = new RecordingHandler(0);
+        PresenceCoalescer coalescer = new PresenceCoalescer(handler, WINDOW);
+
+        coalescer.offer("a", media("1"));
+        coalescer.offer("a", media("2"));
+        coalescer.offer("b", media("3"));
+        coalescer.offerLeft("b");
+
+        // This thread stays busy until the presences have been applied.
+        assertTrue(handler.awaitApplied(2));
+        assertEquals("2", handler.state.get("a").getSsrc("audio"));
+        assertFalse(handler.state.containsKey("b"));
+        assertEquals(2, handler.applied.get());
+        coalescer.stop();
+    }
+
+    public void testFlushesDoNotOverlap()
+        throws Exception
+    {
+        RecordingHandler handler = new RecordingHandler(3 * WINDOW);
+        PresenceCoalescer coalescer = new PresenceCoalescer(handler, WINDOW);
+
+        for (int i = 0; i < 20; i++)
+        {
+            coalescer.offer("p" + i, media(Integer.toString(i)));
+            Thread.sleep(WINDOW / 2);
+        }
+
+        assertTrue(handler.awaitApplied(20));
+        assertEquals(1, handler.maxConcurrency.get());
+        for (int i = 0; i < 20; i++)
+        {
+            assertEquals(Integer.toString(i),
+                handler.state.get("p" + i).getSsrc("audio"));
+        }
+        coalescer.stop();
+    }
+
+    private static MediaExtension media(String ssrc)
+    {
+        MediaExtension mediaExt = new MediaExtension();
+        mediaExt.setSsrc("audio", ssrc);
+        return mediaExt;
+    }
+
+    /**
+     * Keeps the state of the participants, and measures how many presences
+     * are applied at the same time.
+     */
+    private static class RecordingHandler
+        implements PresenceCoalescer.Handler
+    {
+        private final Map<String, MediaExtension> state =
+            new ConcurrentHashMap<String, MediaExtension>();
+
+        private final AtomicInteger applied = new AtomicInteger();
+
+        private final AtomicInteger concurrency = new AtomicInteger();
+
+        private final AtomicInteger maxConcurrency = new AtomicInteger();
+
+        /**
+         * How long each presence takes to be applied.
+         */
+        private final long delay;
+
+        private RecordingHandler(long delay)
+        {
+            this.delay = delay;
+        }
+
+        @Override
+        public boolean isUnchanged(String jid, MediaExtension mediaExt)
+        {
+            return false;
+        }
+
+        @Override
+        public void apply(String jid, MediaExtension mediaExt)
+        {
+            int current = concurrency.incrementAndGet();
+            int max;
+            while (current > (max = maxConcurrency.get())
+                && !maxConcurrency.compareAndSet(max, current))
+            {
+            }
+
+            try
+            {
+                Thread.sleep(delay);
+            }
+            catch (InterruptedException e)
+            {
+                Thread.currentThread().interrupt();
+            }
+
+            if (null == mediaExt)
+                state.remove(jid);
+            else
+                state.put(jid, mediaExt);
+            concurrency.decrementAndGet();
+
+            synchronized (this)
+            {
+                applied.incrementAndGet();
+                notifyAll();
+            }
+        }
+
+        private synchronized boolean awaitApplied(int count)
+            throws InterruptedException
+        {
+            long deadline = System.currentTimeMillis() + TIMEOUT;
+            long remaining;
+            while (applied.get() < count
+                && (remaining = deadline - System.currentTimeMillis()) > 0)
+            {
+                wait(remaining);
+            }
+            return applied.get() >= count;
+        }
+    }
+}
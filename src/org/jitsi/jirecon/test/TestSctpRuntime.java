@@ -0,0 +1,217 @@
+/*
+/*
+ * Jirecon, the JItsi REcording COntainer.
+ *
+ *
+ * Copyright @ 2015 Atlassian Pty Ltd
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.jitsi.jirecon.test;
+
+import java.io.*;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.*;
+
+import org.jitsi.jirecon.datachannel.*;
+import org.jitsi.sctp4j.*;
+import org.jitsi.util.*;
+
+import junit.framework.TestCase;
+
+/**
+ * Stress test of <tt>SctpRuntime</tt>: hundreds of SCTP associations are
+ * started and stopped concurrently, each one acquiring and releasing the
+ * runtime, while one holder (like <tt>TaskManager</tt>) keeps it up.
+ * <p>
+ * The two sockets of an association are linked in memory, so no network is
+ * involved. It needs the native <tt>jnsctp</tt> library on
+ * <tt>java.library.path</tt>, and is skipped otherwise.
+ */
+public class TestSctpRuntime
+    extends TestCase
+{
+    private static final Logger logger = Logger
+        .getLogger(TestSctpRuntime.class);
+
+    private static final int CHANNEL_COUNT = 200;
+
+    private static final int THREAD_COUNT = 32;
+
+    private static final int CONNECT_TIMEOUT = 10000;
+
+    public void testConcurrentStartStop()
+        throws Exception
+    {
+        final SctpRuntime runtime = SctpRuntime.getInstance();
+        try
+        {
+            runtime.acquire();
+        }
+        catch (UnsatisfiedLinkError e)
+        {
+            logger.warn("Native SCTP not available, skipped: " + e);
+            return;
+        }
+
+        final int initCount = runtime.getInitCount();
+        final AtomicInteger connected = new AtomicInteger();
+        final AtomicInteger failed = new AtomicInteger();
+        final AtomicReference<Exception> error =
+            new AtomicReference<Exception>();
+        ExecutorService executor = Executors.newFixedThreadPool(THREAD_COUNT);
+        List<Future<?>> futures = new ArrayList<Future<?>>();
+
+        for (int i = 0; i < CHANNEL_COUNT; i++)
+        {
+            futures.add(executor.submit(new Runnable()
+            {
+                @Override
+                public void run()
+                {
+                    try
+                    {
+                        if (startAndStop(runtime))
+                            connected.incrementAndGet();
+                        else
+                            failed.incrementAndGet();
+                    }
+                    catch (Exception e)
+                    {
+                        error.compareAndSet(null, e);
+                        failed.incrementAndGet();
+                    }
+                }
+            }));
+        }
+        for (Future<?> future : futures)
+            future.get(5, TimeUnit.MINUTES);
+        executor.shutdown();
+
+        if (null != error.get())
+            throw error.get();
+        assertEquals("Associations connected, " + failed + " failed",
+            CHANNEL_COUNT, connected.get());
+        assertEquals(1, runtime.getRefCount());
+        // The holder kept the stack up the whole time.
+        assertEquals(initCount, runtime.getInitCount());
+
+        runtime.release();
+        assertEquals(0, runtime.getRefCount());
+    }
+
+    /**
+     * Connect two sockets to each other, then close them.
+     *
+     * @return whether the association came up.
+     */
+    private boolean startAndStop(SctpRuntime runtime)
+        throws Exception
+    {
+        runtime.acquire();
+        try
+        {
+            SctpSocket server = runtime.createSocket();
+            SctpSocket client = runtime.createSocket();
+            final CountDownLatch up = new CountDownLatch(1);
+
+            server.setLink(new MemoryLink(client));
+            client.setLink(new MemoryLink(server));
+            client.setNotificationListener(
+                new SctpSocket.NotificationListener()
+                {
+                    @Override
+                    public void onSctpNotification(SctpSocket socket,
+                        SctpNotification notification)
+                    {
+                        if (notification instanceof
+                                SctpNotification.AssociationChange
+                            && ((SctpNotification.AssociationChange)
+                                    notification).state
+                                == SctpNotification.AssociationChange.SCTP_COMM_UP)
+                        {
+                            up.countDown();
+                        }
+                    }
+                });
+
+            try
+            {
+                server.listen();
+                client.connect(server.getPort());
+                return up.await(CONNECT_TIMEOUT, TimeUnit.MILLISECONDS);
+            }
+            finally
+            {
+                client.close();
+                server.close();
+            }
+        }
+        finally
+        {
+            runtime.release();
+        }
+    }
+
+    /**
+     * Delivers the packets of one socket to another one in memory.
+     * <p>
+     * The packets are delivered on another thread, like a network would do:
+     * feeding the peer from within <tt>onConnOut</tt> re-enters the native
+     * stack while it holds its locks.
+     */
+    private static class MemoryLink
+        implements NetworkLink
+    {
+        private static final ExecutorService delivery = Executors
+            .newSingleThreadExecutor(new ThreadFactory()
+            {
+                @Override
+                public Thread newThread(Runnable r)
+                {
+                    Thread t = new Thread(r, "MemoryLink");
+                    t.setDaemon(true);
+                    return t;
+                }
+            });
+
+        private final SctpSocket peer;
+
+        private MemoryLink(SctpSocket peer)
+        {
+            this.peer = peer;
+        }
+
+        @Override
+        public void onConnOut(SctpSocket s, final byte[] packet)
+            throws IOException
+        {
+            delivery.execute(new Runnable()
+            {
+                @Override
+                public void run()
+                {
+                    try
+                    {
+                        peer.onConnIn(packet, 0, packet.length);
+                    }
+                    catch (IOException e)
+                    {
+                        // The peer has been closed.
+                    }
+                }
+            });
+        }
+    }
+}
@@ -0,0 +1,203 @@
+/*
+/*
+ * Jirecon, the JItsi REcording COntainer.
+ *
+ *
+ * Copyright @ 2015 Atlassian Pty Ltd
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.jitsi.jirecon.test;
+
+import java.io.*;
+import java.util.*;
+
+import org.jitsi.jirecon.*;
+
+import junit.framework.TestCase;
+
+/**
+ * Tests of <tt>TaskJournal</tt>: the journal is replayed into the active
+ * tasks, survives a record which was cut by a crash, and is compacted when
+ * it's opened.
+ */
+public class TestTaskJournal
+    extends TestCase
+{
+    private File dir;
+
+    private File file;
+
+    @Override
+    protected void setUp()
+        throws IOException
+    {
+        dir = File.createTempFile("journal", "");
+        dir.delete();
+        dir.mkdirs();
+        file = new File(dir, "task_journal");
+    }
+
+    @Override
+    protected void tearDown()
+    {
+        File[] children = dir.listFiles();
+        if (null != children)
+        {
+            for (File child : children)
+                child.delete();
+        }
+        dir.delete();
+    }
+
+    public void testReplaysStartStopPairs()
+        throws Exception
+    {
+        TaskJournal journal = new TaskJournal(file);
+        assertTrue(journal.open().isEmpty());
+        journal.taskStarted(entry("a", 0));
+        journal.taskStarted(entry("b", 0));
+        journal.taskStopped(mucJid("a"));
+        journal.taskStarted(entry("c", 0));
+        // A task which is resumed replaces its previous entry.
+        journal.taskStarted(entry("b", 1));
+        journal.close();
+
+        List<TaskJournal.Entry> active = new TaskJournal(file).open();
+
+        assertEquals(2, active.size());
+        TaskJournal.Entry b = active.get(0);
+        assertEquals("b@conference.example.com", b.getMucJid());
+        assertEquals("rid-b", b.getRid());
+        assertEquals("/recordings/b", b.getOutputDir());
+        assertTrue(b.isAudioOnly());
+        assertEquals(1, b.getSegment());
+        assertEquals(1000, b.getRecordingStart());
+        assertEquals("c@conference.example.com", active.get(1).getMucJid());
+    }
+
+    public void testIgnoresTornLastLine()
+        throws Exception
+    {
+        TaskJournal journal = new TaskJournal(file);
+        journal.open();
+        journal.taskStarted(entry("a", 0));
+        journal.close();
+
+        // The process died while it was writing a record.
+        String torn = entry("b", 0).toJson().toJSONString();
+        appendLine(torn.substring(0, torn.length() / 2));
+
+        journal = new TaskJournal(file);
+        List<TaskJournal.Entry> active = journal.open();
+        assertEquals(1, active.size());
+        assertEquals("a@conference.example.com", active.get(0).getMucJid());
+
+        // The next record isn't glued to the torn one.
+        journal.taskStarted(entry("c", 0));
+        journal.close();
+        assertEquals(2, new TaskJournal(file).open().size());
+    }
+
+    public void testOpenRewritesActiveEntries()
+        throws Exception
+    {
+        TaskJournal journal = new TaskJournal(file);
+        journal.open();
+        for (int i = 0; i < 50; i++)
+        {
+            journal.taskStarted(entry("muc" + i, 0));
+            if (0 != i % 10)
+                journal.taskStopped(mucJid("muc" + i));
+        }
+        journal.close();
+        assertEquals(95, readLines().size());
+
+        List<TaskJournal.Entry> active = new TaskJournal(file).open();
+
+        List<String> lines = readLines();
+        assertEquals(5, active.size());
+        assertEquals(5, lines.size());
+        for (int i = 0; i < 5; i++)
+        {
+            assertEquals(mucJid("muc" + i * 10), active.get(i).getMucJid());
+            assertEquals(active.get(i).toJson().toJSONString(), lines.get(i));
+        }
+        assertFalse(new File(file.getPath() + ".tmp").exists());
+    }
+
+    public void testTaskManagerDropsEntriesWhoseDirectoryIsGone()
+        throws Exception
+    {
+        TaskJournal journal = new TaskJournal(file);
+        journal.open();
+        journal.taskStarted(new TaskJournal.Entry(mucJid("gone"), "rid",
+            new File(dir, "gone").getPath(), false, 0, 1000));
+        journal.close();
+
+        TaskManager taskManager = new TaskManager();
+        taskManager.openJournal(file.getPath());
+
+        assertTrue(taskManager.getResumedTasks().isEmpty());
+        assertEquals(0, taskManager.getTaskCount());
+
+        // It won't be tried again at the next start.
+        assertTrue(new TaskJournal(file).open().isEmpty());
+    }
+
+    private static String mucJid(String name)
+    {
+        return name + "@conference.example.com";
+    }
+
+    private static TaskJournal.Entry entry(String name, int segment)
+    {
+        return new TaskJournal.Entry(mucJid(name), "rid-" + name,
+            "/recordings/" + name, true, segment, 1000);
+    }
+
+    private void appendLine(String line)
+        throws IOException
+    {
+        Writer writer =
+            new OutputStreamWriter(new FileOutputStream(file, true), "UTF-8");
+        try
+        {
+            writer.write(line);
+        }
+        finally
+        {
+            writer.close();
+        }
+    }
+
+    private List<String> readLines()
+        throws IOException
+    {
+        List<String> lines = new ArrayList<String>();
+        BufferedReader reader =
+            new BufferedReader(new InputStreamReader(
+                new FileInputStream(file), "UTF-8"));
+        try
+        {
+            String line;
+            while (null != (line = reader.readLine()))
+                lines.add(line);
+        }
+        finally
+        {
+            reader.close();
+        }
+        return lines;
+    }
+}
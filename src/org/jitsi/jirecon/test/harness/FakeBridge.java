@@ -0,0 +1,701 @@
+/*
+/*
+ * Jirecon, the JItsi REcording COntainer.
+ *
+ *
+ * Copyright @ 2015 Atlassian Pty Ltd
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.jitsi.jirecon.test.harness;
+
+import java.beans.*;
+import java.io.*;
+import java.net.*;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.*;
+
+import net.java.sip.communicator.impl.protocol.jabber.extensions.jingle.*;
+import net.java.sip.communicator.impl.protocol.jabber.extensions.jingle.CandidateType;
+
+import org.ice4j.*;
+import org.ice4j.ice.*;
+import org.jitsi.impl.neomedia.*;
+import org.jitsi.impl.neomedia.transform.dtls.*;
+import org.jitsi.jirecon.datachannel.*;
+import org.jitsi.service.libjitsi.*;
+import org.jitsi.service.neomedia.*;
+import org.jitsi.util.*;
+
+/**
+ * The bridge side of the media of a fake conference.
+ * <p>
+ * Like a videobridge, it is the controlling ICE agent and the passive DTLS
+ * endpoint. Once ICE has completed, it sends synthetic SRTP to the recorder:
+ * an Opus silence frame every 20 ms and a VP8 frame every 40 ms (with a key
+ * frame every 2 seconds) for each endpoint, and once the SCTP association is
+ * up, a colibri dominant speaker change every second on the default data
+ * channel.
+ * <p>
+ * All the bridges of a harness share one scheduler for their packets.
+ */
+public class FakeBridge
+{
+    /**
+     * The <tt>Logger</tt>, used to log messages to standard output.
+     */
+    private static final Logger logger = Logger.getLogger(FakeBridge.class);
+
+    public static final byte OPUS_PAYLOAD_TYPE = 111;
+
+    public static final byte VP8_PAYLOAD_TYPE = 100;
+
+    /**
+     * The period in milliseconds of the audio packets, which is also the
+     * period of the scheduled sending.
+     */
+    private static final int AUDIO_PERIOD = 20;
+
+    /**
+     * How many audio packets are sent for each video frame.
+     */
+    private static final int AUDIO_PACKETS_PER_VIDEO_FRAME = 2;
+
+    /**
+     * How many video frames are sent for each key frame.
+     */
+    private static final int VIDEO_FRAMES_PER_KEY_FRAME = 50;
+
+    /**
+     * How many audio packets are sent for each data channel message.
+     */
+    private static final int AUDIO_PACKETS_PER_MESSAGE = 50;
+
+    /**
+     * An Opus frame of silence, as sent by browsers.
+     */
+    private static final byte[] OPUS_SILENCE = { (byte) 0xF8, (byte) 0xFF,
+        (byte) 0xFE };
+
+    private static final int RTP_HEADER_LENGTH = 12;
+
+    private static final MediaType[] MEDIA_TYPES = { MediaType.AUDIO,
+        MediaType.VIDEO, MediaType.DATA };
+
+    private final String id;
+
+    private final List<FakeEndpoint> endpoints;
+
+    private final ScheduledExecutorService scheduler;
+
+    /**
+     * The size in bytes of the VP8 payload of the video frames.
+     */
+    private final int videoPayloadSize;
+
+    private final Agent iceAgent;
+
+    private final Map<MediaType, DtlsControl> dtlsControls =
+        new HashMap<MediaType, DtlsControl>();
+
+    private final Map<MediaType, MediaStream> streams =
+        new HashMap<MediaType, MediaStream>();
+
+    private WebRtcDataStreamManager dataStreamManager;
+
+    private WebRtcDataStream dataChannel;
+
+    private ScheduledFuture<?> sending;
+
+    /**
+     * The number of scheduled sendings so far.
+     */
+    private int tick = 0;
+
+    private final Map<Long, int[]> sequenceNumbers =
+        new HashMap<Long, int[]>();
+
+    private final AtomicLong packetsSent = new AtomicLong();
+
+    private final AtomicLong bytesSent = new AtomicLong();
+
+    private final AtomicLong messagesSent = new AtomicLong();
+
+    private volatile boolean mediaStarted = false;
+
+    private volatile boolean stopped = false;
+
+    /**
+     * @param id the ID of the bridge, for the logs.
+     * @param endpoints the endpoints whose media is sent.
+     * @param scheduler
+     * @param videoPayloadSize the size in bytes of the VP8 frames.
+     */
+    public FakeBridge(String id, List<FakeEndpoint> endpoints,
+        ScheduledExecutorService scheduler, int videoPayloadSize)
+    {
+        this.id = id;
+        this.endpoints = endpoints;
+        this.scheduler = scheduler;
+        this.videoPayloadSize = Math.max(videoPayloadSize, 16);
+
+        iceAgent = new Agent();
+        iceAgent.setControlling(true);
+    }
+
+    /**
+     * Harvest the local candidates of all the media types, and create the
+     * DTLS controls.
+     * 
+     * @param minPort
+     * @param maxPort
+     * @throws IOException
+     */
+    public void harvest(int minPort, int maxPort)
+        throws IOException
+    {
+        for (MediaType mediaType : MEDIA_TYPES)
+        {
+            IceMediaStream stream =
+                iceAgent.createMediaStream(mediaType.toString());
+            iceAgent.createComponent(stream, Transport.UDP, minPort, minPort,
+                maxPort);
+            if (MediaType.DATA != mediaType)
+            {
+                iceAgent.createComponent(stream, Transport.UDP, minPort,
+                    minPort, maxPort);
+            }
+
+            DtlsControl control;
+            if (MediaType.DATA == mediaType)
+            {
+                // Jirecon offers the SRTP extensions on its data channel
+                // too, and its client fails without them in the answer.
+                control = new DtlsControlImpl(false);
+            }
+            else
+            {
+                control =
+                    (DtlsControl) LibJitsi.getMediaService()
+                        .createSrtpControl(SrtpControlType.DTLS_SRTP);
+            }
+            control.setSetup(DtlsControl.Setup.PASSIVE);
+            dtlsControls.put(mediaType, control);
+        }
+    }
+
+    /**
+     * Create the transport of a media type for the session-initiate, with
+     * the local candidates and DTLS fingerprint.
+     * 
+     * @param mediaType
+     * @return
+     */
+    public IceUdpTransportPacketExtension createTransportPacketExt(
+        MediaType mediaType)
+    {
+        IceUdpTransportPacketExtension transportPE =
+            new IceUdpTransportPacketExtension();
+        transportPE.setUfrag(iceAgent.getLocalUfrag());
+        transportPE.setPassword(iceAgent.getLocalPassword());
+
+        int candidateId = 0;
+        for (Component component : iceAgent.getStream(mediaType.toString())
+            .getComponents())
+        {
+            for (LocalCandidate candidate : component.getLocalCandidates())
+            {
+                CandidatePacketExtension candidatePE =
+                    new CandidatePacketExtension();
+                candidatePE.setComponent(component.getComponentID());
+                candidatePE.setFoundation(candidate.getFoundation());
+                candidatePE.setGeneration(iceAgent.getGeneration());
+                candidatePE.setID(id + "-" + candidateId++);
+                candidatePE.setNetwork(0);
+                candidatePE.setIP(candidate.getTransportAddress()
+                    .getHostAddress());
+                candidatePE.setPort(candidate.getTransportAddress().getPort());
+                candidatePE.setPriority(candidate.getPriority());
+                candidatePE.setProtocol(candidate.getTransport().toString());
+                candidatePE.setType(CandidateType.valueOf(candidate.getType()
+                    .toString()));
+                transportPE.addCandidate(candidatePE);
+            }
+        }
+
+        DtlsControl control = dtlsControls.get(mediaType);
+        DtlsFingerprintPacketExtension fingerprintPE =
+            new DtlsFingerprintPacketExtension();
+        fingerprintPE.setHash(control.getLocalFingerprintHashFunction());
+        fingerprintPE.setFingerprint(control.getLocalFingerprint());
+        fingerprintPE.setAttribute("setup", "actpass");
+        transportPE.addChildExtension(fingerprintPE);
+
+        return transportPE;
+    }
+
+    /**
+     * Take the transports of the session-accept: the media types which the
+     * recorder has left out are dropped, and ICE starts for the others.
+     * 
+     * @param transportPEs
+     */
+    public synchronized void accept(
+        Map<MediaType, IceUdpTransportPacketExtension> transportPEs)
+    {
+        for (MediaType mediaType : MEDIA_TYPES)
+        {
+            IceUdpTransportPacketExtension transportPE =
+                transportPEs.get(mediaType);
+            if (null == transportPE)
+            {
+                iceAgent.removeStream(iceAgent.getStream(mediaType
+                    .toString()));
+                dtlsControls.remove(mediaType).cleanup(null);
+                continue;
+            }
+
+            DtlsFingerprintPacketExtension fingerprintPE =
+                transportPE
+                    .getFirstChildOfType(DtlsFingerprintPacketExtension.class);
+            if (null != fingerprintPE)
+            {
+                Map<String, String> fingerprints =
+                    new HashMap<String, String>();
+                fingerprints.put(fingerprintPE.getHash(),
+                    fingerprintPE.getFingerprint());
+                dtlsControls.get(mediaType).setRemoteFingerprints(
+                    fingerprints);
+            }
+            addRemoteCandidates(mediaType, transportPE, false);
+        }
+
+        iceAgent.addStateChangeListener(new PropertyChangeListener()
+        {
+            @Override
+            public void propertyChange(PropertyChangeEvent ev)
+            {
+                Object state = ev.getNewValue();
+                if (IceProcessingState.COMPLETED.equals(state))
+                {
+                    iceAgent.removeStateChangeListener(this);
+                    scheduler.execute(new Runnable()
+                    {
+                        @Override
+                        public void run()
+                        {
+                            startMedia();
+                        }
+                    });
+                }
+                else if (IceProcessingState.FAILED.equals(state))
+                {
+                    iceAgent.removeStateChangeListener(this);
+                    logger.warn("ICE failed on bridge " + id);
+                }
+            }
+        });
+        iceAgent.startConnectivityEstablishment();
+    }
+
+    /**
+     * Add the candidates which the recorder trickles.
+     * 
+     * @param transportPEs
+     */
+    public synchronized void addRemoteCandidates(
+        Map<MediaType, IceUdpTransportPacketExtension> transportPEs)
+    {
+        if (stopped)
+            return;
+
+        for (Map.Entry<MediaType, IceUdpTransportPacketExtension> e : transportPEs
+            .entrySet())
+        {
+            if (null != iceAgent.getStream(e.getKey().toString()))
+                addRemoteCandidates(e.getKey(), e.getValue(), true);
+        }
+    }
+
+    private void addRemoteCandidates(MediaType mediaType,
+        IceUdpTransportPacketExtension transportPE, boolean trickled)
+    {
+        IceMediaStream stream = iceAgent.getStream(mediaType.toString());
+        if (null != transportPE.getUfrag())
+            stream.setRemoteUfrag(transportPE.getUfrag());
+        if (null != transportPE.getPassword())
+            stream.setRemotePassword(transportPE.getPassword());
+
+        Set<Component> updated = new HashSet<Component>();
+        for (CandidatePacketExtension candidatePE : transportPE
+            .getCandidateList())
+        {
+            Component component =
+                stream.getComponent(candidatePE.getComponent());
+            if (null == component
+                || candidatePE.getGeneration() != iceAgent.getGeneration())
+                continue;
+
+            TransportAddress address =
+                new TransportAddress(candidatePE.getIP(),
+                    candidatePE.getPort(), Transport.parse(candidatePE
+                        .getProtocol()));
+            if (null != component.findRemoteCandidate(address))
+                continue;
+
+            TransportAddress relatedAddress = null;
+            if (null != candidatePE.getRelAddr()
+                && candidatePE.getRelPort() > 0)
+            {
+                relatedAddress =
+                    new TransportAddress(candidatePE.getRelAddr(),
+                        candidatePE.getRelPort(), Transport.parse(candidatePE
+                            .getProtocol()));
+            }
+
+            RemoteCandidate candidate =
+                new RemoteCandidate(address, component,
+                    org.ice4j.ice.CandidateType.parse(candidatePE.getType()
+                        .toString()), candidatePE.getFoundation(),
+                    candidatePE.getPriority(),
+                    component.findRemoteCandidate(relatedAddress));
+            if (trickled)
+            {
+                component.addUpdateRemoteCandidates(candidate);
+                updated.add(component);
+            }
+            else
+            {
+                component.addRemoteCandidate(candidate);
+            }
+        }
+        for (Component component : updated)
+            component.updateRemoteCandidates();
+    }
+
+    /**
+     * Start the DTLS handshakes and the sending of the media, once ICE has
+     * completed.
+     */
+    private synchronized void startMedia()
+    {
+        if (stopped)
+            return;
+
+        try
+        {
+            MediaService mediaService = LibJitsi.getMediaService();
+            for (MediaType mediaType : new MediaType[] { MediaType.AUDIO,
+                MediaType.VIDEO })
+            {
+                DtlsControl control = dtlsControls.get(mediaType);
+                if (null == control)
+                    continue;
+
+                MediaStream stream =
+                    mediaService.createMediaStream(
+                        getStreamConnector(mediaType), mediaType, control);
+                stream.setName(id + "-" + mediaType);
+                stream.setTarget(getStreamTarget(mediaType));
+                stream.setDirection(MediaDirection.SENDONLY);
+                stream.setRTPTranslator(mediaService.createRTPTranslator());
+                control.start(mediaType);
+                stream.start();
+                streams.put(mediaType, stream);
+            }
+
+            DtlsControl control = dtlsControls.get(MediaType.DATA);
+            if (null != control)
+            {
+                dataStreamManager = new WebRtcDataStreamManager(id);
+                dataStreamManager.runAsServer(
+                    getStreamConnector(MediaType.DATA),
+                    getStreamTarget(MediaType.DATA), control);
+            }
+        }
+        catch (Exception e)
+        {
+            logger.error("Failed to start the media of bridge " + id, e);
+            return;
+        }
+
+        sending = scheduler.scheduleAtFixedRate(new Runnable()
+        {
+            @Override
+            public void run()
+            {
+                try
+                {
+                    send();
+                }
+                catch (Throwable t)
+                {
+                    logger.warn("Bridge " + id + " failed to send: " + t);
+                }
+            }
+        }, 0, AUDIO_PERIOD, TimeUnit.MILLISECONDS);
+        mediaStarted = true;
+        logger.info("Bridge " + id + " is sending media.");
+    }
+
+    /**
+     * Send the packets of one period.
+     */
+    private synchronized void send()
+        throws IOException
+    {
+        if (stopped)
+            return;
+
+        MediaStream audio = streams.get(MediaType.AUDIO);
+        MediaStream video = streams.get(MediaType.VIDEO);
+        boolean videoFrame = 0 == tick % AUDIO_PACKETS_PER_VIDEO_FRAME;
+        int frame = tick / AUDIO_PACKETS_PER_VIDEO_FRAME;
+
+        for (FakeEndpoint endpoint : endpoints)
+        {
+            if (null != audio)
+            {
+                sendRtp(audio, OPUS_PAYLOAD_TYPE, endpoint.getAudioSsrc(),
+                    48 * AUDIO_PERIOD, OPUS_SILENCE, OPUS_SILENCE.length);
+            }
+            if (null != video && videoFrame)
+            {
+                byte[] payload =
+                    createVp8Payload(0 == frame % VIDEO_FRAMES_PER_KEY_FRAME);
+                sendRtp(video, VP8_PAYLOAD_TYPE, endpoint.getVideoSsrc(), 90
+                    * AUDIO_PERIOD * AUDIO_PACKETS_PER_VIDEO_FRAME, payload,
+                    payload.length);
+            }
+        }
+
+        if (0 == tick % AUDIO_PACKETS_PER_MESSAGE && !endpoints.isEmpty())
+            sendDominantSpeaker(tick / AUDIO_PACKETS_PER_MESSAGE);
+        tick++;
+    }
+
+    /**
+     * Send an RTP packet through the SRTP transformer of a stream.
+     * 
+     * @param stream
+     * @param payloadType
+     * @param ssrc
+     * @param timestampIncrement the duration of the packet in RTP clock
+     *            ticks.
+     * @param payload
+     * @param length
+     */
+    private void sendRtp(MediaStream stream, byte payloadType, long ssrc,
+        int timestampIncrement, byte[] payload, int length)
+    {
+        int[] state = sequenceNumbers.get(ssrc);
+        if (null == state)
+        {
+            state = new int[] { (int) (ssrc & 0x7FFF), (int) ssrc };
+            sequenceNumbers.put(ssrc, state);
+        }
+        int seq = state[0]++ & 0xFFFF;
+        int timestamp = state[1];
+        state[1] += timestampIncrement;
+
+        byte[] buf = new byte[RTP_HEADER_LENGTH + length];
+        buf[0] = (byte) 0x80;
+        // A video frame is a single packet, the marker ends it.
+        buf[1] =
+            (byte) (payloadType
+                | (VP8_PAYLOAD_TYPE == payloadType ? 0x80 : 0));
+        buf[2] = (byte) (seq >> 8);
+        buf[3] = (byte) seq;
+        buf[4] = (byte) (timestamp >> 24);
+        buf[5] = (byte) (timestamp >> 16);
+        buf[6] = (byte) (timestamp >> 8);
+        buf[7] = (byte) timestamp;
+        buf[8] = (byte) (ssrc >> 24);
+        buf[9] = (byte) (ssrc >> 16);
+        buf[10] = (byte) (ssrc >> 8);
+        buf[11] = (byte) ssrc;
+        System.arraycopy(payload, 0, buf, RTP_HEADER_LENGTH, length);
+
+        // The last argument has the SRTP transformer applied, the other
+        // transformers of the stream are skipped.
+        stream.injectPacket(new RawPacket(buf, 0, buf.length), true, true);
+        packetsSent.incrementAndGet();
+        bytesSent.addAndGet(buf.length);
+    }
+
+    /**
+     * Create the RTP payload of a VP8 frame in a single packet, with a
+     * 320x180 picture if it is a key frame. The compressed data is filler,
+     * the recorder only parses the headers.
+     * 
+     * @param keyFrame
+     * @return
+     */
+    private byte[] createVp8Payload(boolean keyFrame)
+    {
+        byte[] payload = new byte[videoPayloadSize];
+        // The payload descriptor: start of a partition, partition 0.
+        payload[0] = 0x10;
+
+        // The frame tag: version 0, shown, with the first partition size.
+        int firstPartitionSize = videoPayloadSize - 11;
+        int tag = (keyFrame ? 0 : 1) | 0x10 | (firstPartitionSize << 5);
+        payload[1] = (byte) tag;
+        payload[2] = (byte) (tag >> 8);
+        payload[3] = (byte) (tag >> 16);
+
+        int offset = 4;
+        if (keyFrame)
+        {
+            payload[4] = (byte) 0x9D;
+            payload[5] = (byte) 0x01;
+            payload[6] = (byte) 0x2A;
+            payload[7] = (byte) 320;
+            payload[8] = (byte) (320 >> 8);
+            payload[9] = (byte) 180;
+            payload[10] = (byte) (180 >> 8);
+            offset = 11;
+        }
+        for (int i = offset; i < payload.length; i++)
+            payload[i] = (byte) i;
+        return payload;
+    }
+
+    /**
+     * Announce an endpoint as the dominant speaker on the data channel, once
+     * it is open.
+     * 
+     * @param index which endpoint, modulo their number.
+     */
+    private void sendDominantSpeaker(int index)
+        throws IOException
+    {
+        if (null == dataStreamManager || !dataStreamManager.isReady())
+            return;
+
+        if (null == dataChannel)
+        {
+            // Like a videobridge, which opens the default channel.
+            dataChannel = dataStreamManager.openChannel(0, 0, 0, 0, "default");
+        }
+
+        FakeEndpoint endpoint = endpoints.get(index % endpoints.size());
+        dataChannel.sendString("{\"colibriClass\":"
+            + "\"DominantSpeakerEndpointChangeEvent\","
+            + "\"dominantSpeakerEndpoint\":\"" + endpoint.getJid() + "\"}");
+        messagesSent.incrementAndGet();
+    }
+
+    private StreamConnector getStreamConnector(MediaType mediaType)
+    {
+        IceMediaStream stream = iceAgent.getStream(mediaType.toString());
+        DatagramSocket rtpSocket =
+            stream.getComponent(Component.RTP).getSelectedPair()
+                .getIceSocketWrapper().getUDPSocket();
+        DatagramSocket rtcpSocket = null;
+        if (MediaType.DATA != mediaType)
+        {
+            rtcpSocket =
+                stream.getComponent(Component.RTCP).getSelectedPair()
+                    .getIceSocketWrapper().getUDPSocket();
+        }
+        return new DefaultStreamConnector(rtpSocket, rtcpSocket,
+            MediaType.DATA == mediaType);
+    }
+
+    private MediaStreamTarget getStreamTarget(MediaType mediaType)
+    {
+        IceMediaStream stream = iceAgent.getStream(mediaType.toString());
+        InetSocketAddress rtpAddress = null;
+        InetSocketAddress rtcpAddress = null;
+        for (Component component : stream.getComponents())
+        {
+            CandidatePair pair = component.getSelectedPair();
+            if (null == pair)
+                continue;
+            if (Component.RTP == component.getComponentID())
+                rtpAddress = pair.getRemoteCandidate().getTransportAddress();
+            else if (Component.RTCP == component.getComponentID())
+                rtcpAddress = pair.getRemoteCandidate().getTransportAddress();
+        }
+        return new MediaStreamTarget(rtpAddress, rtcpAddress);
+    }
+
+    /**
+     * Stop sending and free the resources.
+     */
+    public void stop()
+    {
+        synchronized (this)
+        {
+            if (stopped)
+                return;
+            stopped = true;
+        }
+
+        if (null != sending)
+            sending.cancel(false);
+
+        synchronized (this)
+        {
+            for (MediaStream stream : streams.values())
+            {
+                stream.stop();
+                stream.close();
+            }
+            streams.clear();
+            if (null != dataStreamManager)
+                dataStreamManager.shutdown();
+            for (DtlsControl control : dtlsControls.values())
+                control.cleanup(null);
+            dtlsControls.clear();
+        }
+        iceAgent.free();
+    }
+
+    /**
+     * Whether ICE has completed and the media is being sent.
+     * 
+     * @return
+     */
+    public boolean isMediaStarted()
+    {
+        return mediaStarted;
+    }
+
+    /**
+     * Whether the data channel is open.
+     * 
+     * @return
+     */
+    public synchronized boolean isDataChannelOpen()
+    {
+        return null != dataChannel;
+    }
+
+    public long getPacketsSent()
+    {
+        return packetsSent.get();
+    }
+
+    public long getBytesSent()
+    {
+        return bytesSent.get();
+    }
+
+    public long getMessagesSent()
+    {
+        return messagesSent.get();
+    }
+}
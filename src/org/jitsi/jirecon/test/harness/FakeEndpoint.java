@@ -0,0 +1,71 @@
+/*
+/*
+ * Jirecon, the JItsi REcording COntainer.
+ *
+ *
+ * Copyright @ 2015 Atlassian Pty Ltd
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.jitsi.jirecon.test.harness;
+
+/**
+ * A participant of a fake conference. It is a virtual occupant of the MUC,
+ * whose audio and video the <tt>FakeBridge</tt> forwards to the recorder.
+ */
+public class FakeEndpoint
+{
+    private final String nickname;
+
+    private final String jid;
+
+    private final long audioSsrc;
+
+    private final long videoSsrc;
+
+    /**
+     * @param nickname the nickname in the MUC.
+     * @param jid the real JID, which is also the endpoint ID, as the recorder
+     *            knows the endpoints by it.
+     * @param audioSsrc
+     * @param videoSsrc
+     */
+    public FakeEndpoint(String nickname, String jid, long audioSsrc,
+        long videoSsrc)
+    {
+        this.nickname = nickname;
+        this.jid = jid;
+        this.audioSsrc = audioSsrc;
+        this.videoSsrc = videoSsrc;
+    }
+
+    public String getNickname()
+    {
+        return nickname;
+    }
+
+    public String getJid()
+    {
+        return jid;
+    }
+
+    public long getAudioSsrc()
+    {
+        return audioSsrc;
+    }
+
+    public long getVideoSsrc()
+    {
+        return videoSsrc;
+    }
+}
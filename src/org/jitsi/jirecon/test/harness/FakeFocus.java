@@ -0,0 +1,445 @@
+/*
+/*
+ * Jirecon, the JItsi REcording COntainer.
+ *
+ *
+ * Copyright @ 2015 Atlassian Pty Ltd
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.jitsi.jirecon.test.harness;
+
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.*;
+
+import net.java.sip.communicator.impl.protocol.jabber.extensions.colibri.*;
+import net.java.sip.communicator.impl.protocol.jabber.extensions.jingle.*;
+import net.java.sip.communicator.impl.protocol.jabber.extensions.jingle.ContentPacketExtension.*;
+
+import org.jitsi.jirecon.datachannel.*;
+import org.jitsi.jirecon.protocol.extension.*;
+import org.jitsi.jirecon.utils.*;
+import org.jitsi.service.neomedia.*;
+import org.jitsi.util.*;
+import org.jivesoftware.smack.*;
+import org.jivesoftware.smack.filter.*;
+import org.jivesoftware.smack.packet.*;
+import org.jivesoftware.smackx.muc.*;
+
+/**
+ * A focus which runs fake conferences on a <tt>LocalXmppServer</tt>.
+ * <p>
+ * Every conference has a room with a number of virtual participants, and a
+ * <tt>FakeBridge</tt>. Once a recorder has joined the room and announced
+ * itself with its recorder presence, the focus sends it a session-initiate
+ * like the one of Jicofo: audio, video and data contents with the candidates
+ * and fingerprints of the bridge, and the SSRCs of the participants with
+ * their owners. The bridge starts ICE as soon as the session-accept comes.
+ * <p>
+ * All the conferences share one XMPP connection.
+ */
+public class FakeFocus
+{
+    /**
+     * The <tt>Logger</tt>, used to log messages to standard output.
+     */
+    private static final Logger logger = Logger.getLogger(FakeFocus.class);
+
+    /**
+     * The nickname of the focus in the rooms.
+     */
+    public static final String NICKNAME = "focus";
+
+    private final LocalXmppServer server;
+
+    private final ScheduledExecutorService scheduler;
+
+    /**
+     * The number of participants of a conference.
+     */
+    private final int endpointCount;
+
+    private final int videoPayloadSize;
+
+    /**
+     * The range of the ports of the bridges.
+     */
+    private final int minPort;
+
+    private final int maxPort;
+
+    private XMPPConnection connection;
+
+    /**
+     * The conferences, by room JID.
+     */
+    private final Map<String, Conference> conferences =
+        new ConcurrentHashMap<String, Conference>();
+
+    /**
+     * The conferences, by Jingle session ID.
+     */
+    private final Map<String, Conference> conferencesBySid =
+        new ConcurrentHashMap<String, Conference>();
+
+    private final AtomicLong nextSsrc = new AtomicLong(0x10000000L);
+
+    private final PacketListener packetListener = new PacketListener()
+    {
+        @Override
+        public void processPacket(Packet packet)
+        {
+            if (packet instanceof JingleIQ)
+                handleJingle((JingleIQ) packet);
+            else if (packet instanceof Presence)
+                handlePresence((Presence) packet);
+        }
+    };
+
+    /**
+     * @param server
+     * @param scheduler the scheduler of the packets of the bridges.
+     * @param endpointCount the number of participants of a conference.
+     * @param videoPayloadSize the size in bytes of the video frames.
+     * @param minPort the lowest port of the bridges.
+     * @param maxPort the highest port of the bridges.
+     */
+    public FakeFocus(LocalXmppServer server,
+        ScheduledExecutorService scheduler, int endpointCount,
+        int videoPayloadSize, int minPort, int maxPort)
+    {
+        this.server = server;
+        this.scheduler = scheduler;
+        this.endpointCount = endpointCount;
+        this.videoPayloadSize = videoPayloadSize;
+        this.minPort = minPort;
+        this.maxPort = maxPort;
+    }
+
+    /**
+     * Connect to the server.
+     * <p>
+     * <strong>Warning:</strong> The Jingle providers must have been
+     * registered, e.g. by <tt>TaskManager</tt>.
+     * 
+     * @throws XMPPException
+     */
+    public void connect()
+        throws XMPPException
+    {
+        ConnectionConfiguration conf =
+            new ConnectionConfiguration(server.getDomain(), server.getPort());
+        conf.setReconnectionAllowed(false);
+        connection = new XMPPConnection(conf);
+        connection.connect();
+        connection.addPacketListener(packetListener, new PacketFilter()
+        {
+            @Override
+            public boolean accept(Packet packet)
+            {
+                return true;
+            }
+        });
+        connection.loginAnonymously();
+    }
+
+    /**
+     * Stop all the conferences and disconnect from the server.
+     */
+    public void disconnect()
+    {
+        for (String roomJid : new ArrayList<String>(conferences.keySet()))
+            stopConference(roomJid);
+        if (null != connection)
+            connection.disconnect();
+    }
+
+    /**
+     * Start a conference: join its room with its participants, and get its
+     * bridge ready. The session-initiate is sent once a recorder shows up.
+     * 
+     * @param roomJid the bare JID of the room, in lower case.
+     * @return
+     * @throws Exception
+     */
+    public Conference startConference(String roomJid)
+        throws Exception
+    {
+        String roomName = roomJid.substring(0, roomJid.indexOf('@'));
+        List<FakeEndpoint> endpoints = new ArrayList<FakeEndpoint>();
+        for (int i = 0; i < endpointCount; i++)
+        {
+            String nickname = "endpoint" + i;
+            endpoints.add(new FakeEndpoint(nickname, roomName + "-" + nickname
+                + "@" + server.getDomain() + "/web", nextSsrc
+                .getAndIncrement(), nextSsrc.getAndIncrement()));
+        }
+
+        FakeBridge bridge =
+            new FakeBridge(roomName, endpoints, scheduler, videoPayloadSize);
+        bridge.harvest(minPort, maxPort);
+
+        Conference conference = new Conference(roomJid, endpoints, bridge);
+        conferences.put(roomJid, conference);
+        try
+        {
+            conference.muc = new MultiUserChat(connection, roomJid);
+            conference.muc.join(NICKNAME);
+            for (FakeEndpoint endpoint : endpoints)
+            {
+                server.addVirtualOccupant(roomJid, endpoint.getNickname(),
+                    endpoint.getJid(), null);
+            }
+        }
+        catch (Exception e)
+        {
+            stopConference(roomJid);
+            throw e;
+        }
+        return conference;
+    }
+
+    /**
+     * Stop a conference: its bridge, participants and focus leave.
+     * 
+     * @param roomJid
+     */
+    public void stopConference(String roomJid)
+    {
+        Conference conference = conferences.remove(roomJid);
+        if (null == conference)
+            return;
+
+        if (null != conference.sid)
+            conferencesBySid.remove(conference.sid);
+        conference.bridge.stop();
+        for (FakeEndpoint endpoint : conference.endpoints)
+            server.removeVirtualOccupant(roomJid, endpoint.getNickname());
+        if (null != conference.muc && connection.isConnected())
+            conference.muc.leave();
+    }
+
+    /**
+     * Send a session-initiate to a recorder which has announced itself in a
+     * room.
+     * 
+     * @param presence
+     */
+    private void handlePresence(Presence presence)
+    {
+        String from = presence.getFrom();
+        if (null == from || Presence.Type.available != presence.getType()
+            || null == presence.getExtension(RecorderExtension.ELEMENT_NAME,
+                RecorderExtension.NAMESPACE))
+            return;
+
+        int slash = from.indexOf('/');
+        Conference conference =
+            slash < 0 ? null : conferences.get(from.substring(0, slash));
+        if (null != conference)
+            conference.initiate(from);
+    }
+
+    private void handleJingle(JingleIQ jiq)
+    {
+        if (IQ.Type.SET != jiq.getType())
+            return;
+
+        connection.sendPacket(IQ.createResultIQ(jiq));
+
+        Conference conference = conferencesBySid.get(jiq.getSID());
+        if (null == conference)
+            return;
+
+        JingleAction action = jiq.getAction();
+        if (JingleAction.SESSION_ACCEPT.equals(action))
+        {
+            conference.acceptTime = System.currentTimeMillis();
+            conference.bridge.accept(JinglePacketParser
+                .getTransportPacketExts(jiq));
+        }
+        else if (JingleAction.TRANSPORT_INFO.equals(action))
+        {
+            conference.bridge.addRemoteCandidates(JinglePacketParser
+                .getTransportPacketExts(jiq));
+        }
+        else if (JingleAction.SESSION_TERMINATE.equals(action))
+        {
+            conference.bridge.stop();
+        }
+    }
+
+    /**
+     * A fake conference.
+     */
+    public class Conference
+    {
+        private final String roomJid;
+
+        private final List<FakeEndpoint> endpoints;
+
+        private final FakeBridge bridge;
+
+        private MultiUserChat muc;
+
+        /**
+         * The Jingle session ID, once the session-initiate has been sent.
+         */
+        private String sid;
+
+        private volatile long initiateTime = -1;
+
+        private volatile long acceptTime = -1;
+
+        private Conference(String roomJid, List<FakeEndpoint> endpoints,
+            FakeBridge bridge)
+        {
+            this.roomJid = roomJid;
+            this.endpoints = endpoints;
+            this.bridge = bridge;
+        }
+
+        /**
+         * Send the session-initiate to a recorder, unless it has already been
+         * sent.
+         * 
+         * @param recorderJid the occupant JID of the recorder.
+         */
+        private synchronized void initiate(String recorderJid)
+        {
+            if (null != sid)
+                return;
+
+            List<ContentPacketExtension> contents =
+                new ArrayList<ContentPacketExtension>();
+            for (MediaType mediaType : new MediaType[] { MediaType.AUDIO,
+                MediaType.VIDEO, MediaType.DATA })
+            {
+                ContentPacketExtension content = new ContentPacketExtension();
+                content.setCreator(CreatorEnum.initiator);
+                content.setName(mediaType.toString());
+                content.setSenders(SendersEnum.both);
+                if (MediaType.DATA != mediaType)
+                    content.addChildExtension(createDescription(mediaType));
+
+                IceUdpTransportPacketExtension transportPE =
+                    bridge.createTransportPacketExt(mediaType);
+                if (MediaType.DATA == mediaType)
+                {
+                    SctpMapExtension sctpMapPE = new SctpMapExtension();
+                    sctpMapPE.setPort(SctpRuntime.DEFAULT_PORT);
+                    sctpMapPE.setProtocol(
+                        SctpMapExtension.Protocol.WEBRTC_CHANNEL);
+                    sctpMapPE.setStreams(1024);
+                    transportPE.addChildExtension(sctpMapPE);
+                }
+                content.addChildExtension(transportPE);
+                contents.add(content);
+            }
+
+            sid = JingleIQ.generateSID();
+            JingleIQ initiate =
+                JinglePacketFactory.createSessionInitiate(
+                    connection.getUser(), recorderJid, sid, contents);
+            initiate.setInitiator(roomJid + "/" + NICKNAME);
+            conferencesBySid.put(sid, this);
+
+            initiateTime = System.currentTimeMillis();
+            connection.sendPacket(initiate);
+            logger.debug("Sent session-initiate to " + recorderJid);
+        }
+
+        /**
+         * Create the description of an RTP content, with one payload type and
+         * the sources of the participants.
+         * 
+         * @param mediaType
+         * @return
+         */
+        private RtpDescriptionPacketExtension createDescription(
+            MediaType mediaType)
+        {
+            RtpDescriptionPacketExtension description =
+                new RtpDescriptionPacketExtension();
+            description.setMedia(mediaType.toString());
+
+            PayloadTypePacketExtension payloadType =
+                new PayloadTypePacketExtension();
+            if (MediaType.AUDIO == mediaType)
+            {
+                payloadType.setId(FakeBridge.OPUS_PAYLOAD_TYPE);
+                payloadType.setName("opus");
+                payloadType.setClockrate(48000);
+                payloadType.setChannels(2);
+            }
+            else
+            {
+                payloadType.setId(FakeBridge.VP8_PAYLOAD_TYPE);
+                payloadType.setName("VP8");
+                payloadType.setClockrate(90000);
+            }
+            description.addPayloadType(payloadType);
+
+            for (FakeEndpoint endpoint : endpoints)
+            {
+                SourcePacketExtension source = new SourcePacketExtension();
+                source.setSSRC(MediaType.AUDIO == mediaType ? endpoint
+                    .getAudioSsrc() : endpoint.getVideoSsrc());
+                source.addParameter(new ParameterPacketExtension("msid",
+                    endpoint.getNickname() + " " + endpoint.getNickname()
+                        + "-" + mediaType));
+                SsrcInfoPacketExtension info = new SsrcInfoPacketExtension();
+                info.setOwner(roomJid + "/" + endpoint.getNickname());
+                source.addChildExtension(info);
+                description.addChildExtension(source);
+            }
+            return description;
+        }
+
+        public String getRoomJid()
+        {
+            return roomJid;
+        }
+
+        public List<FakeEndpoint> getEndpoints()
+        {
+            return endpoints;
+        }
+
+        public FakeBridge getBridge()
+        {
+            return bridge;
+        }
+
+        /**
+         * Get when the session-initiate was sent, or -1.
+         * 
+         * @return
+         */
+        public long getInitiateTime()
+        {
+            return initiateTime;
+        }
+
+        /**
+         * Get when the session-accept came, or -1.
+         * 
+         * @return
+         */
+        public long getAcceptTime()
+        {
+            return acceptTime;
+        }
+    }
+}
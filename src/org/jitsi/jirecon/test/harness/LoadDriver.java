@@ -0,0 +1,680 @@
+/*
+/*
+ * Jirecon, the JItsi REcording COntainer.
+ *
+ *
+ * Copyright @ 2015 Atlassian Pty Ltd
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.jitsi.jirecon.test.harness;
+
+import java.io.*;
+import java.lang.management.*;
+import java.text.*;
+import java.util.*;
+import java.util.concurrent.*;
+
+import org.jitsi.jirecon.*;
+import org.jitsi.jirecon.TaskManagerEvent.*;
+import org.jitsi.jirecon.utils.*;
+import org.json.simple.*;
+
+/**
+ * Drives concurrent recordings on one machine, without any Jitsi
+ * infrastructure, to size the nodes.
+ * <p>
+ * It runs a <tt>LocalXmppServer</tt>, a <tt>FakeFocus</tt> with its
+ * <tt>FakeBridge</tt>s and a <tt>TaskManager</tt> in this process. At each
+ * concurrency level, it starts that many conferences, starts a task for each
+ * of them at once, lets them record for a while, measures them for a while
+ * more and stops them. It reports,
+ * for each level:
+ * <ul>
+ * <li>the setup latency of the tasks, from <tt>startJireconTask</tt> to
+ * <tt>TASK_STARTED</tt>, and how many of them failed;</li>
+ * <li>the CPU usage of the process, and its heap and threads;</li>
+ * <li>the throughput of the recordings written to disk, against what the
+ * bridges have sent.</li>
+ * </ul>
+ * The CPU, heap and threads include those of the fake focus and bridges,
+ * which are light compared to the recorders.
+ * <p>
+ * The results are printed as a table, and saved as JSON in the output
+ * directory.
+ */
+public class LoadDriver
+{
+    private static final String CONF_ARG_NAME = "--conf=";
+
+    private static final String LEVELS_ARG_NAME = "--levels=";
+
+    private static final String WARMUP_ARG_NAME = "--warmup=";
+
+    private static final String HOLD_ARG_NAME = "--hold=";
+
+    private static final String ENDPOINTS_ARG_NAME = "--endpoints=";
+
+    private static final String VIDEO_PAYLOAD_ARG_NAME = "--video-payload=";
+
+    private static final String OUTPUT_ARG_NAME = "--output=";
+
+    private static final String SETUP_TIMEOUT_ARG_NAME = "--setup-timeout=";
+
+    private static final String KEEP_DATA_ARG_NAME = "--keep-data";
+
+    /**
+     * The range of the ports of the bridges, away from the default range of
+     * the recorders.
+     */
+    private static final int BRIDGE_MIN_PORT = 20000;
+
+    private static final int BRIDGE_MAX_PORT = 30000;
+
+    /**
+     * The period in milliseconds of the sampling of the heap and threads.
+     */
+    private static final long SAMPLE_PERIOD = 1000;
+
+    /**
+     * The configuration file of Jirecon, whose XMPP and output settings are
+     * replaced by those of the harness.
+     */
+    private String conf = "jirecon.properties";
+
+    /**
+     * The numbers of concurrent tasks, one level after the other.
+     */
+    private List<Integer> levels = Arrays.asList(1, 2, 4, 8);
+
+    /**
+     * How many seconds the tasks of a level record before the measurement.
+     * The recorder holds back the first 300 packets of each video SSRC, so
+     * the first seconds don't show the throughput to expect.
+     */
+    private long warmup = 15;
+
+    /**
+     * How many seconds the tasks of a level are measured.
+     */
+    private long hold = 30;
+
+    /**
+     * The number of participants of each conference.
+     */
+    private int endpointCount = 2;
+
+    /**
+     * The size in bytes of the video frames sent by the bridge.
+     */
+    private int videoPayloadSize = 1000;
+
+    /**
+     * Where the recordings and the results are saved.
+     */
+    private File outputDir = new File("harness-output");
+
+    /**
+     * How many seconds to wait for the tasks of a level to start.
+     */
+    private long setupTimeout = 60;
+
+    /**
+     * Whether the recordings are kept after a level.
+     */
+    private boolean keepData = false;
+
+    private final TaskManager taskManager = new TaskManager();
+
+    /**
+     * When the tasks of the current level have been started, by MUC JID.
+     */
+    private final Map<String, Long> startTimes =
+        new ConcurrentHashMap<String, Long>();
+
+    /**
+     * The setup latencies of the tasks of the current level which have
+     * started, by MUC JID.
+     */
+    private final Map<String, Long> latencies =
+        new ConcurrentHashMap<String, Long>();
+
+    /**
+     * The tasks of the current level which have been aborted.
+     */
+    private final Set<String> aborted =
+        Collections.newSetFromMap(new ConcurrentHashMap<String, Boolean>());
+
+    private final Object syncRoot = new Object();
+
+    /**
+     * Application entry.
+     * 
+     * @param args
+     *            <p>
+     *            --conf=FILE the configuration of Jirecon, jirecon.properties
+     *            by default.
+     *            <p>
+     *            --levels=N,N,... the numbers of concurrent tasks, 1,2,4,8 by
+     *            default.
+     *            <p>
+     *            --warmup=SECONDS how long the tasks of each level record
+     *            before they are measured, 15 by default.
+     *            <p>
+     *            --hold=SECONDS how long the tasks of each level are
+     *            measured, 30 by default.
+     *            <p>
+     *            --endpoints=N the number of participants of a conference, 2
+     *            by default.
+     *            <p>
+     *            --video-payload=BYTES the size of the video frames, 1000 by
+     *            default.
+     *            <p>
+     *            --output=DIR where the recordings and the results go,
+     *            harness-output by default.
+     *            <p>
+     *            --setup-timeout=SECONDS how long to wait for the tasks of a
+     *            level to start, 60 by default.
+     *            <p>
+     *            --keep-data keep the recordings, which are removed by
+     *            default.
+     */
+    public static void main(String[] args)
+        throws Exception
+    {
+        LoadDriver driver = new LoadDriver();
+
+        for (String arg : args)
+        {
+            if (arg.startsWith(CONF_ARG_NAME))
+            {
+                driver.conf = arg.substring(CONF_ARG_NAME.length());
+            }
+            else if (arg.startsWith(LEVELS_ARG_NAME))
+            {
+                List<Integer> levels = new ArrayList<Integer>();
+                for (String level : arg.substring(LEVELS_ARG_NAME.length())
+                    .split(","))
+                    levels.add(Integer.valueOf(level.trim()));
+                driver.levels = levels;
+            }
+            else if (arg.startsWith(WARMUP_ARG_NAME))
+            {
+                driver.warmup =
+                    Long.valueOf(arg.substring(WARMUP_ARG_NAME.length()));
+            }
+            else if (arg.startsWith(HOLD_ARG_NAME))
+            {
+                driver.hold =
+                    Long.valueOf(arg.substring(HOLD_ARG_NAME.length()));
+            }
+            else if (arg.startsWith(ENDPOINTS_ARG_NAME))
+            {
+                driver.endpointCount =
+                    Integer.valueOf(arg.substring(ENDPOINTS_ARG_NAME.length()));
+            }
+            else if (arg.startsWith(VIDEO_PAYLOAD_ARG_NAME))
+            {
+                driver.videoPayloadSize =
+                    Integer.valueOf(arg.substring(VIDEO_PAYLOAD_ARG_NAME
+                        .length()));
+            }
+            else if (arg.startsWith(OUTPUT_ARG_NAME))
+            {
+                driver.outputDir =
+                    new File(arg.substring(OUTPUT_ARG_NAME.length()));
+            }
+            else if (arg.startsWith(SETUP_TIMEOUT_ARG_NAME))
+            {
+                driver.setupTimeout =
+                    Long.valueOf(arg.substring(SETUP_TIMEOUT_ARG_NAME
+                        .length()));
+            }
+            else if (arg.equals(KEEP_DATA_ARG_NAME))
+            {
+                driver.keepData = true;
+            }
+            else
+            {
+                System.out.println("Unknown argument: " + arg);
+                return;
+            }
+        }
+
+        driver.run();
+        // libjitsi and Smack leave some non-daemon threads behind.
+        System.exit(0);
+    }
+
+    /**
+     * Run all the levels and report.
+     * 
+     * @throws Exception
+     */
+    private void run()
+        throws Exception
+    {
+        String timestamp =
+            new SimpleDateFormat("yyyyMMdd-HHmmss").format(new Date());
+        File recordingsDir = new File(outputDir, "recordings-" + timestamp);
+        recordingsDir.mkdirs();
+
+        LocalXmppServer server = new LocalXmppServer("localhost");
+        server.start();
+
+        ScheduledExecutorService scheduler =
+            Executors.newScheduledThreadPool(Runtime.getRuntime()
+                .availableProcessors(), new ThreadFactory()
+            {
+                @Override
+                public Thread newThread(Runnable r)
+                {
+                    Thread t = new Thread(r, FakeBridge.class.getName());
+                    t.setDaemon(true);
+                    return t;
+                }
+            });
+        FakeFocus focus =
+            new FakeFocus(server, scheduler, endpointCount, videoPayloadSize,
+                BRIDGE_MIN_PORT, BRIDGE_MAX_PORT);
+
+        List<JSONObject> results = new ArrayList<JSONObject>();
+        try
+        {
+            taskManager.addEventListener(new JireconEventListener()
+            {
+                @Override
+                public void handleEvent(TaskManagerEvent evt)
+                {
+                    taskEvent(evt);
+                }
+            });
+            taskManager.init(writeConfiguration(server, recordingsDir)
+                .getPath());
+            // The Jingle providers have been registered by the TaskManager.
+            focus.connect();
+
+            printHeader();
+            for (int level : levels)
+            {
+                JSONObject result =
+                    runLevel(level, server, focus, recordingsDir);
+                results.add(result);
+                printResult(result);
+            }
+        }
+        finally
+        {
+            focus.disconnect();
+            taskManager.uninit();
+            server.stop();
+            scheduler.shutdownNow();
+        }
+
+        JSONObject report = createReport(timestamp, results);
+        File reportFile = new File(outputDir, "harness-" + timestamp + ".json");
+        Writer writer =
+            new OutputStreamWriter(new FileOutputStream(reportFile), "UTF-8");
+        try
+        {
+            report.writeJSONString(writer);
+        }
+        finally
+        {
+            writer.close();
+        }
+        System.out.println("Results saved in " + reportFile);
+    }
+
+    /**
+     * Write the configuration of Jirecon for the harness: that of
+     * {@link #conf}, if any, with the local server and output directory.
+     * 
+     * @param server
+     * @param recordingsDir
+     * @return the configuration file.
+     * @throws IOException
+     */
+    private File writeConfiguration(LocalXmppServer server,
+        File recordingsDir)
+        throws IOException
+    {
+        Properties properties = new Properties();
+        File confFile = new File(conf);
+        if (confFile.isFile())
+        {
+            InputStream in = new FileInputStream(confFile);
+            try
+            {
+                properties.load(in);
+            }
+            finally
+            {
+                in.close();
+            }
+        }
+
+        properties.setProperty(ConfigurationKey.XMPP_HOST_KEY,
+            server.getDomain());
+        properties.setProperty(ConfigurationKey.XMPP_PORT_KEY,
+            String.valueOf(server.getPort()));
+        properties.remove(ConfigurationKey.XMPP_USER_KEY);
+        properties.remove(ConfigurationKey.XMPP_PASS_KEY);
+        properties.setProperty(ConfigurationKey.SAVING_DIR_KEY,
+            recordingsDir.getAbsolutePath());
+        properties.setProperty(ConfigurationKey.TASK_JOURNAL_KEY, new File(
+            recordingsDir, ".task_journal").getAbsolutePath());
+
+        File file = new File(recordingsDir, "jirecon.properties");
+        OutputStream out = new FileOutputStream(file);
+        try
+        {
+            properties.store(out, "Generated by " + getClass().getName());
+        }
+        finally
+        {
+            out.close();
+        }
+        return file;
+    }
+
+    private void taskEvent(TaskManagerEvent evt)
+    {
+        String mucJid = evt.getMucJid();
+        Long startTime = startTimes.get(mucJid);
+        if (null == startTime)
+            return;
+
+        if (TaskManagerEvent.Type.TASK_STARTED == evt.getType())
+            latencies.put(mucJid, System.currentTimeMillis() - startTime);
+        else if (TaskManagerEvent.Type.TASK_ABORTED == evt.getType())
+            aborted.add(mucJid);
+        else
+            return;
+
+        synchronized (syncRoot)
+        {
+            syncRoot.notifyAll();
+        }
+    }
+
+    /**
+     * Create the JSON report of a run.
+     * 
+     * @param timestamp when the run started.
+     * @param results the results of the levels.
+     * @return
+     */
+    @SuppressWarnings("unchecked")
+    private JSONObject createReport(String timestamp, List<JSONObject> results)
+    {
+        JSONArray levelsJson = new JSONArray();
+        levelsJson.addAll(results);
+
+        JSONObject report = new JSONObject();
+        report.put("timestamp", timestamp);
+        report.put("processors", Runtime.getRuntime().availableProcessors());
+        report.put("max_heap", Runtime.getRuntime().maxMemory());
+        report.put("endpoints", endpointCount);
+        report.put("video_payload", videoPayloadSize);
+        report.put("warmup", warmup);
+        report.put("hold", hold);
+        report.put("levels", levelsJson);
+        return report;
+    }
+
+    /**
+     * Run a concurrency level: start its conferences and tasks, let them
+     * record, measure and stop them.
+     * 
+     * @param level the number of concurrent tasks.
+     * @param server
+     * @param focus
+     * @param recordingsDir
+     * @return the results.
+     * @throws Exception
+     */
+    private JSONObject runLevel(int level, LocalXmppServer server,
+        FakeFocus focus, File recordingsDir)
+        throws Exception
+    {
+        startTimes.clear();
+        latencies.clear();
+        aborted.clear();
+
+        List<String> mucJids = new ArrayList<String>();
+        List<FakeFocus.Conference> conferences =
+            new ArrayList<FakeFocus.Conference>();
+        for (int i = 0; i < level; i++)
+        {
+            String mucJid =
+                "load" + level + "-" + i + "@" + server.getMucDomain();
+            conferences.add(focus.startConference(mucJid));
+            mucJids.add(mucJid);
+        }
+
+        for (String mucJid : mucJids)
+        {
+            startTimes.put(mucJid, System.currentTimeMillis());
+            if (!taskManager.startJireconTask(mucJid))
+                aborted.add(mucJid);
+        }
+
+        long deadline =
+            System.currentTimeMillis() + TimeUnit.SECONDS.toMillis(setupTimeout);
+        synchronized (syncRoot)
+        {
+            while (latencies.size() + aborted.size() < level)
+            {
+                long wait = deadline - System.currentTimeMillis();
+                if (wait <= 0)
+                    break;
+                syncRoot.wait(wait);
+            }
+        }
+
+        Thread.sleep(TimeUnit.SECONDS.toMillis(warmup));
+
+        // Measure while all the started tasks record.
+        Sample start = new Sample(recordingsDir, conferences);
+        long peakHeap = start.heapUsed;
+        int peakThreads = start.threadCount;
+        long end = start.time + TimeUnit.SECONDS.toMillis(hold);
+        while (System.currentTimeMillis() < end)
+        {
+            Thread.sleep(Math.min(SAMPLE_PERIOD,
+                Math.max(1, end - System.currentTimeMillis())));
+            MemoryUsage heap =
+                ManagementFactory.getMemoryMXBean().getHeapMemoryUsage();
+            peakHeap = Math.max(peakHeap, heap.getUsed());
+            peakThreads =
+                Math.max(peakThreads, ManagementFactory.getThreadMXBean()
+                    .getThreadCount());
+        }
+        Sample stop = new Sample(recordingsDir, conferences);
+
+        int mediaStarted = 0;
+        int dataChannelsOpen = 0;
+        for (FakeFocus.Conference conference : conferences)
+        {
+            if (conference.getBridge().isMediaStarted())
+                mediaStarted++;
+            if (conference.getBridge().isDataChannelOpen())
+                dataChannelsOpen++;
+        }
+
+        for (String mucJid : mucJids)
+        {
+            taskManager.stopJireconTask(mucJid, keepData);
+            focus.stopConference(mucJid);
+        }
+        startTimes.clear();
+
+        List<Long> sorted = new ArrayList<Long>(latencies.values());
+        Collections.sort(sorted);
+
+        return createResult(level, sorted, aborted.size(), mediaStarted,
+            dataChannelsOpen, start, stop, peakHeap, peakThreads);
+    }
+
+    /**
+     * Create the JSON results of a concurrency level.
+     * 
+     * @param level the number of concurrent tasks.
+     * @param sorted the sorted setup latencies of the started tasks.
+     * @param abortedCount the number of aborted tasks.
+     * @param mediaStarted the number of bridges which sent media.
+     * @param dataChannelsOpen the number of open data channels.
+     * @param start the sample at the start of the measurement.
+     * @param stop the sample at its end.
+     * @param peakHeap
+     * @param peakThreads
+     * @return
+     */
+    @SuppressWarnings("unchecked")
+    private static JSONObject createResult(int level, List<Long> sorted,
+        int abortedCount, int mediaStarted, int dataChannelsOpen,
+        Sample start, Sample stop, long peakHeap, int peakThreads)
+    {
+        double seconds = (stop.time - start.time) / 1000.0;
+        int processors = Runtime.getRuntime().availableProcessors();
+
+        JSONObject result = new JSONObject();
+        result.put("level", level);
+        result.put("started", sorted.size());
+        result.put("aborted", abortedCount);
+        result.put("timed_out", level - sorted.size() - abortedCount);
+        result.put("setup_ms_min", percentile(sorted, 0));
+        result.put("setup_ms_median", percentile(sorted, 50));
+        result.put("setup_ms_p95", percentile(sorted, 95));
+        result.put("setup_ms_max", percentile(sorted, 100));
+        result.put("media_started", mediaStarted);
+        result.put("data_channels_open", dataChannelsOpen);
+        result.put("cpu_percent", stop.cpuTime < 0 ? -1 : Math.round(
+            (stop.cpuTime - start.cpuTime) / 1e7 / seconds / processors));
+        result.put("heap_used", stop.heapUsed);
+        result.put("heap_peak", peakHeap);
+        result.put("threads", stop.threadCount);
+        result.put("threads_peak", peakThreads);
+        result.put("write_bytes_per_second",
+            Math.round((stop.bytesWritten - start.bytesWritten) / seconds));
+        result.put("sent_bytes_per_second",
+            Math.round((stop.bytesSent - start.bytesSent) / seconds));
+        result.put("sent_packets_per_second",
+            Math.round((stop.packetsSent - start.packetsSent) / seconds));
+        return result;
+    }
+
+    /**
+     * Get a percentile of sorted values, by the nearest rank.
+     * 
+     * @param sorted
+     * @param percentile between 0 and 100.
+     * @return the value, or -1 if there isn't any.
+     */
+    private static long percentile(List<Long> sorted, int percentile)
+    {
+        if (sorted.isEmpty())
+            return -1;
+
+        int rank = (int) Math.ceil(percentile / 100.0 * sorted.size());
+        return sorted.get(Math.max(0, rank - 1));
+    }
+
+    private static long getSize(File file)
+    {
+        if (!file.isDirectory())
+            return file.length();
+
+        long size = 0;
+        File[] children = file.listFiles();
+        if (null != children)
+        {
+            for (File child : children)
+                size += getSize(child);
+        }
+        return size;
+    }
+
+    private void printHeader()
+    {
+        System.out.println(String.format(
+            "%6s %8s %8s %8s %8s %8s %6s %10s %8s %12s %12s", "level",
+            "started", "failed", "setup50", "setup95", "setupMax", "cpu%",
+            "heapMB", "threads", "writeKB/s", "sentKB/s"));
+    }
+
+    private void printResult(JSONObject result)
+    {
+        System.out.println(String.format(
+            "%6d %8d %8d %8d %8d %8d %6d %10d %8d %12d %12d",
+            result.get("level"), result.get("started"),
+            (Integer) result.get("aborted") + (Integer) result.get("timed_out"),
+            result.get("setup_ms_median"), result.get("setup_ms_p95"),
+            result.get("setup_ms_max"), result.get("cpu_percent"),
+            (Long) result.get("heap_peak") / (1024 * 1024),
+            result.get("threads_peak"),
+            (Long) result.get("write_bytes_per_second") / 1024,
+            (Long) result.get("sent_bytes_per_second") / 1024));
+    }
+
+    /**
+     * The counters of the process and the harness at some time.
+     */
+    private static class Sample
+    {
+        private final long time = System.currentTimeMillis();
+
+        /**
+         * The CPU time of the process in nanoseconds, or -1 if the JVM
+         * doesn't tell it.
+         */
+        private final long cpuTime;
+
+        private final long heapUsed;
+
+        private final int threadCount;
+
+        private final long bytesWritten;
+
+        private final long bytesSent;
+
+        private final long packetsSent;
+
+        private Sample(File recordingsDir,
+            List<FakeFocus.Conference> conferences)
+        {
+            OperatingSystemMXBean os =
+                ManagementFactory.getOperatingSystemMXBean();
+            cpuTime =
+                os instanceof com.sun.management.OperatingSystemMXBean
+                    ? ((com.sun.management.OperatingSystemMXBean) os)
+                        .getProcessCpuTime() : -1;
+            heapUsed =
+                ManagementFactory.getMemoryMXBean().getHeapMemoryUsage()
+                    .getUsed();
+            threadCount = ManagementFactory.getThreadMXBean().getThreadCount();
+            bytesWritten = getSize(recordingsDir);
+
+            long bytes = 0;
+            long packets = 0;
+            for (FakeFocus.Conference conference : conferences)
+            {
+                bytes += conference.getBridge().getBytesSent();
+                packets += conference.getBridge().getPacketsSent();
+            }
+            bytesSent = bytes;
+            packetsSent = packets;
+        }
+    }
+}
@@ -0,0 +1,992 @@
+/*
+/*
+ * Jirecon, the JItsi REcording COntainer.
+ *
+ *
+ * Copyright @ 2015 Atlassian Pty Ltd
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.jitsi.jirecon.test.harness;
+
+import java.io.*;
+import java.net.*;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.*;
+
+import org.jitsi.util.*;
+import org.xmlpull.mxp1.*;
+import org.xmlpull.v1.*;
+
+/**
+ * A minimal XMPP server with multi-user chat, which stands in for Prosody in
+ * the load harness, so that tasks can be driven without any Jitsi
+ * infrastructure.
+ * <p>
+ * It implements only what Smack and the harness need: a pre-1.0 stream, on
+ * which Smack logs in anonymously with the legacy <tt>jabber:iq:auth</tt>,
+ * the routing of stanzas between full JIDs, and rooms whose occupants get the
+ * presences of each other and address each other by their occupant JID, as
+ * on a real MUC service. Rooms can also have virtual occupants, which only
+ * exist as presences, e.g. the participants of a fake conference.
+ * <p>
+ * Every client connection is served by a thread of its own.
+ */
+public class LocalXmppServer
+{
+    /**
+     * The <tt>Logger</tt>, used to log messages to standard output.
+     */
+    private static final Logger logger = Logger
+        .getLogger(LocalXmppServer.class);
+
+    public static final String MUC_NAMESPACE =
+        "http://jabber.org/protocol/muc";
+
+    public static final String MUC_USER_NAMESPACE =
+        "http://jabber.org/protocol/muc#user";
+
+    private static final String AUTH_NAMESPACE = "jabber:iq:auth";
+
+    private static final String STANZAS_NAMESPACE =
+        "urn:ietf:params:xml:ns:xmpp-stanzas";
+
+    /**
+     * The domain of the users.
+     */
+    private final String domain;
+
+    /**
+     * The domain of the rooms.
+     */
+    private final String mucDomain;
+
+    /**
+     * The threads which accept the connections and read the sessions.
+     */
+    private final ExecutorService threads = ExecutorUtils
+        .newCachedThreadPool(true, LocalXmppServer.class.getName());
+
+    /**
+     * The authenticated sessions, by full JID.
+     */
+    private final Map<String, Session> sessions =
+        new ConcurrentHashMap<String, Session>();
+
+    /**
+     * The rooms, by bare JID. The MUC state is guarded by the lock of this
+     * map.
+     */
+    private final Map<String, Room> rooms = new HashMap<String, Room>();
+
+    private final AtomicInteger nextId = new AtomicInteger();
+
+    private ServerSocket serverSocket;
+
+    /**
+     * Create a server, whose rooms are on the "conference" sub-domain of the
+     * domain.
+     * 
+     * @param domain the domain of the users.
+     */
+    public LocalXmppServer(String domain)
+    {
+        this.domain = domain;
+        this.mucDomain = "conference." + domain;
+    }
+
+    /**
+     * Start listening on an ephemeral port of the loopback interface.
+     * 
+     * @throws IOException
+     */
+    public synchronized void start()
+        throws IOException
+    {
+        if (null != serverSocket)
+            return;
+
+        serverSocket = new ServerSocket(0, 50, InetAddress.getByName(null));
+        final ServerSocket serverSocket = this.serverSocket;
+        threads.execute(new Runnable()
+        {
+            @Override
+            public void run()
+            {
+                while (!serverSocket.isClosed())
+                {
+                    try
+                    {
+                        Socket socket = serverSocket.accept();
+                        socket.setTcpNoDelay(true);
+                        threads.execute(new Session(socket));
+                    }
+                    catch (IOException e)
+                    {
+                        if (!serverSocket.isClosed())
+                            logger.warn("Failed to accept a connection: " + e);
+                    }
+                }
+            }
+        });
+        logger.info("XMPP server listening on port " + getPort());
+    }
+
+    /**
+     * Stop listening and close all the sessions.
+     */
+    public void stop()
+    {
+        synchronized (this)
+        {
+            if (null == serverSocket)
+                return;
+            try
+            {
+                serverSocket.close();
+            }
+            catch (IOException e)
+            {
+                // We are leaving anyway.
+            }
+            serverSocket = null;
+        }
+
+        for (Session session : new ArrayList<Session>(sessions.values()))
+            session.close();
+        threads.shutdownNow();
+    }
+
+    /**
+     * Get the port which the server listens on.
+     * 
+     * @return
+     */
+    public synchronized int getPort()
+    {
+        return null == serverSocket ? -1 : serverSocket.getLocalPort();
+    }
+
+    public String getDomain()
+    {
+        return domain;
+    }
+
+    public String getMucDomain()
+    {
+        return mucDomain;
+    }
+
+    /**
+     * Get the number of the authenticated sessions.
+     * 
+     * @return
+     */
+    public int getSessionCount()
+    {
+        return sessions.size();
+    }
+
+    /**
+     * Add an occupant which has no connection to a room, and send its
+     * presence to the other occupants.
+     * 
+     * @param roomJid the bare JID of the room.
+     * @param nick
+     * @param jid the real JID of the occupant.
+     * @param presenceXml the children of its presence, e.g. a media
+     *            extension, or null.
+     */
+    public void addVirtualOccupant(String roomJid, String nick, String jid,
+        String presenceXml)
+    {
+        synchronized (rooms)
+        {
+            Room room = getRoom(roomJid.toLowerCase(), true);
+            Occupant occupant = new Occupant(room, nick, jid, null);
+            occupant.presenceXml = null == presenceXml ? "" : presenceXml;
+            room.occupants.put(nick, occupant);
+            broadcastPresence(occupant, false);
+        }
+    }
+
+    /**
+     * Remove an occupant which has been added with
+     * {@link #addVirtualOccupant(String, String, String, String)}.
+     * 
+     * @param roomJid
+     * @param nick
+     */
+    public void removeVirtualOccupant(String roomJid, String nick)
+    {
+        synchronized (rooms)
+        {
+            Room room = getRoom(roomJid.toLowerCase(), false);
+            Occupant occupant = null == room ? null : room.occupants.get(nick);
+            if (null != occupant && null == occupant.session)
+                leave(occupant);
+        }
+    }
+
+    /**
+     * Handle a stanza of a session.
+     * 
+     * @param session
+     * @param stanza
+     */
+    private void handle(Session session, Stanza stanza)
+    {
+        if ("iq".equals(stanza.name))
+        {
+            handleIq(session, stanza);
+        }
+        else if (null == session.jid)
+        {
+            logger.warn("Dropping a " + stanza.name + " before login.");
+        }
+        else if ("presence".equals(stanza.name))
+        {
+            handlePresence(session, stanza);
+        }
+        else if ("message".equals(stanza.name))
+        {
+            handleMessage(session, stanza);
+        }
+    }
+
+    private void handleIq(Session session, Stanza stanza)
+    {
+        String type = stanza.get("type");
+        boolean request = "get".equals(type) || "set".equals(type);
+        String to = stanza.get("to");
+
+        if (null == session.jid)
+        {
+            if (request && AUTH_NAMESPACE.equals(stanza.getChildNamespace()))
+                authenticate(session, stanza);
+            else if (request)
+                replyError(session, stanza, "not-authorized", "auth", 401);
+            return;
+        }
+
+        if (null == to || domain.equals(to)
+            || session.jid.startsWith(to + "/"))
+        {
+            // Nothing on the server is worth more than an empty result.
+            if (request)
+                session.send(stanza.createResult(null, session.jid, null));
+            return;
+        }
+
+        if (isRoomJid(to))
+        {
+            String nick = getResource(to);
+            if (null == nick)
+            {
+                if (request)
+                    session.send(stanza.createResult(to, session.jid, null));
+                return;
+            }
+
+            Occupant target;
+            String from;
+            synchronized (rooms)
+            {
+                Room room = getRoom(getBare(to), false);
+                target = null == room ? null : room.occupants.get(nick);
+                Occupant sender =
+                    null == room ? null : room.getOccupant(session);
+                from = null == sender ? session.jid : sender.getJid();
+            }
+            if (null != target && null != target.session)
+                target.session.send(stanza.toXml(from, target.jid));
+            else if (request)
+                replyError(session, stanza, "item-not-found", "cancel", 404);
+            return;
+        }
+
+        Session target = sessions.get(to);
+        if (null != target)
+            target.send(stanza.toXml(session.jid, to));
+        else if (request)
+            replyError(session, stanza, "service-unavailable", "cancel", 503);
+    }
+
+    /**
+     * Log a session in anonymously, with a JID of its own.
+     * 
+     * @param session
+     * @param stanza the <tt>jabber:iq:auth</tt> request.
+     */
+    private void authenticate(Session session, Stanza stanza)
+    {
+        if ("get".equals(stanza.get("type")))
+        {
+            session.send(stanza.createResult(null, null, "<query xmlns='"
+                + AUTH_NAMESPACE + "'><username/><resource/></query>"));
+            return;
+        }
+
+        String jid =
+            "anonymous-" + nextId.incrementAndGet() + "@" + domain
+                + "/harness";
+        session.jid = jid;
+        sessions.put(jid, session);
+        session.send(stanza.createResult(null, jid, null));
+    }
+
+    private void handlePresence(Session session, Stanza stanza)
+    {
+        String to = stanza.get("to");
+        if (null == to || !isRoomJid(to))
+            return;
+
+        String type = stanza.get("type");
+        String nick = getResource(to);
+        synchronized (rooms)
+        {
+            Room room = getRoom(getBare(to), null == type && null != nick);
+            if (null == room)
+                return;
+
+            Occupant occupant;
+            if (null == nick)
+            {
+                // An update addressed to the room, like the one Jirecon
+                // sends after joining.
+                occupant = room.getOccupant(session);
+                if (null == occupant)
+                    return;
+                to = occupant.getJid();
+            }
+            else
+            {
+                occupant = room.occupants.get(nick);
+            }
+            if ("unavailable".equals(type))
+            {
+                if (null != occupant && occupant.session == session)
+                    leave(occupant);
+                return;
+            }
+            if (null != type)
+                return;
+
+            if (null != occupant && occupant.session != session)
+            {
+                session.send("<presence from='" + escape(to) + "' to='"
+                    + escape(session.jid) + "' type='error'><x xmlns='"
+                    + MUC_NAMESPACE + "'/>"
+                    + createError("conflict", "cancel", 409)
+                    + "</presence>");
+                if (room.occupants.isEmpty())
+                    rooms.remove(room.jid);
+                return;
+            }
+
+            boolean joining = null == occupant;
+            if (joining)
+            {
+                occupant = new Occupant(room, nick, session.jid, session);
+                // The newcomer learns who is there, before the others learn
+                // about it.
+                for (Occupant other : room.occupants.values())
+                    session.send(other.createPresence(session.jid, false,
+                        false));
+                room.occupants.put(nick, occupant);
+            }
+            occupant.presenceXml = stanza.getChildrenXml(MUC_NAMESPACE);
+            broadcastPresence(occupant, false);
+        }
+    }
+
+    private void handleMessage(Session session, Stanza stanza)
+    {
+        String to = stanza.get("to");
+        if (null == to)
+            return;
+
+        if (isRoomJid(to) && null == getResource(to))
+        {
+            synchronized (rooms)
+            {
+                Room room = getRoom(getBare(to), false);
+                Occupant sender = null == room ? null : room.getOccupant(session);
+                if (null == sender)
+                    return;
+                for (Occupant occupant : room.occupants.values())
+                {
+                    if (null != occupant.session)
+                    {
+                        occupant.session.send(stanza.toXml(sender.getJid(),
+                            occupant.jid));
+                    }
+                }
+            }
+            return;
+        }
+
+        Session target = sessions.get(to);
+        if (null != target)
+            target.send(stanza.toXml(session.jid, to));
+    }
+
+    /**
+     * Remove an occupant from its room, and send its unavailable presence to
+     * the room.
+     * <p>
+     * <strong>Warning:</strong> The caller must hold the lock of
+     * {@link #rooms}.
+     * 
+     * @param occupant
+     */
+    private void leave(Occupant occupant)
+    {
+        Room room = occupant.room;
+        broadcastPresence(occupant, true);
+        room.occupants.remove(occupant.nick);
+        if (room.occupants.isEmpty())
+            rooms.remove(room.jid);
+    }
+
+    /**
+     * Send the presence of an occupant to all the occupants of its room,
+     * including itself.
+     * <p>
+     * <strong>Warning:</strong> The caller must hold the lock of
+     * {@link #rooms}.
+     * 
+     * @param occupant
+     * @param unavailable
+     */
+    private void broadcastPresence(Occupant occupant, boolean unavailable)
+    {
+        for (Occupant recipient : occupant.room.occupants.values())
+        {
+            if (null == recipient.session)
+                continue;
+            recipient.session.send(occupant.createPresence(recipient.jid,
+                unavailable, recipient == occupant));
+        }
+    }
+
+    /**
+     * Forget a session whose connection has been closed, and let its
+     * occupants leave their rooms.
+     * 
+     * @param session
+     */
+    private void sessionClosed(Session session)
+    {
+        if (null == session.jid)
+            return;
+
+        sessions.remove(session.jid);
+        synchronized (rooms)
+        {
+            for (Room room : new ArrayList<Room>(rooms.values()))
+            {
+                Occupant occupant = room.getOccupant(session);
+                if (null != occupant)
+                {
+                    room.occupants.remove(occupant.nick);
+                    broadcastPresence(occupant, true);
+                    if (room.occupants.isEmpty())
+                        rooms.remove(room.jid);
+                }
+            }
+        }
+    }
+
+    /**
+     * Get a room.
+     * <p>
+     * <strong>Warning:</strong> The caller must hold the lock of
+     * {@link #rooms}.
+     * 
+     * @param roomJid the bare JID of the room, in lower case.
+     * @param create whether to create the room if it doesn't exist.
+     * @return the room, or null.
+     */
+    private Room getRoom(String roomJid, boolean create)
+    {
+        Room room = rooms.get(roomJid);
+        if (null == room && create)
+        {
+            room = new Room(roomJid);
+            rooms.put(roomJid, room);
+        }
+        return room;
+    }
+
+    private void replyError(Session session, Stanza stanza, String condition,
+        String type, int code)
+    {
+        session.send("<iq type='error' id='" + escape(stanza.get("id"))
+            + "' to='" + escape(null == session.jid ? "" : session.jid)
+            + "'>" + createError(condition, type, code) + "</iq>");
+    }
+
+    private static String createError(String condition, String type, int code)
+    {
+        return "<error code='" + code + "' type='" + type + "'><" + condition
+            + " xmlns='" + STANZAS_NAMESPACE + "'/></error>";
+    }
+
+    private boolean isRoomJid(String jid)
+    {
+        return mucDomain.equalsIgnoreCase(getDomainPart(jid));
+    }
+
+    private static String getDomainPart(String jid)
+    {
+        String bare = getBare(jid);
+        int at = bare.indexOf('@');
+        return at < 0 ? bare : bare.substring(at + 1);
+    }
+
+    /**
+     * Get the bare JID of a JID, in lower case.
+     * 
+     * @param jid
+     * @return
+     */
+    private static String getBare(String jid)
+    {
+        int slash = jid.indexOf('/');
+        return (slash < 0 ? jid : jid.substring(0, slash)).toLowerCase();
+    }
+
+    private static String getResource(String jid)
+    {
+        int slash = jid.indexOf('/');
+        return slash < 0 || slash == jid.length() - 1 ? null : jid
+            .substring(slash + 1);
+    }
+
+    /**
+     * Escape a text or an attribute value.
+     * 
+     * @param s
+     * @return
+     */
+    static String escape(String s)
+    {
+        if (null == s)
+            return "";
+
+        StringBuilder sb = null;
+        for (int i = 0; i < s.length(); i++)
+        {
+            char c = s.charAt(i);
+            String entity;
+            switch (c)
+            {
+            case '&':
+                entity = "&amp;";
+                break;
+            case '<':
+                entity = "&lt;";
+                break;
+            case '>':
+                entity = "&gt;";
+                break;
+            case '"':
+                entity = "&quot;";
+                break;
+            case '\'':
+                entity = "&apos;";
+                break;
+            default:
+                entity = null;
+            }
+            if (null == entity && null == sb)
+                continue;
+            if (null == sb)
+                sb = new StringBuilder(s.length() + 16).append(s, 0, i);
+            if (null == entity)
+                sb.append(c);
+            else
+                sb.append(entity);
+        }
+        return null == sb ? s : sb.toString();
+    }
+
+    /**
+     * A room.
+     */
+    private static class Room
+    {
+        private final String jid;
+
+        private final Map<String, Occupant> occupants =
+            new LinkedHashMap<String, Occupant>();
+
+        private Room(String jid)
+        {
+            this.jid = jid;
+        }
+
+        /**
+         * Get the occupant of a session, or null.
+         * 
+         * @param session
+         * @return
+         */
+        private Occupant getOccupant(Session session)
+        {
+            for (Occupant occupant : occupants.values())
+            {
+                if (occupant.session == session)
+                    return occupant;
+            }
+            return null;
+        }
+    }
+
+    /**
+     * An occupant of a room.
+     */
+    private static class Occupant
+    {
+        private final Room room;
+
+        private final String nick;
+
+        /**
+         * The real JID.
+         */
+        private final String jid;
+
+        /**
+         * The session of the occupant, or null if it is virtual.
+         */
+        private final Session session;
+
+        /**
+         * The children of the latest presence of the occupant.
+         */
+        private String presenceXml = "";
+
+        private Occupant(Room room, String nick, String jid, Session session)
+        {
+            this.room = room;
+            this.nick = nick;
+            this.jid = jid;
+            this.session = session;
+        }
+
+        /**
+         * Get the occupant JID.
+         * 
+         * @return
+         */
+        private String getJid()
+        {
+            return room.jid + "/" + nick;
+        }
+
+        private String createPresence(String to, boolean unavailable,
+            boolean self)
+        {
+            StringBuilder sb = new StringBuilder(256 + presenceXml.length());
+            sb.append("<presence from='").append(escape(getJid()))
+                .append("' to='").append(escape(to)).append('\'');
+            if (unavailable)
+                sb.append(" type='unavailable'");
+            sb.append('>');
+            if (!unavailable)
+                sb.append(presenceXml);
+            sb.append("<x xmlns='").append(MUC_USER_NAMESPACE)
+                .append("'><item affiliation='none' role='")
+                .append(unavailable ? "none" : "participant")
+                .append("' jid='").append(escape(jid)).append("'/>");
+            if (self)
+                sb.append("<status code='110'/>");
+            sb.append("</x></presence>");
+            return sb.toString();
+        }
+    }
+
+    /**
+     * A top level stanza, which is kept as the attributes of its element and
+     * the XML of its children, so that it can be forwarded with other
+     * addresses.
+     */
+    private static class Stanza
+    {
+        private final String name;
+
+        private final Map<String, String> attributes =
+            new LinkedHashMap<String, String>();
+
+        /**
+         * The namespaces of the children.
+         */
+        private final List<String> childNamespaces = new ArrayList<String>();
+
+        /**
+         * The XML of the children.
+         */
+        private final List<String> childXmls = new ArrayList<String>();
+
+        private Stanza(String name)
+        {
+            this.name = name;
+        }
+
+        private String get(String attribute)
+        {
+            return attributes.get(attribute);
+        }
+
+        /**
+         * Get the namespace of the first child, or null.
+         * 
+         * @return
+         */
+        private String getChildNamespace()
+        {
+            return childNamespaces.isEmpty() ? null : childNamespaces.get(0);
+        }
+
+        /**
+         * Get the XML of the children, except those of a namespace.
+         * 
+         * @param excludedNamespace
+         * @return
+         */
+        private String getChildrenXml(String excludedNamespace)
+        {
+            StringBuilder sb = new StringBuilder();
+            for (int i = 0; i < childXmls.size(); i++)
+            {
+                if (!excludedNamespace.equals(childNamespaces.get(i)))
+                    sb.append(childXmls.get(i));
+            }
+            return sb.toString();
+        }
+
+        /**
+         * Get the XML of the stanza, with other addresses.
+         * 
+         * @param from
+         * @param to
+         * @return
+         */
+        private String toXml(String from, String to)
+        {
+            StringBuilder sb = new StringBuilder(512);
+            sb.append('<').append(name);
+            for (Map.Entry<String, String> e : attributes.entrySet())
+            {
+                if (!"from".equals(e.getKey()) && !"to".equals(e.getKey()))
+                {
+                    sb.append(' ').append(e.getKey()).append("='")
+                        .append(escape(e.getValue())).append('\'');
+                }
+            }
+            if (null != from)
+                sb.append(" from='").append(escape(from)).append('\'');
+            if (null != to)
+                sb.append(" to='").append(escape(to)).append('\'');
+            sb.append('>');
+            for (String childXml : childXmls)
+                sb.append(childXml);
+            return sb.append("</").append(name).append('>').toString();
+        }
+
+        /**
+         * Create the result of an IQ request.
+         * 
+         * @param from
+         * @param to
+         * @param childXml the child of the result, or null.
+         * @return
+         */
+        private String createResult(String from, String to, String childXml)
+        {
+            StringBuilder sb = new StringBuilder("<iq type='result' id='");
+            sb.append(escape(get("id"))).append('\'');
+            if (null != from)
+                sb.append(" from='").append(escape(from)).append('\'');
+            if (null != to)
+                sb.append(" to='").append(escape(to)).append('\'');
+            if (null == childXml)
+                return sb.append("/>").toString();
+            return sb.append('>').append(childXml).append("</iq>").toString();
+        }
+    }
+
+    /**
+     * The connection of a client.
+     */
+    private class Session
+        implements Runnable
+    {
+        private final Socket socket;
+
+        private final Writer writer;
+
+        /**
+         * The full JID, once the client has logged in.
+         */
+        private volatile String jid;
+
+        private Session(Socket socket)
+            throws IOException
+        {
+            this.socket = socket;
+            this.writer =
+                new BufferedWriter(new OutputStreamWriter(
+                    socket.getOutputStream(), "UTF-8"));
+        }
+
+        @Override
+        public void run()
+        {
+            try
+            {
+                XmlPullParser parser = new MXParser();
+                parser.setInput(new InputStreamReader(socket
+                    .getInputStream(), "UTF-8"));
+
+                int event = parser.getEventType();
+                while (XmlPullParser.END_DOCUMENT != event)
+                {
+                    if (XmlPullParser.START_TAG == event)
+                    {
+                        if (1 == parser.getDepth())
+                            openStream();
+                        else if (2 == parser.getDepth())
+                            handle(this, readStanza(parser));
+                    }
+                    else if (XmlPullParser.END_TAG == event
+                        && 1 == parser.getDepth())
+                    {
+                        send("</stream:stream>");
+                        break;
+                    }
+                    event = parser.next();
+                }
+            }
+            catch (Exception e)
+            {
+                if (!socket.isClosed())
+                    logger.debug("Session " + jid + " failed: " + e);
+            }
+            finally
+            {
+                close();
+                sessionClosed(this);
+            }
+        }
+
+        private void openStream()
+        {
+            // No version, so that Smack logs in without SASL and binding.
+            send("<?xml version='1.0' encoding='UTF-8'?>"
+                + "<stream:stream xmlns='jabber:client'"
+                + " xmlns:stream='http://etherx.jabber.org/streams' from='"
+                + escape(domain) + "' id='" + nextId.incrementAndGet()
+                + "'>");
+        }
+
+        /**
+         * Read a stanza, from its start tag to its end tag.
+         * 
+         * @param parser
+         * @return
+         * @throws Exception
+         */
+        private Stanza readStanza(XmlPullParser parser)
+            throws Exception
+        {
+            Stanza stanza = new Stanza(parser.getName());
+            for (int i = 0; i < parser.getAttributeCount(); i++)
+            {
+                stanza.attributes.put(parser.getAttributeName(i),
+                    parser.getAttributeValue(i));
+            }
+
+            StringBuilder child = null;
+            while (true)
+            {
+                int event = parser.next();
+                int depth = parser.getDepth();
+
+                if (XmlPullParser.START_TAG == event)
+                {
+                    if (3 == depth)
+                    {
+                        child = new StringBuilder(128);
+                        stanza.childNamespaces.add(parser.getAttributeValue(
+                            null, "xmlns"));
+                    }
+                    child.append('<').append(parser.getName());
+                    for (int i = 0; i < parser.getAttributeCount(); i++)
+                    {
+                        child.append(' ').append(parser.getAttributeName(i))
+                            .append("='")
+                            .append(escape(parser.getAttributeValue(i)))
+                            .append('\'');
+                    }
+                    child.append('>');
+                }
+                else if (XmlPullParser.END_TAG == event)
+                {
+                    if (2 == depth)
+                        return stanza;
+                    child.append("</").append(parser.getName()).append('>');
+                    if (3 == depth)
+                        stanza.childXmls.add(child.toString());
+                }
+                else if (XmlPullParser.TEXT == event && null != child)
+                {
+                    child.append(escape(parser.getText()));
+                }
+                else if (XmlPullParser.END_DOCUMENT == event)
+                {
+                    throw new EOFException("Stream closed in a stanza");
+                }
+            }
+        }
+
+        private synchronized void send(String xml)
+        {
+            try
+            {
+                writer.write(xml);
+                writer.flush();
+            }
+            catch (IOException e)
+            {
+                logger.debug("Failed to write to " + jid + ": " + e);
+                close();
+            }
+        }
+
+        private void close()
+        {
+            try
+            {
+                socket.close();
+            }
+            catch (IOException e)
+            {
+                // Nothing to do, the session is gone anyway.
+            }
+        }
+    }
+}
@@ -79,4 +79,125 @@ public class ConfigurationKey
      */
     public final static String MAX_STREAM_PORT_KEY = PREFIX
         + ".MAX_STREAM_PORT";
+
+    /**
+     * Whether <tt>Jirecon</tt> records only the audio of a conference by
+     * default. Audio-only tasks decline the video content of the Jingle offer,
+     * so no video stream, translator or recorder is created for them.
+     */
+    public final static String AUDIO_ONLY_KEY = PREFIX + ".AUDIO_ONLY";
+
+    /**
+     * The minimum interval in milliseconds between two key frame requests
+     * which <tt>Jirecon</tt> sends for the same video SSRC.
+     */
+    public final static String KEYFRAME_REQUEST_INTERVAL_KEY = PREFIX
+        + ".KEYFRAME_REQUEST_INTERVAL";
+
+    /**
+     * Which simulcast layer of each endpoint <tt>Jirecon</tt> records: HIGHEST,
+     * LOWEST or DOMINANT_SPEAKER (the highest layer of the dominant speaker and
+     * the lowest layer of the others).
+     */
+    public final static String SIMULCAST_LAYER_KEY = PREFIX
+        + ".SIMULCAST_LAYER";
+
+    /**
+     * The interval in milliseconds between two samples of the receive
+     * statistics of each task. Sampling is disabled if it isn't positive.
+     */
+    public final static String STATS_INTERVAL_KEY = PREFIX + ".STATS_INTERVAL";
+
+    /**
+     * The TCP port of the HTTP metrics endpoint. The endpoint is disabled if
+     * it isn't set.
+     */
+    public final static String METRICS_PORT_KEY = PREFIX + ".METRICS_PORT";
+
+    /**
+     * The address which the HTTP metrics endpoint binds, the loopback address
+     * if it isn't set. The endpoint has no authentication.
+     */
+    public final static String METRICS_ADDRESS_KEY = PREFIX
+        + ".METRICS_ADDRESS";
+
+    /**
+     * The time in milliseconds the native SCTP stack stays initialized after
+     * the last data channel has been closed. If it's negative, the stack is
+     * kept until <tt>Jirecon</tt> is shut down.
+     */
+    public final static String SCTP_IDLE_TIMEOUT_KEY = PREFIX
+        + ".SCTP_IDLE_TIMEOUT";
+
+    /**
+     * The SCTP port of the data channels.
+     */
+    public final static String SCTP_PORT_KEY = PREFIX + ".SCTP_PORT";
+
+    /**
+     * The number of stanzas which every task keeps in memory for diagnostics.
+     * The stanzas aren't captured if it isn't positive, which is the default.
+     */
+    public final static String STANZA_CAPTURE_SIZE_KEY = PREFIX
+        + ".STANZA_CAPTURE_SIZE";
+
+    /**
+     * The window in milliseconds within which the presences of a participant
+     * are collapsed into one state change. They are applied as soon as they
+     * arrive if it isn't positive.
+     */
+    public final static String PRESENCE_COALESCE_WINDOW_KEY = PREFIX
+        + ".PRESENCE_COALESCE_WINDOW";
+
+    /**
+     * Whether ICE candidates are trickled in transport-info packets, which is
+     * the default. If it's false, the session-accept waits for all the local
+     * candidates to be harvested.
+     */
+    public final static String ICE_TRICKLE_KEY = PREFIX + ".ICE_TRICKLE";
+
+    /**
+     * The delay in milliseconds before the first attempt to reconnect to the
+     * XMPP server, once the connection has been lost. It doubles after every
+     * failed attempt.
+     */
+    public final static String XMPP_RECONNECT_MIN_DELAY_KEY = PREFIX
+        + ".XMPP_RECONNECT_MIN_DELAY";
+
+    /**
+     * The maximum delay in milliseconds between two attempts to reconnect to
+     * the XMPP server.
+     */
+    public final static String XMPP_RECONNECT_MAX_DELAY_KEY = PREFIX
+        + ".XMPP_RECONNECT_MAX_DELAY";
+
+    /**
+     * The interval in milliseconds between two samples of the load which the
+     * component reports in its disco#info.
+     */
+    public final static String LOAD_REPORT_INTERVAL_KEY = PREFIX
+        + ".LOAD_REPORT_INTERVAL";
+
+    /**
+     * The rate in bytes per second the output disk can sustain. The component
+     * reports how much of it is left. If it isn't set, the headroom is
+     * reported as unknown.
+     */
+    public final static String DISK_WRITE_CAPACITY_KEY = PREFIX
+        + ".DISK_WRITE_CAPACITY";
+
+    /**
+     * The path of the journal of the active tasks, which lets the recordings
+     * be resumed after a crash. By default it's ".task_journal" in the output
+     * directory. Set it to an empty value to disable the journal.
+     */
+    public final static String TASK_JOURNAL_KEY = PREFIX + ".TASK_JOURNAL";
+
+    /**
+     * The ID of the component in a cluster of recorders, unique in the
+     * cluster. If it's set, the MUCs to record are spread over the members of
+     * the cluster, otherwise the component records every MUC it's asked to.
+     */
+    public final static String CLUSTER_NODE_ID_KEY = PREFIX
+        + ".CLUSTER_NODE_ID";
 }
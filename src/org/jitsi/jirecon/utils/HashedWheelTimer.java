@@ -0,0 +1,277 @@
+/*
+/*
+ * Jirecon, the JItsi REcording COntainer.
+ *
+ *
+ * Copyright @ 2015 Atlassian Pty Ltd
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.jitsi.jirecon.utils;
+
+import java.util.*;
+import java.util.concurrent.*;
+
+import org.jitsi.util.*;
+
+/**
+ * A timer for large numbers of timeouts which rarely expire, like the waits
+ * of Jingle sessions.
+ * <p>
+ * Timeouts are hashed into the buckets of a wheel according to their
+ * deadline, and a single thread advances the wheel one bucket per tick and
+ * expires the due timeouts of that bucket. Scheduling and cancelling are
+ * O(1), whatever the number of pending timeouts, and the precision is one
+ * tick. The thread only runs while there are pending timeouts.
+ */
+public class HashedWheelTimer
+{
+    /**
+     * The <tt>Logger</tt>, used to log messages to standard output.
+     */
+    private static final Logger logger = Logger
+        .getLogger(HashedWheelTimer.class);
+
+    /**
+     * The default duration of a tick in milliseconds.
+     */
+    public static final long DEFAULT_TICK = 100;
+
+    /**
+     * The default number of buckets of the wheel.
+     */
+    public static final int DEFAULT_WHEEL_SIZE = 512;
+
+    /**
+     * The timer of the process.
+     */
+    private static final HashedWheelTimer instance =
+        new HashedWheelTimer(DEFAULT_TICK, DEFAULT_WHEEL_SIZE);
+
+    /**
+     * Get the <tt>HashedWheelTimer</tt> which is shared by the whole process.
+     * 
+     * @return
+     */
+    public static HashedWheelTimer getInstance()
+    {
+        return instance;
+    }
+
+    /**
+     * The duration of a tick in milliseconds.
+     */
+    private final long tick;
+
+    /**
+     * The buckets, which are guarded by the lock of this.
+     */
+    private final Set<Timeout>[] wheel;
+
+    /**
+     * The number of pending timeouts.
+     */
+    private int pendingCount = 0;
+
+    /**
+     * The number of ticks since the wheel started turning.
+     */
+    private long tickCount = 0;
+
+    /**
+     * The time in milliseconds at which the wheel started turning.
+     */
+    private long startTime;
+
+    /**
+     * The thread which turns the wheel, or null.
+     */
+    private Thread worker;
+
+    /**
+     * Construction method.
+     * 
+     * @param tick the duration of a tick in milliseconds.
+     * @param wheelSize the number of buckets.
+     */
+    @SuppressWarnings({ "unchecked", "rawtypes" })
+    public HashedWheelTimer(long tick, int wheelSize)
+    {
+        this.tick = tick;
+        wheel = new Set[wheelSize];
+        for (int i = 0; i < wheelSize; i++)
+            wheel[i] = new LinkedHashSet<Timeout>();
+    }
+
+    /**
+     * Schedule a task.
+     * 
+     * @param task the task, which is run on the thread of the timer and must
+     *            return quickly.
+     * @param delay
+     * @param unit
+     * @return the timeout, which can be cancelled.
+     */
+    public synchronized Timeout newTimeout(Runnable task, long delay,
+        TimeUnit unit)
+    {
+        if (null == worker)
+            start();
+
+        long elapsed = System.currentTimeMillis() - startTime;
+        long deadlineTick =
+            (elapsed + Math.max(0, unit.toMillis(delay)) + tick - 1) / tick;
+        // It can't expire in the bucket which is being processed.
+        deadlineTick = Math.max(deadlineTick, tickCount + 1);
+
+        Timeout timeout = new Timeout(task, deadlineTick);
+        timeout.bucket = wheel[(int) (deadlineTick % wheel.length)];
+        timeout.bucket.add(timeout);
+        pendingCount++;
+        return timeout;
+    }
+
+    /**
+     * Get the number of pending timeouts.
+     * 
+     * @return
+     */
+    public synchronized int getPendingCount()
+    {
+        return pendingCount;
+    }
+
+    /**
+     * <strong>Warning:</strong> The caller must hold the lock of this.
+     */
+    private void start()
+    {
+        startTime = System.currentTimeMillis();
+        tickCount = 0;
+        worker = new Thread(HashedWheelTimer.class.getName())
+        {
+            @Override
+            public void run()
+            {
+                turn(this);
+            }
+        };
+        worker.setDaemon(true);
+        worker.start();
+    }
+
+    /**
+     * Turn the wheel until there is no pending timeout.
+     * 
+     * @param thread the worker thread.
+     */
+    private void turn(Thread thread)
+    {
+        List<Timeout> expired = new ArrayList<Timeout>();
+
+        while (true)
+        {
+            synchronized (this)
+            {
+                if (0 == pendingCount)
+                {
+                    worker = null;
+                    return;
+                }
+
+                long wait;
+                while ((wait = startTime + (tickCount + 1) * tick
+                    - System.currentTimeMillis()) > 0)
+                {
+                    try
+                    {
+                        wait(wait);
+                    }
+                    catch (InterruptedException e)
+                    {
+                        // Only this class knows the thread.
+                    }
+                }
+                tickCount++;
+
+                Iterator<Timeout> i =
+                    wheel[(int) (tickCount % wheel.length)].iterator();
+                while (i.hasNext())
+                {
+                    Timeout timeout = i.next();
+                    if (timeout.deadlineTick <= tickCount)
+                    {
+                        i.remove();
+                        timeout.bucket = null;
+                        pendingCount--;
+                        expired.add(timeout);
+                    }
+                }
+            }
+
+            for (Timeout timeout : expired)
+            {
+                try
+                {
+                    timeout.task.run();
+                }
+                catch (Throwable t)
+                {
+                    logger.error("Timer task failed", t);
+                }
+            }
+            expired.clear();
+        }
+    }
+
+    /**
+     * A scheduled task.
+     */
+    public class Timeout
+    {
+        private final Runnable task;
+
+        private final long deadlineTick;
+
+        /**
+         * The bucket which contains this, or null once it has expired or has
+         * been cancelled.
+         */
+        private Set<Timeout> bucket;
+
+        private Timeout(Runnable task, long deadlineTick)
+        {
+            this.task = task;
+            this.deadlineTick = deadlineTick;
+        }
+
+        /**
+         * Cancel the task, if it hasn't run yet.
+         * 
+         * @return <tt>false</tt> if it has already expired or been cancelled.
+         */
+        public boolean cancel()
+        {
+            synchronized (HashedWheelTimer.this)
+            {
+                if (null == bucket)
+                    return false;
+
+                bucket.remove(this);
+                bucket = null;
+                pendingCount--;
+                return true;
+            }
+        }
+    }
+}
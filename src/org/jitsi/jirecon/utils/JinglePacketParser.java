@@ -21,6 +21,7 @@ package org.jitsi.jirecon.utils;
 
 import java.util.*;
 import org.jitsi.impl.neomedia.format.*;
+import org.jitsi.jirecon.protocol.extension.*;
 import org.jitsi.service.neomedia.*;
 import org.jitsi.service.neomedia.format.*;
 import net.java.sip.communicator.impl.protocol.jabber.extensions.jingle.*;
@@ -102,6 +103,35 @@ public class JinglePacketParser
         return null;
     }
 
+    /**
+     * Get all the <tt>IceUdpTransportPacketExtension</tt>s of a
+     * <tt>JingleIQ</tt>, e.g. a transport-info.
+     * 
+     * @param jiq The Jingle packet.
+     * @return map between <tt>MediaType</tt> and
+     *         <tt>IceUdpTransportPacketExtension</tt>. It is empty if no
+     *         associated packet was found.
+     */
+    public static Map<MediaType, IceUdpTransportPacketExtension> getTransportPacketExts(
+        JingleIQ jiq)
+    {
+        Map<MediaType, IceUdpTransportPacketExtension> transportPEs =
+            new HashMap<MediaType, IceUdpTransportPacketExtension>();
+        if (null == jiq)
+            return transportPEs;
+
+        for (ContentPacketExtension c : jiq.getContentList())
+        {
+            IceUdpTransportPacketExtension transportPE =
+                c.getFirstChildOfType(IceUdpTransportPacketExtension.class);
+            if (null != transportPE)
+                transportPEs.put(MediaType.parseString(c.getName()),
+                    transportPE);
+        }
+
+        return transportPEs;
+    }
+
     /**
      * Get maps between <tt>MediaFormat</tt> and dynamic payload type id from a
      * specified <tt>JingleIQ</tt> and <tt>MediaType</tt>.
@@ -187,6 +217,60 @@ public class JinglePacketParser
         return mediaTypes;
     }
 
+    /**
+     * Get the SSRCs which a participant sends, according to the
+     * <tt>MediaExtension</tt> of its MUC presence. The media which it doesn't
+     * send, or which it advertises without a valid SSRC, are skipped.
+     * 
+     * @param mediaExt the media extension of the presence.
+     * @param mediaTypes the media types to look for.
+     * @return Map between media type and SSRC.
+     */
+    public static Map<MediaType, Long> getPresenceSsrcs(
+        MediaExtension mediaExt, MediaType[] mediaTypes)
+    {
+        Map<MediaType, Long> ssrcs = new HashMap<MediaType, Long>();
+
+        for (MediaType mediaType : mediaTypes)
+        {
+            String ssrc = getPresenceSsrc(mediaExt, mediaType);
+            if (null == ssrc)
+                continue;
+
+            try
+            {
+                ssrcs.put(mediaType, Long.valueOf(ssrc));
+            }
+            catch (NumberFormatException e)
+            {
+                // Not a valid SSRC, so we can't record this media.
+            }
+        }
+
+        return ssrcs;
+    }
+
+    /**
+     * Get the SSRC which a participant sends some media with, according to the
+     * <tt>MediaExtension</tt> of its MUC presence.
+     * 
+     * @param mediaExt the media extension of the presence.
+     * @param mediaType the media type.
+     * @return The SSRC as it's written in the presence. Null if the media
+     *         isn't sent or has no SSRC.
+     */
+    public static String getPresenceSsrc(MediaExtension mediaExt,
+        MediaType mediaType)
+    {
+        String direction = mediaExt.getDirection(mediaType.toString());
+
+        if (null == direction
+            || !MediaDirection.parseString(direction).allowsSending())
+            return null;
+
+        return mediaExt.getSsrc(mediaType.toString());
+    }
+
     /**
      * Get a list of <tt>PayloadTypePacketExtension</tt> from a
      * <tt>RtpDescriptionPacketExtension</tt>.
@@ -0,0 +1,285 @@
+/*
+/*
+ * Jirecon, the JItsi REcording COntainer.
+ *
+ *
+ * Copyright @ 2015 Atlassian Pty Ltd
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.jitsi.jirecon.xmppcomponent;
+
+import java.util.*;
+
+import org.dom4j.*;
+import org.xmpp.forms.*;
+import org.xmpp.packet.*;
+
+/**
+ * A compact report of the load of a Jirecon component, so that a client which
+ * knows several components can start a recording on the least loaded one.
+ * <p>
+ * It's published as an extended disco#info (XEP-0128) data form:
+ * 
+ * <pre>
+ * &lt;x xmlns='jabber:x:data' type='result'&gt;
+ *   &lt;field var='FORM_TYPE' type='hidden'&gt;
+ *     &lt;value&gt;http://jitsi.org/protocol/jirecon#load&lt;/value&gt;
+ *   &lt;/field&gt;
+ *   &lt;field var='tasks'&gt;&lt;value&gt;3&lt;/value&gt;&lt;/field&gt;
+ *   &lt;field var='queued'&gt;&lt;value&gt;1&lt;/value&gt;&lt;/field&gt;
+ *   &lt;field var='cpu'&gt;&lt;value&gt;0.25&lt;/value&gt;&lt;/field&gt;
+ *   &lt;field var='ports'&gt;&lt;value&gt;1980&lt;/value&gt;&lt;/field&gt;
+ *   &lt;field var='disk-rate'&gt;&lt;value&gt;262144&lt;/value&gt;&lt;/field&gt;
+ *   &lt;field var='disk-headroom'&gt;&lt;value&gt;-1&lt;/value&gt;&lt;/field&gt;
+ * &lt;/x&gt;
+ * </pre>
+ * 
+ * A negative value means that it's unknown.
+ */
+public class LoadReport
+    implements Comparable<LoadReport>
+{
+    /**
+     * The FORM_TYPE of the data form.
+     */
+    public static final String FORM_TYPE = RecordingIqUtils.NAMESPACE + "#load";
+
+    /**
+     * The number of ports a task takes at most: RTP and RTCP for audio and
+     * video, and one for the data channel.
+     */
+    public static final int PORTS_PER_TASK = 5;
+
+    /**
+     * The CPU loads which differ less than this are considered equal, since
+     * they are sampled and don't follow a new task immediately.
+     */
+    private static final double CPU_STEP = 0.1;
+
+    private final int activeTasks;
+
+    private final int queuedStarts;
+
+    private final double cpuLoad;
+
+    private final int freePorts;
+
+    private final long diskWriteRate;
+
+    private final long diskHeadroom;
+
+    /**
+     * Construction method.
+     * 
+     * @param activeTasks the number of recording tasks.
+     * @param queuedStarts the number of recordings which are initiating.
+     * @param cpuLoad the load of the CPUs, 1 when they are all busy.
+     * @param freePorts the number of media ports which can still be taken.
+     * @param diskWriteRate the rate in bytes per second the recordings are
+     *            written at.
+     * @param diskHeadroom how many more bytes per second can be written.
+     */
+    public LoadReport(int activeTasks, int queuedStarts, double cpuLoad,
+        int freePorts, long diskWriteRate, long diskHeadroom)
+    {
+        this.activeTasks = activeTasks;
+        this.queuedStarts = queuedStarts;
+        this.cpuLoad = cpuLoad;
+        this.freePorts = freePorts;
+        this.diskWriteRate = diskWriteRate;
+        this.diskHeadroom = diskHeadroom;
+    }
+
+    public int getActiveTasks()
+    {
+        return activeTasks;
+    }
+
+    public int getQueuedStarts()
+    {
+        return queuedStarts;
+    }
+
+    public double getCpuLoad()
+    {
+        return cpuLoad;
+    }
+
+    public int getFreePorts()
+    {
+        return freePorts;
+    }
+
+    public long getDiskWriteRate()
+    {
+        return diskWriteRate;
+    }
+
+    public long getDiskHeadroom()
+    {
+        return diskHeadroom;
+    }
+
+    /**
+     * Whether the component can take one more recording: it has the ports
+     * for it and its disk isn't saturated.
+     * 
+     * @return
+     */
+    public boolean canAcceptTask()
+    {
+        return (freePorts < 0 || freePorts >= PORTS_PER_TASK)
+            && diskHeadroom != 0;
+    }
+
+    /**
+     * {@inheritDoc}
+     * 
+     * The less loaded report comes first: the one which can accept a task,
+     * then the one with the lower CPU load, then the one with fewer tasks
+     * (including the initiating ones), then the one with more free ports.
+     */
+    @Override
+    public int compareTo(LoadReport other)
+    {
+        if (canAcceptTask() != other.canAcceptTask())
+            return canAcceptTask() ? -1 : 1;
+
+        long cpuSteps = Math.round(Math.max(cpuLoad, 0) / CPU_STEP);
+        long otherCpuSteps =
+            Math.round(Math.max(other.cpuLoad, 0) / CPU_STEP);
+        if (cpuSteps != otherCpuSteps)
+            return cpuSteps < otherCpuSteps ? -1 : 1;
+
+        int tasks = activeTasks + queuedStarts;
+        int otherTasks = other.activeTasks + other.queuedStarts;
+        if (tasks != otherTasks)
+            return tasks < otherTasks ? -1 : 1;
+
+        if (freePorts != other.freePorts)
+            return freePorts > other.freePorts ? -1 : 1;
+        return 0;
+    }
+
+    /**
+     * Choose the least loaded component which can accept a task.
+     * 
+     * @param reports the reports of the components, according to their JIDs.
+     * @return the JID of the component, or null if none can accept a task.
+     */
+    public static String selectLeastLoaded(Map<String, LoadReport> reports)
+    {
+        String selected = null;
+        LoadReport selectedReport = null;
+
+        for (Map.Entry<String, LoadReport> e : reports.entrySet())
+        {
+            LoadReport report = e.getValue();
+            if (null == report || !report.canAcceptTask())
+                continue;
+
+            if (null == selectedReport || report.compareTo(selectedReport) < 0)
+            {
+                selected = e.getKey();
+                selectedReport = report;
+            }
+        }
+        return selected;
+    }
+
+    /**
+     * Create the data form of this report.
+     * 
+     * @return
+     */
+    public DataForm toDataForm()
+    {
+        DataForm form = new DataForm(DataForm.Type.result);
+
+        form.addField("FORM_TYPE", null, FormField.Type.hidden).addValue(
+            FORM_TYPE);
+        form.addField("tasks", null, null).addValue(activeTasks);
+        form.addField("queued", null, null).addValue(queuedStarts);
+        form.addField("cpu", null, null).addValue(cpuLoad);
+        form.addField("ports", null, null).addValue(freePorts);
+        form.addField("disk-rate", null, null).addValue(diskWriteRate);
+        form.addField("disk-headroom", null, null).addValue(diskHeadroom);
+        return form;
+    }
+
+    /**
+     * Add this report to a disco#info result.
+     * 
+     * @param discoInfo
+     */
+    public void addTo(IQ discoInfo)
+    {
+        discoInfo.getChildElement().add(toDataForm().getElement());
+    }
+
+    /**
+     * Get the load report from a disco#info result.
+     * 
+     * @param discoInfo
+     * @return the report, or null if there isn't any.
+     */
+    public static LoadReport parse(IQ discoInfo)
+    {
+        Element query = discoInfo.getChildElement();
+        if (null == query)
+            return null;
+
+        for (Object o : query.elements(
+            QName.get(DataForm.ELEMENT_NAME, DataForm.NAMESPACE)))
+        {
+            DataForm form = new DataForm((Element) o);
+            FormField formType = form.getField("FORM_TYPE");
+            if (null == formType || !FORM_TYPE.equals(formType.getFirstValue()))
+                continue;
+
+            try
+            {
+                return new LoadReport(
+                    Integer.parseInt(getValue(form, "tasks", "0")),
+                    Integer.parseInt(getValue(form, "queued", "0")),
+                    Double.parseDouble(getValue(form, "cpu", "-1")),
+                    Integer.parseInt(getValue(form, "ports", "-1")),
+                    Long.parseLong(getValue(form, "disk-rate", "-1")),
+                    Long.parseLong(getValue(form, "disk-headroom", "-1")));
+            }
+            catch (NumberFormatException e)
+            {
+                return null;
+            }
+        }
+        return null;
+    }
+
+    private static String getValue(DataForm form, String var,
+        String defaultValue)
+    {
+        FormField field = form.getField(var);
+        String value = null == field ? null : field.getFirstValue();
+
+        return null == value ? defaultValue : value;
+    }
+
+    @Override
+    public String toString()
+    {
+        return "tasks=" + activeTasks + " queued=" + queuedStarts + " cpu="
+            + cpuLoad + " ports=" + freePorts + " disk-rate=" + diskWriteRate
+            + " disk-headroom=" + diskHeadroom;
+    }
+}
@@ -0,0 +1,233 @@
+/*
+/*
+ * Jirecon, the JItsi REcording COntainer.
+ *
+ *
+ * Copyright @ 2015 Atlassian Pty Ltd
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.jitsi.jirecon.xmppcomponent;
+
+import java.lang.management.*;
+import java.util.concurrent.*;
+
+import org.jitsi.util.*;
+
+/**
+ * Periodically samples the load of a Jirecon component into a
+ * <tt>LoadReport</tt>. The latest report is published as an immutable object,
+ * so it can be read, e.g. for every disco#info request, without locking.
+ */
+public class LoadReporter
+{
+    /**
+     * The <tt>Logger</tt>, used to log messages to standard output.
+     */
+    private static final Logger logger = Logger.getLogger(LoadReporter.class);
+
+    /**
+     * The default interval in milliseconds between two samples.
+     */
+    public static final long DEFAULT_INTERVAL = 5000;
+
+    /**
+     * The thread which samples the load of all reporters.
+     */
+    private static final ScheduledExecutorService sampler = Executors
+        .newSingleThreadScheduledExecutor(new ThreadFactory()
+        {
+            @Override
+            public Thread newThread(Runnable r)
+            {
+                Thread t = new Thread(r, LoadReporter.class.getName());
+                t.setDaemon(true);
+                return t;
+            }
+        });
+
+    /**
+     * Gives what the reporter can't measure by itself.
+     */
+    public interface Source
+    {
+        /**
+         * Get the number of recording tasks.
+         * 
+         * @return
+         */
+        public int getActiveTaskCount();
+
+        /**
+         * Get the number of recordings which have been requested but haven't
+         * started yet.
+         * 
+         * @return
+         */
+        public int getQueuedStartCount();
+
+        /**
+         * Get the number of media ports which can still be taken.
+         * 
+         * @return the number, or -1 if it's unknown.
+         */
+        public int getFreePortCount();
+
+        /**
+         * Get the number of bytes which have been written by the current
+         * recordings.
+         * 
+         * @return
+         */
+        public long getBytesWritten();
+    }
+
+    private final Source source;
+
+    /**
+     * The rate in bytes per second the disk can sustain, or -1 if it's
+     * unknown.
+     */
+    private final long diskCapacity;
+
+    /**
+     * The latest report.
+     */
+    private volatile LoadReport report;
+
+    /**
+     * The bytes written and the time at the previous sample.
+     */
+    private long lastBytesWritten = -1;
+
+    private long lastSampleTime;
+
+    /**
+     * The scheduled sampling, or null if we are stopped.
+     */
+    private ScheduledFuture<?> future;
+
+    /**
+     * Construction method.
+     * 
+     * @param source
+     * @param diskCapacity the rate in bytes per second the disk can sustain,
+     *            or -1 if it's unknown.
+     */
+    public LoadReporter(Source source, long diskCapacity)
+    {
+        this.source = source;
+        this.diskCapacity = diskCapacity;
+        sample();
+    }
+
+    /**
+     * Start sampling periodically.
+     * 
+     * @param interval the interval in milliseconds between two samples. The
+     *            reporter isn't started if it isn't positive.
+     */
+    public synchronized void start(long interval)
+    {
+        if (null != future || interval <= 0)
+            return;
+
+        future = sampler.scheduleWithFixedDelay(new Runnable()
+        {
+            @Override
+            public void run()
+            {
+                try
+                {
+                    sample();
+                }
+                catch (Throwable t)
+                {
+                    logger.warn("Failed to sample the load", t);
+                }
+            }
+        }, interval, interval, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Stop sampling.
+     */
+    public synchronized void stop()
+    {
+        if (null == future)
+            return;
+
+        future.cancel(false);
+        future = null;
+    }
+
+    /**
+     * Get the latest report.
+     * 
+     * @return
+     */
+    public LoadReport getReport()
+    {
+        return report;
+    }
+
+    /**
+     * Take a sample now.
+     * 
+     * @return the new report.
+     */
+    public synchronized LoadReport sample()
+    {
+        final long now = System.currentTimeMillis();
+        final long bytesWritten = source.getBytesWritten();
+
+        /*
+         * Recordings which stop take their bytes away, so a decrease only
+         * means that we start counting again.
+         */
+        long diskWriteRate = 0;
+        if (lastBytesWritten >= 0 && bytesWritten >= lastBytesWritten
+            && now > lastSampleTime)
+        {
+            diskWriteRate =
+                (bytesWritten - lastBytesWritten) * 1000
+                    / (now - lastSampleTime);
+        }
+        lastBytesWritten = bytesWritten;
+        lastSampleTime = now;
+
+        long diskHeadroom =
+            diskCapacity < 0 ? -1 : Math.max(diskCapacity - diskWriteRate, 0);
+
+        LoadReport report =
+            new LoadReport(source.getActiveTaskCount(),
+                source.getQueuedStartCount(), getCpuLoad(),
+                source.getFreePortCount(), diskWriteRate, diskHeadroom);
+        this.report = report;
+        return report;
+    }
+
+    /**
+     * Get the load of the CPUs, i.e. the system load average per processor.
+     * 
+     * @return the load, or -1 if it's unknown.
+     */
+    private static double getCpuLoad()
+    {
+        OperatingSystemMXBean os = ManagementFactory.getOperatingSystemMXBean();
+        double loadAverage = os.getSystemLoadAverage();
+
+        return loadAverage < 0 ? -1 : loadAverage
+            / os.getAvailableProcessors();
+    }
+}
@@ -42,12 +42,14 @@ import org.xmpp.packet.*;
  * </pre>
  * <p>
  * 
- * There are five attribute in recording packet extension: action, status,
- * mucjid, dst and rid:
+ * There are six attribute in recording packet extension: action, status,
+ * mucjid, dst, rid and media:
  * <ol>
  * <li>
- * 1. action. Possible values are: 'start', 'stop', 'info'. 'start'/'stop' means
- * to start/stop a recording, 'info' means to notify recording information.</li>
+ * 1. action. Possible values are: 'start', 'stop', 'info', 'status'.
+ * 'start'/'stop' means to start/stop a recording, 'info' means to notify
+ * recording information, 'status' means to get the status of the recording
+ * sessions.</li>
  * <li>
  * 2. status. Possible values are: 'initiating', 'recording', 'stopping',
  * 'stopped'. It MUST be set in packet sent from component. Status of specified
@@ -63,9 +65,31 @@ import org.xmpp.packet.*;
  * <li>
  * 5. rid. Identifier of specified recording session. It is generated by Jirecon
  * component and MUST be set in IQ packet during post-interaction.</li>
+ * <li>
+ * 6. media. Possible values are: 'audio'. It MAY be set in starting command,
+ * 'audio' means to record audio only. If it isn't set, the default of the
+ * component is used.</li>
  * </ol>
  * <p>
  * 
+ * A client can also get the status of the recording sessions with an IQ-get
+ * whose action is 'status', with a rid to get only one session. The result
+ * has a 'node' child element with the load of the component, and a 'session'
+ * child element for every session, which has a 'stream' child element for
+ * every recorded SSRC:
+ * 
+ * <pre>
+ * &lt;recording xmlns='http://jitsi.org/protocol/jirecon' action='status'&gt;
+ *   &lt;node load='0.42' processors='8' sessions='1' tasks='1'/&gt;
+ *   &lt;session rid='...' mucjid='...' status='started' duration='61000'
+ *       bytes='1843200' lost='3' lossrate='0.001'&gt;
+ *     &lt;stream media='audio' ssrc='1234' received='3050' lost='3'
+ *         lossrate='0.001'/&gt;
+ *   &lt;/session&gt;
+ * &lt;/recording&gt;
+ * </pre>
+ * <p>
+ * 
  * <strong>Warning:</strong> Here we use xmpp.packet.IQ instead of
  * smack.packet.IQ, because both "whack" and "tinder" libary use xmpp.packet.IQ.
  * 
@@ -108,7 +132,32 @@ public class RecordingIqUtils
      * Attribute name of "rid".
      */
     public static final String RID_NAME = "rid";
+
+    /**
+     * Attribute name of "media".
+     */
+    public static final String MEDIA_NAME = "media";
+
+    /**
+     * Value of attribute "media" which means to record audio only.
+     */
+    public static final String MEDIA_AUDIO = "audio";
     
+    /**
+     * Name of the element of the load of the component in a status result.
+     */
+    public static final String NODE_ELEMENT_NAME = "node";
+
+    /**
+     * Name of the element of a recording session in a status result.
+     */
+    public static final String SESSION_ELEMENT_NAME = "session";
+
+    /**
+     * Name of the element of a recorded SSRC in a status result.
+     */
+    public static final String STREAM_ELEMENT_NAME = "stream";
+
     /**
      * Document factory, it's used for creating xmpp.packet.IQ.
      */
@@ -166,6 +215,18 @@ public class RecordingIqUtils
         record.add(docFactory.createAttribute(record, attrName, attrValue));
     }
 
+    /**
+     * Add a child element to the recording extension of a specified IQ.
+     * 
+     * @param iq The IQ to be added the element.
+     * @param name Name of the element.
+     * @return The element, which attributes and children can be added to.
+     */
+    public static Element addChildElement(IQ iq, String name)
+    {
+        return iq.getChildElement().addElement(name, NAMESPACE);
+    }
+
     /**
      * Get attribute of a specified IQ.
      * 
@@ -176,8 +237,12 @@ public class RecordingIqUtils
     public static String getAttribute(IQ iq, String attrName)
     {
         final Element element = iq.getChildElement();
+        if (null == element)
+            return null;
+
+        final Attribute attribute = element.attribute(attrName);
 
-        return element.attribute(attrName).getValue();
+        return null == attribute ? null : attribute.getValue();
     }
 
     /**
@@ -205,7 +270,13 @@ public class RecordingIqUtils
          * sent from component to client, in order to notify the opposite with
          * some information, such as recording session status.
          */
-        INFO("info");
+        INFO("info"),
+
+        /**
+         * It can only be set in IQ-get sent from client to component, in order
+         * to get the status of the recording sessions.
+         */
+        STATUS("status");
 
         private String name;
 
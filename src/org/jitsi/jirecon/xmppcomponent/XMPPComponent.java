@@ -19,9 +19,18 @@
  */
 package org.jitsi.jirecon.xmppcomponent;
 
+import java.lang.management.*;
 import java.util.*;
+import java.util.concurrent.*;
+
+import org.dom4j.*;
 import org.jitsi.jirecon.*;
 import org.jitsi.jirecon.TaskManagerEvent.*;
+import org.jitsi.jirecon.cluster.*;
+import org.jitsi.jirecon.stats.*;
+import org.jitsi.jirecon.utils.*;
+import org.jitsi.service.configuration.*;
+import org.jitsi.service.libjitsi.*;
 import org.jitsi.util.*;
 import org.xmpp.component.*;
 import org.xmpp.packet.*;
@@ -178,10 +187,51 @@ public class XMPPComponent
     private final TaskManager jirecon = new TaskManager();
 
     /**
-     * Recording sessions. It is used for caching some information.
+     * Recording sessions, indexed by rid. It is used for caching some
+     * information.
+     */
+    private final Map<String, RecordingSession> sessionsByRid =
+        new ConcurrentHashMap<String, RecordingSession>();
+
+    /**
+     * The same recording sessions as {@link #sessionsByRid}, indexed by the
+     * JID of the recorded MUC. A session is put here first, so that there is
+     * only one session per MUC.
+     */
+    private final ConcurrentMap<String, RecordingSession> sessionsByMucJid =
+        new ConcurrentHashMap<String, RecordingSession>();
+
+    /**
+     * Starts and stops the tasks, so that the IQs are answered without
+     * waiting for it. The work of a session is run in order, see
+     * {@link RecordingSession#execute(Runnable)}.
+     */
+    private final ExecutorService taskExecutor = ExecutorUtils
+        .newCachedThreadPool(true, XMPPComponent.class.getName());
+
+    /**
+     * Samples the load which is reported in our disco#info, or null if we
+     * aren't started.
+     */
+    private LoadReporter loadReporter;
+
+    /**
+     * The coordinator of the cluster which we join if
+     * {@link ConfigurationKey#CLUSTER_NODE_ID_KEY} is set.
      */
-    private final List<RecordingSession> recordingSessions =
-        new LinkedList<RecordingSession>();
+    private final ClusterCoordinator clusterCoordinator;
+
+    /**
+     * Our node in the cluster, or null if we aren't part of a cluster. The
+     * MUCs are then started and stopped through the cluster, and recorded by
+     * their owners.
+     */
+    private volatile ClusterNode clusterNode;
+
+    /**
+     * Records the MUCs which {@link #clusterNode} owns, or null.
+     */
+    private TaskManagerRecorder clusterRecorder;
 
     /**
      * Indicate whether the <tt>JireconComponent</tt> has been started. It is
@@ -202,9 +252,25 @@ public class XMPPComponent
      * @param configurationPath Path of configuration file.
      */
     public XMPPComponent(String localJid, String configurationPath)
+    {
+        this(localJid, configurationPath, new LocalClusterCoordinator());
+    }
+
+    /**
+     * Construction method.
+     * 
+     * @param localJid Jid of this component.
+     * @param configurationPath Path of configuration file.
+     * @param clusterCoordinator the coordinator of the cluster which the
+     *            component joins if it has a node ID, e.g. one which is shared
+     *            with the other components of the process.
+     */
+    public XMPPComponent(String localJid, String configurationPath,
+        ClusterCoordinator clusterCoordinator)
     {
         this.localJid = localJid;
         this.configurationPath = configurationPath;
+        this.clusterCoordinator = clusterCoordinator;
     }
 
     @Override
@@ -242,6 +308,46 @@ public class XMPPComponent
 
         isStarted = true;
 
+        /*
+         * The recordings which have been resumed after a restart keep their
+         * rid, but we don't know their clients any more, so they can only be
+         * queried and stopped.
+         */
+        for (TaskJournal.Entry entry : jirecon.getResumedTasks())
+        {
+            if (null == entry.getRid())
+                continue;
+
+            RecordingSession session =
+                new RecordingSession(entry.getRid(), entry.getMucJid(), null);
+            if (null == sessionsByMucJid.putIfAbsent(entry.getMucJid(),
+                session))
+                sessionsByRid.put(entry.getRid(), session);
+        }
+
+        ConfigurationService cfg = LibJitsi.getConfigurationService();
+        if (null != cfg)
+        {
+            loadReporter = new LoadReporter(new LoadSource(cfg),
+                cfg.getLong(ConfigurationKey.DISK_WRITE_CAPACITY_KEY, -1));
+            loadReporter.start(cfg.getLong(
+                ConfigurationKey.LOAD_REPORT_INTERVAL_KEY,
+                LoadReporter.DEFAULT_INTERVAL));
+
+            String nodeId = cfg.getString(ConfigurationKey.CLUSTER_NODE_ID_KEY);
+            if (!StringUtils.isNullOrEmpty(nodeId))
+            {
+                logger.info("Joining the cluster as " + nodeId);
+                clusterRecorder =
+                    new TaskManagerRecorder(jirecon, clusterCoordinator);
+                clusterNode =
+                    new ClusterNode(nodeId, clusterCoordinator,
+                        clusterRecorder,
+                        ConsistentHashRing.DEFAULT_VIRTUAL_NODES);
+                clusterNode.join();
+            }
+        }
+
         logger.info("Jirecon component has been started successfully.");
     }
 
@@ -250,6 +356,21 @@ public class XMPPComponent
     {
         logger.info("Shutdown Jirecon component");
 
+        if (null != loadReporter)
+        {
+            loadReporter.stop();
+            loadReporter = null;
+        }
+
+        // Our recordings are handed to the other members.
+        if (null != clusterNode)
+        {
+            clusterNode.leave();
+            clusterNode = null;
+            clusterRecorder.close();
+            clusterRecorder = null;
+        }
+
         /*
          * If there is any recording session hasn'e been finished, "uninit"
          * method will stop them.
@@ -260,6 +381,25 @@ public class XMPPComponent
         isStarted = false;
     }
 
+    /**
+     * {@inheritDoc}
+     * 
+     * Our disco#info also reports our load, see <tt>LoadReport</tt>.
+     */
+    @Override
+    protected IQ handleDiscoInfo(IQ iq)
+    {
+        IQ result = super.handleDiscoInfo(iq);
+        LoadReporter loadReporter = this.loadReporter;
+
+        if (null != result && null != loadReporter
+            && null == iq.getChildElement().attributeValue("node"))
+        {
+            loadReporter.getReport().addTo(result);
+        }
+        return result;
+    }
+
     @Override
     protected IQ handleIQGet(IQ iq)
     {
@@ -268,10 +408,116 @@ public class XMPPComponent
          * a result iq, otherwise component will send error iq back to remote
          * peer.
          */
+        final String action =
+            RecordingIqUtils.getAttribute(iq, RecordingIqUtils.ACTION_NAME);
+
+        if (RecordingIqUtils.Action.STATUS.toString().equals(action))
+            return getStatus(iq);
+
         logger.info("RECV IQ GET: " + iq.toXML());
         return IQ.createResultIQ(iq);
     }
 
+    /**
+     * Create the result of a "status" request IQ. It's built from what the
+     * sessions and the collectors of the receive statistics have published,
+     * without taking any lock, so it may be polled often.
+     * 
+     * @param iq "status" request IQ, with a rid to get only one session.
+     * @return The result IQ which will be sent back to client.
+     */
+    private IQ getStatus(IQ iq)
+    {
+        final String rid =
+            RecordingIqUtils.getAttribute(iq, RecordingIqUtils.RID_NAME);
+        final IQ result = RecordingIqUtils.createIqResult(iq);
+
+        RecordingIqUtils.addAttribute(result, RecordingIqUtils.ACTION_NAME,
+            RecordingIqUtils.Action.STATUS.toString());
+
+        Element node = RecordingIqUtils.addChildElement(result,
+            RecordingIqUtils.NODE_ELEMENT_NAME);
+        OperatingSystemMXBean os = ManagementFactory.getOperatingSystemMXBean();
+        node.addAttribute("load", String.valueOf(os.getSystemLoadAverage()));
+        node.addAttribute("processors",
+            String.valueOf(os.getAvailableProcessors()));
+        node.addAttribute("sessions", String.valueOf(sessionsByRid.size()));
+        node.addAttribute("tasks", String.valueOf(jirecon.getTaskCount()));
+
+        if (null == rid)
+        {
+            for (RecordingSession session : sessionsByRid.values())
+                addStatus(result, session);
+        }
+        else
+        {
+            RecordingSession session = sessionsByRid.get(rid);
+            if (null != session)
+                addStatus(result, session);
+        }
+
+        return result;
+    }
+
+    /**
+     * Add the status of a recording session to a "status" result IQ.
+     * 
+     * @param result
+     * @param session
+     */
+    private void addStatus(IQ result, RecordingSession session)
+    {
+        Element element = RecordingIqUtils.addChildElement(result,
+            RecordingIqUtils.SESSION_ELEMENT_NAME);
+        element.addAttribute(RecordingIqUtils.RID_NAME, session.getRid());
+        element.addAttribute(RecordingIqUtils.MUCJID_NAME,
+            session.getMucJid());
+        element.addAttribute(RecordingIqUtils.STATUS_NAME,
+            session.getStatus().toString());
+
+        final long startedTime = session.getStartedTime();
+        element.addAttribute("duration", String.valueOf(0 == startedTime ? 0
+            : System.currentTimeMillis() - startedTime));
+
+        ReceiveStatsCollector collector =
+            jirecon.getReceiveStatsCollector(session.getMucJid());
+        if (null == collector)
+            return;
+
+        element.addAttribute("bytes",
+            String.valueOf(collector.getBytesWritten()));
+
+        long received = 0;
+        long lost = 0;
+        for (SsrcReceiveStats stats : collector.getSnapshot())
+        {
+            Element stream =
+                element.addElement(RecordingIqUtils.STREAM_ELEMENT_NAME,
+                    RecordingIqUtils.NAMESPACE);
+            stream.addAttribute(RecordingIqUtils.MEDIA_NAME,
+                stats.getMediaType().toString());
+            stream.addAttribute("ssrc", String.valueOf(stats.getSsrc()));
+            stream.addAttribute("received",
+                String.valueOf(stats.getPacketsReceived()));
+            stream.addAttribute("lost",
+                String.valueOf(Math.max(stats.getPacketsLost(), 0)));
+            stream.addAttribute("lossrate",
+                String.valueOf(stats.getLossRate()));
+            if (stats.getKeyFrameDelayMs() >= 0)
+            {
+                stream.addAttribute("keyframedelay",
+                    String.valueOf(stats.getKeyFrameDelayMs()));
+            }
+
+            received += stats.getPacketsReceived();
+            lost += Math.max(stats.getPacketsLost(), 0);
+        }
+
+        element.addAttribute("lost", String.valueOf(lost));
+        element.addAttribute("lossrate", String.valueOf((received + lost) > 0
+            ? (double) lost / (received + lost) : 0d));
+    }
+
     @Override
     protected IQ handleIQSet(IQ iq) throws Exception
     {
@@ -305,58 +551,113 @@ public class XMPPComponent
     public void handleEvent(TaskManagerEvent evt)
     {
         final String mucJid = evt.getMucJid();
-        RecordingSession session = null;
+        final RecordingSession session = sessionsByMucJid.get(mucJid);
 
-        synchronized (recordingSessions)
+        if (null == session)
         {
-            for (RecordingSession s : recordingSessions)
+            // The cluster has started a MUC which another member was asked
+            // to record. We don't know the client, but it can be queried and
+            // stopped here.
+            if (null != clusterNode
+                && TaskManagerEvent.Type.TASK_STARTED == evt.getType())
             {
-                if (0 == mucJid.compareTo(s.getMucJid()))
+                RecordingSession clusterSession =
+                    new RecordingSession(mucJid, null);
+                if (null == sessionsByMucJid.putIfAbsent(mucJid,
+                    clusterSession))
                 {
-                    session = s;
-                    break;
+                    sessionsByRid.put(clusterSession.getRid(), clusterSession);
+                    clusterSession.setStarted();
                 }
             }
+            return;
+        }
 
-            // Session should never be null.
-            if (null == session)
-                return;
+        IQ notification = null;
 
-            IQ notification = null;
+        // TaskManager has already stopped and released the task of an
+        // aborted or finished session. Stopping it again by MUC JID could hit
+        // a new session of the same MUC.
+        if (TaskManagerEvent.Type.TASK_ABORTED == evt.getType())
+        {
+            removeSession(session);
 
-            if (TaskManagerEvent.Type.TASK_ABORTED == evt.getType())
-            {
-                jirecon.stopJireconTask(evt.getMucJid(), false);
-                recordingSessions.remove(session);
+            notification =
+                createIqSet(session,
+                    RecordingIqUtils.Status.ABORTED.toString(),
+                    session.getRid());
+        }
+        else if (TaskManagerEvent.Type.TASK_FINISED == evt.getType())
+        {
+            removeSession(session);
 
-                notification =
-                    createIqSet(session,
-                        RecordingIqUtils.Status.ABORTED.toString(),
-                        session.getRid());
-            }
-            else if (TaskManagerEvent.Type.TASK_FINISED == evt.getType())
-            {
-                jirecon.stopJireconTask(evt.getMucJid(), true);
-                recordingSessions.remove(session);
+            notification =
+                createIqSet(session,
+                    RecordingIqUtils.Status.STOPPED.toString(),
+                    session.getRid());
+        }
+        else if (TaskManagerEvent.Type.TASK_STARTED == evt.getType())
+        {
+            session.setStarted();
+            notification =
+                createIqSet(session,
+                    RecordingIqUtils.Status.STARTED.toString(),
+                    session.getRid(), session.getOutputPath());
+        }
 
-                notification =
-                    createIqSet(session,
-                        RecordingIqUtils.Status.STOPPED.toString(),
-                        session.getRid());
-            }
-            else if (TaskManagerEvent.Type.TASK_STARTED == evt.getType())
-            {
-                notification =
-                    createIqSet(session,
-                        RecordingIqUtils.Status.STARTED.toString(),
-                        session.getRid(), session.getOutputPath());
-            }
+        if (null != notification && null != session.getClientJid())
+        {
+            send(notification);
+        }
+    }
+
+    /**
+     * Forget a recording session.
+     * 
+     * @param session
+     * @return <tt>false</tt> if the session had already been removed.
+     */
+    private boolean removeSession(RecordingSession session)
+    {
+        sessionsByRid.remove(session.getRid());
+        return sessionsByMucJid.remove(session.getMucJid(), session);
+    }
 
-            if (null != notification)
+    /**
+     * Stop the task of a recording session, on {@link #taskExecutor}.
+     * 
+     * @param session
+     * @param keepData Whether to keep the output files or delete them.
+     */
+    private void stopTask(final RecordingSession session,
+        final boolean keepData)
+    {
+        session.execute(new Runnable()
+        {
+            @Override
+            public void run()
             {
-                send(notification);
+                ClusterNode clusterNode = XMPPComponent.this.clusterNode;
+                if (null == clusterNode)
+                {
+                    jirecon.stopJireconTask(session.getMucJid(), keepData);
+                    return;
+                }
+
+                // Whichever member records it stops it. If it isn't us, we
+                // won't hear about its end.
+                clusterNode.stopRecording(session.getMucJid());
+                if (!clusterNode.getRecordings().contains(
+                        session.getMucJid())
+                    && removeSession(session)
+                    && null != session.getClientJid())
+                {
+                    send(createIqSet(session,
+                        RecordingIqUtils.Status.STOPPED.toString(),
+                        session.getRid()));
+                }
             }
-        }
+        });
     }
 
     /**
@@ -367,31 +668,59 @@ public class XMPPComponent
      */
     private IQ startRecording(IQ iq)
     {
-        String mucJid =
+        final String mucJid =
             RecordingIqUtils.getAttribute(iq, RecordingIqUtils.MUCJID_NAME);
 
-        RecordingSession newSession = null;
+        final RecordingSession newSession =
+            new RecordingSession(mucJid, iq.getFrom().toString());
+
+        if (null != sessionsByMucJid.putIfAbsent(mucJid, newSession))
+        {
+            logger.error("Failed to start a recording session,"
+                            + " already recording.");
+            return createIqResult(
+                    iq,
+                    RecordingIqUtils.Status.ABORTED.toString(),
+                    null);
+        }
+        sessionsByRid.put(newSession.getRid(), newSession);
+
+        final String media =
+            RecordingIqUtils.getAttribute(iq, RecordingIqUtils.MEDIA_NAME);
 
-        synchronized (recordingSessions)
+        /*
+         * Starting a task creates its directory, ICE agent and DTLS control,
+         * which we don't want to do on the thread of the component.
+         */
+        newSession.execute(new Runnable()
         {
-            for (RecordingSession session : recordingSessions)
+            @Override
+            public void run()
             {
-                if (session.getMucJid().equals(mucJid))
+                ClusterNode clusterNode = XMPPComponent.this.clusterNode;
+                if (null != clusterNode)
                 {
-                    logger.error("Failed to start a recording session,"
-                                    + " already recording.");
-                    return createIqResult(
-                            iq,
-                            RecordingIqUtils.Status.ABORTED.toString(),
-                            null);
+                    // The owner of the MUC records it, with its defaults.
+                    logger.info("Recording of " + mucJid + " is owned by "
+                        + clusterNode.startRecording(mucJid));
+                    return;
                 }
-            }
 
-            newSession = new RecordingSession(mucJid, iq.getFrom().toString());
-            recordingSessions.add(newSession);
-        }
+                boolean audioOnly =
+                    null == media ? jirecon.isDefaultAudioOnly()
+                        : RecordingIqUtils.MEDIA_AUDIO.equals(media);
+                boolean started =
+                    jirecon.startJireconTask(mucJid, audioOnly,
+                        newSession.getRid());
 
-        jirecon.startJireconTask(mucJid);
+                if (!started && removeSession(newSession))
+                {
+                    send(createIqSet(newSession,
+                        RecordingIqUtils.Status.ABORTED.toString(),
+                        newSession.getRid()));
+                }
+            }
+        });
 
         return createIqResult(iq,
             RecordingIqUtils.Status.INITIATING.toString(), newSession.getRid());
@@ -408,23 +737,14 @@ public class XMPPComponent
         final String rid =
             RecordingIqUtils.getAttribute(iq, RecordingIqUtils.RID_NAME);
 
-        RecordingSession session = null;
-        synchronized (recordingSessions)
-        {
-            for (RecordingSession s : recordingSessions)
-            {
-                if (0 == rid.compareTo(s.getRid()))
-                {
-                    session = s;
-                    break;
-                }
-            }
-        }
+        RecordingSession session =
+            null == rid ? null : sessionsByRid.get(rid);
 
         // Session should never be null.
         if (null != session)
         {
-            jirecon.stopJireconTask(session.getMucJid(), true);
+            session.setStatus(RecordingIqUtils.Status.STOPPING);
+            stopTask(session, true);
         }
 
         return createIqResult(iq, RecordingIqUtils.Status.STOPPING.toString(),
@@ -516,6 +836,78 @@ public class XMPPComponent
         return createIqSet(session, status, rid, null);
     }
 
+    /**
+     * Gives the load of this component to {@link #loadReporter}, from the
+     * recording sessions.
+     */
+    private class LoadSource
+        implements LoadReporter.Source
+    {
+        /**
+         * The number of media ports we may use, or -1 if it isn't limited.
+         */
+        private final int portRange;
+
+        public LoadSource(ConfigurationService cfg)
+        {
+            int minPort = cfg.getInt(ConfigurationKey.MIN_STREAM_PORT_KEY, -1);
+            int maxPort = cfg.getInt(ConfigurationKey.MAX_STREAM_PORT_KEY, -1);
+
+            portRange =
+                (minPort < 0 || maxPort < minPort) ? -1 : maxPort - minPort
+                    + 1;
+        }
+
+        @Override
+        public int getActiveTaskCount()
+        {
+            return Math.max(sessionsByRid.size() - getQueuedStartCount(), 0);
+        }
+
+        @Override
+        public int getQueuedStartCount()
+        {
+            int count = 0;
+            for (RecordingSession session : sessionsByRid.values())
+            {
+                if (RecordingIqUtils.Status.INITIATING == session.getStatus())
+                    count++;
+            }
+            return count;
+        }
+
+        @Override
+        public int getFreePortCount()
+        {
+            return portRange < 0 ? -1 : Math.max(portRange
+                - IceUdpTransportManager.getAllocatedPortCount(), 0);
+        }
+
+        @Override
+        public long getBytesWritten()
+        {
+            long bytes = 0;
+            for (RecordingSession session : sessionsByRid.values())
+            {
+                ReceiveStatsCollector collector =
+                    jirecon.getReceiveStatsCollector(session.getMucJid());
+                if (null != collector)
+                    bytes += collector.getBytesWritten();
+            }
+            return bytes;
+        }
+    }
+
+    /**
+     * Generate a random rid string(32 chars length) for a recording session.
+     * 
+     * @return
+     */
+    private static String generateRid()
+    {
+        return UUID.randomUUID().toString().replace("-", "");
+    }
+
     /**
      * Represent a recording session. It's used for encapsulating some
      * information.
@@ -545,6 +937,28 @@ public class XMPPComponent
          */
         private String outputPath;
 
+        /**
+         * The status of this session, as reported to the client.
+         */
+        private volatile RecordingIqUtils.Status status =
+            RecordingIqUtils.Status.INITIATING;
+
+        /**
+         * When the recording started, or 0 if it hasn't started yet.
+         */
+        private volatile long startedTime = 0;
+
+        /**
+         * The work of this session which waits for {@link #taskExecutor}, so
+         * that e.g. a stop isn't run before the start.
+         */
+        private final Queue<Runnable> work = new LinkedList<Runnable>();
+
+        /**
+         * Whether the work of this session is being run.
+         */
+        private boolean working = false;
+
         /**
          * Construction method.
          * 
@@ -554,7 +968,21 @@ public class XMPPComponent
          */
         public RecordingSession(String mucJid, String clientJid)
         {
-            this.rid = generateRid();
+            this(generateRid(), mucJid, clientJid);
+        }
+
+        /**
+         * Construction method of a session whose rid is known, e.g. after a
+         * restart.
+         * 
+         * @param rid Recording session id.
+         * @param mucJid Jid of the recorded meeting.
+         * @param clientJid Jid of the client which starts this recording
+         *            session, or null if it isn't known.
+         */
+        public RecordingSession(String rid, String mucJid, String clientJid)
+        {
+            this.rid = rid;
             this.mucJid = mucJid;
             this.clientJid = clientJid;
             this.outputPath = generateOutputPath();
@@ -580,15 +1008,76 @@ public class XMPPComponent
             return outputPath;
         }
 
+        public RecordingIqUtils.Status getStatus()
+        {
+            return status;
+        }
+
+        public void setStatus(RecordingIqUtils.Status status)
+        {
+            this.status = status;
+        }
+
+        public long getStartedTime()
+        {
+            return startedTime;
+        }
+
         /**
-         * Generate a random rid string(32 chars length) for this recording
-         * session.
+         * The recording has started.
+         */
+        public void setStarted()
+        {
+            startedTime = System.currentTimeMillis();
+            status = RecordingIqUtils.Status.STARTED;
+        }
+
+        /**
+         * Run some work of this session on {@link #taskExecutor}, after the
+         * work which has been given before.
          * 
-         * @return
+         * @param runnable
          */
-        private String generateRid()
+        public void execute(Runnable runnable)
         {
-            return UUID.randomUUID().toString().replace("-", "");
+            synchronized (work)
+            {
+                work.add(runnable);
+                if (working)
+                    return;
+                working = true;
+            }
+
+            taskExecutor.execute(new Runnable()
+            {
+                @Override
+                public void run()
+                {
+                    while (true)
+                    {
+                        Runnable next;
+                        synchronized (work)
+                        {
+                            next = work.poll();
+                            if (null == next)
+                            {
+                                working = false;
+                                return;
+                            }
+                        }
+
+                        try
+                        {
+                            next.run();
+                        }
+                        catch (Throwable t)
+                        {
+                            logger.error("Recording session " + rid
+                                + " failed", t);
+                        }
+                    }
+                }
+            });
         }
 
         /*